@@ -9,9 +9,9 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Collection;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.mitre.synthea.helpers.IdGenerator;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.modules.QualityOfLifeModule;
 import org.mitre.synthea.world.agents.Payer;
@@ -229,6 +229,7 @@ public class DataStore {
   @SuppressWarnings("unchecked")
   public boolean store(Person p) {
     String personID = (String) p.attributes.get(Person.ID);
+    IdGenerator ids = IdGenerator.forRecord(p, "datastore");
 
     try (Connection connection = getConnection()) {
       // CREATE TABLE IF NOT EXISTS PERSON (id varchar, name varchar, date_of_birth bigint,
@@ -283,7 +284,7 @@ public class DataStore {
       stmt.executeBatch();
 
       for (Encounter encounter : p.record.encounters) {
-        String encounterID = UUID.randomUUID().toString();
+        String encounterID = ids.nextId();
 
         String providerID = null;
 
@@ -343,7 +344,7 @@ public class DataStore {
         }
 
         for (Report report : encounter.reports) {
-          String reportID = UUID.randomUUID().toString();
+          String reportID = ids.nextId();
 
           // CREATE TABLE IF NOT EXISTS REPORT (id varchar, person_id varchar, encounter_id varchar,
           // name varchar, type varchar, start bigint, code varchar, display varchar, system
@@ -475,7 +476,7 @@ public class DataStore {
               "INSERT INTO MEDICATION "
               + "(id, person_id, provider_id, name, type, start, stop, code, display, system) "
               + "VALUES (?,?,?,?,?,?,?,?,?,?);");
-          String medicationID = UUID.randomUUID().toString();
+          String medicationID = ids.nextId();
           stmt.setString(1, medicationID);
           stmt.setString(2, personID);
           stmt.setString(3, providerID);
@@ -501,7 +502,7 @@ public class DataStore {
               "INSERT INTO CLAIM "
               + "(id, person_id, encounter_id, medication_id, time, cost) "
               + "VALUES (?,?,?,?,?,?)");
-          stmt.setString(1, UUID.randomUUID().toString());
+          stmt.setString(1, ids.nextId());
           stmt.setString(2, personID);
           stmt.setString(3, encounterID);
           stmt.setString(4, medicationID);
@@ -544,7 +545,7 @@ public class DataStore {
               "INSERT INTO careplan "
               + "(id, person_id, provider_id, name, type, start, stop, code, display, system) "
               + "VALUES (?,?,?,?,?,?,?,?,?,?);");
-          stmt.setString(1, UUID.randomUUID().toString());
+          stmt.setString(1, ids.nextId());
           stmt.setString(2, personID);
           if (encounter.provider == null) {
             stmt.setString(3, null);
@@ -580,7 +581,7 @@ public class DataStore {
               + "(id, uid, person_id, encounter_id, start, modality_code, modality_display, "
               + "modality_system, bodysite_code, bodysite_display, bodysite_system, sop_class) "
               + "VALUES (?,?,?,?,?,?,?,?,?,?,?,?);");
-          stmt.setString(1, UUID.randomUUID().toString());
+          stmt.setString(1, ids.nextId());
           stmt.setString(2, imagingStudy.dicomUid);
           stmt.setString(3, personID);
           stmt.setString(4, encounterID);
@@ -608,7 +609,7 @@ public class DataStore {
             "INSERT INTO CLAIM "
             + "(id, person_id, encounter_id, medication_id, time, cost) "
             + "VALUES (?,?,?,?,?,?)");
-        stmt.setString(1, UUID.randomUUID().toString());
+        stmt.setString(1, ids.nextId());
         stmt.setString(2, personID);
         stmt.setString(3, encounterID);
         stmt.setString(4, null);
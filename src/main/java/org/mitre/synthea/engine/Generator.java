@@ -25,6 +25,7 @@ import org.mitre.synthea.export.CDWExporter;
 import org.mitre.synthea.export.Exporter;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.TransitionMetrics;
+import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.modules.DeathModule;
 import org.mitre.synthea.modules.EncounterModule;
 import org.mitre.synthea.modules.HealthInsuranceModule;
@@ -55,6 +56,9 @@ public class Generator {
   private boolean onlyAlivePatients;
   private boolean onlyDeadPatients;
   private boolean onlyVeterans;
+  private boolean compactForExport;
+  /** The history kept in health records while people are simulated, or 0 to keep it all. */
+  private long historyToKeep;
   public TransitionMetrics metrics;
   public static String DEFAULT_STATE = "Massachusetts";
   private Exporter.ExporterRuntimeOptions exporterRuntimeOptions;
@@ -202,6 +206,13 @@ public class Generator {
     }
 
     this.onlyVeterans = Boolean.parseBoolean(Config.get("generate.veteran_population_override"));
+    this.compactForExport =
+        Boolean.parseBoolean(Config.get("generate.compact_for_export", "false"));
+    int yearsOfHistory = Integer.parseInt(Config.get("exporter.years_of_history", "0"));
+    if (Boolean.parseBoolean(Config.get("generate.elide_history", "false"))
+        && yearsOfHistory > 0) {
+      this.historyToKeep = Utilities.convertTime("years", yearsOfHistory);
+    }
     this.totalGeneratedPopulation = new AtomicInteger(0);
     this.stats = Collections.synchronizedMap(new HashMap<String, AtomicInteger>());
     this.modulePredicate = getModulePredicate();
@@ -376,6 +387,7 @@ public class Generator {
         EncounterModule encounterModule = new EncounterModule();
         HealthRecordEditors hrm = HealthRecordEditors.getInstance();
         long time = start;
+        long nextElision = start;
         while (person.alive(time) && time < stop) {
 
           healthInsuranceModule.process(person, time + timestep);
@@ -393,6 +405,12 @@ public class Generator {
           encounterModule.endWellnessEncounter(person, time);
           hrm.executeAll(person, person.record, time, timestep, person.random);
 
+          if (historyToKeep > 0 && time >= nextElision) {
+            // once a year, drop the entries that can no longer be exported
+            person.elideHistory(time - historyToKeep);
+            nextElision = time + Utilities.convertTime("years", 1);
+          }
+
           time += timestep;
         }
 
@@ -432,6 +450,11 @@ public class Generator {
           writeToConsole(person, index, time, isAlive);
         }
 
+        // after the console output, which prints the person's vital signs
+        if (compactForExport) {
+          person.compactForExport();
+        }
+
         String key = isAlive ? "alive" : "dead";
 
         AtomicInteger count = stats.get(key);
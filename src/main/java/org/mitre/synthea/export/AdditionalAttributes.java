@@ -0,0 +1,220 @@
+package org.mitre.synthea.export;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+
+import com.google.common.collect.MapMaker;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Resource;
+import org.mitre.synthea.helpers.FhirContexts;
+
+/**
+ * The additional attributes of a module state, compiled for a type of FHIR R4 resource.
+ * <p></p>
+ * The attributes are FHIR JSON, which is parsed into HAPI elements once, the first time the
+ * attributes are applied, and then copied onto each resource with the HAPI setters for the
+ * attribute. Placeholders of the form "REPLACE-UUID-[n]" are replaced in the copies with new
+ * resource ids, the same id for each n within a resource.
+ * <p></p>
+ * Compiled attributes are cached for as long as the JSON of their module state, which is
+ * shared by every entry the state creates.
+ */
+final class AdditionalAttributes {
+  private static final String PLACEHOLDER = "REPLACE-UUID-";
+  private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile(PLACEHOLDER + "([0-9]+)");
+
+  /** The compiled attributes of each module state, compared by identity. */
+  private static final ConcurrentMap<JsonObject, AdditionalAttributes> COMPILED =
+      new MapMaker().weakKeys().makeMap();
+
+  private final Class<? extends Resource> resourceClass;
+  /** The values of each attribute, and how to set them. */
+  private final Map<BaseRuntimeChildDefinition, List<IBase>> attributes =
+      new LinkedHashMap<BaseRuntimeChildDefinition, List<IBase>>();
+  /** Resources to add to the Bundle as entries of their own. */
+  private final List<Resource> contained = new ArrayList<Resource>();
+  /** The placeholder numbers, in the order new ids are made for them. */
+  private final int[] placeholders;
+  /** Why the attributes are not valid FHIR, or null if they are. */
+  private final String error;
+
+  /**
+   * Parse additional attributes for a type of resource.
+   * @param resourceClass The type of resource the attributes are for.
+   * @param json The attributes, as FHIR JSON.
+   */
+  private AdditionalAttributes(Class<? extends Resource> resourceClass, JsonObject json) {
+    this.resourceClass = resourceClass;
+    List<Integer> numbers = new ArrayList<Integer>();
+    findPlaceholders(json, numbers);
+    this.placeholders = numbers.stream().mapToInt(Integer::intValue).toArray();
+
+    RuntimeResourceDefinition definition = FhirContexts.r4().getResourceDefinition(resourceClass);
+    IParser parser = FhirContexts.r4JsonParser(false);
+    String problem = null;
+    try {
+      // the FHIR library only parses whole resources, so the attributes are parsed as the
+      // elements of a resource of the right type, and then taken from it
+      JsonObject resourceJson = new JsonObject();
+      resourceJson.addProperty("resourceType", definition.getName());
+      for (Map.Entry<String, JsonElement> e : json.entrySet()) {
+        if (e.getKey().equals("contained")) {
+          for (JsonElement resourceElement : e.getValue().getAsJsonArray()) {
+            contained.add((Resource) parser.parseResource(resourceElement.toString()));
+          }
+        } else {
+          resourceJson.add(e.getKey(), e.getValue());
+        }
+      }
+      Resource template = parser.parseResource(resourceClass, resourceJson.toString());
+      for (String name : json.keySet()) {
+        BaseRuntimeChildDefinition child = definition.getChildByName(name);
+        if (child != null && !name.equals("contained")) {
+          List<IBase> values = child.getAccessor().getValues(template);
+          if (!values.isEmpty()) {
+            attributes.put(child, values);
+          }
+        }
+      }
+    } catch (DataFormatException | IllegalStateException e) {
+      problem = e.getMessage();
+      attributes.clear();
+      contained.clear();
+    }
+    this.error = problem;
+  }
+
+  /**
+   * Apply additional attributes to a resource, replacing any existing values of the same
+   * attributes.
+   * @param resource The resource the attributes apply to.
+   * @param json The attributes, as FHIR JSON.
+   * @param bundle The Bundle that contained resources are added to, or null if there is none.
+   * @return the resource
+   */
+  static Resource apply(Resource resource, JsonObject json, Bundle bundle) {
+    AdditionalAttributes compiled = COMPILED.get(json);
+    if (compiled == null || compiled.resourceClass != resource.getClass()) {
+      compiled = new AdditionalAttributes(resource.getClass(), json);
+      COMPILED.put(json, compiled);
+    }
+    return compiled.apply(resource, bundle);
+  }
+
+  private Resource apply(Resource resource, Bundle bundle) {
+    if (error != null) {
+      System.err.println("ERROR: Unable apply additionalAttributes. " + error);
+      return resource;
+    }
+    String[] ids = null;
+    if (placeholders.length > 0) {
+      ids = new String[IntStream.of(placeholders).max().getAsInt() + 1];
+      for (int number : placeholders) {
+        ids[number] = bundle == null ? UUID.randomUUID().toString()
+            : BundleContext.of(bundle).newId();
+      }
+    }
+
+    // contained resources are pulled out, for addition to the patient bundle
+    if (bundle != null) {
+      for (Resource template : contained) {
+        Resource r = template.copy();
+        replacePlaceholders(r, ids);
+        FhirR4.newEntry(bundle, r, r.getIdElement().getIdPart());
+      }
+    }
+
+    for (Map.Entry<BaseRuntimeChildDefinition, List<IBase>> e : attributes.entrySet()) {
+      BaseRuntimeChildDefinition.IMutator mutator = e.getKey().getMutator();
+      boolean first = true;
+      for (IBase template : e.getValue()) {
+        Base value = ((Base) template).copy();
+        replacePlaceholders(value, ids);
+        if (first) {
+          // setValue replaces the existing value, or all of the values of a list
+          mutator.setValue(resource, value);
+          first = false;
+        } else {
+          mutator.addValue(resource, value);
+        }
+      }
+    }
+    return resource;
+  }
+
+  /**
+   * Replace the placeholders in an element, and every element in it, with their ids.
+   * @param element The element.
+   * @param ids The id for each placeholder number, or null if there are no placeholders.
+   */
+  private static void replacePlaceholders(Base element, String[] ids) {
+    if (ids == null) {
+      return;
+    }
+    if (element instanceof PrimitiveType) {
+      PrimitiveType<?> primitive = (PrimitiveType<?>) element;
+      String value = primitive.getValueAsString();
+      if (value != null && value.contains(PLACEHOLDER)) {
+        Matcher m = PLACEHOLDER_PATTERN.matcher(value);
+        StringBuffer replaced = new StringBuffer(value.length());
+        while (m.find()) {
+          m.appendReplacement(replaced,
+              Matcher.quoteReplacement(ids[Integer.parseInt(m.group(1))]));
+        }
+        m.appendTail(replaced);
+        primitive.setValueAsString(replaced.toString());
+      }
+    }
+    for (Property property : element.children()) {
+      for (Base child : property.getValues()) {
+        replacePlaceholders(child, ids);
+      }
+    }
+  }
+
+  /**
+   * Find the placeholders in the attributes, in the order the ids for them are made.
+   * @param json The attributes, or part of them.
+   * @param numbers The placeholder numbers found so far.
+   */
+  private static void findPlaceholders(JsonElement json, List<Integer> numbers) {
+    if (json.isJsonArray()) {
+      for (JsonElement e : json.getAsJsonArray()) {
+        findPlaceholders(e, numbers);
+      }
+    } else if (json.isJsonObject()) {
+      for (Map.Entry<String, JsonElement> e : json.getAsJsonObject().entrySet()) {
+        if (e.getValue().isJsonPrimitive() && e.getValue().getAsJsonPrimitive().isString()) {
+          Matcher m = PLACEHOLDER_PATTERN.matcher(e.getValue().getAsString());
+          while (m.find()) {
+            Integer number = Integer.valueOf(m.group(1));
+            if (!numbers.contains(number)) {
+              numbers.add(number);
+            }
+          }
+        } else {
+          findPlaceholders(e.getValue(), numbers);
+        }
+      }
+    }
+  }
+}
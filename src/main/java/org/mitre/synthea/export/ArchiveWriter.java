@@ -0,0 +1,298 @@
+package org.mitre.synthea.export;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the per-patient files of every exporter into a few large archive files, instead of
+ * creating millions of small files. See the configuration settings "exporter.archive" and
+ * "exporter.archive.segment_size".
+ * <p></p>
+ * Files are added to the current segment (segment-00000.tar, segment-00001.tar, ...) until it
+ * reaches the segment size, and then a new segment is started. Every file is also listed in
+ * index.csv, with the patient it belongs to, its segment, and the offset and length of its
+ * contents in the segment, so that a single file can be read straight out of a segment
+ * without reading the rest of it. Files are stored in tar and zip segments as they are,
+ * without any further compression, so their offsets stay valid.
+ * <p></p>
+ * Files can be written by many threads at the same time. Each file is buffered by the thread
+ * writing it, and added to the archive in one piece when it is closed.
+ */
+final class ArchiveWriter implements Closeable {
+  /** The supported archive formats. */
+  enum Format {
+    NONE,
+    TAR,
+    ZIP;
+
+    /**
+     * Parse the name of an archive format.
+     * @param name none, tar or zip.
+     * @return the format
+     * @throws IllegalArgumentException if the format is not supported.
+     */
+    static Format of(String name) {
+      String format = name == null ? "" : name.trim().toUpperCase(Locale.ROOT);
+      if (format.isEmpty()) {
+        return NONE;
+      }
+      try {
+        return valueOf(format);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unsupported exporter.archive: " + name, e);
+      }
+    }
+  }
+
+  private static final String INDEX_HEADER = "PATIENT,NAME,SEGMENT,OFFSET,LENGTH";
+  private static final int TAR_BLOCK = 512;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final Path directory;
+  private final Path baseDirectory;
+  private final Format format;
+  private final long segmentSize;
+  private final Writer index;
+
+  /** The number of the next segment to start. */
+  private int nextSegment;
+  /** The name of the current segment, or null if there is no open segment. */
+  private String segmentName;
+  /** The current segment, counting the bytes written to it. */
+  private CountingOutputStream segment;
+  /** The current zip segment, if the format is zip. */
+  private ZipOutputStream zip;
+
+  /**
+   * Open an archive. New segments are numbered after any segments already in the directory,
+   * and new files are added to the end of an existing index.
+   * @param directory The directory for the segments and the index.
+   * @param baseDirectory Files are named in the archive relative to this directory.
+   * @param format The archive format, tar or zip.
+   * @param segmentSize Start a new segment once a segment has at least this many bytes.
+   * @throws IOException if the index can not be opened.
+   */
+  ArchiveWriter(Path directory, Path baseDirectory, Format format, long segmentSize)
+      throws IOException {
+    if (format == Format.NONE) {
+      throw new IllegalArgumentException("No archive format");
+    }
+    this.directory = directory;
+    this.baseDirectory = baseDirectory.toAbsolutePath().normalize();
+    this.format = format;
+    this.segmentSize = segmentSize;
+    this.nextSegment = firstFreeSegment();
+    Path indexFile = directory.resolve("index.csv");
+    boolean newIndex = !Files.exists(indexFile);
+    this.index = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(indexFile,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+    if (newIndex) {
+      index.write(INDEX_HEADER);
+      index.write(System.lineSeparator());
+    }
+  }
+
+  /**
+   * Returns the number after the highest numbered segment already in the directory.
+   */
+  private int firstFreeSegment() {
+    Pattern pattern = Pattern.compile("segment-(\\d+)\\.(tar|zip)");
+    int next = 0;
+    File[] files = directory.toFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        Matcher matcher = pattern.matcher(file.getName());
+        if (matcher.matches()) {
+          next = Math.max(next, Integer.parseInt(matcher.group(1)) + 1);
+        }
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Start a new file in the archive. The file is added when the stream is closed.
+   * @param patientId The ID of the patient the file belongs to.
+   * @param file Where the file would have been written, if it were not archived.
+   * @return the stream to write the contents of the file to
+   */
+  OutputStream newFile(String patientId, Path file) {
+    Path relative = baseDirectory.relativize(file.toAbsolutePath().normalize());
+    String name = relative.toString().replace(File.separatorChar, '/');
+    // most files are small, so the buffer starts at the default size and grows as needed
+    return new ByteArrayOutputStream() {
+      private boolean closed;
+
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          closed = true;
+          add(patientId, name, buf, count);
+        }
+      }
+    };
+  }
+
+  /**
+   * Add a file to the current segment, and list it in the index.
+   */
+  private synchronized void add(String patientId, String name, byte[] data, int length)
+      throws IOException {
+    if (segment == null) {
+      startSegment();
+    }
+    long offset;
+    if (format == Format.TAR) {
+      segment.write(tarHeader(name, length));
+      offset = segment.getCount();
+      segment.write(data, 0, length);
+      int padding = (TAR_BLOCK - (length % TAR_BLOCK)) % TAR_BLOCK;
+      segment.write(new byte[padding]);
+    } else {
+      ZipEntry entry = new ZipEntry(name);
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, length);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(length);
+      entry.setCompressedSize(length);
+      entry.setCrc(crc.getValue());
+      zip.putNextEntry(entry);
+      offset = segment.getCount();
+      zip.write(data, 0, length);
+      zip.closeEntry();
+    }
+    index.write(patientId + ',' + name + ',' + segmentName + ',' + offset + ',' + length);
+    index.write(System.lineSeparator());
+    if (segment.getCount() >= segmentSize) {
+      endSegment();
+    }
+  }
+
+  private void startSegment() throws IOException {
+    String extension = format == Format.TAR ? ".tar" : ".zip";
+    segmentName = String.format("segment-%05d%s", nextSegment++, extension);
+    segment = new CountingOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(directory.resolve(segmentName), StandardOpenOption.CREATE_NEW),
+        BUFFER_SIZE));
+    if (format == Format.ZIP) {
+      zip = new ZipOutputStream(segment);
+    }
+  }
+
+  private void endSegment() throws IOException {
+    if (format == Format.TAR) {
+      // the end of a tar archive is marked by two empty blocks
+      segment.write(new byte[2 * TAR_BLOCK]);
+      segment.close();
+    } else {
+      zip.close();
+      zip = null;
+    }
+    segment = null;
+    segmentName = null;
+  }
+
+  /**
+   * Finish the current segment, and flush the index.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (segment != null) {
+      endSegment();
+    }
+    index.close();
+  }
+
+  /**
+   * Returns the ustar header of a regular file. A name longer than 100 bytes is split into
+   * a prefix and a name at a '/', and a name that can not be split is written in a pax
+   * extended header before the ustar header.
+   */
+  private static byte[] tarHeader(String name, long size) {
+    if (length(name) <= 100) {
+      return tarHeader(name, "", size, '0');
+    }
+    for (int split = name.indexOf('/'); split > 0; split = name.indexOf('/', split + 1)) {
+      String prefix = name.substring(0, split);
+      String rest = name.substring(split + 1);
+      if (length(prefix) <= 155 && length(rest) <= 100) {
+        return tarHeader(rest, prefix, size, '0');
+      }
+    }
+    byte[] pax = paxPath(name);
+    byte[] paxHeader = tarHeader("PaxHeader", "", pax.length, 'x');
+    int paxBlocks = (pax.length + TAR_BLOCK - 1) / TAR_BLOCK;
+    byte[] header = tarHeader(name.substring(name.length() - 100), "", size, '0');
+    byte[] headers = Arrays.copyOf(paxHeader, (paxBlocks + 2) * TAR_BLOCK);
+    System.arraycopy(pax, 0, headers, TAR_BLOCK, pax.length);
+    System.arraycopy(header, 0, headers, headers.length - TAR_BLOCK, TAR_BLOCK);
+    return headers;
+  }
+
+  private static byte[] tarHeader(String name, String prefix, long size, char type) {
+    byte[] header = new byte[TAR_BLOCK];
+    put(header, 0, 100, name);
+    put(header, 100, 8, "0000644");
+    put(header, 108, 8, "0000000");
+    put(header, 116, 8, "0000000");
+    put(header, 124, 12, String.format("%011o", size));
+    put(header, 136, 12, String.format("%011o", System.currentTimeMillis() / 1000L));
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    header[156] = (byte) type;
+    put(header, 257, 6, "ustar");
+    put(header, 263, 2, "00");
+    put(header, 345, 155, prefix);
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    put(header, 148, 7, String.format("%06o", checksum));
+    return header;
+  }
+
+  /**
+   * Returns a pax extended header record for a path. The length at the start of the record
+   * includes the digits of the length itself.
+   */
+  private static byte[] paxPath(String name) {
+    String record = " path=" + name + "\n";
+    int length = record.getBytes(StandardCharsets.UTF_8).length;
+    int total = length + Integer.toString(length).length();
+    if (Integer.toString(total).length() > Integer.toString(length).length()) {
+      total++;
+    }
+    return (total + record).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int length(String value) {
+    return value.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  /**
+   * Write a NUL terminated (unless it fills the field) string into a header field.
+   */
+  private static void put(byte[] header, int offset, int length, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+  }
+}
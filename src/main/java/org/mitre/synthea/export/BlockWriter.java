@@ -0,0 +1,259 @@
+package org.mitre.synthea.export;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+/**
+ * A buffered writer for a file that is shared by many exporter threads.
+ * <p></p>
+ * Each thread assembles its lines in its own buffer, without any locking, and then
+ * commits them in a single append. This keeps the lines of one block (for example, all
+ * of the rows for one patient) together in the file.
+ * <p></p>
+ * A {@link #shared shared} writer appends every block to a single file, taking the lock on
+ * the file once per block instead of once per line. Committed blocks are held in a large
+ * buffer, which is written to the file whenever it fills up, and flushed to disk when the
+ * flush interval has passed since the last flush, rather than after every block.
+ * <p></p>
+ * Compressed files are only complete once they are closed. Closing either kind of writer at
+ * the end of a run is safe: the files are opened again, for appending, if any more blocks are
+ * committed.
+ * <p></p>
+ * A {@link #partitioned partitioned} writer gives each thread its own part file, so blocks
+ * are appended without any locking at all.
+ */
+abstract class BlockWriter implements Closeable {
+  /** Blocks larger than this are not kept around for reuse after they are committed. */
+  private static final int MAX_RETAINED_BLOCK = 1 << 20;
+
+  private final ThreadLocal<StringBuilder> block = ThreadLocal.withInitial(StringBuilder::new);
+
+  /**
+   * Create a new writer that appends all blocks to a single file.
+   * @param file The file to write to.
+   * @param append Whether to append to the file, rather than replace it.
+   * @param header The header to start a new file with.
+   * @param charset The character set of the file.
+   * @param bufferSize The number of characters to buffer before writing to the file.
+   * @param flushInterval The number of milliseconds after which committed blocks are
+   *     flushed to the file.
+   * @return the writer
+   * @throws IOException if the file can not be opened.
+   */
+  static BlockWriter shared(File file, boolean append, String header, Charset charset,
+      int bufferSize, long flushInterval) throws IOException {
+    return new Shared(file, append, header, charset, bufferSize, flushInterval);
+  }
+
+  /**
+   * Create a new writer that appends the blocks of each thread to a separate part file.
+   * Part files are opened the first time a thread commits a block.
+   * @param partFile The file for each partition number.
+   * @param partition The partition number of the current thread.
+   * @param append Whether to append to existing part files, rather than replace them.
+   * @param header The header to start each new part file with.
+   * @param charset The character set of the files.
+   * @param bufferSize The number of characters to buffer before writing to each file.
+   * @return the writer
+   */
+  static BlockWriter partitioned(IntFunction<File> partFile, IntSupplier partition,
+      boolean append, String header, Charset charset, int bufferSize) {
+    return new Partitioned(partFile, partition, append, header, charset, bufferSize);
+  }
+
+  /**
+   * Open a buffered writer for the given file, writing the header if the file is new.
+   * The file is compressed according to the current exporter settings.
+   */
+  private static Writer open(File file, boolean append, String header, Charset charset,
+      int bufferSize) throws IOException {
+    Compression compression = Compression.current();
+    boolean writeHeader = !append || !compression.file(file).exists();
+    Path path = file.toPath();
+    OutputStream out = append
+        ? compression.open(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+        : compression.open(path);
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, charset), bufferSize);
+    if (writeHeader && header != null) {
+      writer.write(header);
+    }
+    return writer;
+  }
+
+  /**
+   * Add text to the current thread's block. Nothing is written to the file until the
+   * block is committed.
+   * @param text The text to add.
+   */
+  void write(String text) {
+    block.get().append(text);
+  }
+
+  /**
+   * Append the current thread's block to the file, and start a new block.
+   * @throws IOException if an I/O error occurs.
+   */
+  void commit() throws IOException {
+    StringBuilder pending = block.get();
+    if (pending.length() == 0) {
+      return;
+    }
+    append(pending);
+    discard();
+  }
+
+  /**
+   * Throw away anything in the current thread's block that has not been committed.
+   */
+  void discard() {
+    StringBuilder pending = block.get();
+    if (pending.capacity() > MAX_RETAINED_BLOCK) {
+      block.remove();
+    } else {
+      pending.setLength(0);
+    }
+  }
+
+  /**
+   * Append a committed block to the file.
+   * @param committed The block.
+   * @throws IOException if an I/O error occurs.
+   */
+  protected abstract void append(CharSequence committed) throws IOException;
+
+  /**
+   * Flush all committed blocks to the file.
+   * @throws IOException if an I/O error occurs.
+   */
+  abstract void flush() throws IOException;
+
+  /**
+   * A writer that appends all blocks to a single file. Once it is closed, the file is opened
+   * again, for appending, if any more blocks are committed.
+   */
+  private static class Shared extends BlockWriter {
+    private final File file;
+    private final String header;
+    private final Charset charset;
+    private final int bufferSize;
+    private final long flushInterval;
+    /** The open file, or null if the writer has been closed. */
+    private Writer writer;
+    private long lastFlush;
+
+    private Shared(File file, boolean append, String header, Charset charset, int bufferSize,
+        long flushInterval) throws IOException {
+      this.file = file;
+      this.header = header;
+      this.charset = charset;
+      this.bufferSize = bufferSize;
+      this.flushInterval = flushInterval;
+      this.writer = open(file, append, header, charset, bufferSize);
+      this.lastFlush = System.currentTimeMillis();
+    }
+
+    @Override
+    protected synchronized void append(CharSequence committed) throws IOException {
+      if (writer == null) {
+        writer = open(file, true, header, charset, bufferSize);
+      }
+      writer.append(committed);
+      long now = System.currentTimeMillis();
+      if (now - lastFlush >= flushInterval) {
+        writer.flush();
+        lastFlush = now;
+      }
+    }
+
+    @Override
+    synchronized void flush() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      lastFlush = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (writer != null) {
+        Writer closing = writer;
+        writer = null;
+        closing.close();
+      }
+    }
+  }
+
+  /**
+   * A writer that appends the blocks of each thread to a separate part file.
+   */
+  private static class Partitioned extends BlockWriter {
+    private final IntFunction<File> partFile;
+    private final IntSupplier partition;
+    private final boolean append;
+    private final String header;
+    private final Charset charset;
+    private final int bufferSize;
+    /** All of the open part files, so they can be flushed and closed. */
+    private final List<Writer> parts;
+    /** The part file of each thread. Replaced when the parts are closed. */
+    private volatile ThreadLocal<Writer> part;
+
+    private Partitioned(IntFunction<File> partFile, IntSupplier partition, boolean append,
+        String header, Charset charset, int bufferSize) {
+      this.partFile = partFile;
+      this.partition = partition;
+      this.append = append;
+      this.header = header;
+      this.charset = charset;
+      this.bufferSize = bufferSize;
+      this.parts = new ArrayList<Writer>();
+      this.part = new ThreadLocal<Writer>();
+    }
+
+    @Override
+    protected void append(CharSequence committed) throws IOException {
+      ThreadLocal<Writer> current = part;
+      Writer writer = current.get();
+      if (writer == null) {
+        writer = open(partFile.apply(partition.getAsInt()), append, header, charset, bufferSize);
+        current.set(writer);
+        synchronized (parts) {
+          parts.add(writer);
+        }
+      }
+      writer.append(committed);
+    }
+
+    @Override
+    void flush() throws IOException {
+      synchronized (parts) {
+        for (Writer writer : parts) {
+          writer.flush();
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      synchronized (parts) {
+        part = new ThreadLocal<Writer>();
+        for (Writer writer : parts) {
+          writer.close();
+        }
+        parts.clear();
+      }
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package org.mitre.synthea.export;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Table;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mitre.synthea.helpers.IdGenerator;
+import org.mitre.synthea.world.concepts.HealthRecord;
+
+/**
+ * The state of a FHIR Bundle while it is being built.
+ * <p></p>
+ * The entries that other resources refer to, such as the Organization for a provider or the
+ * Practitioner for a clinician, are indexed by type and an identifying key as they are added
+ * to the Bundle, so references can be resolved without scanning every entry of the Bundle.
+ * The context also generates the ids of new resources, and remembers the entries that have
+ * already been written out and removed from a Bundle that is streamed.
+ * <p></p>
+ * The context of a Bundle is kept for as long as the Bundle itself, and is not thread safe:
+ * a Bundle is expected to be built by a single thread.
+ */
+final class BundleContext {
+  /** The context of each Bundle, compared by identity and released with the Bundle. */
+  private static final ConcurrentMap<Object, BundleContext> CONTEXTS =
+      new MapMaker().weakKeys().makeMap();
+
+  /** Entry fullUrl, by resource type and key. */
+  private final Table<String, String, String> fullUrls = HashBasedTable.create();
+  /** Entry fullUrl, by the health record entry it was converted from, compared by identity. */
+  private final Map<HealthRecord.Entry, String> entryUrls = new IdentityHashMap<>();
+  /** The fullUrls of the entries written out and removed from the Bundle, in order. */
+  private final List<String> written = new ArrayList<>();
+  /** The fullUrls of the written entries, by resource type and code. */
+  private final Table<String, String, List<String>> writtenCodes = HashBasedTable.create();
+  /** Generates resource ids, or null to use random UUIDs. */
+  private IdGenerator ids;
+  /** Whether entry fullUrls are relative resource URLs, instead of "urn:uuid:" URIs. */
+  private boolean resourceUrls;
+
+  private BundleContext() {
+    // use BundleContext.of
+  }
+
+  /**
+   * Get the context of the given Bundle, creating a new context if there is none.
+   * @param bundle The Bundle, of any FHIR version.
+   * @return The context of the Bundle.
+   */
+  static BundleContext of(Object bundle) {
+    return CONTEXTS.computeIfAbsent(bundle, b -> new BundleContext());
+  }
+
+  /**
+   * Record the fullUrl of an entry. If more than one entry of the same type has the same key,
+   * the first one added is kept, which matches a search of the Bundle in order.
+   * @param resourceType The type of the resource, e.g. "Organization".
+   * @param key The key that identifies the resource, e.g. the provider ID. Ignored if null.
+   * @param fullUrl The fullUrl of the entry.
+   */
+  void put(String resourceType, String key, String fullUrl) {
+    if (key != null && !fullUrls.contains(resourceType, key)) {
+      fullUrls.put(resourceType, key, fullUrl);
+    }
+  }
+
+  /**
+   * Find the fullUrl of an entry.
+   * @param resourceType The type of the resource, e.g. "Organization".
+   * @param key The key that identifies the resource, e.g. the provider ID.
+   * @return The fullUrl of the entry, or null if there is no such entry in the Bundle.
+   */
+  String get(String resourceType, String key) {
+    return fullUrls.get(resourceType, key);
+  }
+
+  /**
+   * Record the fullUrl of the entry that a health record entry was converted to. The fullUrl
+   * is kept here rather than on the health record entry, which is shared by every format the
+   * record is converted to, possibly at the same time.
+   * @param entry The health record entry, such as a condition or an observation.
+   * @param fullUrl The fullUrl of the Bundle entry.
+   */
+  void put(HealthRecord.Entry entry, String fullUrl) {
+    entryUrls.put(entry, fullUrl);
+  }
+
+  /**
+   * Find the fullUrl of the entry that a health record entry was converted to.
+   * @param entry The health record entry, such as a condition or an observation.
+   * @return The fullUrl of the Bundle entry, or null if the entry has not been converted.
+   */
+  String get(HealthRecord.Entry entry) {
+    return entryUrls.get(entry);
+  }
+
+  /**
+   * Record that an entry has been written out and removed from the Bundle.
+   * @param resourceType The type of the resource, e.g. "Condition".
+   * @param code The code of the resource, so the entry can be found by
+   *     {@link #written(String, String)}. Ignored if null.
+   * @param fullUrl The fullUrl of the entry.
+   */
+  void written(String resourceType, String code, String fullUrl) {
+    written.add(fullUrl);
+    if (code != null) {
+      List<String> fullUrls = writtenCodes.get(resourceType, code);
+      if (fullUrls == null) {
+        fullUrls = new ArrayList<>();
+        writtenCodes.put(resourceType, code, fullUrls);
+      }
+      fullUrls.add(fullUrl);
+    }
+  }
+
+  /**
+   * Returns the fullUrls of all the entries that have been written out, in order.
+   */
+  List<String> written() {
+    return Collections.unmodifiableList(written);
+  }
+
+  /**
+   * Find the fullUrls of the written entries with the given code.
+   * @param resourceType The type of the resource, e.g. "Condition".
+   * @param code The code of the resource.
+   * @return The fullUrls of the entries, in the order they were written.
+   */
+  List<String> written(String resourceType, String code) {
+    List<String> fullUrls = writtenCodes.get(resourceType, code);
+    return fullUrls == null ? Collections.emptyList() : Collections.unmodifiableList(fullUrls);
+  }
+
+  /**
+   * Use the given generator for the ids of the resources in the Bundle.
+   * @param ids The id generator, normally seeded from the person the Bundle is for.
+   * @return this context
+   */
+  BundleContext setIdGenerator(IdGenerator ids) {
+    this.ids = ids;
+    return this;
+  }
+
+  /**
+   * Use relative resource URLs, such as "Patient/[id]", for the fullUrls of the entries in
+   * the Bundle, as bulk data does, instead of "urn:uuid:[id]".
+   * @param resourceUrls Whether to use resource URLs.
+   * @return this context
+   */
+  BundleContext setResourceUrls(boolean resourceUrls) {
+    this.resourceUrls = resourceUrls;
+    return this;
+  }
+
+  /**
+   * Returns true if the entries in the Bundle use relative resource URLs for their fullUrls.
+   * Bundles that do not belong to a person, such as the hospital Bundle, use "urn:uuid:".
+   */
+  boolean useResourceUrls() {
+    return resourceUrls;
+  }
+
+  /**
+   * Returns a new resource id. Bundles that do not belong to a person, and so have no id
+   * generator, get random UUIDs.
+   */
+  String newId() {
+    return ids == null ? UUID.randomUUID().toString() : ids.nextId();
+  }
+}
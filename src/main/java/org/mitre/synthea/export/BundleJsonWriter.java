@@ -0,0 +1,144 @@
+package org.mitre.synthea.export;
+
+import ca.uhn.fhir.parser.IParser;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Writes a FHIR Bundle as JSON one entry at a time, so the Bundle never has to be held in
+ * memory in full. Every resource is encoded on its own by the HAPI parser, straight to the
+ * output, and only the Bundle itself is written here, laid out the way the pretty-printing
+ * HAPI parser lays it out. The JSON is the same for every FHIR version.
+ * <p></p>
+ * Each FHIR version wraps this with a BundleWriter that takes the entries of its own Bundle.
+ */
+final class BundleJsonWriter {
+  /** Encodes the strings of the Bundle itself, escaped the way the HAPI parser does. */
+  private static final Gson STRINGS = new GsonBuilder().disableHtmlEscaping().create();
+
+  private final Writer out;
+  private final IParser parser;
+  private boolean started;
+  private boolean hasEntries;
+
+  /**
+   * Create a writer for one Bundle.
+   * @param out Writer to write the JSON to. The writer is not closed.
+   * @param parser Pretty-printing JSON parser for the FHIR version of the Bundle
+   */
+  BundleJsonWriter(Writer out, IParser parser) {
+    this.out = out;
+    this.parser = parser;
+  }
+
+  /**
+   * Start the Bundle, unless it has been started already.
+   * @param type Code of the Bundle type, such as "collection"
+   * @throws IOException if the JSON can not be written
+   */
+  void start(String type) throws IOException {
+    if (!started) {
+      out.write("{\n  \"resourceType\": \"Bundle\",\n  \"type\": ");
+      out.write(STRINGS.toJson(type));
+      started = true;
+    }
+  }
+
+  /**
+   * Write one entry of the Bundle. The Bundle must have been started.
+   * @param fullUrl The fullUrl of the entry, or null if it has none
+   * @param resource The resource of the entry
+   * @param method Code of the request method, or null if the entry has no request
+   * @param url The request url, if the entry has a request
+   * @throws IOException if the JSON can not be written
+   */
+  void entry(String fullUrl, IBaseResource resource, String method, String url)
+      throws IOException {
+    out.write(hasEntries ? ",\n    {" : ",\n  \"entry\": [\n    {");
+    hasEntries = true;
+    if (fullUrl != null) {
+      out.write("\n      \"fullUrl\": ");
+      out.write(STRINGS.toJson(fullUrl));
+      out.write(',');
+    }
+    out.write("\n      \"resource\": ");
+    parser.encodeResourceToWriter(resource, new IndentingWriter(out, "      "));
+    if (method != null) {
+      out.write(",\n      \"request\": {\n        \"method\": ");
+      out.write(STRINGS.toJson(method));
+      out.write(",\n        \"url\": ");
+      out.write(STRINGS.toJson(url));
+      out.write("\n      }");
+    }
+    out.write("\n    }");
+  }
+
+  /**
+   * Finish the JSON of the Bundle. The Bundle must have been started.
+   * @throws IOException if the JSON can not be written
+   */
+  void finish() throws IOException {
+    out.write(hasEntries ? "\n  ]\n}" : "\n}");
+    out.flush();
+  }
+
+  /**
+   * Indents every line after the first, so a resource that is encoded on its own lines up with
+   * the entry it is written in. Closing it only flushes the underlying writer, which the HAPI
+   * parser would otherwise close.
+   */
+  private static final class IndentingWriter extends FilterWriter {
+    private final String indent;
+
+    IndentingWriter(Writer out, String indent) {
+      super(out);
+      this.indent = indent;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      out.write(c);
+      if (c == '\n') {
+        out.write(indent);
+      }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      int start = off;
+      for (int i = off; i < off + len; i++) {
+        if (cbuf[i] == '\n') {
+          out.write(cbuf, start, i + 1 - start);
+          out.write(indent);
+          start = i + 1;
+        }
+      }
+      out.write(cbuf, start, off + len - start);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      int start = off;
+      for (int i = off; i < off + len; i++) {
+        if (str.charAt(i) == '\n') {
+          out.write(str, start, i + 1 - start);
+          out.write(indent);
+          start = i + 1;
+        }
+      }
+      out.write(str, start, off + len - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
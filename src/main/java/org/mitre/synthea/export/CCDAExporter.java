@@ -4,103 +4,83 @@ import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 
+import java.io.IOException;
 import java.io.StringWriter;
-import java.util.UUID;
+import java.io.Writer;
+import java.util.List;
 
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
-import org.mitre.synthea.world.concepts.RaceAndEthnicity;
 
 /**
  * Export C-CDA R2.1 files using Apache FreeMarker templates.
  */
 public class CCDAExporter {
 
-  private static final Configuration TEMPLATES = templateConfiguration();
+  private static final Configuration TEMPLATES =
+      PersonTemplateModel.templateConfiguration("templates/ccda");
+  private static final Template CCDA = PersonTemplateModel.template(TEMPLATES, "ccda.ftl");
+
   /**
-   * This is a dummy object for FreeMarker, because the library cannot access static class methods
-   * such as UUID.randomUUID()
+   * Export a CCDA R2.1 document for a Person at a given time.
+   *
+   * @param person
+   *          Person to export.
+   * @param time
+   *          Time the record should be generated. Any content in the record AFTER this time will
+   *          not be included.
+   * @return String of CCDA R2.1 XML.
    */
-  private static final Object UUID_GEN = new Object() {
-    public String toString() {
-      return UUID.randomUUID().toString();
-    }
-  };
-
-  private static Configuration templateConfiguration() {
-    Configuration configuration = new Configuration(Configuration.VERSION_2_3_26);
-    configuration.setDefaultEncoding("UTF-8");
-    configuration.setLogTemplateExceptions(false);
+  public static String export(Person person, long time) {
+    StringWriter writer = new StringWriter();
     try {
-      configuration.setSetting("object_wrapper",
-          "DefaultObjectWrapper(2.3.26, forceLegacyNonListCollections=false, "
-              + "iterableSupport=true, exposeFields=true)");
-    } catch (TemplateException e) {
+      export(person, time, writer);
+    } catch (Exception e) {
       e.printStackTrace();
     }
-    configuration.setAPIBuiltinEnabled(true);
-    configuration.setClassLoaderForTemplateLoading(ClassLoader.getSystemClassLoader(),
-        "templates/ccda");
-    return configuration;
+    return writer.toString();
   }
 
   /**
-   * Export a CCDA R2.1 document for a Person at a given time.
+   * Export a CCDA R2.1 document for a Person at a given time, writing it as it is rendered.
    *
    * @param person
    *          Person to export.
    * @param time
    *          Time the record should be generated. Any content in the record AFTER this time will
    *          not be included.
-   * @return String of CCDA R2.1 XML.
+   * @param writer
+   *          Writer to write the CCDA R2.1 XML to.
+   * @throws IOException if the document can not be written, or the template fails.
    */
-  public static String export(Person person, long time) {
-    // create a super encounter... this makes it easier to access
-    // all the Allergies (for example) in the export templates,
-    // instead of having to iterate through all the encounters.
-    Encounter superEncounter = person.record.new Encounter(time, "super");
-    for (Encounter encounter : person.record.encounters) {
-      if (encounter.start <= time) {
-        superEncounter.observations.addAll(encounter.observations);
-        superEncounter.reports.addAll(encounter.reports);
-        superEncounter.conditions.addAll(encounter.conditions);
-        superEncounter.allergies.addAll(encounter.allergies);
-        superEncounter.procedures.addAll(encounter.procedures);
-        superEncounter.immunizations.addAll(encounter.immunizations);
-        superEncounter.medications.addAll(encounter.medications);
-        superEncounter.careplans.addAll(encounter.careplans);
-        superEncounter.imagingStudies.addAll(encounter.imagingStudies);
-      } else {
-        break;
-      }
+  public static void export(Person person, long time, Writer writer) throws IOException {
+    // the encounters up to the given time
+    List<Encounter> encounters = person.record.encounters;
+    int count = 0;
+    while (count < encounters.size() && encounters.get(count).start <= time) {
+      count++;
     }
+    List<Encounter> past = encounters.subList(0, count);
 
     // The export templates fill in the record by accessing the attributes
-    // of the Person, so we add a few attributes just for the purposes of export.
-    person.attributes.put("UUID", UUID_GEN);
-    person.attributes.put("ehr_encounters", person.record.encounters);
-    person.attributes.put("ehr_observations", superEncounter.observations);
-    person.attributes.put("ehr_reports", superEncounter.reports);
-    person.attributes.put("ehr_conditions", superEncounter.conditions);
-    person.attributes.put("ehr_allergies", superEncounter.allergies);
-    person.attributes.put("ehr_procedures", superEncounter.procedures);
-    person.attributes.put("ehr_immunizations", superEncounter.immunizations);
-    person.attributes.put("ehr_medications", superEncounter.medications);
-    person.attributes.put("ehr_careplans", superEncounter.careplans);
-    person.attributes.put("ehr_imaging_studies", superEncounter.imagingStudies);
-    person.attributes.put("time", time);
-    person.attributes.put("race_lookup", RaceAndEthnicity.LOOK_UP_CDC_RACE);
-    person.attributes.put("ethnicity_lookup", RaceAndEthnicity.LOOK_UP_CDC_ETHNICITY_CODE);
-    person.attributes.put("ethnicity_display_lookup",
-        RaceAndEthnicity.LOOK_UP_CDC_ETHNICITY_DISPLAY);
+    // of the Person, so we add a few values just for the purposes of export.
+    PersonTemplateModel model = new PersonTemplateModel(TEMPLATES, person)
+        .put("ehr_encounters", encounters)
+        .put("ehr_observations", PersonTemplateModel.entries(past, e -> e.observations))
+        .put("ehr_reports", PersonTemplateModel.entries(past, e -> e.reports))
+        .put("ehr_conditions", PersonTemplateModel.entries(past, e -> e.conditions))
+        .put("ehr_allergies", PersonTemplateModel.entries(past, e -> e.allergies))
+        .put("ehr_procedures", PersonTemplateModel.entries(past, e -> e.procedures))
+        .put("ehr_immunizations", PersonTemplateModel.entries(past, e -> e.immunizations))
+        .put("ehr_medications", PersonTemplateModel.entries(past, e -> e.medications))
+        .put("ehr_careplans", PersonTemplateModel.entries(past, e -> e.careplans))
+        .put("ehr_imaging_studies", PersonTemplateModel.entries(past, e -> e.imagingStudies))
+        .put("time", time);
 
-    StringWriter writer = new StringWriter();
     try {
-      Template template = TEMPLATES.getTemplate("ccda.ftl");
-      template.process(person.attributes, writer);
-    } catch (Exception e) {
-      e.printStackTrace();
+      CCDA.process(model, writer);
+    } catch (TemplateException e) {
+      throw new IOException("Unable to render the CCDA document", e);
     }
-    return writer.toString();
   }
 }
@@ -5,16 +5,18 @@ import static org.mitre.synthea.export.ExportHelper.iso8601Timestamp;
 import com.google.gson.JsonObject;
 
 import java.awt.geom.Point2D;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mitre.synthea.helpers.Config;
@@ -54,7 +56,7 @@ public class CDWExporter {
   /**
    * Table key sequence generators.
    */
-  private Map<OutputStreamWriter,AtomicInteger> sids;
+  private Map<BlockWriter,AtomicInteger> sids;
   private int sidStart = 1;
 
   private FactTable sstaff = new FactTable();
@@ -84,72 +86,81 @@ public class CDWExporter {
   /**
    * Writers for patient data.
    */
-  private OutputStreamWriter lookuppatient;
-  private OutputStreamWriter spatient;
-  private OutputStreamWriter spatientaddress;
-  private OutputStreamWriter spatientphone;
-  private OutputStreamWriter patientrace;
-  private OutputStreamWriter patientethnicity;
+  private BlockWriter lookuppatient;
+  private BlockWriter spatient;
+  private BlockWriter spatientaddress;
+  private BlockWriter spatientphone;
+  private BlockWriter patientrace;
+  private BlockWriter patientethnicity;
 
   /**
    * Writers for encounter data.
    */
-  private OutputStreamWriter consult;
-  private OutputStreamWriter visit;
-  private OutputStreamWriter appointment;
-  private OutputStreamWriter inpatient;
+  private BlockWriter consult;
+  private BlockWriter visit;
+  private BlockWriter appointment;
+  private BlockWriter inpatient;
 
   /**
    * Writers for immunization data.
    */
-  private OutputStreamWriter immunization;
+  private BlockWriter immunization;
 
   /**
    * Writers for allergy data.
    */
-  private OutputStreamWriter allergy;
-  private OutputStreamWriter allergicreaction;
-  private OutputStreamWriter allergycomment;
+  private BlockWriter allergy;
+  private BlockWriter allergicreaction;
+  private BlockWriter allergycomment;
 
   /**
    * Writers for condition data.
    */
-  private OutputStreamWriter problemlist;
-  private OutputStreamWriter vdiagnosis;
+  private BlockWriter problemlist;
+  private BlockWriter vdiagnosis;
 
   /**
    * Writers for medications data.
    */
-  private OutputStreamWriter rxoutpatient;
-  private OutputStreamWriter rxoutpatfill;
-  private OutputStreamWriter nonvamed;
-  private OutputStreamWriter cprsorder; // also required for labs
-  private OutputStreamWriter ordereditem; // also required for labs
+  private BlockWriter rxoutpatient;
+  private BlockWriter rxoutpatfill;
+  private BlockWriter nonvamed;
+  private BlockWriter cprsorder; // also required for labs
+  private BlockWriter ordereditem; // also required for labs
 
   /**
    * Writers for diagnostic report data (i.e. labs).
    */
-  private OutputStreamWriter labchem;
-  private OutputStreamWriter labpanel;
-  private OutputStreamWriter patientlabchem;
-  private OutputStreamWriter vprocedure;
+  private BlockWriter labchem;
+  private BlockWriter labpanel;
+  private BlockWriter patientlabchem;
+  private BlockWriter vprocedure;
 
   /**
    * Writers for procedure data.
    */
-  private OutputStreamWriter surgeryProcedureDiagnosisCode;
-  private OutputStreamWriter surgeryPRE;
+  private BlockWriter surgeryProcedureDiagnosisCode;
+  private BlockWriter surgeryPRE;
 
   /**
    * Writers for vital sign Observation data.
    */
-  private OutputStreamWriter vitalSign;
+  private BlockWriter vitalSign;
   
   /**
    * Charset for specifying the character set of the output files.
    */
   private Charset charset = Charset.forName(Config.get("exporter.encoding"));
 
+  /**
+   * Number of characters buffered for each file before writing to disk.
+   */
+  private int bufferSize = Integer.parseInt(Config.get("exporter.csv.buffer_size", "262144"));
+  /**
+   * Number of milliseconds between flushes of each file to disk.
+   */
+  private long flushInterval = Long.parseLong(Config.get("exporter.csv.flush_interval", "5000"));
+
   /**
    * System-dependent string for a line break. (\n on Mac, *nix, \r\n on Windows)
    */
@@ -160,7 +171,7 @@ public class CDWExporter {
    *  initialize the required files and associated writers.
    */
   private CDWExporter() {
-    sids = new HashMap<OutputStreamWriter,AtomicInteger>();
+    sids = new ConcurrentHashMap<BlockWriter,AtomicInteger>();
     
     try {
       File output = Exporter.getOutputFolder("cdw", null);
@@ -168,53 +179,54 @@ public class CDWExporter {
       Path outputDirectory = output.toPath();
 
       // Patient Data
-      lookuppatient = openOutputStreamWriter(outputDirectory, "lookuppatient.csv");
-      spatient = openOutputStreamWriter(outputDirectory, "spatient.csv");
-      spatientaddress = openOutputStreamWriter(outputDirectory, "spatientaddress.csv");
-      spatientphone = openOutputStreamWriter(outputDirectory, "spatientphone.csv");
-      patientrace = openOutputStreamWriter(outputDirectory, "patientrace.csv");
-      patientethnicity = openOutputStreamWriter(outputDirectory, "patientethnicity.csv");
+      lookuppatient = openWriter(outputDirectory, "lookuppatient.csv");
+      spatient = openWriter(outputDirectory, "spatient.csv");
+      spatientaddress = openWriter(outputDirectory, "spatientaddress.csv");
+      spatientphone = openWriter(outputDirectory, "spatientphone.csv");
+      patientrace = openWriter(outputDirectory, "patientrace.csv");
+      patientethnicity = openWriter(outputDirectory, "patientethnicity.csv");
 
       // Encounter Data
-      consult = openOutputStreamWriter(outputDirectory, "consult.csv");
-      visit = openOutputStreamWriter(outputDirectory, "visit.csv");
-      appointment = openOutputStreamWriter(outputDirectory, "appointment.csv");
-      inpatient = openOutputStreamWriter(outputDirectory, "inpatient.csv");
+      consult = openWriter(outputDirectory, "consult.csv");
+      visit = openWriter(outputDirectory, "visit.csv");
+      appointment = openWriter(outputDirectory, "appointment.csv");
+      inpatient = openWriter(outputDirectory, "inpatient.csv");
 
       // Immunization Data
-      immunization = openOutputStreamWriter(outputDirectory, "immunization.csv");
+      immunization = openWriter(outputDirectory, "immunization.csv");
 
       // Allergy Data
-      allergy = openOutputStreamWriter(outputDirectory, "allergy.csv");
-      allergicreaction = openOutputStreamWriter(outputDirectory, "allergicreaction.csv");
-      allergycomment = openOutputStreamWriter(outputDirectory, "allergycomment.csv");
+      allergy = openWriter(outputDirectory, "allergy.csv");
+      allergicreaction = openWriter(outputDirectory, "allergicreaction.csv");
+      allergycomment = openWriter(outputDirectory, "allergycomment.csv");
 
       // Condition Data
-      problemlist = openOutputStreamWriter(outputDirectory, "problemlist.csv");
-      vdiagnosis = openOutputStreamWriter(outputDirectory, "vdiagnosis.csv");
+      problemlist = openWriter(outputDirectory, "problemlist.csv");
+      vdiagnosis = openWriter(outputDirectory, "vdiagnosis.csv");
 
       // Medications Data
-      rxoutpatient = openOutputStreamWriter(outputDirectory, "rxoutpatient.csv");
-      rxoutpatfill = openOutputStreamWriter(outputDirectory, "rxoutpatfill.csv");
-      nonvamed = openOutputStreamWriter(outputDirectory, "nonvamed.csv");
-      cprsorder = openOutputStreamWriter(outputDirectory, "cprsorder.csv");
-      ordereditem = openOutputStreamWriter(outputDirectory, "ordereditem.csv");
+      rxoutpatient = openWriter(outputDirectory, "rxoutpatient.csv");
+      rxoutpatfill = openWriter(outputDirectory, "rxoutpatfill.csv");
+      nonvamed = openWriter(outputDirectory, "nonvamed.csv");
+      cprsorder = openWriter(outputDirectory, "cprsorder.csv");
+      ordereditem = openWriter(outputDirectory, "ordereditem.csv");
 
       // Diagnotic Report (i.e. Labs) Data
-      labchem = openOutputStreamWriter(outputDirectory, "labchem.csv");
-      labpanel = openOutputStreamWriter(outputDirectory, "labpanel.csv");
-      patientlabchem = openOutputStreamWriter(outputDirectory, "patientlabchem.csv");
-      vprocedure = openOutputStreamWriter(outputDirectory, "vprocedure.csv");
+      labchem = openWriter(outputDirectory, "labchem.csv");
+      labpanel = openWriter(outputDirectory, "labpanel.csv");
+      patientlabchem = openWriter(outputDirectory, "patientlabchem.csv");
+      vprocedure = openWriter(outputDirectory, "vprocedure.csv");
 
       // Procedure Data
-      surgeryProcedureDiagnosisCode = openOutputStreamWriter(outputDirectory,
+      surgeryProcedureDiagnosisCode = openWriter(outputDirectory,
           "surgeryprocedurediagnosiscode.csv");
-      surgeryPRE = openOutputStreamWriter(outputDirectory, "surgerypre.csv");
+      surgeryPRE = openWriter(outputDirectory, "surgerypre.csv");
 
       // Vital Sign Observation Data
-      vitalSign = openOutputStreamWriter(outputDirectory, "vitalsign.csv");
+      vitalSign = openWriter(outputDirectory, "vitalsign.csv");
 
       writeCSVHeaders();
+      commitAll();
     } catch (IOException e) {
       // wrap the exception in a runtime exception.
       // the singleton pattern below doesn't work if the constructor can throw
@@ -223,10 +235,63 @@ public class CDWExporter {
     }
   }
 
-  private OutputStreamWriter openOutputStreamWriter(Path outputDirectory, String filename)
-      throws IOException {
+  /**
+   * Open a buffered writer for one of the CSV files. Each exporting thread adds a patient's
+   * rows to its own block, and the blocks are appended to the file when the patient is done.
+   * @param outputDirectory The folder of the CSV files.
+   * @param filename The name of the CSV file.
+   * @return the writer
+   * @throws IOException if the file can not be opened
+   */
+  private BlockWriter openWriter(Path outputDirectory, String filename) throws IOException {
     File file = outputDirectory.resolve(filename).toFile();
-    return new OutputStreamWriter(new FileOutputStream(file), charset);
+    return BlockWriter.shared(file, false, null, charset, bufferSize, flushInterval);
+  }
+
+  /**
+   * Write a fact table to a new CSV file.
+   * @param table The fact table.
+   * @param outputDirectory The folder of the CSV files.
+   * @param filename The name of the CSV file.
+   * @throws IOException if the file can not be written
+   */
+  private void writeFactTable(FactTable table, Path outputDirectory, String filename)
+      throws IOException {
+    Path file = outputDirectory.resolve(filename);
+    try (Writer writer = new BufferedWriter(
+        new OutputStreamWriter(Compression.current().open(file), charset), bufferSize)) {
+      table.write(writer);
+    }
+  }
+
+  /**
+   * Returns the writers of the files that patient data is written to.
+   */
+  private BlockWriter[] writers() {
+    return new BlockWriter[] { lookuppatient, spatient, spatientaddress, spatientphone,
+        patientrace, patientethnicity, consult, visit, appointment, inpatient, immunization,
+        allergy, allergicreaction, allergycomment, problemlist, vdiagnosis, rxoutpatient,
+        rxoutpatfill, nonvamed, cprsorder, ordereditem, labchem, labpanel, patientlabchem,
+        vprocedure, surgeryProcedureDiagnosisCode, surgeryPRE, vitalSign };
+  }
+
+  /**
+   * Commit the current thread's rows to each of the CSV files.
+   * @throws IOException if any IO error occurs
+   */
+  private void commitAll() throws IOException {
+    for (BlockWriter writer : writers()) {
+      writer.commit();
+    }
+  }
+
+  /**
+   * Throw away any of the current thread's rows that have not been committed.
+   */
+  private void discardAll() {
+    for (BlockWriter writer : writers()) {
+      writer.discard();
+    }
   }
 
   /**
@@ -462,6 +527,22 @@ public class CDWExporter {
     if (!person.attributes.containsKey("veteran")) {
       return;
     }
+    try {
+      exportRows(person, time);
+      // commit all of this person's rows at once, so they are kept together in each file
+      commitAll();
+    } finally {
+      discardAll();
+    }
+  }
+
+  /**
+   * Write all of a single Person's rows into the current thread's block for each file.
+   * @param person Person to write record data for
+   * @param time Time the simulation ended
+   * @throws IOException if any IO error occurs
+   */
+  private void exportRows(Person person, long time) throws IOException {
     int primarySta3n = -1;
     Provider provider = person.getProvider(EncounterType.WELLNESS, time);
     if (provider != null) {
@@ -508,83 +589,42 @@ public class CDWExporter {
       }
     }
 
-    // Patient Data
-    lookuppatient.flush();
-    spatient.flush();
-    spatientaddress.flush();
-    spatientphone.flush();
-    patientrace.flush();
-    patientethnicity.flush();
-
-    // Encounter Data
-    consult.flush();
-    visit.flush();
-    appointment.flush();
-    inpatient.flush();
-
-    // Immunization Data
-    immunization.flush();
-
-    // Allergy Data
-    allergy.flush();
-    allergicreaction.flush();
-    allergycomment.flush();
-
-    // Condition Data
-    problemlist.flush();
-    vdiagnosis.flush();
-
-    // Medication Data
-    rxoutpatient.flush();
-    rxoutpatfill.flush();
-    nonvamed.flush();
-    cprsorder.flush();
-    ordereditem.flush();
-
-    // Diagnostic Report Data
-    labchem.flush();
-    labpanel.flush();
-    patientlabchem.flush();
-    vprocedure.flush();
-
-    // Procedure Data
-    surgeryProcedureDiagnosisCode.flush();
-    surgeryPRE.flush();
-
-    // Vital Sign Observation Data
-    vitalSign.flush();
   }
 
   /**
    * Fact Tables should only be written after all patients have completed export.
+   * The patient CSV files are closed first, since compressed files are not complete until
+   * they are closed.
    */
   public void writeFactTables() {
     try {
       File output = Exporter.getOutputFolder("cdw", null);
       output.mkdirs();
       Path outputDirectory = output.toPath();
-      sstaff.write(openOutputStreamWriter(outputDirectory, "sstaff.csv"));
-      maritalStatus.write(openOutputStreamWriter(outputDirectory, "maritalstatus.csv"));
-      sta3n.write(openOutputStreamWriter(outputDirectory, "sta3n.csv"));
-      location.write(openOutputStreamWriter(outputDirectory, "location.csv"));
-      immunizationName.write(openOutputStreamWriter(outputDirectory, "immunizationname.csv"));
-      reaction.write(openOutputStreamWriter(outputDirectory, "reaction.csv"));
-      providerNarrative.write(openOutputStreamWriter(outputDirectory, "providernarrative.csv"));
-      localDrug.write(openOutputStreamWriter(outputDirectory, "localdrug.csv"));
-      nationalDrug.write(openOutputStreamWriter(outputDirectory, "nationaldrug.csv"));
-      dosageForm.write(openOutputStreamWriter(outputDirectory, "dosageform.csv"));
-      pharmacyOrderableItem.write(
-          openOutputStreamWriter(outputDirectory, "pharmacyorderableitem.csv"));
-      orderableItem.write(openOutputStreamWriter(outputDirectory, "orderableitem.csv"));
-      orderStatus.write(openOutputStreamWriter(outputDirectory, "orderstatus.csv"));
-      vistaPackage.write(openOutputStreamWriter(outputDirectory, "vistapackage.csv"));
-      collectionsample.write(openOutputStreamWriter(outputDirectory, "collectionsample.csv"));
-      labchemtest.write(openOutputStreamWriter(outputDirectory, "labchemtest.csv"));
-      topography.write(openOutputStreamWriter(outputDirectory, "topography.csv"));
-      institution.write(openOutputStreamWriter(outputDirectory, "institution.csv"));
-      loinc.write(openOutputStreamWriter(outputDirectory, "loinc.csv"));
-      cpt.write(openOutputStreamWriter(outputDirectory, "cpt.csv"));
-      vitalType.write(openOutputStreamWriter(outputDirectory, "vitaltype.csv"));
+      for (BlockWriter writer : writers()) {
+        writer.close();
+      }
+      writeFactTable(sstaff, outputDirectory, "sstaff.csv");
+      writeFactTable(maritalStatus, outputDirectory, "maritalstatus.csv");
+      writeFactTable(sta3n, outputDirectory, "sta3n.csv");
+      writeFactTable(location, outputDirectory, "location.csv");
+      writeFactTable(immunizationName, outputDirectory, "immunizationname.csv");
+      writeFactTable(reaction, outputDirectory, "reaction.csv");
+      writeFactTable(providerNarrative, outputDirectory, "providernarrative.csv");
+      writeFactTable(localDrug, outputDirectory, "localdrug.csv");
+      writeFactTable(nationalDrug, outputDirectory, "nationaldrug.csv");
+      writeFactTable(dosageForm, outputDirectory, "dosageform.csv");
+      writeFactTable(pharmacyOrderableItem, outputDirectory, "pharmacyorderableitem.csv");
+      writeFactTable(orderableItem, outputDirectory, "orderableitem.csv");
+      writeFactTable(orderStatus, outputDirectory, "orderstatus.csv");
+      writeFactTable(vistaPackage, outputDirectory, "vistapackage.csv");
+      writeFactTable(collectionsample, outputDirectory, "collectionsample.csv");
+      writeFactTable(labchemtest, outputDirectory, "labchemtest.csv");
+      writeFactTable(topography, outputDirectory, "topography.csv");
+      writeFactTable(institution, outputDirectory, "institution.csv");
+      writeFactTable(loinc, outputDirectory, "loinc.csv");
+      writeFactTable(cpt, outputDirectory, "cpt.csv");
+      writeFactTable(vitalType, outputDirectory, "vitaltype.csv");
     } catch (IOException e) {
       // wrap the exception in a runtime exception.
       // the singleton pattern below doesn't work if the constructor can throw
@@ -1612,10 +1652,8 @@ public class CDWExporter {
     write(s.toString(), immunization);
   }
 
-  private int getNextKey(OutputStreamWriter table) {
-    synchronized (sids) {
-      return sids.computeIfAbsent(table, k -> new AtomicInteger(sidStart)).getAndIncrement();
-    }
+  private int getNextKey(BlockWriter table) {
+    return sids.computeIfAbsent(table, k -> new AtomicInteger(sidStart)).getAndIncrement();
   }
   
   /**
@@ -1633,15 +1671,13 @@ public class CDWExporter {
   /**
    * Helper method to write a line to a File.
    * Extracted to a separate method here to make it a little easier to replace implementations.
+   * The line is added to the current thread's block, and written when the block is committed.
    *
    * @param line The line to write
    * @param writer The place to write it
    * @throws IOException if an I/O error occurs
    */
-  private static void write(String line, OutputStreamWriter writer) throws IOException {
-    synchronized (writer) {
-      writer.write(line);
-      writer.flush();
-    }
+  private static void write(String line, BlockWriter writer) throws IOException {
+    writer.write(line);
   }
 }
@@ -5,9 +5,9 @@ import static org.mitre.synthea.export.ExportHelper.dateFromTimestamp;
 import com.google.gson.JsonObject;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.Dictionary;
 import java.util.Hashtable;
@@ -46,23 +46,32 @@ public class CPCDSExporter {
   /**
    * Writer for CPCDS_Patients.csv
    */
-  private FileWriter patients;
+  private BlockWriter patients;
 
   /**
    * Writer for CPCDS_Coverages.csv
    */
-  private FileWriter coverages;
+  private BlockWriter coverages;
 
   /**
    * Writer for CPCDS_Claims.csv
    */
-  private FileWriter claims;
+  private BlockWriter claims;
 
   /**
    * System-dependent string for a line break. (\n on Mac, *nix, \r\n on Windows)
    */
   private static final String NEWLINE = System.lineSeparator();
 
+  /**
+   * Number of characters buffered for each file before writing to disk.
+   */
+  private int bufferSize = Integer.parseInt(Config.get("exporter.csv.buffer_size", "262144"));
+  /**
+   * Number of milliseconds between flushes of each file to disk.
+   */
+  private long flushInterval = Long.parseLong(Config.get("exporter.csv.flush_interval", "5000"));
+
   /**
    * Constructor for the CSVExporter - initialize the 9 specified files and store
    * the writers in fields.
@@ -81,20 +90,21 @@ public class CPCDSExporter {
         outputDirectory.toFile().mkdirs();
       }
 
-      File patientsFile = outputDirectory.resolve("CPCDS_Patients.csv").toFile();
+      Path patientsFile = outputDirectory.resolve("CPCDS_Patients.csv");
 
-      boolean append = patientsFile.exists()
+      boolean append = Compression.current().file(patientsFile).toFile().exists()
           && Boolean.parseBoolean(Config.get("exporter.cpcds.append_mode"));
 
-      File coverageFile = outputDirectory.resolve("CPCDS_Coverages.csv").toFile();
-      File claimsFile = outputDirectory.resolve("CPCDS_Claims.csv").toFile();
+      Path coverageFile = outputDirectory.resolve("CPCDS_Coverages.csv");
+      Path claimsFile = outputDirectory.resolve("CPCDS_Claims.csv");
 
-      coverages = new FileWriter(coverageFile, append);
-      patients = new FileWriter(patientsFile, append);
-      claims = new FileWriter(claimsFile, append);
+      coverages = openWriter(coverageFile, append);
+      patients = openWriter(patientsFile, append);
+      claims = openWriter(claimsFile, append);
 
       if (!append) {
         writeCPCDSHeaders();
+        commitAll();
       }
     } catch (IOException e) {
       // wrap the exception in a runtime exception.
@@ -104,6 +114,20 @@ public class CPCDSExporter {
     }
   }
 
+  /**
+   * Open a buffered writer for one of the CSV files, compressed according to the exporter
+   * settings. Each exporting thread adds a patient's rows to its own block, and the blocks are
+   * appended to the file when the patient is done.
+   * @param file The CSV file, without any compression extension.
+   * @param append Whether to append to the file, rather than replace it.
+   * @return the writer
+   * @throws IOException if the file can not be opened
+   */
+  private BlockWriter openWriter(Path file, boolean append) throws IOException {
+    return BlockWriter.shared(file.toFile(), append, null, Charset.defaultCharset(),
+        bufferSize, flushInterval);
+  }
+
   /**
    * Write the headers to each of the CSV files.
    * 
@@ -183,6 +207,59 @@ public class CPCDSExporter {
    * @throws IOException if any IO error occurs
    */
   public void export(Person person, long time) throws IOException {
+    try {
+      exportRows(person, time);
+      // commit all of this person's rows at once, so they are kept together in each file
+      commitAll();
+    } finally {
+      patients.discard();
+      coverages.discard();
+      claims.discard();
+    }
+  }
+
+  /**
+   * Commit the current thread's rows to each of the CSV files.
+   * @throws IOException if any IO error occurs
+   */
+  private void commitAll() throws IOException {
+    patients.commit();
+    coverages.commit();
+    claims.commit();
+  }
+
+  /**
+   * Flush all of the committed rows to the CSV files. This method should be called once
+   * after all the Patient records have been exported using the export(Person,long) method.
+   *
+   * @throws IOException if any IO errors occur.
+   */
+  public void flush() throws IOException {
+    patients.flush();
+    coverages.flush();
+    claims.flush();
+  }
+
+  /**
+   * Close all of the CSV files. Compressed files are not complete until they are closed.
+   * This method should be called once at the end of the run, after flush().
+   *
+   * @throws IOException if any IO errors occur.
+   */
+  void close() throws IOException {
+    patients.close();
+    coverages.close();
+    claims.close();
+  }
+
+  /**
+   * Write all of a single Person's rows into the current thread's block for each file.
+   *
+   * @param person Person to write record data for
+   * @param time   Time the simulation ended
+   * @throws IOException if any IO error occurs
+   */
+  private void exportRows(Person person, long time) throws IOException {
     String personID = patient(person, time);
     String payerId = "";
     String type = COVERAGE_TYPES[(int) randomLongWithBounds(0, COVERAGE_TYPES.length - 1)];
@@ -195,7 +272,7 @@ public class CPCDSExporter {
       String encounterID = UUID.randomUUID().toString();
       UUID medRecordNumber = UUID.randomUUID();
       CPCDSAttributes encounterAttributes = new CPCDSAttributes(encounter);
-      if (Boolean.parseBoolean(Config.get("exporter.cpcds.single_payer"))) {
+      if (Config.getAsBoolean("exporter.cpcds.single_payer")) {
         payerId = UUID.randomUUID().toString();
       } else {
         payerId = encounter.claim.payer.uuid.toString();
@@ -207,10 +284,6 @@ public class CPCDSExporter {
 
       claim(encounter, personID, encounterID, medRecordNumber, encounterAttributes, payerId);
     }
-
-    patients.flush();
-    coverages.flush();
-    claims.flush();
   }
 
   /**
@@ -815,15 +888,14 @@ public class CPCDSExporter {
   /**
    * Helper method to write a line to a File. Extracted to a separate method here
    * to make it a little easier to replace implementations.
+   * The line is added to the current thread's block, and written when the block is committed.
    *
    * @param line   The line to write
    * @param writer The place to write it
    * @throws IOException if an I/O error occurs
    */
-  private static void write(String line, FileWriter writer) throws IOException {
-    synchronized (writer) {
-      writer.write(line);
-    }
+  private static void write(String line, BlockWriter writer) throws IOException {
+    writer.write(line);
   }
 
   /**
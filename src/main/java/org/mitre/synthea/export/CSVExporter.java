@@ -4,25 +4,34 @@ import static org.mitre.synthea.export.ExportHelper.dateFromTimestamp;
 import static org.mitre.synthea.export.ExportHelper.iso8601Timestamp;
 
 import com.google.common.collect.Table;
+import com.google.common.io.ByteStreams;
 import com.google.gson.JsonObject;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.UUID;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.IdGenerator;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.modules.QualityOfLifeModule;
 import org.mitre.synthea.world.agents.Clinician;
@@ -53,66 +62,111 @@ public class CSVExporter {
   /**
    * Writer for patients.csv.
    */
-  private OutputStreamWriter patients;
+  private BlockWriter patients;
   /**
    * Writer for allergies.csv.
    */
-  private OutputStreamWriter allergies;
+  private BlockWriter allergies;
   /**
    * Writer for medications.csv.
    */
-  private OutputStreamWriter medications;
+  private BlockWriter medications;
   /**
    * Writer for conditions.csv.
    */
-  private OutputStreamWriter conditions;
+  private BlockWriter conditions;
   /**
    * Writer for careplans.csv.
    */
-  private OutputStreamWriter careplans;
+  private BlockWriter careplans;
   /**
    * Writer for observations.csv.
    */
-  private OutputStreamWriter observations;
+  private BlockWriter observations;
   /**
    * Writer for procedures.csv.
    */
-  private OutputStreamWriter procedures;
+  private BlockWriter procedures;
   /**
    * Writer for immunizations.csv.
    */
-  private OutputStreamWriter immunizations;
+  private BlockWriter immunizations;
   /**
    * Writer for encounters.csv.
    */
-  private OutputStreamWriter encounters;
+  private BlockWriter encounters;
   /**
    * Writer for imaging_studies.csv
    */
-  private OutputStreamWriter imagingStudies;
+  private BlockWriter imagingStudies;
   /**
    * Writer for organizations.csv
    */
-  private OutputStreamWriter organizations;
+  private BlockWriter organizations;
   /**
    * Writer for providers.csv
    */
-  private OutputStreamWriter providers;
+  private BlockWriter providers;
   
   /**
    * Writer for payers.csv
    */
-  private OutputStreamWriter payers;
+  private BlockWriter payers;
   /**
    * Writer for payerTransitions.csv
    */
-  private OutputStreamWriter payerTransitions;
+  private BlockWriter payerTransitions;
   
   /**
    * Charset for specifying the character set of the output files.
    */
   private Charset charset = Charset.forName(Config.get("exporter.encoding"));
 
+  /**
+   * Number of characters buffered for each file before writing to disk.
+   */
+  private int bufferSize = Integer.parseInt(Config.get("exporter.csv.buffer_size", "262144"));
+  /**
+   * Number of milliseconds between flushes of each file to disk.
+   */
+  private long flushInterval = Long.parseLong(Config.get("exporter.csv.flush_interval", "5000"));
+
+  /**
+   * The folder the CSV files are written to.
+   */
+  private Path outputDirectory;
+  /**
+   * Whether the tables are written as Parquet files instead of CSV files.
+   */
+  private final boolean parquet;
+  /**
+   * Number of rows in each row group of a Parquet file.
+   */
+  private final int rowGroupSize = ExportSettings.current().parquetRowGroupSize;
+  /**
+   * The person attribute that marks a patient as already exported by this exporter.
+   */
+  private final String exportedAttribute;
+  /**
+   * Whether each exporter thread writes patient data to its own set of part files.
+   */
+  private boolean partitioned;
+  /**
+   * The header of each partitioned CSV file, by file name.
+   */
+  private final Map<String, String> partitionHeaders = new LinkedHashMap<String, String>();
+  /**
+   * The partition number of each exporter thread.
+   */
+  private final AtomicInteger nextPartition = new AtomicInteger();
+  private final ThreadLocal<Integer> partition =
+      ThreadLocal.withInitial(nextPartition::getAndIncrement);
+
+  /**
+   * The infix of the part files, between the CSV file name and the partition number.
+   */
+  private static final String PART = ".part-";
+
   /**
    * System-dependent string for a line break. (\n on Mac, *nix, \r\n on Windows)
    */
@@ -123,8 +177,20 @@ public class CSVExporter {
    * the writers in fields.
    */
   private CSVExporter() {
+    this(false);
+  }
+
+  /**
+   * Create an exporter that writes the same tables as the CSVExporter, either as CSV files
+   * in the csv folder, or as Parquet files in the parquet folder. Parquet files are always
+   * replaced, and never partitioned.
+   * @param parquet Whether to write Parquet files instead of CSV files.
+   */
+  CSVExporter(boolean parquet) {
+    this.parquet = parquet;
+    this.exportedAttribute = parquet ? "exported_to_parquet" : "exported_to_csv";
     try {
-      File output = Exporter.getOutputFolder("csv", null);
+      File output = Exporter.getOutputFolder(parquet ? "parquet" : "csv", null);
       output.mkdirs();
       Path outputDirectory = output.toPath();
 
@@ -137,48 +203,54 @@ public class CSVExporter {
         outputDirectory.toFile().mkdirs();
       }
 
-      File patientsFile = outputDirectory.resolve("patients.csv").toFile();
-      boolean append =
-          patientsFile.exists() && Boolean.parseBoolean(Config.get("exporter.csv.append_mode"));
-
-      File allergiesFile = outputDirectory.resolve("allergies.csv").toFile();
-      File medicationsFile = outputDirectory.resolve("medications.csv").toFile();
-      File conditionsFile = outputDirectory.resolve("conditions.csv").toFile();
-      File careplansFile = outputDirectory.resolve("careplans.csv").toFile();
-      File observationsFile = outputDirectory.resolve("observations.csv").toFile();
-      File proceduresFile = outputDirectory.resolve("procedures.csv").toFile();
-      File immunizationsFile = outputDirectory.resolve("immunizations.csv").toFile();
-      File encountersFile = outputDirectory.resolve("encounters.csv").toFile();
-      File imagingStudiesFile = outputDirectory.resolve("imaging_studies.csv").toFile();
-
-      patients = new OutputStreamWriter(new FileOutputStream(patientsFile, append), charset);
-      allergies = new OutputStreamWriter(new FileOutputStream(allergiesFile, append), charset);
-      medications = new OutputStreamWriter(new FileOutputStream(medicationsFile, append), charset);
-      conditions = new OutputStreamWriter(new FileOutputStream(conditionsFile, append), charset);
-      careplans = new OutputStreamWriter(new FileOutputStream(careplansFile, append), charset);
-      observations = new OutputStreamWriter(
-          new FileOutputStream(observationsFile, append), charset);
-      procedures = new OutputStreamWriter(new FileOutputStream(proceduresFile, append), charset);
-      immunizations = new OutputStreamWriter(
-          new FileOutputStream(immunizationsFile, append), charset);
-      encounters = new OutputStreamWriter(new FileOutputStream(encountersFile, append), charset);
-      imagingStudies = new OutputStreamWriter(
-          new FileOutputStream(imagingStudiesFile, append), charset);
-
-      File organizationsFile = outputDirectory.resolve("organizations.csv").toFile();
-      File providersFile = outputDirectory.resolve("providers.csv").toFile();
-      organizations = new OutputStreamWriter(
-          new FileOutputStream(organizationsFile, append), charset);
-      providers = new OutputStreamWriter(new FileOutputStream(providersFile, append), charset);
-      File payersFile = outputDirectory.resolve("payers.csv").toFile();
-      File payerTransitionsFile = outputDirectory.resolve("payer_transitions.csv").toFile();
-      payers = new OutputStreamWriter(new FileOutputStream(payersFile, append), charset);
-      payerTransitions = new OutputStreamWriter(
-          new FileOutputStream(payerTransitionsFile, append), charset);
-
-      if (!append) {
-        writeCSVHeaders();
-      }
+      File patientsFile =
+          Compression.current().file(outputDirectory.resolve("patients.csv").toFile());
+      boolean appendMode = Boolean.parseBoolean(Config.get("exporter.csv.append_mode"));
+      boolean append = patientsFile.exists() && appendMode && !parquet;
+
+      this.outputDirectory = outputDirectory;
+      this.partitioned = Boolean.parseBoolean(Config.get("exporter.csv.partitioned")) && !parquet;
+      // partitioned files are appended to (or not) one part at a time
+      boolean appendPatientData = partitioned ? appendMode : append;
+
+      patients = openPatientWriter("patients", appendPatientData,
+          "Id,BIRTHDATE,DEATHDATE,SSN,DRIVERS,PASSPORT,"
+          + "PREFIX,FIRST,LAST,SUFFIX,MAIDEN,MARITAL,RACE,ETHNICITY,GENDER,BIRTHPLACE,"
+          + "ADDRESS,CITY,STATE,COUNTY,ZIP,LAT,LON,HEALTHCARE_EXPENSES,HEALTHCARE_COVERAGE");
+      allergies = openPatientWriter("allergies", appendPatientData,
+          "START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION");
+      medications = openPatientWriter("medications", appendPatientData,
+          "START,STOP,PATIENT,PAYER,ENCOUNTER,CODE,DESCRIPTION,BASE_COST,PAYER_COVERAGE,DISPENSES,"
+          + "TOTALCOST,REASONCODE,REASONDESCRIPTION");
+      conditions = openPatientWriter("conditions", appendPatientData,
+          "START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION");
+      careplans = openPatientWriter("careplans", appendPatientData,
+          "Id,START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION,REASONCODE,REASONDESCRIPTION");
+      observations = openPatientWriter("observations", appendPatientData,
+          "DATE,PATIENT,ENCOUNTER,CODE,DESCRIPTION,VALUE,UNITS,TYPE");
+      procedures = openPatientWriter("procedures", appendPatientData,
+          "DATE,PATIENT,ENCOUNTER,CODE,DESCRIPTION,BASE_COST,REASONCODE,REASONDESCRIPTION");
+      immunizations = openPatientWriter("immunizations", appendPatientData,
+          "DATE,PATIENT,ENCOUNTER,CODE,DESCRIPTION,BASE_COST");
+      encounters = openPatientWriter("encounters", appendPatientData,
+          "Id,START,STOP,PATIENT,ORGANIZATION,PROVIDER,PAYER,ENCOUNTERCLASS,CODE,DESCRIPTION,"
+          + "BASE_ENCOUNTER_COST,TOTAL_CLAIM_COST,PAYER_COVERAGE,REASONCODE,REASONDESCRIPTION");
+      imagingStudies = openPatientWriter("imaging_studies", appendPatientData,
+          "Id,DATE,PATIENT,ENCOUNTER,BODYSITE_CODE,BODYSITE_DESCRIPTION,"
+          + "MODALITY_CODE,MODALITY_DESCRIPTION,SOP_CODE,SOP_DESCRIPTION");
+      payerTransitions = openPatientWriter("payer_transitions", appendPatientData,
+          "PATIENT,START_YEAR,END_YEAR,PAYER,OWNERSHIP");
+
+      organizations = openWriter("organizations", append,
+          "Id,NAME,ADDRESS,CITY,STATE,ZIP,LAT,LON,PHONE,REVENUE,UTILIZATION");
+      providers = openWriter("providers", append,
+          "Id,ORGANIZATION,NAME,GENDER,SPECIALITY,ADDRESS,CITY,STATE,ZIP,LAT,LON,UTILIZATION");
+      payers = openWriter("payers", append,
+          "Id,NAME,ADDRESS,CITY,STATE_HEADQUARTERED,ZIP,PHONE,AMOUNT_COVERED,"
+          + "AMOUNT_UNCOVERED,REVENUE,COVERED_ENCOUNTERS,UNCOVERED_ENCOUNTERS,COVERED_MEDICATIONS,"
+          + "UNCOVERED_MEDICATIONS,COVERED_PROCEDURES,UNCOVERED_PROCEDURES,"
+          + "COVERED_IMMUNIZATIONS,UNCOVERED_IMMUNIZATIONS,"
+          + "UNIQUE_CUSTOMERS,QOLS_AVG,MEMBER_MONTHS");
     } catch (IOException e) {
       // wrap the exception in a runtime exception.
       // the singleton pattern below doesn't work if the constructor can throw
@@ -188,52 +260,41 @@ public class CSVExporter {
   }
 
   /**
-   * Write the headers to each of the CSV files.
-   * @throws IOException if any IO error occurs
+   * Open a buffered writer for one of the CSV files.
+   * @param name The name of the CSV file, without the extension.
+   * @param append Whether to append to the file, rather than replace it.
+   * @param header The CSV header line, without the line break.
+   * @return the writer
+   * @throws IOException if the file can not be opened
+   */
+  private BlockWriter openWriter(String name, boolean append, String header) throws IOException {
+    if (parquet) {
+      File file = outputDirectory.resolve(name + ".parquet").toFile();
+      return new ParquetWriter(file, header, rowGroupSize, Compression.current());
+    }
+    File file = outputDirectory.resolve(name + ".csv").toFile();
+    return BlockWriter.shared(file, append, header + NEWLINE, charset, bufferSize, flushInterval);
+  }
+
+  /**
+   * Open a buffered writer for one of the CSV files that patient data is written to.
+   * If the output is partitioned, each exporter thread writes to its own part file,
+   * for example patients.part-0.csv, and no locking is needed.
+   * @param name The name of the CSV file, without the extension.
+   * @param append Whether to append to the file, rather than replace it.
+   * @param header The CSV header line, without the line break.
+   * @return the writer
+   * @throws IOException if the file can not be opened
    */
-  private void writeCSVHeaders() throws IOException {
-    patients.write("Id,BIRTHDATE,DEATHDATE,SSN,DRIVERS,PASSPORT,"
-        + "PREFIX,FIRST,LAST,SUFFIX,MAIDEN,MARITAL,RACE,ETHNICITY,GENDER,BIRTHPLACE,"
-        + "ADDRESS,CITY,STATE,COUNTY,ZIP,LAT,LON,HEALTHCARE_EXPENSES,HEALTHCARE_COVERAGE");
-    patients.write(NEWLINE);
-    allergies.write("START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION");
-    allergies.write(NEWLINE);
-    medications.write(
-        "START,STOP,PATIENT,PAYER,ENCOUNTER,CODE,DESCRIPTION,BASE_COST,PAYER_COVERAGE,DISPENSES,"
-        + "TOTALCOST,REASONCODE,REASONDESCRIPTION");
-    medications.write(NEWLINE);
-    conditions.write("START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION");
-    conditions.write(NEWLINE);
-    careplans.write(
-        "Id,START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION,REASONCODE,REASONDESCRIPTION");
-    careplans.write(NEWLINE);
-    observations.write("DATE,PATIENT,ENCOUNTER,CODE,DESCRIPTION,VALUE,UNITS,TYPE");
-    observations.write(NEWLINE);
-    procedures.write("DATE,PATIENT,ENCOUNTER,CODE,DESCRIPTION,BASE_COST,"
-        + "REASONCODE,REASONDESCRIPTION");
-    procedures.write(NEWLINE);
-    immunizations.write("DATE,PATIENT,ENCOUNTER,CODE,DESCRIPTION,BASE_COST");
-    immunizations.write(NEWLINE);
-    encounters.write(
-        "Id,START,STOP,PATIENT,ORGANIZATION,PROVIDER,PAYER,ENCOUNTERCLASS,CODE,DESCRIPTION,"
-        + "BASE_ENCOUNTER_COST,TOTAL_CLAIM_COST,PAYER_COVERAGE,REASONCODE,REASONDESCRIPTION");
-    encounters.write(NEWLINE);
-    imagingStudies.write("Id,DATE,PATIENT,ENCOUNTER,BODYSITE_CODE,BODYSITE_DESCRIPTION,"
-        + "MODALITY_CODE,MODALITY_DESCRIPTION,SOP_CODE,SOP_DESCRIPTION");
-    imagingStudies.write(NEWLINE);
-    organizations.write("Id,NAME,ADDRESS,CITY,STATE,ZIP,LAT,LON,PHONE,REVENUE,UTILIZATION");
-    organizations.write(NEWLINE);
-    providers.write("Id,ORGANIZATION,NAME,GENDER,SPECIALITY,ADDRESS,CITY,STATE,ZIP,LAT,LON,"
-        + "UTILIZATION");
-    providers.write(NEWLINE);
-    payers.write("Id,NAME,ADDRESS,CITY,STATE_HEADQUARTERED,ZIP,PHONE,AMOUNT_COVERED,"
-        + "AMOUNT_UNCOVERED,REVENUE,COVERED_ENCOUNTERS,UNCOVERED_ENCOUNTERS,COVERED_MEDICATIONS,"
-        + "UNCOVERED_MEDICATIONS,COVERED_PROCEDURES,UNCOVERED_PROCEDURES,"
-        + "COVERED_IMMUNIZATIONS,UNCOVERED_IMMUNIZATIONS,"
-        + "UNIQUE_CUSTOMERS,QOLS_AVG,MEMBER_MONTHS");
-    payers.write(NEWLINE);
-    payerTransitions.write("PATIENT,START_YEAR,END_YEAR,PAYER,OWNERSHIP");
-    payerTransitions.write(NEWLINE);
+  private BlockWriter openPatientWriter(String name, boolean append, String header)
+      throws IOException {
+    if (!partitioned) {
+      return openWriter(name, append, header);
+    }
+    partitionHeaders.put(name, header + NEWLINE);
+    return BlockWriter.partitioned(
+        part -> outputDirectory.resolve(name + PART + part + ".csv").toFile(),
+        () -> partition.get(), append, header + NEWLINE, charset, bufferSize);
   }
 
   /**
@@ -279,9 +340,11 @@ public class CSVExporter {
           }
         }
       }
-      organizations.flush();
-      providers.flush();
+      organizations.commit();
+      providers.commit();
     }
+    organizations.flush();
+    providers.flush();
   }
 
   /**
@@ -294,10 +357,10 @@ public class CSVExporter {
     // Export All Payers
     for (Payer payer : Payer.getAllPayers()) {
       payer(payer);
-      payers.flush();
     }
     // Export No Insurance statistics
     payer(Payer.noInsurance);
+    payers.commit();
     payers.flush();
   }
 
@@ -331,7 +394,6 @@ public class CSVExporter {
         previousPayerID = currentPayer.getResourceID();
         previousOwnership = currentOwnership;
         startYear = currentYear + 1;
-        payerTransitions.flush();
       }
       currentYear++;
     }
@@ -345,11 +407,29 @@ public class CSVExporter {
    * @throws IOException if any IO error occurs
    */
   public void export(Person person, long time) throws IOException {
+    try {
+      exportRows(person, time);
+      // commit all of this person's rows at once, so they are kept together in each file
+      commitAll();
+    } finally {
+      discardAll();
+    }
+  }
+
+  /**
+   * Write all of a single Person's rows into the current thread's block for each file.
+   *
+   * @param person Person to write record data for
+   * @param time   Time the simulation ended
+   * @throws IOException if any IO error occurs
+   */
+  private void exportRows(Person person, long time) throws IOException {
     String personID = patient(person, time);
+    IdGenerator ids = IdGenerator.forRecord(person, "csv");
 
     for (Encounter encounter : person.record.encounters) {
 
-      String encounterID = encounter(personID, encounter);
+      String encounterID = encounter(personID, encounter, ids);
       String payerID = encounter.claim.payer.uuid;
 
       for (HealthRecord.Entry condition : encounter.conditions) {
@@ -377,16 +457,16 @@ public class CSVExporter {
       }
 
       for (CarePlan careplan : encounter.careplans) {
-        careplan(personID, encounterID, careplan);
+        careplan(personID, encounterID, careplan, ids);
       }
 
       for (ImagingStudy imagingStudy : encounter.imagingStudies) {
-        imagingStudy(personID, encounterID, imagingStudy);
+        imagingStudy(personID, encounterID, imagingStudy, ids);
       }
     }
-    CSVExporter.getInstance().exportPayerTransitions(person, time);
+    exportPayerTransitions(person, time);
 
-    int yearsOfHistory = Integer.parseInt(Config.get("exporter.years_of_history"));
+    int yearsOfHistory = ExportSettings.current().yearsOfHistory;
     Calendar cutOff = new GregorianCalendar(1900, 0, 1);
     if (yearsOfHistory > 0) {
       cutOff = Calendar.getInstance();
@@ -419,17 +499,127 @@ public class CSVExporter {
         }
       }
     }
+  }
+
+  /**
+   * Returns the writers of the files that patient data is written to.
+   */
+  private BlockWriter[] patientWriters() {
+    return new BlockWriter[] { patients, allergies, medications, conditions, careplans,
+        observations, procedures, immunizations, encounters, imagingStudies, payerTransitions };
+  }
+
+  /**
+   * Commit the current thread's rows to each of the patient data CSV files.
+   * @throws IOException if any IO error occurs
+   */
+  private void commitAll() throws IOException {
+    for (BlockWriter writer : patientWriters()) {
+      writer.commit();
+    }
+  }
+
+  /**
+   * Throw away any of the current thread's rows that have not been committed.
+   */
+  private void discardAll() {
+    for (BlockWriter writer : patientWriters()) {
+      writer.discard();
+    }
+  }
+
+  /**
+   * Flush all of the committed rows to the CSV files. This method should be called once
+   * after all the Patient records have been exported using the export(Person,long) method.
+   *
+   * @throws IOException if any IO errors occur.
+   */
+  public void flush() throws IOException {
+    for (BlockWriter writer : patientWriters()) {
+      writer.flush();
+    }
+    organizations.flush();
+    providers.flush();
+    payers.flush();
+  }
+
+  /**
+   * Close all of the files. Compressed and Parquet files are not complete until they are
+   * closed. Files that are written to again are reopened for appending.
+   *
+   * @throws IOException if any IO errors occur.
+   */
+  void close() throws IOException {
+    for (BlockWriter writer : patientWriters()) {
+      writer.close();
+    }
+    organizations.close();
+    providers.close();
+    payers.close();
+  }
+
+  /**
+   * If the CSV output is partitioned, concatenate the part files of each CSV file into a
+   * single CSV file with a single header, in partition order, and delete the part files.
+   * This method should be called once after all the Patient records have been exported
+   * using the export(Person,long) method.
+   *
+   * @throws IOException if any IO errors occur.
+   */
+  public void mergePartitions() throws IOException {
+    if (!partitioned) {
+      return;
+    }
+    boolean appendMode = Boolean.parseBoolean(Config.get("exporter.csv.append_mode"));
+    Compression compression = Compression.current();
+    for (BlockWriter writer : patientWriters()) {
+      writer.close();
+    }
+    for (Map.Entry<String, String> table : partitionHeaders.entrySet()) {
+      String name = table.getKey();
+      byte[] header = table.getValue().getBytes(charset);
+      Path merged = outputDirectory.resolve(name + ".csv");
+      boolean append = appendMode && compression.file(merged).toFile().exists();
+      OutputStream file = append
+          ? compression.open(merged, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+          : compression.open(merged);
+      try (OutputStream out = new BufferedOutputStream(file)) {
+        if (!append) {
+          out.write(header);
+        }
+        for (Path part : partFiles(name, compression)) {
+          try (InputStream in = compression.read(part)) {
+            // every part file starts with the header
+            ByteStreams.skipFully(in, header.length);
+            ByteStreams.copy(in, out);
+          }
+          Files.delete(compression.file(part));
+        }
+      }
+    }
+  }
 
-    patients.flush();
-    encounters.flush();
-    conditions.flush();
-    allergies.flush();
-    medications.flush();
-    careplans.flush();
-    observations.flush();
-    procedures.flush();
-    immunizations.flush();
-    imagingStudies.flush();
+  /**
+   * Returns the part files of the given CSV file, in partition order.
+   * @param name The name of the CSV file, without the extension.
+   * @param compression The compression of the part files.
+   * @return the part files, named without any compression extension.
+   */
+  private List<Path> partFiles(String name, Compression compression) {
+    Pattern pattern = Pattern.compile(Pattern.quote(name + PART) + "(\\d+)"
+        + Pattern.quote(".csv" + compression.extension()));
+    TreeMap<Integer, Path> parts = new TreeMap<Integer, Path>();
+    File[] files = outputDirectory.toFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        Matcher matcher = pattern.matcher(file.getName());
+        if (matcher.matches()) {
+          int part = Integer.parseInt(matcher.group(1));
+          parts.put(part, outputDirectory.resolve(name + PART + part + ".csv"));
+        }
+      }
+    }
+    return new ArrayList<Path>(parts.values());
   }
 
   /**
@@ -448,10 +638,10 @@ public class CSVExporter {
 
     // check if we've already exported this patient demographic data yet,
     // otherwise the "split record" feature could add a duplicate entry.
-    if (person.attributes.containsKey("exported_to_csv")) {
+    if (person.attributes.containsKey(exportedAttribute)) {
       return personID;
     } else {
-      person.attributes.put("exported_to_csv", personID);
+      person.attributes.put(exportedAttribute, personID);
     }
 
     StringBuilder s = new StringBuilder();
@@ -506,15 +696,17 @@ public class CSVExporter {
    *
    * @param personID  The ID of the person that had this encounter
    * @param encounter The encounter itself
+   * @param ids       Generates the encounter ID
    * @return The encounter ID, to be referenced as a "foreign key" if necessary
    * @throws IOException if any IO error occurs
    */
-  private String encounter(String personID, Encounter encounter) throws IOException {
+  private String encounter(String personID, Encounter encounter, IdGenerator ids)
+      throws IOException {
     // Id,START,STOP,PATIENT,ORGANIZATION,PROVIDER,PAYER,ENCOUNTERCLASS,CODE,DESCRIPTION,
     // BASE_ENCOUNTER_COST,TOTAL_CLAIM_COST,PAYER_COVERAGE,REASONCODE,REASONDESCRIPTION
     StringBuilder s = new StringBuilder();
 
-    String encounterID = UUID.randomUUID().toString();
+    String encounterID = ids.nextId();
     // ID
     s.append(encounterID).append(',');
     // START
@@ -836,14 +1028,15 @@ public class CSVExporter {
    * @param personID    ID of the person prescribed the careplan.
    * @param encounterID ID of the encounter where the careplan was prescribed
    * @param careplan    The careplan itself
+   * @param ids         Generates the careplan ID
    * @throws IOException if any IO error occurs
    */
   private String careplan(String personID, String encounterID,
-      CarePlan careplan) throws IOException {
+      CarePlan careplan, IdGenerator ids) throws IOException {
     // Id,START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION,REASONCODE,REASONDESCRIPTION
     StringBuilder s = new StringBuilder();
 
-    String careplanID = UUID.randomUUID().toString();
+    String careplanID = ids.nextId();
     s.append(careplanID).append(',');
     s.append(dateFromTimestamp(careplan.start)).append(',');
     if (careplan.stop != 0L) {
@@ -878,15 +1071,16 @@ public class CSVExporter {
    * @param personID     ID of the person the ImagingStudy was taken of.
    * @param encounterID  ID of the encounter where the ImagingStudy was performed
    * @param imagingStudy The ImagingStudy itself
+   * @param ids          Generates the ImagingStudy ID
    * @throws IOException if any IO error occurs
    */
   private String imagingStudy(String personID, String encounterID,
-      ImagingStudy imagingStudy) throws IOException {
+      ImagingStudy imagingStudy, IdGenerator ids) throws IOException {
     // Id,DATE,PATIENT,ENCOUNTER,BODYSITE_CODE,BODYSITE_DESCRIPTION,
     // MODALITY_CODE,MODALITY_DESCRIPTION,SOP_CODE,SOP_DESCRIPTION
     StringBuilder s = new StringBuilder();
 
-    String studyID = UUID.randomUUID().toString();
+    String studyID = ids.nextId();
     s.append(studyID).append(',');
     s.append(dateFromTimestamp(imagingStudy.start)).append(',');
     s.append(personID).append(',');
@@ -1061,14 +1255,13 @@ public class CSVExporter {
   /**
    * Helper method to write a line to a File. Extracted to a separate method here
    * to make it a little easier to replace implementations.
+   * The line is added to the current thread's block, and written when the block is committed.
    *
    * @param line   The line to write
    * @param writer The place to write it
    * @throws IOException if an I/O error occurs
    */
-  private static void write(String line, OutputStreamWriter writer) throws IOException {
-    synchronized (writer) {
-      writer.write(line);
-    }
+  private static void write(String line, BlockWriter writer) throws IOException {
+    writer.write(line);
   }
 }
\ No newline at end of file
@@ -4,7 +4,9 @@ import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 
+import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -15,46 +17,48 @@ import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
 import org.mitre.synthea.world.concepts.HealthRecord.Entry;
 import org.mitre.synthea.world.concepts.HealthRecord.Medication;
 import org.mitre.synthea.world.concepts.HealthRecord.Procedure;
-import org.mitre.synthea.world.concepts.RaceAndEthnicity;
 
 /**
  * Export Clinical Notes using Apache FreeMarker templates.
  */
 public class ClinicalNoteExporter {
 
-  private static final Configuration TEMPLATES = templateConfiguration();
+  private static final Configuration TEMPLATES =
+      PersonTemplateModel.templateConfiguration("templates/notes");
+  private static final Template NOTE = PersonTemplateModel.template(TEMPLATES, "note.ftl");
 
-  private static Configuration templateConfiguration() {
-    Configuration configuration = new Configuration(Configuration.VERSION_2_3_26);
-    configuration.setDefaultEncoding("UTF-8");
-    configuration.setLogTemplateExceptions(false);
+  /**
+   * Export all the encounter notes for a Person in a single
+   * document, with the most recent encounter on top.
+   *
+   * @param person Person to write notes about.
+   * @return A set of consolidated clinical notes as plain text.
+   */
+  public static String export(Person person) {
+    StringWriter writer = new StringWriter();
     try {
-      configuration.setSetting("object_wrapper",
-          "DefaultObjectWrapper(2.3.26, forceLegacyNonListCollections=false, "
-              + "iterableSupport=true, exposeFields=true)");
-    } catch (TemplateException e) {
+      export(person, writer);
+    } catch (IOException e) {
       e.printStackTrace();
     }
-    configuration.setAPIBuiltinEnabled(true);
-    configuration.setClassLoaderForTemplateLoading(ClassLoader.getSystemClassLoader(),
-        "templates/notes");
-    return configuration;
+    return writer.toString();
   }
 
   /**
    * Export all the encounter notes for a Person in a single
-   * document, with the most recent encounter on top.
+   * document, with the most recent encounter on top, writing
+   * each note as it is rendered.
    *
    * @param person Person to write notes about.
-   * @return A set of consolidated clinical notes as plain text.
+   * @param writer Writer to write the consolidated clinical notes to.
+   * @throws IOException if the notes can not be written.
    */
-  public static String export(Person person) {
-    String consolidatedNotes = "";
+  public static void export(Person person, Writer writer) throws IOException {
     for (int i = person.record.encounters.size() - 1; i >= 0; i--) {
       Encounter encounter = person.record.encounters.get(i);
-      consolidatedNotes += export(person, encounter) + "\n\n";
+      export(person, encounter, writer);
+      writer.write("\n\n");
     }
-    return consolidatedNotes;
   }
 
   /**
@@ -65,8 +69,28 @@ public class ClinicalNoteExporter {
    * @return Clinical note as a plain text string.
    */
   public static String export(Person person, Encounter encounter) {
+    StringWriter writer = new StringWriter();
+    try {
+      export(person, encounter, writer);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Export a clinical note for a Person at a given Encounter, writing it as it is rendered.
+   * A note that can not be rendered is reported, and left incomplete.
+   *
+   * @param person Person to write a note about.
+   * @param encounter Encounter to write a note about.
+   * @param writer Writer to write the clinical note to.
+   * @throws IOException if the note can not be written.
+   */
+  private static void export(Person person, Encounter encounter, Writer writer)
+      throws IOException {
     // The export templates fill in the record by accessing the attributes
-    // of the Person, so we add a few attributes just for the purposes of export.
+    // of the Person, so we add a few values just for the purposes of export.
     Set<String> activeAllergies = new HashSet<String>();
     Set<String> activeConditions = new HashSet<String>();
     Set<String> activeMedications = new HashSet<String>();
@@ -103,48 +127,37 @@ public class ClinicalNoteExporter {
       }
     }
 
+    // The export values hide the attributes of the same name, without changing the person,
+    // so the person can be exported to other formats at the same time.
     Payer payer = person.getPayerAtTime(encounter.start);
-    if (payer == null) {
-      person.attributes.put("ehr_insurance", "unknown insurance coverage");
-    } else {
-      person.attributes.put("ehr_insurance", payer.getName());
-    }
-    person.attributes.put("ehr_ageInYears", person.ageInYears(encounter.start));
-    person.attributes.put("ehr_ageInMonths", person.ageInMonths(encounter.start));
-    person.attributes.put("ehr_symptoms", person.getSymptoms());
-    person.attributes.put("ehr_activeAllergies", activeAllergies);
-    person.attributes.put("ehr_activeConditions", activeConditions);
-    if (activeConditions.contains("Normal pregnancy")) {
-      person.attributes.put("pregnant", true);
-    } else {
-      person.attributes.remove("pregnant");
-    }
-    person.attributes.put("ehr_activeMedications", activeMedications);
-    person.attributes.put("ehr_activeProcedures", activeProcedures);
-    person.attributes.put("ehr_conditions", encounter.conditions);
-    person.attributes.put("ehr_allergies", encounter.allergies);
-    person.attributes.put("ehr_procedures", encounter.procedures);
-    person.attributes.put("ehr_immunizations", encounter.immunizations);
-    person.attributes.put("ehr_medications", encounter.medications);
-    person.attributes.put("ehr_careplans", encounter.careplans);
-    person.attributes.put("ehr_imaging_studies", encounter.imagingStudies);
-    person.attributes.put("time", encounter.start);
+    PersonTemplateModel model = new PersonTemplateModel(TEMPLATES, person)
+        .put("ehr_insurance",
+            payer == null ? "unknown insurance coverage" : payer.getName())
+        .put("ehr_ageInYears", person.ageInYears(encounter.start))
+        .put("ehr_ageInMonths", person.ageInMonths(encounter.start))
+        .put("ehr_symptoms", person.getSymptoms())
+        .put("ehr_activeAllergies", activeAllergies)
+        .put("ehr_activeConditions", activeConditions)
+        .put("pregnant", activeConditions.contains("Normal pregnancy") ? true : null)
+        .put("ehr_activeMedications", activeMedications)
+        .put("ehr_activeProcedures", activeProcedures)
+        .put("ehr_conditions", encounter.conditions)
+        .put("ehr_allergies", encounter.allergies)
+        .put("ehr_procedures", encounter.procedures)
+        .put("ehr_immunizations", encounter.immunizations)
+        .put("ehr_medications", encounter.medications)
+        .put("ehr_careplans", encounter.careplans)
+        .put("ehr_imaging_studies", encounter.imagingStudies)
+        .put("time", encounter.start);
     if (person.attributes.containsKey(LifecycleModule.QUIT_SMOKING_AGE)) {
-      person.attributes.put("quit_smoking_age", 
-          person.attributes.get(LifecycleModule.QUIT_SMOKING_AGE));      
+      model.put("quit_smoking_age",
+          person.attributes.get(LifecycleModule.QUIT_SMOKING_AGE));
     }
-    person.attributes.put("race_lookup", RaceAndEthnicity.LOOK_UP_CDC_RACE);
-    person.attributes.put("ethnicity_lookup", RaceAndEthnicity.LOOK_UP_CDC_ETHNICITY_CODE);
-    person.attributes.put("ethnicity_display_lookup",
-        RaceAndEthnicity.LOOK_UP_CDC_ETHNICITY_DISPLAY);
 
-    StringWriter writer = new StringWriter();
     try {
-      Template template = TEMPLATES.getTemplate("note.ftl");
-      template.process(person.attributes, writer);
-    } catch (Exception e) {
+      NOTE.process(model, writer);
+    } catch (TemplateException e) {
       e.printStackTrace();
     }
-    return writer.toString();
   }
 }
@@ -0,0 +1,202 @@
+package org.mitre.synthea.export;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compression of exported files. See the configuration settings "exporter.compression",
+ * "exporter.compression.level" and "exporter.compression.buffer_size".
+ * <p></p>
+ * Files are compressed as they are written, and the extension of the format (for example
+ * ".gz") is added to the name of every compressed file. Exporters always name files as if
+ * they were not compressed, and pass those names to this class, which works out the name
+ * of the file on disk. Appending to a compressed file adds a new gzip member or zstd frame,
+ * which standard tools decompress as if it were a single stream.
+ */
+final class Compression {
+  /** The supported compression formats. */
+  enum Format {
+    NONE(""),
+    GZIP(".gz"),
+    ZSTD(".zst");
+
+    private final String extension;
+
+    Format(String extension) {
+      this.extension = extension;
+    }
+  }
+
+  /** The default zstd compression level, which is the level the zstd command line uses. */
+  private static final int DEFAULT_ZSTD_LEVEL = 3;
+
+  /** No compression. */
+  static final Compression NONE = new Compression(Format.NONE, -1, 8192);
+
+  private final Format format;
+  private final int level;
+  private final int bufferSize;
+
+  /**
+   * Create a new compression setting.
+   * @param format The compression format.
+   * @param level The compression level, or -1 for the default level of the format.
+   * @param bufferSize The number of bytes of compressed output to buffer before writing
+   *     to the file.
+   */
+  Compression(Format format, int level, int bufferSize) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Compression buffer size must be positive");
+    }
+    this.format = format;
+    this.level = level;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Parse a compression setting.
+   * @param name The name of the format: none, gzip or zstd.
+   * @param level The compression level, or -1 for the default level of the format.
+   * @param bufferSize The number of bytes of compressed output to buffer.
+   * @return the compression setting
+   * @throws IllegalArgumentException if the format is not supported.
+   */
+  static Compression of(String name, int level, int bufferSize) {
+    String format = name == null ? "" : name.trim().toUpperCase(Locale.ROOT);
+    if (format.isEmpty()) {
+      format = "NONE";
+    }
+    try {
+      return new Compression(Format.valueOf(format), level, bufferSize);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unsupported exporter.compression: " + name, e);
+    }
+  }
+
+  /**
+   * Returns the compression of the current exporter settings.
+   */
+  static Compression current() {
+    return ExportSettings.current().compression;
+  }
+
+  /**
+   * Returns the compression format.
+   */
+  Format format() {
+    return format;
+  }
+
+  /**
+   * Returns the extension added to the names of compressed files, or an empty string.
+   */
+  String extension() {
+    return format.extension;
+  }
+
+  /**
+   * Returns the file on disk for the given file name.
+   * @param file The name of the file, as if it were not compressed.
+   */
+  Path file(Path file) {
+    if (format == Format.NONE) {
+      return file;
+    }
+    return file.resolveSibling(file.getFileName() + format.extension);
+  }
+
+  /**
+   * Returns the file on disk for the given file name.
+   * @param file The name of the file, as if it were not compressed.
+   */
+  File file(File file) {
+    if (format == Format.NONE) {
+      return file;
+    }
+    return new File(file.getPath() + format.extension);
+  }
+
+  /**
+   * Open a file for writing, compressing everything written to it. The stream is not
+   * buffered on the uncompressed side, so callers should still buffer small writes.
+   * @param file The name of the file, as if it were not compressed.
+   * @param options How to open the file, as for {@link Files#newOutputStream}.
+   * @return the stream
+   * @throws IOException if the file can not be opened.
+   */
+  OutputStream open(Path file, OpenOption... options) throws IOException {
+    OutputStream out = Files.newOutputStream(file(file), options);
+    try {
+      return compress(out);
+    } catch (IOException | RuntimeException e) {
+      out.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Open a file for reading, decompressing everything read from it.
+   * @param file The name of the file, as if it were not compressed.
+   * @return the stream
+   * @throws IOException if the file can not be opened.
+   */
+  InputStream read(Path file) throws IOException {
+    InputStream in = new BufferedInputStream(Files.newInputStream(file(file)), bufferSize);
+    try {
+      switch (format) {
+        case GZIP:
+          return new GZIPInputStream(in, bufferSize);
+        case ZSTD:
+          return new ZstdInputStream(in);
+        default:
+          return in;
+      }
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Compress everything written to the given stream.
+   * @param out The stream to write the compressed bytes to.
+   * @return the stream to write the uncompressed bytes to
+   * @throws IOException if an I/O error occurs.
+   */
+  OutputStream compress(OutputStream out) throws IOException {
+    switch (format) {
+      case GZIP:
+        return new LeveledGzipOutputStream(out, bufferSize, level);
+      case ZSTD:
+        return new ZstdOutputStream(new BufferedOutputStream(out, bufferSize),
+            level == -1 ? DEFAULT_ZSTD_LEVEL : level);
+      default:
+        return out;
+    }
+  }
+
+  /**
+   * A gzip stream with a compression level. Flushing the stream flushes all of the input
+   * written so far, so that a flushed file can be read while it is still being written.
+   */
+  private static class LeveledGzipOutputStream extends GZIPOutputStream {
+    private LeveledGzipOutputStream(OutputStream out, int bufferSize, int level)
+        throws IOException {
+      super(out, bufferSize, true);
+      def.setLevel(level);
+    }
+  }
+}
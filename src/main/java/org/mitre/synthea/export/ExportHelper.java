@@ -1,9 +1,10 @@
 package org.mitre.synthea.export;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Locale;
-import java.util.TimeZone;
 
 import org.hl7.fhir.dstu3.model.Condition;
 import org.mitre.synthea.world.concepts.HealthRecord;
@@ -95,43 +96,29 @@ public abstract class ExportHelper {
   }
 
   /**
-   * Year-Month-Day date format.
+   * Year-Month-Day date format, in the default time zone.
    */
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
+  private static final DateTimeFormatter DATE_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneId.systemDefault());
 
   /**
    * Iso8601 date time format.
    */
-  private static final SimpleDateFormat ISO_DATE_FORMAT = iso();
-
-  /**
-   * Create a SimpleDateFormat for iso8601.
-   * @return Iso8601 date time format.
-   */
-  private static final SimpleDateFormat iso() {
-    SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-    f.setTimeZone(TimeZone.getTimeZone("UTC"));
-    return f;
-  }
+  private static final DateTimeFormatter ISO_DATE_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
 
   /**
    * Get a date string in the format YYYY-MM-DD from the given time stamp.
    */
   public static String dateFromTimestamp(long time) {
-    synchronized (DATE_FORMAT) {
-      // http://bugs.java.com/bugdatabase/view_bug.do?bug_id=6231579
-      return DATE_FORMAT.format(new Date(time));
-    }
+    return DATE_FORMAT.format(Instant.ofEpochMilli(time));
   }
 
   /**
    * Get an iso8601 string for the given time stamp.
    */
   public static String iso8601Timestamp(long time) {
-    synchronized (ISO_DATE_FORMAT) {
-      // http://bugs.java.com/bugdatabase/view_bug.do?bug_id=6231579
-      return ISO_DATE_FORMAT.format(new Date(time));
-    }
+    return ISO_DATE_FORMAT.format(Instant.ofEpochMilli(time));
   }
 
   private static final String SNOMED_URI = "http://snomed.info/sct";
@@ -0,0 +1,103 @@
+package org.mitre.synthea.export;
+
+import org.mitre.synthea.helpers.Config;
+
+/**
+ * The exporter settings, read from the configuration once and then shared by every
+ * exporting thread, instead of looking up and parsing each setting for every person.
+ * <p></p>
+ * The settings are immutable. They are rebuilt only when the configuration changes, which
+ * normally happens before the first person is exported, or when a test changes a setting.
+ */
+final class ExportSettings {
+  private static volatile ExportSettings current;
+
+  /** The configuration these settings were read from. */
+  private final Config.Snapshot config;
+
+  /** exporter.years_of_history, or 0 to export the full history. */
+  final int yearsOfHistory;
+  /** exporter.parallel.threads, or 0 to convert records on the exporting thread. */
+  final int parallelThreads;
+  /** exporter.baseDirectory. */
+  final String baseDirectory;
+  /** exporter.subfolders_by_id_substring. */
+  final boolean subfoldersByIdSubstring;
+  /** exporter.use_uuid_filenames. */
+  final boolean useUuidFilenames;
+  /** exporter.compression, with its level and buffer size. */
+  final Compression compression;
+  /** exporter.archive, or NONE to write each patient's files separately. */
+  final ArchiveWriter.Format archive;
+  /** exporter.archive.segment_size, in bytes. */
+  final long archiveSegmentSize;
+  /** exporter.plugins.threads, for each CONCURRENT exporter plugin. */
+  final int pluginThreads;
+  /** exporter.plugins.queue_size, the number of people each exporter plugin can queue. */
+  final int pluginQueueSize;
+  /** exporter.metrics, whether to report the time each exporter takes. */
+  final boolean metrics;
+
+  final boolean fhirStu3;
+  final boolean fhirDstu2;
+  final boolean fhirR4;
+  /** exporter.fhir.bulk_data, for all FHIR versions. */
+  final boolean fhirBulkData;
+  /** exporter.fhir.streaming, for FHIR R4 only. */
+  final boolean fhirStreaming;
+  final boolean ccda;
+  final boolean clinicalNote;
+  final boolean csv;
+  final boolean parquet;
+  /** exporter.parquet.row_group_size, the number of rows in each Parquet row group. */
+  final int parquetRowGroupSize;
+  final boolean cpcds;
+  final boolean text;
+  final boolean textPerEncounter;
+  final boolean cdw;
+
+  private ExportSettings(Config.Snapshot config) {
+    this.config = config;
+    yearsOfHistory = config.getAsInteger("exporter.years_of_history", 0);
+    parallelThreads = config.getAsInteger("exporter.parallel.threads", 0);
+    baseDirectory = config.get("exporter.baseDirectory");
+    subfoldersByIdSubstring = config.getAsBoolean("exporter.subfolders_by_id_substring", false);
+    useUuidFilenames = config.getAsBoolean("exporter.use_uuid_filenames", false);
+    compression = Compression.of(config.get("exporter.compression", "none"),
+        config.getAsInteger("exporter.compression.level", -1),
+        config.getAsInteger("exporter.compression.buffer_size", 65536));
+    archive = ArchiveWriter.Format.of(config.get("exporter.archive", "none"));
+    archiveSegmentSize = config.getAsLong("exporter.archive.segment_size", 1L << 30);
+    pluginThreads = config.getAsInteger("exporter.plugins.threads", 1);
+    pluginQueueSize = config.getAsInteger("exporter.plugins.queue_size", 100);
+    metrics = config.getAsBoolean("exporter.metrics", false);
+    fhirStu3 = config.getAsBoolean("exporter.fhir_stu3.export", false);
+    fhirDstu2 = config.getAsBoolean("exporter.fhir_dstu2.export", false);
+    fhirR4 = config.getAsBoolean("exporter.fhir.export", false);
+    fhirBulkData = config.getAsBoolean("exporter.fhir.bulk_data", false);
+    fhirStreaming = config.getAsBoolean("exporter.fhir.streaming", false);
+    ccda = config.getAsBoolean("exporter.ccda.export", false);
+    clinicalNote = config.getAsBoolean("exporter.clinical_note.export", false);
+    csv = config.getAsBoolean("exporter.csv.export", false);
+    parquet = config.getAsBoolean("exporter.parquet.export", false);
+    parquetRowGroupSize = config.getAsInteger("exporter.parquet.row_group_size", 100000);
+    cpcds = config.getAsBoolean("exporter.cpcds.export", false);
+    text = config.getAsBoolean("exporter.text.export", false);
+    textPerEncounter = config.getAsBoolean("exporter.text.per_encounter_export", false);
+    cdw = config.getAsBoolean("exporter.cdw.export", false);
+  }
+
+  /**
+   * Returns the settings for the current configuration. The same instance is returned until
+   * the configuration changes.
+   */
+  static ExportSettings current() {
+    Config.Snapshot config = Config.snapshot();
+    ExportSettings settings = current;
+    if (settings == null || settings.config != config) {
+      settings = new ExportSettings(config);
+      current = settings;
+    }
+    return settings;
+  }
+}
@@ -1,10 +1,15 @@
 package org.mitre.synthea.export;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -13,12 +18,21 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.FhirContexts;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.modules.DeathModule;
 import org.mitre.synthea.world.agents.Person;
@@ -28,6 +42,22 @@ import org.mitre.synthea.world.concepts.HealthRecord.Observation;
 import org.mitre.synthea.world.concepts.HealthRecord.Report;
 
 public abstract class Exporter {
+  /**
+   * Open bulk data (NDJSON) files, by path. Each file is opened once, and kept open
+   * until all of the records have been exported.
+   */
+  private static final Map<Path, BlockWriter> bulkDataFiles =
+      new ConcurrentHashMap<Path, BlockWriter>();
+  private static final int BULK_DATA_BUFFER_SIZE = 1 << 16;
+  private static final long BULK_DATA_FLUSH_INTERVAL = 5000L;
+
+  /** Converts records on other threads, if exporter.parallel.threads is more than 0. */
+  private static volatile ExecutorService exportPool;
+  private static final AtomicInteger exportThreads = new AtomicInteger();
+  /** The archive that patient files are added to, if exporter.archive is enabled. */
+  private static ArchiveWriter archive;
+  /** The enabled exporter plugins, loaded when the first person is exported. */
+  private static volatile ExporterPlugins plugins;
   
   /**
    * Supported FHIR versions.
@@ -48,7 +78,7 @@ public abstract class Exporter {
     private SupportedFhirVersion fhirVersion;
     
     public ExporterRuntimeOptions() {
-      yearsOfHistory = Integer.parseInt(Config.get("exporter.years_of_history"));
+      yearsOfHistory = ExportSettings.current().yearsOfHistory;
     }
     
     /**
@@ -97,22 +127,25 @@ public abstract class Exporter {
    * @param options Runtime exporter options
    */
   public static void export(Person person, long stopTime, ExporterRuntimeOptions options) {
-    int yearsOfHistory = Integer.parseInt(Config.get("exporter.years_of_history"));
-    if (yearsOfHistory > 0) {
-      person = filterForExport(person, yearsOfHistory, stopTime);
+    ExportSettings settings = ExportSettings.current();
+    if (settings.yearsOfHistory > 0) {
+      person = filterForExport(person, settings.yearsOfHistory, stopTime);
     }
     if (!person.alive(stopTime)) {
       filterAfterDeath(person);
     }
-    if (person.hasMultipleRecords) {
+    ExecutorService pool = exportPool(settings);
+    if (pool != null) {
+      exportInParallel(person, stopTime, options, settings, pool);
+    } else if (person.hasMultipleRecords) {
       int i = 0;
       for (String key : person.records.keySet()) {
         person.record = person.records.get(key);
-        exportRecord(person, Integer.toString(i), stopTime, options);
+        exportRecord(person, Integer.toString(i), stopTime, options, settings);
         i++;
       }
     } else {
-      exportRecord(person, "", stopTime, options);
+      exportRecord(person, "", stopTime, options, settings);
     }
   }
   
@@ -127,6 +160,117 @@ public abstract class Exporter {
     export(person, stopTime, new ExporterRuntimeOptions());
   }
 
+  /**
+   * Returns the pool that records are converted on, or null if records are converted on the
+   * exporting thread. The pool is created the first time it is needed.
+   */
+  private static ExecutorService exportPool(ExportSettings settings) {
+    if (settings.parallelThreads <= 0) {
+      return null;
+    }
+    ExecutorService pool = exportPool;
+    if (pool == null) {
+      synchronized (Exporter.class) {
+        if (exportPool == null) {
+          exportPool = Executors.newFixedThreadPool(settings.parallelThreads, task -> {
+            Thread thread = new Thread(task, "exporter-" + exportThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+        }
+        pool = exportPool;
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Export a single patient, converting each of their records to each of the formats at the
+   * same time on the export pool. The outputs, and the formats that write to files shared by
+   * all patients (such as CSV), are written on this thread, record by record and format by
+   * format, so they are written in the same order as they would be without the pool. Only the
+   * record being written and the next one are converted at any time.
+   *
+   * @param person   Patient to export
+   * @param stopTime Time at which the simulation stopped
+   * @param options  Runtime exporter options
+   * @param settings The exporter settings
+   * @param pool     The pool to convert the records on
+   */
+  private static void exportInParallel(Person person, long stopTime,
+      ExporterRuntimeOptions options, ExportSettings settings, ExecutorService pool) {
+    List<HealthRecord> records = new ArrayList<HealthRecord>();
+    List<String> fileTags = new ArrayList<String>();
+    if (person.hasMultipleRecords) {
+      for (HealthRecord record : person.records.values()) {
+        fileTags.add(Integer.toString(records.size()));
+        records.add(record);
+      }
+    } else {
+      fileTags.add("");
+      records.add(person.record);
+    }
+
+    // the conversions each get a copy of the person, so the serial exporters can go on to
+    // change the person's attributes on this thread while the conversions run. the next record
+    // is converted while the outputs of the current one are written, so the outputs of at
+    // most two records are held in memory at once
+    List<Future<RecordOutput>> next = convert(person.withRecord(records.get(0)),
+        fileTags.get(0), stopTime, settings, pool);
+    for (int i = 0; i < records.size(); i++) {
+      List<Future<RecordOutput>> outputs = next;
+      if (i + 1 < records.size()) {
+        next = convert(person.withRecord(records.get(i + 1)), fileTags.get(i + 1), stopTime,
+            settings, pool);
+      }
+      for (Future<RecordOutput> output : outputs) {
+        await(output).write();
+      }
+      person.record = records.get(i);
+      exportSerially(person, fileTags.get(i), stopTime, options, settings);
+    }
+  }
+
+  /**
+   * Start converting a single patient record to each of the formats on the export pool.
+   *
+   * @param person   Patient to export, with Patient.record being set.
+   * @param fileTag  An identifier to tag the file with.
+   * @param stopTime Time at which the simulation stopped
+   * @param settings The exporter settings
+   * @param pool     The pool to convert the record on
+   * @return the outputs of the conversions, in the order they are to be written
+   */
+  private static List<Future<RecordOutput>> convert(Person person, String fileTag,
+      long stopTime, ExportSettings settings, ExecutorService pool) {
+    List<Future<RecordOutput>> outputs = new ArrayList<Future<RecordOutput>>();
+    for (Supplier<RecordOutput> conversion : conversions(person, fileTag, stopTime, settings)) {
+      outputs.add(pool.submit(conversion::get));
+    }
+    return outputs;
+  }
+
+  /**
+   * Wait for a conversion on the export pool to finish, and return its output. Exceptions
+   * thrown by the conversion are thrown again on this thread.
+   */
+  private static RecordOutput await(Future<RecordOutput> output) {
+    try {
+      return output.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while exporting", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
   /**
    * Export a single patient record, into all the formats supported.
    * (Formats may be enabled or disabled by configuration)
@@ -135,109 +279,211 @@ public abstract class Exporter {
    * @param fileTag  An identifier to tag the file with.
    * @param stopTime Time at which the simulation stopped
    * @param options Generator's record queue (may be null)
+   * @param settings The exporter settings
    */
   private static void exportRecord(Person person, String fileTag, long stopTime,
-          ExporterRuntimeOptions options) {
-
-    if (Boolean.parseBoolean(Config.get("exporter.fhir_stu3.export"))) {
-      File outDirectory = getOutputFolder("fhir_stu3", person);
-      if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
-        org.hl7.fhir.dstu3.model.Bundle bundle = FhirStu3.convertToFHIR(person, stopTime);
-        IParser parser = FhirContext.forDstu3().newJsonParser().setPrettyPrint(false);
-        for (org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-          String filename = entry.getResource().getResourceType().toString() + ".ndjson";
-          Path outFilePath = outDirectory.toPath().resolve(filename);
-          String entryJson = parser.encodeResourceToString(entry.getResource());
-          appendToFile(outFilePath, entryJson);
-        }
-      } else {
-        String bundleJson = FhirStu3.convertToFHIRJson(person, stopTime);
-        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
-      }
+          ExporterRuntimeOptions options, ExportSettings settings) {
+    for (Supplier<RecordOutput> conversion : conversions(person, fileTag, stopTime, settings)) {
+      conversion.get().write();
     }
-    if (Boolean.parseBoolean(Config.get("exporter.fhir_dstu2.export"))) {
-      File outDirectory = getOutputFolder("fhir_dstu2", person);
-      if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
-        ca.uhn.fhir.model.dstu2.resource.Bundle bundle = FhirDstu2.convertToFHIR(person, stopTime);
-        IParser parser = FhirContext.forDstu2().newJsonParser().setPrettyPrint(false);
-        for (ca.uhn.fhir.model.dstu2.resource.Bundle.Entry entry : bundle.getEntry()) {
-          String filename = entry.getResource().getResourceName() + ".ndjson";
-          Path outFilePath = outDirectory.toPath().resolve(filename);
-          String entryJson = parser.encodeResourceToString(entry.getResource());
-          appendToFile(outFilePath, entryJson);
-        }
-      } else {
-        String bundleJson = FhirDstu2.convertToFHIRJson(person, stopTime);
-        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
-      }
+    exportSerially(person, fileTag, stopTime, options, settings);
+  }
+
+  /**
+   * The output of converting one record to one format, that still has to be written. Records
+   * may be converted on the export pool, but their outputs are always written by the exporting
+   * thread, in a fixed order.
+   */
+  @FunctionalInterface
+  private interface RecordOutput {
+    void write();
+  }
+
+  /** The output of a conversion that wrote its own file. */
+  private static final RecordOutput WRITTEN = () -> { };
+
+  /**
+   * Returns the conversions of a single patient record to each of the enabled formats that
+   * only read the patient, and write to a file of their own, so they can run at the same time
+   * as each other.
+   *
+   * @param person   Patient to export, with Patient.record being set.
+   * @param fileTag  An identifier to tag the file with.
+   * @param stopTime Time at which the simulation stopped
+   * @param settings The exporter settings
+   * @return the conversions, in the order their outputs should be written.
+   */
+  private static List<Supplier<RecordOutput>> conversions(Person person, String fileTag,
+      long stopTime, ExportSettings settings) {
+    List<Supplier<RecordOutput>> conversions = new ArrayList<Supplier<RecordOutput>>();
+    if (settings.fhirStu3) {
+      conversions.add(timedConversion("fhir_stu3",
+          () -> exportFhirStu3(person, fileTag, stopTime, settings)));
     }
-    if (Boolean.parseBoolean(Config.get("exporter.fhir.export"))) {
-      File outDirectory = getOutputFolder("fhir", person);
-      if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
-        org.hl7.fhir.r4.model.Bundle bundle = FhirR4.convertToFHIR(person, stopTime);
-        IParser parser = FhirContext.forR4().newJsonParser().setPrettyPrint(false);
-        for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-          String filename = entry.getResource().getResourceType().toString() + ".ndjson";
-          Path outFilePath = outDirectory.toPath().resolve(filename);
-          String entryJson = parser.encodeResourceToString(entry.getResource());
-          appendToFile(outFilePath, entryJson);
-        }
-      } else {
-        String bundleJson = FhirR4.convertToFHIRJson(person, stopTime);
-        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
-      }
-      FhirGroupExporterR4.addPatient((String) person.attributes.get(Person.ID));
+    if (settings.fhirDstu2) {
+      conversions.add(timedConversion("fhir_dstu2",
+          () -> exportFhirDstu2(person, fileTag, stopTime, settings)));
     }
-    if (Boolean.parseBoolean(Config.get("exporter.ccda.export"))) {
-      String ccdaXml = CCDAExporter.export(person, stopTime);
-      File outDirectory = getOutputFolder("ccda", person);
-      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "xml"));
-      writeNewFile(outFilePath, ccdaXml);
+    if (settings.fhirR4) {
+      conversions.add(timedConversion("fhir",
+          () -> exportFhirR4(person, fileTag, stopTime, settings)));
     }
-    if (Boolean.parseBoolean(Config.get("exporter.csv.export"))) {
-      try {
-        CSVExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+    if (settings.ccda) {
+      conversions.add(timedConversion("ccda", () -> {
+        File outDirectory = getOutputFolder("ccda", person);
+        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "xml"));
+        renderNewFile(person, outFilePath,
+            writer -> CCDAExporter.export(person, stopTime, writer));
+        return WRITTEN;
+      }));
     }
-    if (Boolean.parseBoolean(Config.get("exporter.cpcds.export"))) {
-      try {
-        CPCDSExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+    if (settings.clinicalNote) {
+      conversions.add(timedConversion("notes", () -> {
+        File outDirectory = getOutputFolder("notes", person);
+        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "txt"));
+        renderNewFile(person, outFilePath, writer -> ClinicalNoteExporter.export(person, writer));
+        return WRITTEN;
+      }));
     }
-    if (Boolean.parseBoolean(Config.get("exporter.text.export"))) {
+    return conversions;
+  }
+
+  /**
+   * Count the time a conversion takes in the metrics of its format.
+   * @param name The name of the format.
+   * @param conversion The conversion.
+   * @return the timed conversion
+   */
+  private static Supplier<RecordOutput> timedConversion(String name,
+      Supplier<RecordOutput> conversion) {
+    return () -> {
+      ExporterMetrics metrics = ExporterMetrics.get(name);
+      long start = System.nanoTime();
       try {
-        TextExporter.exportAll(person, fileTag, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
+        return conversion.get();
+      } catch (RuntimeException e) {
+        metrics.error();
+        throw e;
+      } finally {
+        metrics.record(start);
       }
+    };
+  }
+
+  /**
+   * Convert a single patient record to FHIR STU3.
+   */
+  private static RecordOutput exportFhirStu3(Person person, String fileTag, long stopTime,
+      ExportSettings settings) {
+    File outDirectory = getOutputFolder("fhir_stu3", person);
+    if (settings.fhirBulkData) {
+      org.hl7.fhir.dstu3.model.Bundle bundle = FhirStu3.convertToFHIR(person, stopTime);
+      IParser parser = FhirContexts.stu3JsonParser(false);
+      List<Path> files = new ArrayList<Path>();
+      List<String> lines = new ArrayList<String>();
+      for (org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+        String filename = entry.getResource().getResourceType().toString() + ".ndjson";
+        files.add(outDirectory.toPath().resolve(filename));
+        lines.add(parser.encodeResourceToString(entry.getResource()));
+      }
+      return () -> appendBulkData(files, lines);
+    } else {
+      String bundleJson = FhirStu3.convertToFHIRJson(person, stopTime);
+      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
+      writeNewFile(person, outFilePath, bundleJson);
+      return WRITTEN;
     }
-    if (Boolean.parseBoolean(Config.get("exporter.text.per_encounter_export"))) {
-      try {
-        TextExporter.exportEncounter(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
+  }
+
+  /**
+   * Convert a single patient record to FHIR DSTU2.
+   */
+  private static RecordOutput exportFhirDstu2(Person person, String fileTag, long stopTime,
+      ExportSettings settings) {
+    File outDirectory = getOutputFolder("fhir_dstu2", person);
+    if (settings.fhirBulkData) {
+      ca.uhn.fhir.model.dstu2.resource.Bundle bundle = FhirDstu2.convertToFHIR(person, stopTime);
+      IParser parser = FhirContexts.dstu2JsonParser(false);
+      List<Path> files = new ArrayList<Path>();
+      List<String> lines = new ArrayList<String>();
+      for (ca.uhn.fhir.model.dstu2.resource.Bundle.Entry entry : bundle.getEntry()) {
+        String filename = entry.getResource().getResourceName() + ".ndjson";
+        files.add(outDirectory.toPath().resolve(filename));
+        lines.add(parser.encodeResourceToString(entry.getResource()));
       }
+      return () -> appendBulkData(files, lines);
+    } else {
+      String bundleJson = FhirDstu2.convertToFHIRJson(person, stopTime);
+      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
+      writeNewFile(person, outFilePath, bundleJson);
+      return WRITTEN;
     }
-    if (Boolean.parseBoolean(Config.get("exporter.cdw.export"))) {
-      try {
-        CDWExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
+  }
+
+  /**
+   * Convert a single patient record to FHIR R4. The patient is added to the FHIR Group
+   * when the output is written.
+   */
+  private static RecordOutput exportFhirR4(Person person, String fileTag, long stopTime,
+      ExportSettings settings) {
+    File outDirectory = getOutputFolder("fhir", person);
+    String patientId = (String) person.attributes.get(Person.ID);
+    if (settings.fhirBulkData) {
+      org.hl7.fhir.r4.model.Bundle bundle = FhirR4.convertToFHIR(person, stopTime);
+      IParser parser = FhirContexts.r4JsonParser(false);
+      List<Path> files = new ArrayList<Path>();
+      List<String> lines = new ArrayList<String>();
+      for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+        String filename = entry.getResource().getResourceType().toString() + ".ndjson";
+        files.add(outDirectory.toPath().resolve(filename));
+        lines.add(parser.encodeResourceToString(entry.getResource()));
       }
+      return () -> {
+        appendBulkData(files, lines);
+        FhirGroupExporterR4.addPatient(patientId);
+      };
+    } else if (settings.fhirStreaming) {
+      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
+      renderNewFile(person, outFilePath, writer -> FhirR4.writeFHIRJson(person, stopTime, writer));
+    } else {
+      String bundleJson = FhirR4.convertToFHIRJson(person, stopTime);
+      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
+      writeNewFile(person, outFilePath, bundleJson);
+    }
+    return () -> FhirGroupExporterR4.addPatient(patientId);
+  }
+
+  /**
+   * Export a single patient record to each of the enabled formats that write to files shared
+   * by all patients, or otherwise need to run on the exporting thread.
+   *
+   * @param person   Patient to export, with Patient.record being set.
+   * @param fileTag  An identifier to tag the file with.
+   * @param stopTime Time at which the simulation stopped
+   * @param options Generator's record queue (may be null)
+   * @param settings The exporter settings
+   */
+  private static void exportSerially(Person person, String fileTag, long stopTime,
+          ExporterRuntimeOptions options, ExportSettings settings) {
+    if (settings.csv) {
+      timed("csv", () -> CSVExporter.getInstance().export(person, stopTime));
+    }
+    if (settings.parquet) {
+      timed("parquet", () -> ParquetExporter.getInstance().export(person, stopTime));
+    }
+    if (settings.cpcds) {
+      timed("cpcds", () -> CPCDSExporter.getInstance().export(person, stopTime));
     }
-    if (Boolean.parseBoolean(Config.get("exporter.clinical_note.export"))) {
-      File outDirectory = getOutputFolder("notes", person);
-      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "txt"));
-      String consolidatedNotes = ClinicalNoteExporter.export(person);
-      writeNewFile(outFilePath, consolidatedNotes);
+    if (settings.text) {
+      timed("text", () -> TextExporter.exportAll(person, fileTag, stopTime));
     }
+    if (settings.textPerEncounter) {
+      timed("text_encounters", () -> TextExporter.exportEncounter(person, fileTag, stopTime));
+    }
+    if (settings.cdw) {
+      timed("cdw", () -> CDWExporter.getInstance().export(person, stopTime));
+    }
+    plugins(settings).export(person, fileTag, stopTime);
     if (options.isQueueEnabled()) {
       try {
         switch (options.queuedFhirVersion()) {
@@ -260,92 +506,300 @@ public abstract class Exporter {
   }
 
   /**
-   * Write a new file with the given contents.
-   * @param file Path to the new file.
-   * @param contents The contents of the file.
+   * An export of one record to one format, on the exporting thread.
+   */
+  @FunctionalInterface
+  private interface SerialExport {
+    void run() throws IOException;
+  }
+
+  /**
+   * Export a record, counting the time it takes in the metrics of its format. Any error is
+   * counted and printed, as for the exporter plugins, so the other formats are still exported.
+   * @param name The name of the format.
+   * @param export The export.
    */
-  private static void writeNewFile(Path file, String contents) {
+  private static void timed(String name, SerialExport export) {
+    ExporterMetrics metrics = ExporterMetrics.get(name);
+    long start = System.nanoTime();
     try {
-      Files.write(file, Collections.singleton(contents), StandardOpenOption.CREATE_NEW);
-    } catch (IOException e) {
+      export.run();
+    } catch (IOException | RuntimeException e) {
+      metrics.error();
       e.printStackTrace();
+    } finally {
+      metrics.record(start);
     }
   }
 
   /**
-   * Append contents to the end of a file.
-   * @param file Path to the new file.
-   * @param contents The contents of the file.
+   * Returns the enabled exporter plugins. The plugins are loaded and initialized the first
+   * time they are needed.
    */
-  private static synchronized void appendToFile(Path file, String contents) {
-    try {
-      if (Files.notExists(file)) {
-        Files.createFile(file);
+  private static ExporterPlugins plugins(ExportSettings settings) {
+    ExporterPlugins loaded = plugins;
+    if (loaded == null) {
+      synchronized (Exporter.class) {
+        if (plugins == null) {
+          plugins = ExporterPlugins.load(settings);
+        }
+        loaded = plugins;
       }
-    } catch (Exception e) {
-      // Ignore... multi-threaded race condition to create a file that didn't exist,
-      // but does now because one of the other exporter threads beat us to it.
     }
+    return loaded;
+  }
+
+  /**
+   * Finish the exports of the exporter plugins, if they were loaded. They will be loaded again
+   * if any more records are exported.
+   */
+  private static void closePlugins(Generator generator) {
+    ExporterPlugins loaded;
+    synchronized (Exporter.class) {
+      loaded = plugins;
+      plugins = null;
+    }
+    if (loaded != null) {
+      loaded.close(generator);
+    }
+  }
+
+  /**
+   * Write a new file with the given contents.
+   * @param person The patient the file belongs to.
+   * @param file Path to the new file, without any compression extension.
+   * @param contents The contents of the file.
+   */
+  private static void writeNewFile(Person person, Path file, String contents) {
     try {
-      Files.write(file, Collections.singleton(contents), StandardOpenOption.APPEND);
+      writeNewFile(person, file, Collections.singleton(contents));
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
   /**
-   * Run any exporters that require the full dataset to be generated prior to exporting.
-   * (E.g., an aggregate statistical exporter)
-   *
-   * @param generator Generator that generated the patients
+   * Text that is written as it is rendered, instead of being built up in memory first.
    */
-  public static void runPostCompletionExports(Generator generator) {
-    String bulk = Config.get("exporter.fhir.bulk_data");
+  private interface Rendering {
+    void writeTo(Writer writer) throws IOException;
+  }
 
-    // Before we force bulk data to be off...
+  /**
+   * Write a new file with the given text, rendered straight to the file.
+   * @param person The patient the file belongs to.
+   * @param file Path to the new file, without any compression extension.
+   * @param contents The contents of the file.
+   */
+  private static void renderNewFile(Person person, Path file, Rendering contents) {
+    OutputStream stream;
     try {
-      FhirGroupExporterR4.exportAndSave(generator.stop);
-    } catch (Exception e) {
+      stream = newFile(person, file);
+    } catch (IOException e) {
       e.printStackTrace();
+      return;
     }
-
-    Config.set("exporter.fhir.bulk_data", "false");
     try {
-      HospitalExporterR4.export(generator.stop);
-    } catch (Exception e) {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+      contents.writeTo(writer);
+      writer.write(System.lineSeparator());
+      writer.close();
+    } catch (IOException e) {
+      discardNewFile(file, stream);
       e.printStackTrace();
+    } catch (RuntimeException e) {
+      discardNewFile(file, stream);
+      throw e;
     }
+  }
 
+  /**
+   * Discard a new file that could not be written in full, so no partial file is left behind.
+   * A file for the archive is never added to it, as its stream is not closed.
+   * @param file Path to the new file, without any compression extension.
+   * @param stream The stream the file was being written to.
+   */
+  private static void discardNewFile(Path file, OutputStream stream) {
+    ExportSettings settings = ExportSettings.current();
+    if (settings.archive != ArchiveWriter.Format.NONE) {
+      return;
+    }
     try {
-      FhirPractitionerExporterR4.export(generator.stop);
-    } catch (Exception e) {
-      e.printStackTrace();
+      stream.close();
+    } catch (IOException e) {
+      // the file is deleted regardless
     }
-
     try {
-      HospitalExporterStu3.export(generator.stop);
-    } catch (Exception e) {
+      Files.deleteIfExists(settings.compression.file(file));
+    } catch (IOException e) {
       e.printStackTrace();
     }
+  }
 
-    try {
-      FhirPractitionerExporterStu3.export(generator.stop);
-    } catch (Exception e) {
-      e.printStackTrace();
+  /**
+   * Write a new file with the given lines of text, each followed by the line separator.
+   * @param person The patient the file belongs to.
+   * @param file Path to the new file, without any compression extension.
+   * @param lines The lines of the file.
+   * @throws IOException if the file already exists, or can not be written.
+   */
+  static void writeNewFile(Person person, Path file, Iterable<? extends CharSequence> lines)
+      throws IOException {
+    try (Writer writer = new BufferedWriter(
+        new OutputStreamWriter(newFile(person, file), StandardCharsets.UTF_8))) {
+      for (CharSequence line : lines) {
+        writer.append(line);
+        writer.write(System.lineSeparator());
+      }
     }
+  }
 
-    try {
-      HospitalExporterDstu2.export(generator.stop);
-    } catch (Exception e) {
-      e.printStackTrace();
+  /**
+   * Open a new file of one patient's record, compressed according to the exporter settings.
+   * If exporter.archive is enabled, the file is added to the archive when the stream is
+   * closed, instead of being written to the file system.
+   * @param person The patient the file belongs to.
+   * @param file Path to the new file, without any compression extension.
+   * @return the stream to write the contents of the file to
+   * @throws IOException if the file already exists, or can not be opened.
+   */
+  static OutputStream newFile(Person person, Path file) throws IOException {
+    ExportSettings settings = ExportSettings.current();
+    if (settings.archive == ArchiveWriter.Format.NONE) {
+      return settings.compression.open(file, StandardOpenOption.CREATE_NEW);
     }
+    String patientId = (String) person.attributes.get(Person.ID);
+    Path archived = settings.compression.file(file);
+    return settings.compression.compress(archive(settings).newFile(patientId, archived));
+  }
 
-    try {
-      FhirPractitionerExporterDstu2.export(generator.stop);
-    } catch (Exception e) {
-      e.printStackTrace();
+  /**
+   * Returns the archive that patient files are added to. The archive is opened the first
+   * time it is needed.
+   */
+  private static synchronized ArchiveWriter archive(ExportSettings settings)
+      throws IOException {
+    if (archive == null) {
+      File directory = getOutputFolder("archive", null);
+      archive = new ArchiveWriter(directory.toPath(), Paths.get(settings.baseDirectory),
+          settings.archive, settings.archiveSegmentSize);
+    }
+    return archive;
+  }
+
+  /**
+   * Finish the archive, if there is one. A new archive segment will be started if any more
+   * records are exported.
+   */
+  private static synchronized void closeArchive() {
+    if (archive != null) {
+      try {
+        archive.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      archive = null;
+    }
+  }
+
+  /**
+   * Append contents to the end of a file, as a single line. The line is added to the current
+   * thread's block for the file, and written when the block is committed.
+   * @param file Path to the new file.
+   * @param contents The contents of the file.
+   */
+  private static void appendToFile(Path file, String contents) {
+    BlockWriter writer = bulkDataFiles.computeIfAbsent(file, path -> {
+      try {
+        // the folder of a patient is not created in archive mode, see getOutputFolder
+        Files.createDirectories(path.getParent());
+        return BlockWriter.shared(path.toFile(), true, null, StandardCharsets.UTF_8,
+            BULK_DATA_BUFFER_SIZE, BULK_DATA_FLUSH_INTERVAL);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    writer.write(contents);
+    writer.write(System.lineSeparator());
+  }
+
+  /**
+   * Append the resources of one record to the bulk data files, as one block per file.
+   * @param files The file for each resource.
+   * @param lines The JSON of each resource.
+   */
+  private static void appendBulkData(List<Path> files, List<String> lines) {
+    discardBulkData();
+    for (int i = 0; i < files.size(); i++) {
+      appendToFile(files.get(i), lines.get(i));
     }
-    Config.set("exporter.fhir.bulk_data", bulk);
+    commitBulkData();
+  }
+
+  /**
+   * Commit the current thread's lines to each of the bulk data files, so all of the
+   * resources of one record are written together.
+   */
+  private static void commitBulkData() {
+    for (BlockWriter writer : bulkDataFiles.values()) {
+      try {
+        writer.commit();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Throw away any of the current thread's lines that have not been committed, for example
+   * because an earlier record failed to export.
+   */
+  private static void discardBulkData() {
+    for (BlockWriter writer : bulkDataFiles.values()) {
+      writer.discard();
+    }
+  }
+
+  /**
+   * Flush and close all of the bulk data files. They will be opened again, for appending,
+   * if any more records are exported.
+   */
+  private static void closeBulkData() {
+    Iterator<BlockWriter> iter = bulkDataFiles.values().iterator();
+    while (iter.hasNext()) {
+      BlockWriter writer = iter.next();
+      iter.remove();
+      try {
+        writer.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Run any exporters that require the full dataset to be generated prior to exporting.
+   * (E.g., an aggregate statistical exporter)
+   *
+   * @param generator Generator that generated the patients
+   */
+  public static void runPostCompletionExports(Generator generator) {
+    // plugins may still be adding files to the archive
+    closePlugins(generator);
+    closeBulkData();
+    closeArchive();
+
+    // the Group, hospital and practitioner exports each build and write their own Bundle,
+    // so they are run at the same time
+    List<Runnable> fhirExports = new ArrayList<Runnable>();
+    fhirExports.add(() -> FhirGroupExporterR4.exportAndSave(generator.stop));
+    fhirExports.add(() -> HospitalExporterR4.export(generator.stop));
+    fhirExports.add(() -> FhirPractitionerExporterR4.export(generator.stop));
+    fhirExports.add(() -> HospitalExporterStu3.export(generator.stop));
+    fhirExports.add(() -> FhirPractitionerExporterStu3.export(generator.stop));
+    fhirExports.add(() -> HospitalExporterDstu2.export(generator.stop));
+    fhirExports.add(() -> FhirPractitionerExporterDstu2.export(generator.stop));
+    runConcurrently(fhirExports);
 
     if (Boolean.parseBoolean(Config.get("exporter.cost_access_outcomes_report"))) {
       ReportExporter.export(generator);
@@ -373,14 +827,69 @@ public abstract class Exporter {
       CDWExporter.getInstance().writeFactTables();
     }
 
+    if (Boolean.parseBoolean(Config.get("exporter.cpcds.export"))) {
+      try {
+        CPCDSExporter.getInstance().close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
     if (Boolean.parseBoolean(Config.get("exporter.csv.export"))) {
       try {
         CSVExporter.getInstance().exportOrganizationsAndProviders();
         CSVExporter.getInstance().exportPayers();
+        CSVExporter.getInstance().close();
+        if (Boolean.parseBoolean(Config.get("exporter.csv.partitioned.merge"))) {
+          CSVExporter.getInstance().mergePartitions();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    if (ExportSettings.current().parquet) {
+      try {
+        ParquetExporter parquet = ParquetExporter.getInstance();
+        parquet.exportOrganizationsProvidersAndPayers();
+        parquet.close();
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
+
+    if (ExportSettings.current().metrics) {
+      System.out.println(ExporterMetrics.report());
+    }
+  }
+
+  /**
+   * Run each of the given exports on a thread of its own, and wait for all of them to finish.
+   * An export that fails does not stop the others.
+   *
+   * @param exports The exports to run.
+   */
+  private static void runConcurrently(List<Runnable> exports) {
+    int threads = Math.min(exports.size(), Runtime.getRuntime().availableProcessors());
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+    try {
+      List<Future<?>> running = new ArrayList<Future<?>>();
+      for (Runnable export : exports) {
+        running.add(pool.submit(export));
+      }
+      for (Future<?> export : running) {
+        try {
+          export.get();
+        } catch (ExecutionException e) {
+          e.getCause().printStackTrace();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while exporting", e);
+    } finally {
+      pool.shutdown();
+    }
   }
 
   /**
@@ -572,7 +1081,9 @@ public abstract class Exporter {
   /**
    * Get the folder where the patient record should be stored.
    * See the configuration settings "exporter.subfolders_by_id_substring" and
-   * "exporter.baseDirectory".
+   * "exporter.baseDirectory". The folder is created, unless it is a patient's folder and
+   * "exporter.archive" is enabled, as the files opened with {@link #newFile(Person, Path)}
+   * are then added to the archive instead.
    *
    * @param folderName The base folder to use.
    * @param person     The person being exported.
@@ -580,22 +1091,23 @@ public abstract class Exporter {
    *     settings.
    */
   public static File getOutputFolder(String folderName, Person person) {
+    ExportSettings settings = ExportSettings.current();
     List<String> folders = new ArrayList<>();
 
     folders.add(folderName);
 
-    if (person != null
-        && Boolean.parseBoolean(Config.get("exporter.subfolders_by_id_substring"))) {
+    if (person != null && settings.subfoldersByIdSubstring) {
       String id = (String) person.attributes.get(Person.ID);
 
       folders.add(id.substring(0, 2));
       folders.add(id.substring(0, 3));
     }
 
-    String baseDirectory = Config.get("exporter.baseDirectory");
-
-    File f = Paths.get(baseDirectory, folders.toArray(new String[0])).toFile();
-    f.mkdirs();
+    File f = Paths.get(settings.baseDirectory, folders.toArray(new String[0])).toFile();
+    if (person == null || settings.archive == ArchiveWriter.Format.NONE) {
+      // a patient's files are added to the archive, if there is one, so the folder is not needed
+      f.mkdirs();
+    }
 
     return f;
   }
@@ -610,7 +1122,7 @@ public abstract class Exporter {
    * @return The filename only (not a path).
    */
   public static String filename(Person person, String tag, String extension) {
-    if (Boolean.parseBoolean(Config.get("exporter.use_uuid_filenames"))) {
+    if (ExportSettings.current().useUuidFilenames) {
       return person.attributes.get(Person.ID) + tag + "." + extension;
     } else {
       // ensure unique filenames for now
@@ -0,0 +1,96 @@
+package org.mitre.synthea.export;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the time each exporter spends exporting records, and the bytes it writes, so that
+ * the exporters that dominate the run time can be found. The counters are updated by every
+ * exporting thread without locking. See the configuration setting "exporter.metrics".
+ */
+final class ExporterMetrics {
+  /** The metrics of each exporter, by name, sorted by name for the report. */
+  private static final Map<String, ExporterMetrics> metrics =
+      new ConcurrentSkipListMap<String, ExporterMetrics>();
+
+  private final String name;
+  private final LongAdder records = new LongAdder();
+  private final LongAdder nanos = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+
+  private ExporterMetrics(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the metrics of an exporter, starting them at zero if this is the first time.
+   * @param name The name of the exporter, for example "csv".
+   */
+  static ExporterMetrics get(String name) {
+    return metrics.computeIfAbsent(name, ExporterMetrics::new);
+  }
+
+  /**
+   * Count one exported record.
+   * @param startNanos The value of {@link System#nanoTime()} when the export started.
+   */
+  void record(long startNanos) {
+    records.increment();
+    nanos.add(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Count a failed export.
+   */
+  void error() {
+    errors.increment();
+  }
+
+  /**
+   * Count the bytes written to the given stream.
+   * @param out The stream.
+   * @return a stream that writes to the given stream
+   */
+  OutputStream count(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytes.increment();
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytes.add(len);
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    long count = records.sum();
+    double seconds = nanos.sum() / 1e9;
+    return String.format(Locale.US, "%-20s %10d records %10.2f s %10.3f ms/record %14d bytes"
+        + " %6d errors", name, count, seconds, count == 0 ? 0.0 : seconds * 1000 / count,
+        bytes.sum(), errors.sum());
+  }
+
+  /**
+   * Returns a report of the metrics of every exporter, and starts them all again at zero.
+   */
+  static String report() {
+    StringBuilder report = new StringBuilder("Exporter metrics:");
+    for (ExporterMetrics exporter : metrics.values()) {
+      report.append(System.lineSeparator()).append("  ").append(exporter);
+    }
+    metrics.clear();
+    return report.toString();
+  }
+}
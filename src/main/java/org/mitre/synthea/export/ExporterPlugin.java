@@ -0,0 +1,124 @@
+package org.mitre.synthea.export;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+import org.mitre.synthea.engine.Generator;
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * An exporter that is added to Synthea without changing the {@link Exporter}. Plugins are
+ * found with {@link java.util.ServiceLoader}: list the name of the implementing class in a
+ * file named META-INF/services/org.mitre.synthea.export.ExporterPlugin on the classpath.
+ * <p></p>
+ * A plugin is enabled by the configuration setting "exporter.[name].export = true", unless it
+ * overrides {@link #isEnabled()}. Each enabled plugin is initialized before the first person
+ * is exported, and is given each exported person on an executor of its own, so a slow plugin
+ * only holds up the simulation once its queue is full. After all of the people have been
+ * exported, the plugin's queue is drained, and {@link #postCompletion(Generator)} and
+ * {@link #close()} are called. The time spent in each plugin, and the number of bytes it
+ * writes through its {@link Context}, are counted (see "exporter.metrics").
+ */
+public interface ExporterPlugin extends Closeable {
+  /**
+   * How a plugin may be called from more than one thread.
+   */
+  enum ThreadSafety {
+    /** People are exported one at a time, in the order they are exported by Synthea. */
+    SERIAL,
+    /**
+     * People may be exported by several threads at the same time, in any order. See the
+     * configuration setting "exporter.plugins.threads".
+     */
+    CONCURRENT
+  }
+
+  /**
+   * The services available to a plugin.
+   */
+  interface Context {
+    /**
+     * Returns the folder a plugin should write its files to, as for the built in exporters.
+     * A person's folder is not created when exporter.archive is enabled, as files opened with
+     * {@link #newFile(Person, Path)} are added to the archive instead.
+     * @param folderName The name of the plugin's folder, under exporter.baseDirectory.
+     * @param person The person whose files will be in the folder, or null for a folder of
+     *     files shared by all people.
+     * @return the folder
+     */
+    File getOutputFolder(String folderName, Person person);
+
+    /**
+     * Open a new file of one person's record. The file is compressed and archived according to
+     * the exporter settings, like the files of the built in exporters, and the bytes written
+     * to it are counted in the plugin's metrics.
+     * @param person The person the file belongs to.
+     * @param file Path to the new file, without any compression extension.
+     * @return the stream to write the contents of the file to
+     * @throws IOException if the file already exists, or can not be opened.
+     */
+    OutputStream newFile(Person person, Path file) throws IOException;
+  }
+
+  /**
+   * Returns the name of the plugin, which is used in its configuration settings and metrics.
+   */
+  String getName();
+
+  /**
+   * Returns how the plugin may be called from more than one thread. SERIAL by default.
+   */
+  default ThreadSafety getThreadSafety() {
+    return ThreadSafety.SERIAL;
+  }
+
+  /**
+   * Returns whether the plugin should be used. By default, a plugin is used if the
+   * configuration setting "exporter.[name].export" is true.
+   */
+  default boolean isEnabled() {
+    return Config.getAsBoolean("exporter." + getName() + ".export", false);
+  }
+
+  /**
+   * Prepare to export people. Called once, before the first person is exported.
+   * @param context The services available to the plugin.
+   * @throws IOException if the plugin can not be initialized. It will not be used.
+   */
+  default void init(Context context) throws IOException {
+  }
+
+  /**
+   * Export a single person's record. The person is a copy made when it was queued, with its
+   * own attributes, so later changes to the person are not seen here. The health records are
+   * shared with the person, and must only be read.
+   * @param person The person, with Person.record set to the record to export.
+   * @param fileTag An identifier to tag the person's files with, if they have more than one
+   *     record.
+   * @param stopTime Time at which the simulation stopped.
+   * @throws IOException if the person can not be exported.
+   */
+  void exportPerson(Person person, String fileTag, long stopTime) throws IOException;
+
+  /**
+   * Export anything that needs all of the people to have been exported first. Called once,
+   * after the last call to {@link #exportPerson}.
+   * @param generator The generator that generated the people.
+   * @throws IOException if an I/O error occurs.
+   */
+  default void postCompletion(Generator generator) throws IOException {
+  }
+
+  /**
+   * Release everything the plugin holds. Called once, after
+   * {@link #postCompletion(Generator)}, or if {@link #init(Context)} fails.
+   * @throws IOException if an I/O error occurs.
+   */
+  @Override
+  default void close() throws IOException {
+  }
+}
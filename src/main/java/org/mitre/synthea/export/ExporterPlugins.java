@@ -0,0 +1,183 @@
+package org.mitre.synthea.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mitre.synthea.engine.Generator;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * The enabled {@link ExporterPlugin}s of one run, each with its own bounded executor and
+ * metrics.
+ * <p></p>
+ * A SERIAL plugin gets a single thread, so people are exported in order. A CONCURRENT plugin
+ * gets exporter.plugins.threads threads. Each executor queues at most
+ * exporter.plugins.queue_size people; when the queue is full, the exporting thread waits
+ * for space, so a slow plugin can not run out of memory.
+ */
+final class ExporterPlugins {
+  /** No plugins. */
+  static final ExporterPlugins NONE = new ExporterPlugins(Collections.emptyList(), 1, 1);
+
+  private static final AtomicInteger pluginThreads = new AtomicInteger();
+
+  private final List<Slot> slots = new ArrayList<Slot>();
+
+  /**
+   * Initialize the given plugins, leaving out any that are not enabled or fail to initialize.
+   * @param plugins The plugins.
+   * @param threads The number of threads for each CONCURRENT plugin.
+   * @param queueSize The number of people each plugin's executor can queue.
+   */
+  ExporterPlugins(Iterable<ExporterPlugin> plugins, int threads, int queueSize) {
+    for (ExporterPlugin plugin : plugins) {
+      if (!plugin.isEnabled()) {
+        continue;
+      }
+      int pluginThreads = plugin.getThreadSafety() == ExporterPlugin.ThreadSafety.CONCURRENT
+          ? Math.max(1, threads) : 1;
+      Slot slot = new Slot(plugin, pluginThreads, Math.max(1, queueSize));
+      try {
+        plugin.init(slot);
+        slots.add(slot);
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Exporter plugin " + plugin.getName() + " failed to initialize.");
+        e.printStackTrace();
+        slot.executor.shutdown();
+        try {
+          plugin.close();
+        } catch (IOException ioe) {
+          ioe.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the plugins on the classpath, and initialize the enabled ones.
+   * @param settings The exporter settings.
+   * @return the plugins
+   */
+  static ExporterPlugins load(ExportSettings settings) {
+    ServiceLoader<ExporterPlugin> loader = ServiceLoader.load(ExporterPlugin.class);
+    ExporterPlugins plugins =
+        new ExporterPlugins(loader, settings.pluginThreads, settings.pluginQueueSize);
+    return plugins.slots.isEmpty() ? NONE : plugins;
+  }
+
+  /**
+   * Queue a single person's record to be exported by each plugin.
+   * @param person The person, with Person.record set to the record to export.
+   * @param fileTag An identifier to tag the person's files with.
+   * @param stopTime Time at which the simulation stopped.
+   */
+  void export(Person person, String fileTag, long stopTime) {
+    if (slots.isEmpty()) {
+      return;
+    }
+    // the exporting thread may go on to set Person.record to the person's next record, and to
+    // change the person's attributes, while the plugins export this copy
+    Person exported = person.withRecord(person.record);
+    for (Slot slot : slots) {
+      slot.executor.execute(() -> {
+        long start = System.nanoTime();
+        try {
+          slot.plugin.exportPerson(exported, fileTag, stopTime);
+        } catch (Exception e) {
+          slot.metrics.error();
+          e.printStackTrace();
+        } finally {
+          slot.metrics.record(start);
+        }
+      });
+    }
+  }
+
+  /**
+   * Wait for each plugin to export everyone in its queue, then run each plugin's
+   * post-completion export, and close it.
+   * @param generator The generator that generated the people.
+   */
+  void close(Generator generator) {
+    for (Slot slot : slots) {
+      slot.executor.shutdown();
+    }
+    for (Slot slot : slots) {
+      try {
+        while (!slot.executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          System.err.println("Waiting for exporter plugin " + slot.plugin.getName() + "...");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        slot.executor.shutdownNow();
+      }
+      try {
+        slot.plugin.postCompletion(generator);
+      } catch (Exception e) {
+        slot.metrics.error();
+        e.printStackTrace();
+      } finally {
+        try {
+          slot.plugin.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    slots.clear();
+  }
+
+  /**
+   * A plugin, with its executor and metrics.
+   */
+  private static class Slot implements ExporterPlugin.Context {
+    private final ExporterPlugin plugin;
+    private final ThreadPoolExecutor executor;
+    private final ExporterMetrics metrics;
+
+    private Slot(ExporterPlugin plugin, int threads, int queueSize) {
+      this.plugin = plugin;
+      this.metrics = ExporterMetrics.get(plugin.getName());
+      this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(queueSize), task -> {
+            Thread thread = new Thread(task,
+                "exporter-" + plugin.getName() + "-" + pluginThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }, (task, executor) -> {
+            // wait for space in the queue, instead of running the task on this thread,
+            // which would export people out of order
+            if (executor.isShutdown()) {
+              throw new RejectedExecutionException("Exporter plugins are closed");
+            }
+            try {
+              executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new RejectedExecutionException(e);
+            }
+          });
+    }
+
+    @Override
+    public File getOutputFolder(String folderName, Person person) {
+      return Exporter.getOutputFolder(folderName, person);
+    }
+
+    @Override
+    public OutputStream newFile(Person person, Path file) throws IOException {
+      return metrics.count(Exporter.newFile(person, file));
+    }
+  }
+}
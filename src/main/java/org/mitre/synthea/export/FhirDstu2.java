@@ -1,8 +1,8 @@
 package org.mitre.synthea.export;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.ExtensionDt;
 import ca.uhn.fhir.model.api.IDatatype;
+import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.dstu2.composite.AddressDt;
 import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
 import ca.uhn.fhir.model.dstu2.composite.CodingDt;
@@ -85,6 +85,8 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
@@ -93,9 +95,10 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.FhirContexts;
+import org.mitre.synthea.helpers.IdGenerator;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Clinician;
 import org.mitre.synthea.world.agents.Person;
@@ -114,10 +117,6 @@ import org.mitre.synthea.world.concepts.HealthRecord.Procedure;
 import org.mitre.synthea.world.concepts.HealthRecord.Report;
 
 public class FhirDstu2 {
-  // HAPI FHIR warns that the context creation is expensive, and should be performed
-  // per-application, not per-record
-  private static final FhirContext FHIR_CTX = FhirContext.forDstu2();
-
   private static final String SNOMED_URI = "http://snomed.info/sct";
   private static final String LOINC_URI = "http://loinc.org";
   private static final String RXNORM_URI = "http://www.nlm.nih.gov/research/umls/rxnorm";
@@ -175,6 +174,9 @@ public class FhirDstu2 {
    */
   public static Bundle convertToFHIR(Person person, long stopTime) {
     Bundle bundle = new Bundle();
+    BundleContext.of(bundle)
+        .setIdGenerator(IdGenerator.forRecord(person, "fhir_dstu2"))
+        .setResourceUrls(ExportSettings.current().fhirBulkData);
     if (TRANSACTION_BUNDLE) {
       bundle.setType(BundleTypeEnum.TRANSACTION);
     } else {
@@ -241,11 +243,54 @@ public class FhirDstu2 {
    */
   public static String convertToFHIRJson(Person person, long stopTime) {
     Bundle bundle = convertToFHIR(person, stopTime);
-    String bundleJson = FHIR_CTX.newJsonParser().setPrettyPrint(true)
+    String bundleJson = FhirContexts.dstu2JsonParser(true)
         .encodeResourceToString(bundle);
     return bundleJson;
   }
 
+  /**
+   * Writes the entries of a DSTU2 Bundle as they are added to it.
+   */
+  static final class BundleWriter {
+    private final BundleJsonWriter json;
+
+    /**
+     * Create a writer for one Bundle.
+     * @param out Writer to write the JSON to. The writer is not closed.
+     */
+    BundleWriter(Writer out) {
+      this.json = new BundleJsonWriter(out, FhirContexts.dstu2JsonParser(true));
+    }
+
+    /**
+     * Write the entries that have been added to the Bundle, and remove them from it. The
+     * entries must be complete: resources that are still to be changed must not be written.
+     * @param bundle The Bundle, which must be the same every time.
+     * @throws IOException if the entries can not be written
+     */
+    void write(Bundle bundle) throws IOException {
+      json.start(bundle.getTypeElement().getValueAsString());
+      for (Entry entry : bundle.getEntry()) {
+        EntryRequest request = entry.getRequest().isEmpty() ? null : entry.getRequest();
+        json.entry(entry.getFullUrlElement().isEmpty() ? null : entry.getFullUrl(),
+            entry.getResource(),
+            request == null ? null : request.getMethodElement().getValueAsString(),
+            request == null ? null : request.getUrl());
+      }
+      bundle.getEntry().clear();
+    }
+
+    /**
+     * Write the remaining entries of the Bundle, and finish the JSON.
+     * @param bundle The Bundle, which must be the same every time.
+     * @throws IOException if the entries can not be written
+     */
+    void finish(Bundle bundle) throws IOException {
+      write(bundle);
+      json.finish();
+    }
+  }
+
   /**
    * Map the given Person to a FHIR Patient resource, and add it to the given Bundle.
    *
@@ -572,15 +617,7 @@ public class FhirDstu2 {
    * @return Provider.fullUrl if found, otherwise null.
    */
   private static String findProviderUrl(Provider provider, Bundle bundle) {
-    for (Entry entry : bundle.getEntry()) {
-      if (entry.getResource().getResourceName().equals("Organization")) {
-        Organization org = (Organization) entry.getResource();
-        if (org.getIdentifierFirstRep().getValue().equals(provider.getResourceID())) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    return BundleContext.of(bundle).get("Organization", provider.getResourceID());
   }
 
   /**
@@ -591,15 +628,7 @@ public class FhirDstu2 {
    * @return Practitioner.fullUrl if found, otherwise null.
    */
   private static String findPractitioner(Clinician clinician, Bundle bundle) {
-    for (Entry entry : bundle.getEntry()) {
-      if (entry.getResource().getResourceName().equals("Practitioner")) {
-        Practitioner doc = (Practitioner) entry.getResource();
-        if (doc.getIdentifierFirstRep().getValue().equals("" + clinician.identifier)) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    return BundleContext.of(bundle).get("Practitioner", "" + clinician.identifier);
   }
 
   /**
@@ -781,7 +810,7 @@ public class FhirDstu2 {
 
     Entry conditionEntry = newEntry(bundle, conditionResource);
 
-    condition.fullUrl = conditionEntry.getFullUrl();
+    BundleContext.of(bundle).put(condition, conditionEntry.getFullUrl());
 
     return conditionEntry;
   }
@@ -821,7 +850,7 @@ public class FhirDstu2 {
     allergyResource.setSubstance(mapCodeToCodeableConcept(code, SNOMED_URI));
 
     Entry allergyEntry = newEntry(bundle, allergyResource);
-    allergy.fullUrl = allergyEntry.getFullUrl();
+    BundleContext.of(bundle).put(allergy, allergyEntry.getFullUrl());
     return allergyEntry;
   }
 
@@ -874,7 +903,7 @@ public class FhirDstu2 {
     observationResource.setIssued(new InstantDt(new Date(observation.start)));
 
     Entry entry = newEntry(bundle, observationResource);
-    observation.fullUrl = entry.getFullUrl();
+    BundleContext.of(bundle).put(observation, entry.getFullUrl());
     return entry;
   }
 
@@ -952,7 +981,7 @@ public class FhirDstu2 {
     }
 
     Entry procedureEntry = newEntry(bundle, procedureResource);
-    procedure.fullUrl = procedureEntry.getFullUrl();
+    BundleContext.of(bundle).put(procedure, procedureEntry.getFullUrl());
 
     return procedureEntry;
   }
@@ -968,7 +997,7 @@ public class FhirDstu2 {
     immResource.setPatient(new ResourceReferenceDt(personEntry.getFullUrl()));
     immResource.setEncounter(new ResourceReferenceDt(encounterEntry.getFullUrl()));
     Entry immunizationEntry = newEntry(bundle, immResource);
-    immunization.fullUrl = immunizationEntry.getFullUrl();
+    BundleContext.of(bundle).put(immunization, immunizationEntry.getFullUrl());
 
     return immunizationEntry;
   }
@@ -1178,7 +1207,8 @@ public class FhirDstu2 {
     reportResource.setPerformer(encounter.getServiceProvider());
 
     for (Observation observation : report.observations) {
-      ResourceReferenceDt reference = new ResourceReferenceDt(observation.fullUrl);
+      ResourceReferenceDt reference =
+          new ResourceReferenceDt(BundleContext.of(bundle).get(observation));
       reference.setDisplay(observation.codes.get(0).display);
       List<ResourceReferenceDt> result = new ArrayList<ResourceReferenceDt>();
       result.add(reference);
@@ -1576,7 +1606,7 @@ public class FhirDstu2 {
 
   /**
    * Helper function to create an Entry for the given Resource within the given Bundle. Sets the
-   * resourceID to a random UUID, sets the entry's fullURL to that resourceID, and adds the entry to
+   * resourceID to a new UUID, sets the entry's fullURL to that resourceID, and adds the entry to
    * the bundle.
    *
    * @param bundle The Bundle to add the Entry to
@@ -1584,7 +1614,7 @@ public class FhirDstu2 {
    * @return the created Entry
    */
   private static Entry newEntry(Bundle bundle, BaseResource resource) {
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     return newEntry(bundle, resource, resourceID);
   }
 
@@ -1603,12 +1633,13 @@ public class FhirDstu2 {
     Entry entry = bundle.addEntry();
 
     resource.setId(resourceID);
-    if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
+    if (BundleContext.of(bundle).useResourceUrls()) {
       entry.setFullUrl(resource.getResourceName() + "/" + resourceID);
     } else {
       entry.setFullUrl("urn:uuid:" + resourceID);
     }
     entry.setResource(resource);
+    indexEntry(bundle, entry);
 
     if (TRANSACTION_BUNDLE) {
       EntryRequest request = entry.getRequest();
@@ -1619,4 +1650,23 @@ public class FhirDstu2 {
 
     return entry;
   }
+
+  /**
+   * Add the given entry to the index of its Bundle, if it is an Organization or
+   * Practitioner, so that references to it can be found by findProviderUrl and
+   * findPractitioner.
+   *
+   * @param bundle The Bundle the entry was added to
+   * @param entry The new Entry
+   */
+  private static void indexEntry(Bundle bundle, Entry entry) {
+    IResource resource = entry.getResource();
+    if (resource instanceof Organization) {
+      BundleContext.of(bundle).put("Organization",
+          ((Organization) resource).getIdentifierFirstRep().getValue(), entry.getFullUrl());
+    } else if (resource instanceof Practitioner) {
+      BundleContext.of(bundle).put("Practitioner",
+          ((Practitioner) resource).getIdentifierFirstRep().getValue(), entry.getFullUrl());
+    }
+  }
 }
@@ -1,28 +1,30 @@
 package org.mitre.synthea.export;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.hl7.fhir.r4.model.Group;
 import org.hl7.fhir.r4.model.Group.GroupType;
 import org.hl7.fhir.r4.model.Reference;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.FhirContexts;
 
 public abstract class FhirGroupExporterR4 {
 
-  private static final FhirContext FHIR_CTX = FhirContext.forR4();
-  private static final List<String> patientList = new ArrayList<String>();
+  /** The resource IDs of the exported patients, appended to by every exporting thread. */
+  private static final Queue<String> patientList = new ConcurrentLinkedQueue<String>();
 
   /**
    * Reset the patient list to empty.
@@ -35,7 +37,7 @@ public abstract class FhirGroupExporterR4 {
    * Add the patient to the patient list.
    * @param resourceId The resource ID of the patient.
    */
-  public static synchronized void addPatient(String resourceId) {
+  public static void addPatient(String resourceId) {
     patientList.add(resourceId);
   }
 
@@ -77,21 +79,20 @@ public abstract class FhirGroupExporterR4 {
       File f = Paths.get(baseDirectory, folders.toArray(new String[0])).toFile();
       f.mkdirs();
       Path outFilePath = null;
-      String groupJson = null;
+      IParser parser = null;
 
-      if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
-        IParser parser = FHIR_CTX.newJsonParser().setPrettyPrint(false);
-        groupJson = parser.encodeResourceToString(group);
+      if (ExportSettings.current().fhirBulkData) {
+        parser = FhirContexts.r4JsonParser(false);
         String filename = group.getResourceType().toString() + ".ndjson";
         outFilePath = f.toPath().resolve(filename);
       } else {
-        IParser parser = FHIR_CTX.newJsonParser().setPrettyPrint(true);
-        groupJson = parser.encodeResourceToString(group);
+        parser = FhirContexts.r4JsonParser(true);
         outFilePath = f.toPath().resolve("groupInformation" + stop + ".json");
       }
 
-      try {
-        Files.write(outFilePath, Collections.singleton(groupJson), StandardOpenOption.CREATE_NEW);
+      try (Writer out = Files.newBufferedWriter(outFilePath, StandardOpenOption.CREATE_NEW)) {
+        parser.encodeResourceToWriter(group, out);
+        out.write(System.lineSeparator());
       } catch (IOException e) {
         e.printStackTrace();
       }
@@ -1,8 +1,5 @@
 package org.mitre.synthea.export;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.DataFormatException;
-import ca.uhn.fhir.parser.IParser;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
 import com.google.gson.Gson;
@@ -12,6 +9,8 @@ import com.google.gson.JsonObject;
 
 import java.awt.geom.Point2D;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
@@ -22,9 +21,6 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.hl7.fhir.r4.model.Address;
 import org.hl7.fhir.r4.model.AllergyIntolerance;
@@ -132,6 +128,8 @@ import org.hl7.fhir.r4.model.codesystems.DoseRateType;
 import org.hl7.fhir.utilities.xhtml.NodeType;
 import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.FhirContexts;
+import org.mitre.synthea.helpers.IdGenerator;
 import org.mitre.synthea.helpers.SimpleCSV;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Clinician;
@@ -153,10 +151,6 @@ import org.mitre.synthea.world.concepts.HealthRecord.Report;
 import org.mitre.synthea.world.geography.Location;
 
 public class FhirR4 {
-  // HAPI FHIR warns that the context creation is expensive, and should be performed
-  // per-application, not per-record
-  private static final FhirContext FHIR_CTX = FhirContext.forR4();
-
   private static final String SNOMED_URI = "http://snomed.info/sct";
   private static final String LOINC_URI = "http://loinc.org";
   private static final String RXNORM_URI = "http://www.nlm.nih.gov/research/umls/rxnorm";
@@ -246,7 +240,31 @@ public class FhirR4 {
    * @return FHIR Bundle containing the Person's health record
    */
   public static Bundle convertToFHIR(Person person, long stopTime) {
+    try {
+      return convertToFHIR(person, stopTime, null);
+    } catch (IOException e) {
+      // nothing is written without a BundleWriter
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Convert the given Person into a FHIR Bundle of the Patient and the
+   * associated entries from their health record. If a writer is given, the entries are
+   * written out as soon as they are complete, after the Patient and after each encounter,
+   * and the Bundle only ever holds the entries of one encounter.
+   *
+   * @param person   Person to generate the FHIR JSON for
+   * @param stopTime Time the simulation ended
+   * @param out      Writer for the entries of the Bundle, or null to keep them in the Bundle
+   * @return FHIR Bundle containing the Person's health record, or the entries that have not
+   *     been written
+   * @throws IOException if the entries can not be written
+   */
+  private static Bundle convertToFHIR(Person person, long stopTime, BundleWriter out)
+      throws IOException {
     Bundle bundle = new Bundle();
+    BundleContext.of(bundle).setIdGenerator(IdGenerator.forRecord(person, "fhir_r4"));
     if (TRANSACTION_BUNDLE) {
       bundle.setType(BundleType.TRANSACTION);
     } else {
@@ -254,6 +272,9 @@ public class FhirR4 {
     }
 
     BundleEntryComponent personEntry = basicInfo(person, bundle, stopTime);
+    if (out != null) {
+      out.write(bundle);
+    }
 
     for (Encounter encounter : person.record.encounters) {
       BundleEntryComponent encounterEntry = encounter(person, personEntry, bundle, encounter);
@@ -270,7 +291,7 @@ public class FhirR4 {
         CodeableConcept cc = new CodeableConcept().addCoding(
             new Coding().setCode(DiagnosisRole.BILLING.toCode()).setSystem("http://hl7.org/fhir/diagnosis-role"));
         dc.setUse(cc);
-        dc.setCondition(new Reference(condition.fullUrl));
+        dc.setCondition(new Reference(BundleContext.of(bundle).get(condition)));
         org.hl7.fhir.r4.model.Encounter e = (org.hl7.fhir.r4.model.Encounter) encounterEntry.getResource();
         e.addDiagnosis(dc);
       }
@@ -326,12 +347,18 @@ public class FhirR4 {
 
       explanationOfBenefit(personEntry, bundle, encounterEntry, person,
           encounterClaim, encounter);
+      if (out != null) {
+        out.write(bundle);
+      }
     }
 
     if (USE_US_CORE_IG) {
       // Add Provenance to the Bundle
       provenance(bundle, person, stopTime);
     }
+    if (out != null) {
+      out.finish(bundle);
+    }
     return bundle;
   }
 
@@ -346,12 +373,91 @@ public class FhirR4 {
    */
   public static String convertToFHIRJson(Person person, long stopTime) {
     Bundle bundle = convertToFHIR(person, stopTime);
-    String bundleJson = FHIR_CTX.newJsonParser().setPrettyPrint(true)
+    String bundleJson = FhirContexts.r4JsonParser(true)
         .encodeResourceToString(bundle);
 
     return bundleJson;
   }
 
+  /**
+   * Convert the given Person into a FHIR Bundle of the Patient and the
+   * associated entries from their health record, and write it as JSON to
+   * the given writer. Unlike {@link #convertToFHIRJson(Person, long)}, neither
+   * the Bundle nor its JSON is ever held in memory in full: each entry is written
+   * as soon as it has been converted. The JSON is the same as
+   * {@link #convertToFHIRJson(Person, long)} returns.
+   *
+   * @param person   Person to generate the FHIR JSON for
+   * @param stopTime Time the simulation ended
+   * @param out      Writer to write the JSON to. The writer is not closed.
+   * @throws IOException if the JSON can not be written
+   */
+  public static void writeFHIRJson(Person person, long stopTime, Writer out)
+      throws IOException {
+    convertToFHIR(person, stopTime, new BundleWriter(out));
+  }
+
+  /**
+   * Write the given Bundle as pretty-printed JSON, the same as the shared HAPI parser encodes
+   * it, one entry at a time. Each entry is removed from the Bundle once it has been written,
+   * so the Bundle is empty afterwards.
+   *
+   * @param bundle The Bundle to write
+   * @param out    Writer to write the JSON to. The writer is not closed.
+   * @throws IOException if the JSON can not be written
+   */
+  static void writeBundleJson(Bundle bundle, Writer out) throws IOException {
+    new BundleWriter(out).finish(bundle);
+  }
+
+  /**
+   * Writes the entries of an R4 Bundle as they are added to it, and remembers them in the
+   * BundleContext of the Bundle so they can still be referred to.
+   */
+  static final class BundleWriter {
+    private final BundleJsonWriter json;
+
+    /**
+     * Create a writer for one Bundle.
+     * @param out Writer to write the JSON to. The writer is not closed.
+     */
+    BundleWriter(Writer out) {
+      this.json = new BundleJsonWriter(out, FhirContexts.r4JsonParser(true));
+    }
+
+    /**
+     * Write the entries that have been added to the Bundle, and remove them from it. The
+     * entries must be complete: resources that are still to be changed must not be written.
+     * @param bundle The Bundle, which must be the same every time.
+     * @throws IOException if the entries can not be written
+     */
+    void write(Bundle bundle) throws IOException {
+      json.start(bundle.getType().toCode());
+      BundleContext context = BundleContext.of(bundle);
+      for (BundleEntryComponent entry : bundle.getEntry()) {
+        BundleEntryRequestComponent request = entry.hasRequest() ? entry.getRequest() : null;
+        json.entry(entry.hasFullUrl() ? entry.getFullUrl() : null, entry.getResource(),
+            request == null ? null : request.getMethod().toCode(),
+            request == null ? null : request.getUrl());
+
+        String type = entry.getResource().fhirType();
+        context.written(type, type.equals("Condition") ? conditionCode(entry) : null,
+            entry.getFullUrl());
+      }
+      bundle.getEntry().clear();
+    }
+
+    /**
+     * Write the remaining entries of the Bundle, and finish the JSON.
+     * @param bundle The Bundle, which must be the same every time.
+     * @throws IOException if the entries can not be written
+     */
+    void finish(Bundle bundle) throws IOException {
+      write(bundle);
+      json.finish();
+    }
+  }
+
   /**
    * Map the given Person to a FHIR Patient resource, and add it to the given Bundle.
    *
@@ -658,7 +764,7 @@ public class FhirR4 {
                                                 Bundle bundle, Encounter encounter) {
     org.hl7.fhir.r4.model.Encounter encounterResource = new org.hl7.fhir.r4.model.Encounter();
 
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     encounterResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
 
@@ -806,15 +912,7 @@ public class FhirR4 {
    * @return Provider.fullUrl if found, otherwise null.
    */
   private static String findProviderUrl(Provider provider, Bundle bundle) {
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Organization")) {
-        Organization org = (Organization) entry.getResource();
-        if (org.getIdentifierFirstRep().getValue().equals(provider.getResourceID())) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    return BundleContext.of(bundle).get("Organization", provider.getResourceID());
   }
 
   /**
@@ -826,17 +924,8 @@ public class FhirR4 {
    * @return Location.fullUrl if found, otherwise null.
    */
   private static String findLocationUrl(Provider provider, Bundle bundle) {
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Location")) {
-        org.hl7.fhir.r4.model.Location location =
-            (org.hl7.fhir.r4.model.Location) entry.getResource();
-        Reference managingOrgReference = location.getManagingOrganization();
-        if (managingOrgReference.getReference() != null && managingOrgReference.getReference().endsWith(provider.getResourceID())) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    return BundleContext.of(bundle).get("Location",
+        getUrlPrefix("Organization") + provider.getResourceID());
   }
 
   /**
@@ -847,16 +936,8 @@ public class FhirR4 {
    * @return Practitioner.fullUrl if found, otherwise null.
    */
   private static String findPractitioner(Clinician clinician, Bundle bundle) {
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Practitioner")) {
-        Practitioner doc = (Practitioner) entry.getResource();
-        if (doc.getIdentifierFirstRep().getValue()
-              .equals("" + (9_999_999_999L - clinician.identifier))) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    return BundleContext.of(bundle).get("Practitioner",
+        "" + (9_999_999_999L - clinician.identifier));
   }
 
   /**
@@ -876,7 +957,7 @@ public class FhirR4 {
       BundleEntryComponent medicationEntry) {
 
     org.hl7.fhir.r4.model.Claim claimResource = new org.hl7.fhir.r4.model.Claim();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     claimResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
 
@@ -942,7 +1023,7 @@ public class FhirR4 {
       Person person, BundleEntryComponent personEntry,
       Bundle bundle, BundleEntryComponent encounterEntry, Claim claim) {
     org.hl7.fhir.r4.model.Claim claimResource = new org.hl7.fhir.r4.model.Claim();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     claimResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
     org.hl7.fhir.r4.model.Encounter encounterResource =
@@ -1006,14 +1087,14 @@ public class FhirR4 {
         claimResource.addItem(claimItem);
 
         if (item instanceof Procedure) {
-          Type procedureReference = new Reference(item.fullUrl);
+          Type procedureReference = new Reference(BundleContext.of(bundle).get(item));
           ProcedureComponent claimProcedure = new ProcedureComponent(
               new PositiveIntType(procedureSequence), procedureReference);
           claimResource.addProcedure(claimProcedure);
           claimItem.addProcedureSequence(procedureSequence);
           procedureSequence++;
         } else {
-          Reference informationReference = new Reference(item.fullUrl);
+          Reference informationReference = new Reference(BundleContext.of(bundle).get(item));
           SupportingInformationComponent informationComponent =
               new SupportingInformationComponent();
           informationComponent.setSequence(informationSequence);
@@ -1030,7 +1111,7 @@ public class FhirR4 {
       } else {
         // assume it's a Condition, we don't have a Condition class specifically
         // add diagnosisComponent to claim
-        Reference diagnosisReference = new Reference(item.fullUrl);
+        Reference diagnosisReference = new Reference(BundleContext.of(bundle).get(item));
         DiagnosisComponent diagnosisComponent =
             new DiagnosisComponent(
                 new PositiveIntType(conditionSequence), diagnosisReference);
@@ -1073,7 +1154,7 @@ public class FhirR4 {
                                            Person person, BundleEntryComponent claimEntry,
                                            Encounter encounter) {
     ExplanationOfBenefit eob = new ExplanationOfBenefit();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     eob.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
     eob.setStatus(org.hl7.fhir.r4.model.ExplanationOfBenefit.ExplanationOfBenefitStatus.ACTIVE);
@@ -1387,7 +1468,7 @@ public class FhirR4 {
   private static BundleEntryComponent condition(BundleEntryComponent personEntry, Bundle bundle,
       BundleEntryComponent encounterEntry, HealthRecord.Entry condition) {
     Condition conditionResource = new Condition();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     conditionResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
 
@@ -1436,7 +1517,7 @@ public class FhirR4 {
 
     BundleEntryComponent conditionEntry = newEntry(bundle, conditionResource);
 
-    condition.fullUrl = conditionEntry.getFullUrl();
+    BundleContext.of(bundle).put(condition, conditionEntry.getFullUrl());
 
     if (condition.additionalAttributes != null) {
       conditionEntry.setResource(setAdditionalAttributes(
@@ -1458,7 +1539,7 @@ public class FhirR4 {
       BundleEntryComponent encounterEntry, HealthRecord.Entry allergy) {
 
     AllergyIntolerance allergyResource = new AllergyIntolerance();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     allergyResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
     allergyResource.setRecordedDate(new Date(allergy.start));
@@ -1497,7 +1578,7 @@ public class FhirR4 {
       allergyResource.setMeta(meta);
     }
     BundleEntryComponent allergyEntry = newEntry(bundle, allergyResource);
-    allergy.fullUrl = allergyEntry.getFullUrl();
+    BundleContext.of(bundle).put(allergy, allergyEntry.getFullUrl());
 
     if (allergy.additionalAttributes != null) {
       allergyEntry.setResource(setAdditionalAttributes(
@@ -1520,7 +1601,7 @@ public class FhirR4 {
       BundleEntryComponent encounterEntry, Observation observation) {
     org.hl7.fhir.r4.model.Observation observationResource =
         new org.hl7.fhir.r4.model.Observation();
-      String resourceID = UUID.randomUUID().toString();
+      String resourceID = BundleContext.of(bundle).newId();
       observationResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
           .setValue(resourceID);
 
@@ -1598,7 +1679,7 @@ public class FhirR4 {
     }
 
     BundleEntryComponent entry = newEntry(bundle, observationResource);
-    observation.fullUrl = entry.getFullUrl();
+    BundleContext.of(bundle).put(observation, entry.getFullUrl());
     if (observation.additionalAttributes != null) {
       entry.setResource(setAdditionalAttributes(
           observationResource, observation.additionalAttributes, bundle));
@@ -1643,7 +1724,7 @@ public class FhirR4 {
   private static BundleEntryComponent procedure(BundleEntryComponent personEntry, Bundle bundle,
       BundleEntryComponent encounterEntry, Procedure procedure) {
     org.hl7.fhir.r4.model.Procedure procedureResource = new org.hl7.fhir.r4.model.Procedure();
-      String resourceID = UUID.randomUUID().toString();
+      String resourceID = BundleContext.of(bundle).newId();
       procedureResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
           .setValue(resourceID);
     if (USE_US_CORE_IG) {
@@ -1676,15 +1757,9 @@ public class FhirR4 {
 
     if (!procedure.reasons.isEmpty()) {
       Code reason = procedure.reasons.get(0); // Only one element in list
-      for (BundleEntryComponent entry : bundle.getEntry()) {
-        if (entry.getResource().fhirType().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          Coding coding = condition.getCode().getCoding().get(0); // Only one element in list
-          if (reason.code.equals(coding.getCode())) {
-            procedureResource.addReasonReference().setReference(entry.getFullUrl())
-                .setDisplay(reason.display);
-          }
-        }
+      for (String conditionUrl : findConditions(bundle, reason.code)) {
+        procedureResource.addReasonReference().setReference(conditionUrl)
+            .setDisplay(reason.display);
       }
     }
 
@@ -1704,7 +1779,7 @@ public class FhirR4 {
     }
 
     BundleEntryComponent procedureEntry = newEntry(bundle, procedureResource);
-    procedure.fullUrl = procedureEntry.getFullUrl();
+    BundleContext.of(bundle).put(procedure, procedureEntry.getFullUrl());
 
     if (procedure.additionalAttributes != null) {
       procedureEntry.setResource(setAdditionalAttributes(
@@ -1724,7 +1799,7 @@ public class FhirR4 {
   private static BundleEntryComponent device(BundleEntryComponent personEntry, Bundle bundle,
       HealthRecord.Device device) {
     Device deviceResource = new Device();
-      String resourceID = UUID.randomUUID().toString();
+      String resourceID = BundleContext.of(bundle).newId();
       deviceResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
           .setValue(resourceID);
     if (USE_US_CORE_IG) {
@@ -1769,6 +1844,9 @@ public class FhirR4 {
           "http://hl7.org/fhir/us/core/StructureDefinition/us-core-provenance");
       provenance.setMeta(meta);
     }
+    for (String fullUrl : BundleContext.of(bundle).written()) {
+      provenance.addTarget(new Reference(fullUrl));
+    }
     for (BundleEntryComponent entry : bundle.getEntry()) {
       provenance.addTarget(new Reference(entry.getFullUrl()));
     }
@@ -1814,7 +1892,7 @@ public class FhirR4 {
       BundleEntryComponent encounterEntry, HealthRecord.Entry immunization) {
     Immunization immResource = new Immunization();
 
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     immResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
 
@@ -1846,7 +1924,7 @@ public class FhirR4 {
     }
 
     BundleEntryComponent immunizationEntry = newEntry(bundle, immResource);
-    immunization.fullUrl = immunizationEntry.getFullUrl();
+    BundleContext.of(bundle).put(immunization, immunizationEntry.getFullUrl());
 
     return immunizationEntry;
   }
@@ -1865,7 +1943,7 @@ public class FhirR4 {
       Person person, BundleEntryComponent personEntry, Bundle bundle,
       BundleEntryComponent encounterEntry, Medication medication) {
     MedicationRequest medicationResource = new MedicationRequest();
-      String resourceID = UUID.randomUUID().toString();
+      String resourceID = BundleContext.of(bundle).newId();
       medicationResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
           .setValue(resourceID);
 
@@ -1936,16 +2014,9 @@ public class FhirR4 {
     if (!medication.reasons.isEmpty()) {
       // Only one element in list
       Code reason = medication.reasons.get(0);
-      for (BundleEntryComponent entry : bundle.getEntry()) {
-        if (entry.getResource().fhirType().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          // Only one element in list
-          Coding coding = condition.getCode().getCoding().get(0);
-          if (reason.code.equals(coding.getCode())) {
-            medicationResource.addReasonReference()
-                .setReference(entry.getFullUrl());
-          }
-        }
+      for (String conditionUrl : findConditions(bundle, reason.code)) {
+        medicationResource.addReasonReference()
+            .setReference(conditionUrl);
       }
     }
 
@@ -2041,7 +2112,7 @@ public class FhirR4 {
       Medication medication, MedicationRequest medicationRequest) {
 
     MedicationAdministration medicationResource = new MedicationAdministration();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     medicationResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
 
@@ -2081,15 +2152,8 @@ public class FhirR4 {
     if (!medication.reasons.isEmpty()) {
       // Only one element in list
       Code reason = medication.reasons.get(0);
-      for (BundleEntryComponent entry : bundle.getEntry()) {
-        if (entry.getResource().fhirType().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          // Only one element in list
-          Coding coding = condition.getCode().getCoding().get(0);
-          if (reason.code.equals(coding.getCode())) {
-            medicationResource.addReasonReference().setReference(entry.getFullUrl());
-          }
-        }
+      for (String conditionUrl : findConditions(bundle, reason.code)) {
+        medicationResource.addReasonReference().setReference(conditionUrl);
       }
     }
 
@@ -2114,7 +2178,7 @@ public class FhirR4 {
   private static BundleEntryComponent report(BundleEntryComponent personEntry, Bundle bundle,
       BundleEntryComponent encounterEntry, Report report) {
     DiagnosticReport reportResource = new DiagnosticReport();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     reportResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
     if (USE_US_CORE_IG) {
@@ -2137,7 +2201,7 @@ public class FhirR4 {
     reportResource.setEffective(convertFhirDateTime(report.start, true));
     reportResource.setIssued(new Date(report.start));
     for (Observation observation : report.observations) {
-      Reference reference = new Reference(observation.fullUrl);
+      Reference reference = new Reference(BundleContext.of(bundle).get(observation));
       reference.setDisplay(observation.codes.get(0).display);
       reportResource.addResult(reference);
     }
@@ -2168,7 +2232,7 @@ public class FhirR4 {
 
     // Add a DiagnosticReport
     DiagnosticReport reportResource = new DiagnosticReport();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     reportResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
     if (USE_US_CORE_IG) {
@@ -2247,7 +2311,7 @@ public class FhirR4 {
       BundleEntryComponent encounterEntry, Provider provider,
       BundleEntryComponent careTeamEntry, CarePlan carePlan) {
     org.hl7.fhir.r4.model.CarePlan careplanResource = new org.hl7.fhir.r4.model.CarePlan();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     careplanResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
 
@@ -2317,15 +2381,8 @@ public class FhirR4 {
       // Only one element in list
       Code reason = carePlan.reasons.get(0);
       narrative += "<br/>Care plan is meant to treat " + reason.display + ".";
-      for (BundleEntryComponent entry : bundle.getEntry()) {
-        if (entry.getResource().fhirType().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          // Only one element in list
-          Coding coding = condition.getCode().getCoding().get(0);
-          if (reason.code.equals(coding.getCode())) {
-            careplanResource.addAddresses().setReference(entry.getFullUrl());
-          }
-        }
+      for (String conditionUrl : findConditions(bundle, reason.code)) {
+        careplanResource.addAddresses().setReference(conditionUrl);
       }
     }
 
@@ -2358,7 +2415,7 @@ public class FhirR4 {
       CodeableConcept goalStatus, JsonObject goal) {
 
     Goal goalResource = new Goal();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     goalResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
     if (USE_US_CORE_IG) {
@@ -2420,16 +2477,9 @@ public class FhirR4 {
                   .get(0)
                   .getAsString();
 
-          for (BundleEntryComponent entry : bundle.getEntry()) {
-            if (entry.getResource().fhirType().equals("Condition")) {
-              Condition condition = (Condition) entry.getResource();
-              // Only one element in list
-              Coding coding = condition.getCode().getCoding().get(0);
-              if (reasonCode.equals(coding.getCode())) {
-                goalResource.addAddresses()
-                    .setReference(entry.getFullUrl());
-              }
-            }
+          for (String conditionUrl : findConditions(bundle, reasonCode)) {
+            goalResource.addAddresses()
+                .setReference(conditionUrl);
           }
         }
       }
@@ -2451,7 +2501,7 @@ public class FhirR4 {
       BundleEntryComponent encounterEntry, CarePlan carePlan) {
 
     CareTeam careTeam = new CareTeam();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     careTeam.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
 
@@ -2541,7 +2591,7 @@ public class FhirR4 {
       BundleEntryComponent encounterEntry, ImagingStudy imagingStudy) {
     org.hl7.fhir.r4.model.ImagingStudy imagingStudyResource =
         new org.hl7.fhir.r4.model.ImagingStudy();
-      String resourceID = UUID.randomUUID().toString();
+      String resourceID = BundleContext.of(bundle).newId();
       imagingStudyResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
           .setValue(resourceID);
 
@@ -2691,7 +2741,7 @@ public class FhirR4 {
    */
   protected static BundleEntryComponent providerLocation(Bundle bundle, Provider provider) {
     org.hl7.fhir.r4.model.Location location = new org.hl7.fhir.r4.model.Location();
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     location.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
     if (USE_US_CORE_IG) {
@@ -2900,7 +2950,7 @@ public class FhirR4 {
 
   /**
    * Helper function to create an Entry for the given Resource within the given Bundle. Sets the
-   * resourceID to a random UUID, sets the entry's fullURL to that resourceID, and adds the entry to
+   * resourceID to a new UUID, sets the entry's fullURL to that resourceID, and adds the entry to
    * the bundle.
    *
    * @param bundle   The Bundle to add the Entry to
@@ -2908,7 +2958,7 @@ public class FhirR4 {
    * @return the created Entry
    */
   private static BundleEntryComponent newEntry(Bundle bundle, Resource resource) {
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     return newEntry(bundle, resource, resourceID);
   }
 
@@ -2922,13 +2972,14 @@ public class FhirR4 {
    * @param resourceID The Resource ID to assign
    * @return the created Entry
    */
-  private static BundleEntryComponent newEntry(Bundle bundle, Resource resource,
+  static BundleEntryComponent newEntry(Bundle bundle, Resource resource,
       String resourceID) {
     BundleEntryComponent entry = bundle.addEntry();
 
     resource.setId(resourceID);
     entry.setFullUrl(getUrlPrefix(resource.fhirType()) + resourceID);
     entry.setResource(resource);
+    indexEntry(bundle, entry);
 
     if (TRANSACTION_BUNDLE) {
       BundleEntryRequestComponent request = entry.getRequest();
@@ -2941,94 +2992,71 @@ public class FhirR4 {
   }
 
   /**
-   * Apply any additional attributes to a resource. Each attribute must be valid FHIR JSON.
-   * If an additionalAttribute specified already has a value on the resource, the existing
-   * value will be overwritten.
-   * @param resource The resource to which the attributes apply
-   * @param additionalAttributes The attributes to apply
-   * @return A new Resource object with the additional attributes, or the original
-   *    Resource object if the attributes cannot be successfully applied
+   * Find the Condition entries in the Bundle with the given code, including any that have
+   * already been written out by a {@link BundleWriter}.
+   *
+   * @param bundle The Bundle to search
+   * @param code   The code of the Condition
+   * @return The fullUrls of the Condition entries, in the order they were added
    */
-  static Resource setAdditionalAttributes(Resource resource, JsonObject additionalAttributes, Bundle bundle) {
-    // Serialize the resource to JSON
-    IParser parser = FHIR_CTX.newJsonParser();
-    String encSer = parser.encodeResourceToString(resource);
-    Gson gson = new Gson();
-    JsonElement je = gson.fromJson(encSer, JsonElement.class);
-    JsonObject jo = je.getAsJsonObject();
-
-    // Populate map of replacement UUIDs
-    HashMap<String, String> uuids = new HashMap<String, String>();
-    findUUIDsToReplace(additionalAttributes, uuids);
-
-    // Replace <<UUID-N>> with new UUIDs
-    if (uuids.size() > 0) {
-      String jsonString = gson.toJson(additionalAttributes);
-      for (Map.Entry<String, String> e : uuids.entrySet()) {
-        jsonString = jsonString.replace(e.getKey(), e.getValue());
-      }
-      additionalAttributes = gson.fromJson(jsonString, JsonObject.class);
-    }
-
-    // Add each addtional attribute by manipulating the JSON. Overwrite any existing values.
-    // This is done with JSON manipulation, rather than parsing the attribute JSON directly,
-    // because the FHIR library only exposes a method to parse a FHIR Resource, and the attributes
-    // can be of any FHIR type.
-    for (Map.Entry<String, JsonElement> e : additionalAttributes.entrySet()) {
-      // If it is a "contained" attribute. Pull out the resources for addition to the patient bundle.
-      if (e.getKey().equals("contained")) {
-        JsonArray contained = e.getValue().getAsJsonArray();
-        for (JsonElement resourceJson : contained) {
-          Resource r = (Resource) parser.parseResource(resourceJson.toString());
-          newEntry(bundle, r, r.getIdElement().getIdPart());
+  private static List<String> findConditions(Bundle bundle, String code) {
+    List<String> fullUrls = new ArrayList<>(BundleContext.of(bundle).written("Condition", code));
+    for (BundleEntryComponent entry : bundle.getEntry()) {
+      if (entry.getResource().fhirType().equals("Condition")) {
+        if (code.equals(conditionCode(entry))) {
+          fullUrls.add(entry.getFullUrl());
         }
-      } else {
-        jo.add(e.getKey(), e.getValue());
       }
     }
-
-    // Parse the JSON object back into a Resource object
-    try {
-      return parser.parseResource(resource.getClass(), jo.toString());
-    } catch (DataFormatException e) {
-      // Parsing failed, so just return the original resource
-      System.err.println("ERROR: Unable apply additionalAttributes. " + e.getMessage());
-      e.printStackTrace();
-      return resource;
-    }
+    return fullUrls;
   }
 
-  private static final Pattern UUID_PATTERN = Pattern.compile("REPLACE-UUID-[0-9]+");
+  /**
+   * Returns the code of the Condition in the given entry.
+   */
+  private static String conditionCode(BundleEntryComponent entry) {
+    Condition condition = (Condition) entry.getResource();
+    // Only one element in list
+    return condition.getCode().getCoding().get(0).getCode();
+  }
 
-  private static void findUUIDsToReplace(JsonElement json, HashMap<String, String> uuids) {
-    if (json.isJsonArray()) {
-      for (JsonElement e : json.getAsJsonArray()) {
-        findUUIDsToReplace(e, uuids);
-      }
-    } else if (json.isJsonObject()) {
-      for (Map.Entry<String, JsonElement> e : json.getAsJsonObject().entrySet()) {
-        if (e.getValue().isJsonPrimitive() && e.getValue().getAsJsonPrimitive().isString()) {
-          String str = e.getValue().getAsString();
-          Matcher m = UUID_PATTERN.matcher(str);
-          while (m.find()) {
-            String match = m.group(0);
-            createOrUseUUID(match, uuids);
-          }
-        } else {
-          findUUIDsToReplace(e.getValue(), uuids);
-        }
-      }
+  /**
+   * Add the given entry to the index of its Bundle, if it is an Organization, Location or
+   * Practitioner, so that references to it can be found by findProviderUrl, findLocationUrl
+   * and findPractitioner.
+   *
+   * @param bundle The Bundle the entry was added to
+   * @param entry  The new Entry
+   */
+  private static void indexEntry(Bundle bundle, BundleEntryComponent entry) {
+    Resource resource = entry.getResource();
+    if (resource instanceof Organization) {
+      BundleContext.of(bundle).put("Organization",
+          ((Organization) resource).getIdentifierFirstRep().getValue(), entry.getFullUrl());
+    } else if (resource instanceof org.hl7.fhir.r4.model.Location) {
+      BundleContext.of(bundle).put("Location",
+          ((org.hl7.fhir.r4.model.Location) resource).getManagingOrganization().getReference(),
+          entry.getFullUrl());
+    } else if (resource instanceof Practitioner) {
+      BundleContext.of(bundle).put("Practitioner",
+          ((Practitioner) resource).getIdentifierFirstRep().getValue(), entry.getFullUrl());
     }
   }
 
-  private static String createOrUseUUID(String uuidMatch, HashMap<String, String> uuids) {
-    if (uuids.containsKey(uuidMatch)) {
-      return uuids.get(uuidMatch);
-    } else {
-      String newUUID = UUID.randomUUID().toString();
-      uuids.put(uuidMatch, newUUID);
-      return newUUID;
-    }
+  /**
+   * Apply any additional attributes to a resource. Each attribute must be valid FHIR JSON.
+   * If an additionalAttribute specified already has a value on the resource, the existing
+   * value will be overwritten. The attributes are only parsed the first time they are applied,
+   * see {@link AdditionalAttributes}.
+   * @param resource The resource to which the attributes apply
+   * @param additionalAttributes The attributes to apply
+   * @param bundle The Bundle that any "contained" resources are added to
+   * @return The Resource object with the additional attributes, unchanged if the attributes
+   *    cannot be successfully applied
+   */
+  static Resource setAdditionalAttributes(Resource resource, JsonObject additionalAttributes,
+      Bundle bundle) {
+    return AdditionalAttributes.apply(resource, additionalAttributes, bundle);
   }
 
   /**
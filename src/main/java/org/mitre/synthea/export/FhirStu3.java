@@ -1,7 +1,5 @@
 package org.mitre.synthea.export;
 
-import ca.uhn.fhir.context.FhirContext;
-
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
 import com.google.gson.Gson;
@@ -10,6 +8,7 @@ import com.google.gson.JsonObject;
 
 import java.awt.geom.Point2D;
 import java.io.IOException;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
@@ -21,7 +20,6 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.UUID;
 
 import org.hl7.fhir.dstu3.model.Address;
 import org.hl7.fhir.dstu3.model.AllergyIntolerance;
@@ -110,6 +108,8 @@ import org.hl7.fhir.dstu3.model.Type;
 import org.hl7.fhir.utilities.xhtml.NodeType;
 import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.FhirContexts;
+import org.mitre.synthea.helpers.IdGenerator;
 import org.mitre.synthea.helpers.SimpleCSV;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Clinician;
@@ -130,11 +130,6 @@ import org.mitre.synthea.world.concepts.HealthRecord.Procedure;
 import org.mitre.synthea.world.concepts.HealthRecord.Report;
 
 public class FhirStu3 {
-  // HAPI FHIR warns that the context creation is expensive, and should be
-  // performed
-  // per-application, not per-record
-  private static final FhirContext FHIR_CTX = FhirContext.forDstu3();
-
   private static final String SNOMED_URI = "http://snomed.info/sct";
   private static final String LOINC_URI = "http://loinc.org";
   private static final String RXNORM_URI = "http://www.nlm.nih.gov/research/umls/rxnorm";
@@ -222,6 +217,7 @@ public class FhirStu3 {
    */
   public static Bundle convertToFHIR(Person person, long stopTime) {
     Bundle bundle = new Bundle();
+    BundleContext.of(bundle).setIdGenerator(IdGenerator.forRecord(person, "fhir_stu3"));
     if (TRANSACTION_BUNDLE) {
       bundle.setType(BundleType.TRANSACTION);
     } else {
@@ -245,7 +241,7 @@ public class FhirStu3 {
         CodeableConcept cc = new CodeableConcept().addCoding(new Coding().setCode(DiagnosisRole.BILLING.toCode())
             .setSystem("http://hl7.org/fhir/diagnosis-role"));
         dc.setRole(cc);
-        dc.setCondition(new Reference(condition.fullUrl));
+        dc.setCondition(new Reference(BundleContext.of(bundle).get(condition)));
         org.hl7.fhir.dstu3.model.Encounter e = (org.hl7.fhir.dstu3.model.Encounter) encounterEntry.getResource();
         e.addDiagnosis(dc);
       }
@@ -301,10 +297,52 @@ public class FhirStu3 {
    */
   public static String convertToFHIRJson(Person person, long stopTime) {
     Bundle bundle = convertToFHIR(person, stopTime);
-    String bundleJson = FHIR_CTX.newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle);
+    String bundleJson = FhirContexts.stu3JsonParser(true).encodeResourceToString(bundle);
     return bundleJson;
   }
 
+  /**
+   * Writes the entries of an STU3 Bundle as they are added to it.
+   */
+  static final class BundleWriter {
+    private final BundleJsonWriter json;
+
+    /**
+     * Create a writer for one Bundle.
+     * @param out Writer to write the JSON to. The writer is not closed.
+     */
+    BundleWriter(Writer out) {
+      this.json = new BundleJsonWriter(out, FhirContexts.stu3JsonParser(true));
+    }
+
+    /**
+     * Write the entries that have been added to the Bundle, and remove them from it. The
+     * entries must be complete: resources that are still to be changed must not be written.
+     * @param bundle The Bundle, which must be the same every time.
+     * @throws IOException if the entries can not be written
+     */
+    void write(Bundle bundle) throws IOException {
+      json.start(bundle.getType().toCode());
+      for (BundleEntryComponent entry : bundle.getEntry()) {
+        BundleEntryRequestComponent request = entry.hasRequest() ? entry.getRequest() : null;
+        json.entry(entry.hasFullUrl() ? entry.getFullUrl() : null, entry.getResource(),
+            request == null ? null : request.getMethod().toCode(),
+            request == null ? null : request.getUrl());
+      }
+      bundle.getEntry().clear();
+    }
+
+    /**
+     * Write the remaining entries of the Bundle, and finish the JSON.
+     * @param bundle The Bundle, which must be the same every time.
+     * @throws IOException if the entries can not be written
+     */
+    void finish(Bundle bundle) throws IOException {
+      write(bundle);
+      json.finish();
+    }
+  }
+
   /**
    * Map the given Person to a FHIR Patient resource, and add it to the given
    * Bundle.
@@ -596,7 +634,7 @@ public class FhirStu3 {
 
     org.hl7.fhir.dstu3.model.Encounter encounterResource = new org.hl7.fhir.dstu3.model.Encounter();
 
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     encounterResource.addIdentifier().setSystem("https://github.com/synthetichealth/synthea")
         .setValue(resourceID);
 
@@ -691,15 +729,7 @@ public class FhirStu3 {
    * @return Provider.fullUrl if found, otherwise null.
    */
   private static String findProviderUrl(Provider provider, Bundle bundle) {
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Organization")) {
-        Organization org = (Organization) entry.getResource();
-        if (org.getIdentifierFirstRep().getValue().equals(provider.getResourceID())) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    return BundleContext.of(bundle).get("Organization", provider.getResourceID());
   }
 
   /**
@@ -710,15 +740,7 @@ public class FhirStu3 {
    * @return Practitioner.fullUrl if found, otherwise null.
    */
   private static String findPractitioner(Clinician clinician, Bundle bundle) {
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Practitioner")) {
-        Practitioner doc = (Practitioner) entry.getResource();
-        if (doc.getIdentifierFirstRep().getValue().equals("" + clinician.identifier)) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    return BundleContext.of(bundle).get("Practitioner", "" + clinician.identifier);
   }
 
   /**
@@ -815,7 +837,7 @@ public class FhirStu3 {
         claimItem.setNet(moneyResource);
 
         if (item instanceof HealthRecord.Procedure) {
-          Type procedureReference = new Reference(item.fullUrl);
+          Type procedureReference = new Reference(BundleContext.of(bundle).get(item));
           ProcedureComponent claimProcedure = new ProcedureComponent(
               new PositiveIntType(procedureSequence), procedureReference);
           claimResource.addProcedure(claimProcedure);
@@ -823,7 +845,7 @@ public class FhirStu3 {
 
           procedureSequence++;
         } else {
-          Reference informationReference = new Reference(item.fullUrl);
+          Reference informationReference = new Reference(BundleContext.of(bundle).get(item));
           SpecialConditionComponent informationComponent = new SpecialConditionComponent();
           informationComponent.setSequence(informationSequence);
           informationComponent.setValue(informationReference);
@@ -842,7 +864,7 @@ public class FhirStu3 {
       } else {
         // assume it's a Condition, we don't have a Condition class specifically
         // add diagnosisComponent to claim
-        Reference diagnosisReference = new Reference(item.fullUrl);
+        Reference diagnosisReference = new Reference(BundleContext.of(bundle).get(item));
         org.hl7.fhir.dstu3.model.Claim.DiagnosisComponent diagnosisComponent =
             new org.hl7.fhir.dstu3.model.Claim.DiagnosisComponent(
                 new PositiveIntType(conditionSequence), diagnosisReference);
@@ -1525,7 +1547,7 @@ public class FhirStu3 {
 
     BundleEntryComponent conditionEntry = newEntry(bundle, conditionResource);
 
-    condition.fullUrl = conditionEntry.getFullUrl();
+    BundleContext.of(bundle).put(condition, conditionEntry.getFullUrl());
 
     return conditionEntry;
   }
@@ -1582,7 +1604,7 @@ public class FhirStu3 {
       allergyResource.setMeta(meta);
     }
     BundleEntryComponent allergyEntry = newEntry(bundle, allergyResource);
-    allergy.fullUrl = allergyEntry.getFullUrl();
+    BundleContext.of(bundle).put(allergy, allergyEntry.getFullUrl());
     return allergyEntry;
   }
 
@@ -1644,7 +1666,7 @@ public class FhirStu3 {
     }
 
     BundleEntryComponent entry = newEntry(bundle, observationResource);
-    observation.fullUrl = entry.getFullUrl();
+    BundleContext.of(bundle).put(observation, entry.getFullUrl());
     return entry;
   }
 
@@ -1733,7 +1755,7 @@ public class FhirStu3 {
     }
 
     BundleEntryComponent procedureEntry = newEntry(bundle, procedureResource);
-    procedure.fullUrl = procedureEntry.getFullUrl();
+    BundleContext.of(bundle).put(procedure, procedureEntry.getFullUrl());
 
     return procedureEntry;
   }
@@ -1764,7 +1786,7 @@ public class FhirStu3 {
     }
 
     BundleEntryComponent immunizationEntry = newEntry(bundle, immResource);
-    immunization.fullUrl = immunizationEntry.getFullUrl();
+    BundleContext.of(bundle).put(immunization, immunizationEntry.getFullUrl());
 
     return immunizationEntry;
   }
@@ -1994,7 +2016,7 @@ public class FhirStu3 {
     reportResource.setEffective(randomizeAsPeriodOrDateTime(report.start));
     reportResource.setIssued(new Date(report.start));
     for (Observation observation : report.observations) {
-      Reference reference = new Reference(observation.fullUrl);
+      Reference reference = new Reference(BundleContext.of(bundle).get(observation));
       reference.setDisplay(observation.codes.get(0).display);
       reportResource.addResult(reference);
     }
@@ -2262,7 +2284,7 @@ public class FhirStu3 {
    */
   private static BundleEntryComponent caregoal(
       Bundle bundle, GoalStatus goalStatus, JsonObject goal) {
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
 
     org.hl7.fhir.dstu3.model.Goal goalResource =
         new org.hl7.fhir.dstu3.model.Goal();
@@ -2409,7 +2431,7 @@ public class FhirStu3 {
 
   /**
    * Helper function to create an Entry for the given Resource within the given Bundle. Sets the
-   * resourceID to a random UUID, sets the entry's fullURL to that resourceID, and adds the entry to
+   * resourceID to a new UUID, sets the entry's fullURL to that resourceID, and adds the entry to
    * the bundle.
    *
    * @param bundle The Bundle to add the Entry to
@@ -2417,7 +2439,7 @@ public class FhirStu3 {
    * @return the created Entry
    */
   private static BundleEntryComponent newEntry(Bundle bundle, Resource resource) {
-    String resourceID = UUID.randomUUID().toString();
+    String resourceID = BundleContext.of(bundle).newId();
     return newEntry(bundle, resource, resourceID);
   }
 
@@ -2438,6 +2460,7 @@ public class FhirStu3 {
     entry.setFullUrl(resource.fhirType() + "/" + resourceID);
 
     entry.setResource(resource);
+    indexEntry(bundle, entry);
 
     if (TRANSACTION_BUNDLE) {
       BundleEntryRequestComponent request = entry.getRequest();
@@ -2448,4 +2471,23 @@ public class FhirStu3 {
 
     return entry;
   }
+
+  /**
+   * Add the given entry to the index of its Bundle, if it is an Organization or
+   * Practitioner, so that references to it can be found by findProviderUrl and
+   * findPractitioner.
+   *
+   * @param bundle The Bundle the entry was added to
+   * @param entry The new Entry
+   */
+  private static void indexEntry(Bundle bundle, BundleEntryComponent entry) {
+    Resource resource = entry.getResource();
+    if (resource instanceof Organization) {
+      BundleContext.of(bundle).put("Organization",
+          ((Organization) resource).getIdentifierFirstRep().getValue(), entry.getFullUrl());
+    } else if (resource instanceof Practitioner) {
+      BundleContext.of(bundle).put("Practitioner",
+          ((Practitioner) resource).getIdentifierFirstRep().getValue(), entry.getFullUrl());
+    }
+  }
 }
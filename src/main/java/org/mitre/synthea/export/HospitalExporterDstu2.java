@@ -1,6 +1,5 @@
 package org.mitre.synthea.export;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.ExtensionDt;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.model.dstu2.resource.Bundle.Entry;
@@ -12,12 +11,12 @@ import com.google.common.collect.Table;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -26,33 +25,11 @@ import org.mitre.synthea.world.agents.Provider;
 
 public abstract class HospitalExporterDstu2 {
 
-  private static final FhirContext FHIR_CTX = FhirContext.forDstu2();
-
   private static final String SYNTHEA_URI = "http://synthetichealth.github.io/synthea/";
 
   public static void export(long stop) {
     if (Boolean.parseBoolean(Config.get("exporter.hospital.fhir_dstu2.export"))) {
       
-      Bundle bundle = new Bundle();
-      if (Boolean.parseBoolean(Config.get("exporter.fhir.transaction_bundle"))) {
-        bundle.setType(BundleTypeEnum.TRANSACTION);
-      } else {
-        bundle.setType(BundleTypeEnum.COLLECTION);
-      }
-      for (Provider h : Provider.getProviderList()) {
-        // filter - exports only those hospitals in use
-        Table<Integer, String, AtomicInteger> utilization = h.getUtilization();
-        int totalEncounters = utilization.column(Provider.ENCOUNTERS).values().stream()
-            .mapToInt(ai -> ai.get()).sum();
-        if (totalEncounters > 0) {
-          Entry entry = FhirDstu2.provider(bundle, h);
-          addHospitalExtensions(h, (Organization) entry.getResource());
-        }
-      }
-
-      String bundleJson = FHIR_CTX.newJsonParser().setPrettyPrint(true)
-          .encodeResourceToString(bundle);
-
       // get output folder
       List<String> folders = new ArrayList<>();
       folders.add("fhir_dstu2");
@@ -61,8 +38,27 @@ public abstract class HospitalExporterDstu2 {
       f.mkdirs();
       Path outFilePath = f.toPath().resolve("hospitalInformation" + stop + ".json");
 
-      try {
-        Files.write(outFilePath, Collections.singleton(bundleJson), StandardOpenOption.CREATE_NEW);
+      Bundle bundle = new Bundle();
+      if (Boolean.parseBoolean(Config.get("exporter.fhir.transaction_bundle"))) {
+        bundle.setType(BundleTypeEnum.TRANSACTION);
+      } else {
+        bundle.setType(BundleTypeEnum.COLLECTION);
+      }
+      try (Writer out = Files.newBufferedWriter(outFilePath, StandardOpenOption.CREATE_NEW)) {
+        FhirDstu2.BundleWriter writer = new FhirDstu2.BundleWriter(out);
+        for (Provider h : Provider.getProviderList()) {
+          // filter - exports only those hospitals in use
+          Table<Integer, String, AtomicInteger> utilization = h.getUtilization();
+          int totalEncounters = utilization.column(Provider.ENCOUNTERS).values().stream()
+              .mapToInt(ai -> ai.get()).sum();
+          if (totalEncounters > 0) {
+            Entry entry = FhirDstu2.provider(bundle, h);
+            addHospitalExtensions(h, (Organization) entry.getResource());
+            writer.write(bundle);
+          }
+        }
+        writer.finish(bundle);
+        out.write(System.lineSeparator());
       } catch (IOException e) {
         e.printStackTrace();
       }
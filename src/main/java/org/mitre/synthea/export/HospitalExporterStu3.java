@@ -1,16 +1,15 @@
 package org.mitre.synthea.export;
 
-import ca.uhn.fhir.context.FhirContext;
 import com.google.common.collect.Table;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -25,33 +24,11 @@ import org.mitre.synthea.world.agents.Provider;
 
 public abstract class HospitalExporterStu3 {
 
-  private static final FhirContext FHIR_CTX = FhirContext.forDstu3();
-
   private static final String SYNTHEA_URI = "http://synthetichealth.github.io/synthea/";
 
   public static void export(long stop) {
     if (Boolean.parseBoolean(Config.get("exporter.hospital.fhir_stu3.export"))) {
 
-      Bundle bundle = new Bundle();
-      if (Boolean.parseBoolean(Config.get("exporter.fhir.transaction_bundle"))) {
-        bundle.setType(BundleType.TRANSACTION);
-      } else {
-        bundle.setType(BundleType.COLLECTION);
-      }
-      for (Provider h : Provider.getProviderList()) {
-        // filter - exports only those hospitals in use
-        Table<Integer, String, AtomicInteger> utilization = h.getUtilization();
-        int totalEncounters = utilization.column(Provider.ENCOUNTERS).values().stream()
-            .mapToInt(ai -> ai.get()).sum();
-        if (totalEncounters > 0) {
-          BundleEntryComponent entry = FhirStu3.provider(bundle, h);
-          addHospitalExtensions(h, (Organization) entry.getResource());
-        }
-      }
-
-      String bundleJson = FHIR_CTX.newJsonParser().setPrettyPrint(true)
-          .encodeResourceToString(bundle);
-
       // get output folder
       List<String> folders = new ArrayList<>();
       folders.add("fhir_stu3");
@@ -60,8 +37,27 @@ public abstract class HospitalExporterStu3 {
       f.mkdirs();
       Path outFilePath = f.toPath().resolve("hospitalInformation" + stop + ".json");
 
-      try {
-        Files.write(outFilePath, Collections.singleton(bundleJson), StandardOpenOption.CREATE_NEW);
+      Bundle bundle = new Bundle();
+      if (Boolean.parseBoolean(Config.get("exporter.fhir.transaction_bundle"))) {
+        bundle.setType(BundleType.TRANSACTION);
+      } else {
+        bundle.setType(BundleType.COLLECTION);
+      }
+      try (Writer out = Files.newBufferedWriter(outFilePath, StandardOpenOption.CREATE_NEW)) {
+        FhirStu3.BundleWriter writer = new FhirStu3.BundleWriter(out);
+        for (Provider h : Provider.getProviderList()) {
+          // filter - exports only those hospitals in use
+          Table<Integer, String, AtomicInteger> utilization = h.getUtilization();
+          int totalEncounters = utilization.column(Provider.ENCOUNTERS).values().stream()
+              .mapToInt(ai -> ai.get()).sum();
+          if (totalEncounters > 0) {
+            BundleEntryComponent entry = FhirStu3.provider(bundle, h);
+            addHospitalExtensions(h, (Organization) entry.getResource());
+            writer.write(bundle);
+          }
+        }
+        writer.finish(bundle);
+        out.write(System.lineSeparator());
       } catch (IOException e) {
         e.printStackTrace();
       }
@@ -0,0 +1,76 @@
+package org.mitre.synthea.export;
+
+import java.io.IOException;
+
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * Exports the same tables as the {@link CSVExporter} (patients, encounters, conditions,
+ * medications, observations, procedures, immunizations, careplans, imaging studies, payers,
+ * and so on), as Parquet files in the parquet folder instead of CSV files.
+ * <p></p>
+ * Every column is a string, exactly as it is written to the CSV file, with empty values
+ * written as nulls. Columns are dictionary encoded when that makes them smaller, which it
+ * does for codes and descriptions. Rows are buffered in memory until there are
+ * exporter.parquet.row_group_size of them, and then written as a row group. The files are
+ * only complete once {@link #close()} has been called, after all patients are exported.
+ */
+public class ParquetExporter {
+  private static ParquetExporter instance;
+
+  private final CSVExporter tables;
+
+  private ParquetExporter() {
+    tables = new CSVExporter(true);
+  }
+
+  /**
+   * Get the current instance of the ParquetExporter, creating the Parquet files if this is
+   * the first call since the last one was closed.
+   *
+   * @return the current instance of the ParquetExporter.
+   */
+  public static synchronized ParquetExporter getInstance() {
+    if (instance == null) {
+      instance = new ParquetExporter();
+    }
+    return instance;
+  }
+
+  /**
+   * Add a single Person's health record info to the Parquet files.
+   *
+   * @param person Person to write record data for
+   * @param time   Time the simulation ended
+   * @throws IOException if any IO error occurs
+   */
+  public void export(Person person, long time) throws IOException {
+    tables.export(person, time);
+  }
+
+  /**
+   * Export the organizations, providers and payers. This method should be called once after
+   * all the Patient records have been exported using the export(Person,long) method.
+   *
+   * @throws IOException if any IO errors occur.
+   */
+  public void exportOrganizationsProvidersAndPayers() throws IOException {
+    tables.exportOrganizationsAndProviders();
+    tables.exportPayers();
+  }
+
+  /**
+   * Write the remaining rows and the footer of every Parquet file. The next call to
+   * {@link #getInstance()} starts new files.
+   *
+   * @throws IOException if any IO errors occur.
+   */
+  public void close() throws IOException {
+    synchronized (ParquetExporter.class) {
+      if (instance == this) {
+        instance = null;
+      }
+    }
+    tables.close();
+  }
+}
@@ -0,0 +1,556 @@
+package org.mitre.synthea.export;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the rows of a CSV table to a Parquet file instead.
+ * <p></p>
+ * Rows are committed as CSV lines, exactly as they would be written to the CSV file, and are
+ * split into columns named by the CSV header. Every column is an optional UTF-8 string, and
+ * empty fields are written as nulls. Rows are buffered until there are enough for a row
+ * group, and each column of a row group is written as a single page, dictionary encoded
+ * if that is smaller than plain encoding (as it is for codes and descriptions). Pages are
+ * compressed with the exporter.compression format.
+ * <p></p>
+ * The file is only complete, and readable, once the writer is closed.
+ */
+final class ParquetWriter extends BlockWriter {
+  private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+
+  // Parquet enums, from parquet.thrift
+  private static final int TYPE_BYTE_ARRAY = 6;
+  private static final int REPETITION_OPTIONAL = 1;
+  private static final int CONVERTED_TYPE_UTF8 = 0;
+  private static final int ENCODING_PLAIN = 0;
+  private static final int ENCODING_PLAIN_DICTIONARY = 2;
+  private static final int ENCODING_RLE = 3;
+  private static final int PAGE_DATA = 0;
+  private static final int PAGE_DICTIONARY = 2;
+  private static final int CODEC_UNCOMPRESSED = 0;
+  private static final int CODEC_GZIP = 2;
+  private static final int CODEC_ZSTD = 6;
+
+  private final CountingOutputStream out;
+  private final String[] names;
+  private final int rowGroupSize;
+  private final Compression compression;
+  private final int codec;
+
+  /** The rows buffered for the current row group, by column. */
+  private final Column[] columns;
+  private int rows;
+  /** The metadata of the row groups written so far. */
+  private final List<RowGroup> rowGroups = new ArrayList<RowGroup>();
+  private boolean closed;
+
+  /**
+   * Create a new Parquet file, replacing any existing file.
+   * @param file The file to write to.
+   * @param header The CSV header line, which names the columns.
+   * @param rowGroupSize The number of rows in each row group.
+   * @param compression The compression of the pages.
+   * @throws IOException if the file can not be opened.
+   */
+  ParquetWriter(File file, String header, int rowGroupSize, Compression compression)
+      throws IOException {
+    this.names = header.trim().split(",");
+    this.rowGroupSize = rowGroupSize;
+    this.compression = compression;
+    switch (compression.format()) {
+      case GZIP:
+        this.codec = CODEC_GZIP;
+        break;
+      case ZSTD:
+        this.codec = CODEC_ZSTD;
+        break;
+      default:
+        this.codec = CODEC_UNCOMPRESSED;
+        break;
+    }
+    this.columns = new Column[names.length];
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = new Column();
+    }
+    this.out = new CountingOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    out.write(MAGIC);
+  }
+
+  @Override
+  protected synchronized void append(CharSequence committed) throws IOException {
+    int lineStart = 0;
+    int fieldStart = 0;
+    int column = 0;
+    for (int i = 0; i < committed.length(); i++) {
+      char c = committed.charAt(i);
+      if (c == ',') {
+        addField(column++, committed, fieldStart, i);
+        fieldStart = i + 1;
+      } else if (c == '\n') {
+        int end = i > lineStart && committed.charAt(i - 1) == '\r' ? i - 1 : i;
+        addField(column++, committed, fieldStart, end);
+        endRow(column);
+        column = 0;
+        lineStart = i + 1;
+        fieldStart = i + 1;
+      }
+    }
+    if (lineStart < committed.length()) {
+      addField(column++, committed, fieldStart, committed.length());
+      endRow(column);
+    }
+  }
+
+  private void addField(int column, CharSequence line, int start, int end) {
+    if (column < columns.length) {
+      columns[column].add(start == end ? null : line.subSequence(start, end).toString());
+    }
+  }
+
+  /**
+   * Finish a row, filling in any missing columns with nulls, and write a row group if
+   * there are enough rows.
+   */
+  private void endRow(int fields) throws IOException {
+    for (int i = fields; i < columns.length; i++) {
+      columns[i].add(null);
+    }
+    rows++;
+    if (rows >= rowGroupSize) {
+      writeRowGroup();
+    }
+  }
+
+  /**
+   * Write all of the buffered rows as a row group.
+   */
+  @Override
+  synchronized void flush() throws IOException {
+    if (rows > 0) {
+      writeRowGroup();
+    }
+    out.flush();
+  }
+
+  /**
+   * Write the buffered rows, and the file footer, and close the file.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (rows > 0) {
+      writeRowGroup();
+    }
+    byte[] footer = fileMetaData();
+    out.write(footer);
+    writeIntLittleEndian(out, footer.length);
+    out.write(MAGIC);
+    out.close();
+  }
+
+  private void writeRowGroup() throws IOException {
+    RowGroup rowGroup = new RowGroup(rows);
+    for (Column column : columns) {
+      rowGroup.chunks.add(writeColumnChunk(column));
+      column.clear();
+    }
+    rowGroups.add(rowGroup);
+    rows = 0;
+  }
+
+  private ColumnChunk writeColumnChunk(Column column) throws IOException {
+    ColumnChunk chunk = new ColumnChunk(column.size);
+    chunk.startOffset = out.getCount();
+
+    // definition levels: 1 for a value, 0 for a null
+    int[] levels = new int[column.size];
+    int nonNull = 0;
+    for (int i = 0; i < column.size; i++) {
+      if (column.indices[i] >= 0) {
+        levels[i] = 1;
+        nonNull++;
+      }
+    }
+    byte[] encodedLevels = encodeRleHybrid(levels, levels.length, 1);
+
+    // use the dictionary only if it is smaller than the values would be
+    int bitWidth = Math.max(1, 32 - Integer.numberOfLeadingZeros(column.dictionary.size() - 1));
+    long plainSize = 0;
+    long dictionarySize = (nonNull * (long) bitWidth + 7) / 8;
+    for (int i = 0; i < column.size; i++) {
+      if (column.indices[i] >= 0) {
+        plainSize += 4 + column.values.get(column.indices[i]).length;
+      }
+    }
+    for (byte[] value : column.values) {
+      dictionarySize += 4 + value.length;
+    }
+    boolean useDictionary = nonNull > 0 && dictionarySize < plainSize;
+
+    ByteArrayOutputStream page = new ByteArrayOutputStream();
+    writeIntLittleEndian(page, encodedLevels.length);
+    page.write(encodedLevels);
+    if (useDictionary) {
+      ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+      for (byte[] value : column.values) {
+        writePlain(dictionary, value);
+      }
+      chunk.dictionaryPageOffset = out.getCount();
+      writePage(chunk, PAGE_DICTIONARY, dictionary.toByteArray(), column.values.size(),
+          ENCODING_PLAIN_DICTIONARY);
+
+      int[] indices = new int[nonNull];
+      int next = 0;
+      for (int i = 0; i < column.size; i++) {
+        if (column.indices[i] >= 0) {
+          indices[next++] = column.indices[i];
+        }
+      }
+      page.write(bitWidth);
+      page.write(encodeRleHybrid(indices, nonNull, bitWidth));
+      chunk.encodings = new int[] { ENCODING_PLAIN_DICTIONARY, ENCODING_RLE };
+    } else {
+      for (int i = 0; i < column.size; i++) {
+        if (column.indices[i] >= 0) {
+          writePlain(page, column.values.get(column.indices[i]));
+        }
+      }
+      chunk.encodings = new int[] { ENCODING_PLAIN, ENCODING_RLE };
+    }
+    chunk.dataPageOffset = out.getCount();
+    writePage(chunk, PAGE_DATA, page.toByteArray(), column.size,
+        useDictionary ? ENCODING_PLAIN_DICTIONARY : ENCODING_PLAIN);
+    return chunk;
+  }
+
+  /**
+   * Compress and write a page, with its header.
+   */
+  private void writePage(ColumnChunk chunk, int type, byte[] data, int values, int encoding)
+      throws IOException {
+    byte[] compressed = data;
+    if (codec != CODEC_UNCOMPRESSED) {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2);
+      try (OutputStream compressing = compression.compress(buffer)) {
+        compressing.write(data);
+      }
+      compressed = buffer.toByteArray();
+    }
+    Thrift header = new Thrift();
+    header.i32(1, type);
+    header.i32(2, data.length);
+    header.i32(3, compressed.length);
+    if (type == PAGE_DATA) {
+      header.beginStruct(5);
+      header.i32(1, values);
+      header.i32(2, encoding);
+      header.i32(3, ENCODING_RLE);
+      header.i32(4, ENCODING_RLE);
+      header.end();
+    } else {
+      header.beginStruct(7);
+      header.i32(1, values);
+      header.i32(2, encoding);
+      header.end();
+    }
+    byte[] headerBytes = header.end();
+    out.write(headerBytes);
+    out.write(compressed);
+    chunk.uncompressedSize += headerBytes.length + data.length;
+    chunk.compressedSize += headerBytes.length + compressed.length;
+  }
+
+  private byte[] fileMetaData() {
+    Thrift meta = new Thrift();
+    meta.i32(1, 1);
+    meta.beginList(2, Thrift.STRUCT, names.length + 1);
+    meta.beginElement();
+    meta.string(4, "schema");
+    meta.i32(5, names.length);
+    meta.end();
+    for (String name : names) {
+      meta.beginElement();
+      meta.i32(1, TYPE_BYTE_ARRAY);
+      meta.i32(3, REPETITION_OPTIONAL);
+      meta.string(4, name);
+      meta.i32(6, CONVERTED_TYPE_UTF8);
+      meta.end();
+    }
+    long totalRows = 0;
+    for (RowGroup rowGroup : rowGroups) {
+      totalRows += rowGroup.rows;
+    }
+    meta.i64(3, totalRows);
+    meta.beginList(4, Thrift.STRUCT, rowGroups.size());
+    for (RowGroup rowGroup : rowGroups) {
+      meta.beginElement();
+      meta.beginList(1, Thrift.STRUCT, rowGroup.chunks.size());
+      long totalSize = 0;
+      for (int i = 0; i < rowGroup.chunks.size(); i++) {
+        ColumnChunk chunk = rowGroup.chunks.get(i);
+        totalSize += chunk.uncompressedSize;
+        meta.beginElement();
+        meta.i64(2, chunk.startOffset);
+        meta.beginStruct(3);
+        meta.i32(1, TYPE_BYTE_ARRAY);
+        meta.beginList(2, Thrift.I32, chunk.encodings.length);
+        for (int encoding : chunk.encodings) {
+          meta.i32Element(encoding);
+        }
+        meta.beginList(3, Thrift.BINARY, 1);
+        meta.stringElement(names[i]);
+        meta.i32(4, codec);
+        meta.i64(5, chunk.values);
+        meta.i64(6, chunk.uncompressedSize);
+        meta.i64(7, chunk.compressedSize);
+        meta.i64(9, chunk.dataPageOffset);
+        if (chunk.dictionaryPageOffset >= 0) {
+          meta.i64(11, chunk.dictionaryPageOffset);
+        }
+        meta.end();
+        meta.end();
+      }
+      meta.i64(2, totalSize);
+      meta.i64(3, rowGroup.rows);
+      meta.end();
+    }
+    meta.string(6, "synthea");
+    return meta.end();
+  }
+
+  private static void writePlain(OutputStream out, byte[] value) throws IOException {
+    writeIntLittleEndian(out, value.length);
+    out.write(value);
+  }
+
+  private static void writeIntLittleEndian(OutputStream out, int value) throws IOException {
+    out.write(value & 0xff);
+    out.write((value >>> 8) & 0xff);
+    out.write((value >>> 16) & 0xff);
+    out.write((value >>> 24) & 0xff);
+  }
+
+  /**
+   * Encode values with the RLE / bit-packing hybrid encoding. Runs of at least 8 equal values
+   * are run length encoded, and everything else is bit-packed in groups of 8.
+   * @param values The values.
+   * @param count The number of values to encode.
+   * @param bitWidth The number of bits in each value.
+   * @return the encoded values
+   */
+  static byte[] encodeRleHybrid(int[] values, int count, int bitWidth) {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    int packedStart = 0;
+    int i = 0;
+    while (i < count) {
+      int run = 1;
+      while (i + run < count && values[i + run] == values[i]) {
+        run++;
+      }
+      if (run >= 8 && (i - packedStart) % 8 == 0) {
+        bitPack(encoded, values, packedStart, i, bitWidth);
+        writeUnsignedVarInt(encoded, (long) run << 1);
+        for (int b = 0; b < (bitWidth + 7) / 8; b++) {
+          encoded.write((values[i] >>> (8 * b)) & 0xff);
+        }
+        i += run;
+        packedStart = i;
+      } else {
+        i++;
+      }
+    }
+    bitPack(encoded, values, packedStart, count, bitWidth);
+    return encoded.toByteArray();
+  }
+
+  /**
+   * Bit-pack values[start..end), padding the last group of 8 with zeros.
+   */
+  private static void bitPack(ByteArrayOutputStream encoded, int[] values, int start, int end,
+      int bitWidth) {
+    if (start >= end) {
+      return;
+    }
+    int groups = (end - start + 7) / 8;
+    writeUnsignedVarInt(encoded, ((long) groups << 1) | 1);
+    byte[] packed = new byte[groups * bitWidth];
+    for (int v = 0; v < end - start; v++) {
+      int value = values[start + v];
+      for (int bit = 0; bit < bitWidth; bit++) {
+        if ((value & (1 << bit)) != 0) {
+          int position = v * bitWidth + bit;
+          packed[position / 8] |= 1 << (position % 8);
+        }
+      }
+    }
+    encoded.write(packed, 0, packed.length);
+  }
+
+  private static void writeUnsignedVarInt(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  /**
+   * The buffered values of one column, as indices into a dictionary of distinct values.
+   */
+  private static class Column {
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+    private final List<byte[]> values = new ArrayList<byte[]>();
+    /** The dictionary index of each row's value, or -1 for null. */
+    private int[] indices = new int[1024];
+    private int size;
+
+    private void add(String value) {
+      if (size == indices.length) {
+        indices = Arrays.copyOf(indices, size * 2);
+      }
+      int index = -1;
+      if (value != null) {
+        Integer existing = dictionary.get(value);
+        if (existing == null) {
+          existing = values.size();
+          dictionary.put(value, existing);
+          values.add(value.getBytes(StandardCharsets.UTF_8));
+        }
+        index = existing;
+      }
+      indices[size++] = index;
+    }
+
+    private void clear() {
+      dictionary.clear();
+      values.clear();
+      size = 0;
+    }
+  }
+
+  private static class RowGroup {
+    private final long rows;
+    private final List<ColumnChunk> chunks = new ArrayList<ColumnChunk>();
+
+    private RowGroup(long rows) {
+      this.rows = rows;
+    }
+  }
+
+  private static class ColumnChunk {
+    private final long values;
+    private long startOffset;
+    private long dictionaryPageOffset = -1;
+    private long dataPageOffset;
+    private long uncompressedSize;
+    private long compressedSize;
+    private int[] encodings;
+
+    private ColumnChunk(long values) {
+      this.values = values;
+    }
+  }
+
+  /**
+   * A minimal writer for the Thrift compact protocol, which Parquet uses for its page headers
+   * and file metadata. Structs are written field by field, in increasing field id order.
+   */
+  private static class Thrift {
+    private static final int I32 = 5;
+    private static final int I64 = 6;
+    private static final int BINARY = 8;
+    private static final int LIST = 9;
+    private static final int STRUCT = 12;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final Deque<Integer> lastFieldIds = new ArrayDeque<Integer>();
+    private int lastFieldId;
+
+    private void field(int id, int type) {
+      int delta = id - lastFieldId;
+      if (delta > 0 && delta <= 15) {
+        bytes.write((delta << 4) | type);
+      } else {
+        bytes.write(type);
+        writeUnsignedVarInt(bytes, (id << 1) ^ (id >> 31));
+      }
+      lastFieldId = id;
+    }
+
+    private void i32(int id, int value) {
+      field(id, I32);
+      i32Element(value);
+    }
+
+    private void i64(int id, long value) {
+      field(id, I64);
+      writeUnsignedVarInt(bytes, (value << 1) ^ (value >> 63));
+    }
+
+    private void string(int id, String value) {
+      field(id, BINARY);
+      stringElement(value);
+    }
+
+    private void beginStruct(int id) {
+      field(id, STRUCT);
+      beginElement();
+    }
+
+    private void beginList(int id, int elementType, int size) {
+      field(id, LIST);
+      if (size < 15) {
+        bytes.write((size << 4) | elementType);
+      } else {
+        bytes.write(0xf0 | elementType);
+        writeUnsignedVarInt(bytes, size);
+      }
+    }
+
+    /** Start a struct that is an element of a list. */
+    private void beginElement() {
+      lastFieldIds.push(lastFieldId);
+      lastFieldId = 0;
+    }
+
+    private void i32Element(int value) {
+      writeUnsignedVarInt(bytes, ((value << 1) ^ (value >> 31)) & 0xffffffffL);
+    }
+
+    private void stringElement(String value) {
+      byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+      writeUnsignedVarInt(bytes, utf8.length);
+      bytes.write(utf8, 0, utf8.length);
+    }
+
+    /**
+     * End the current struct.
+     * @return everything written so far
+     */
+    private byte[] end() {
+      bytes.write(0);
+      if (!lastFieldIds.isEmpty()) {
+        lastFieldId = lastFieldIds.pop();
+      }
+      return bytes.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package org.mitre.synthea.export;
+
+import freemarker.template.Configuration;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
+import org.mitre.synthea.world.concepts.RaceAndEthnicity;
+
+/**
+ * The data model of the Apache FreeMarker export templates: a read-only view of a Person's
+ * attributes, with a few values added just for the purposes of export. Nothing is copied
+ * from the Person or its HealthRecord, and the Person is never modified, so the person can be
+ * exported to other formats at the same time.
+ */
+final class PersonTemplateModel implements TemplateHashModel {
+  /**
+   * This is a dummy object for FreeMarker, because the library cannot access static class methods
+   * such as UUID.randomUUID()
+   */
+  private static final Object UUID_GEN = new Object() {
+    public String toString() {
+      return UUID.randomUUID().toString();
+    }
+  };
+
+  private final ObjectWrapper wrapper;
+  private final Map<String, Object> attributes;
+  private final Map<String, Object> values = new HashMap<String, Object>();
+
+  /**
+   * Create a data model of the attributes of a Person.
+   * @param configuration The template configuration, whose object wrapper wraps the values.
+   * @param person The person.
+   */
+  PersonTemplateModel(Configuration configuration, Person person) {
+    this.wrapper = configuration.getObjectWrapper();
+    this.attributes = person.attributes;
+  }
+
+  /**
+   * Add a value just for the purposes of export, hiding any attribute of the same name.
+   * @param key The name of the value in the templates.
+   * @param value The value, or null to hide the attribute of the same name.
+   * @return this model
+   */
+  PersonTemplateModel put(String key, Object value) {
+    values.put(key, value);
+    return this;
+  }
+
+  @Override
+  public TemplateModel get(String key) throws TemplateModelException {
+    Object value = values.containsKey(key) ? values.get(key) : attributes.get(key);
+    return value == null ? null : wrapper.wrap(value);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return false;
+  }
+
+  /**
+   * Returns a read-only view of one kind of entry of each of the given encounters, one
+   * encounter after the other. For example, all of the allergies of a record. This makes it
+   * easier to access all of the entries in the export templates, instead of having to
+   * iterate through all the encounters.
+   * @param encounters The encounters. They must not change while the view is in use.
+   * @param entries The entries of an encounter. For example, {@code e -> e.allergies}.
+   * @return the entries of all of the encounters
+   */
+  static <T> List<T> entries(List<Encounter> encounters, Function<Encounter, List<T>> entries) {
+    // ends[i] is the index after the last entry of encounters[i]
+    int[] ends = new int[encounters.size()];
+    int size = 0;
+    for (int i = 0; i < ends.length; i++) {
+      size += entries.apply(encounters.get(i)).size();
+      ends[i] = size;
+    }
+    int total = size;
+    return new AbstractList<T>() {
+      @Override
+      public T get(int index) {
+        if (index < 0 || index >= total) {
+          throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + total);
+        }
+        // find the first encounter that ends after the index
+        int low = 0;
+        int high = ends.length - 1;
+        while (low < high) {
+          int middle = (low + high) >>> 1;
+          if (ends[middle] > index) {
+            high = middle;
+          } else {
+            low = middle + 1;
+          }
+        }
+        int start = low == 0 ? 0 : ends[low - 1];
+        return entries.apply(encounters.get(low)).get(index - start);
+      }
+
+      @Override
+      public int size() {
+        return total;
+      }
+    };
+  }
+
+  /**
+   * Create the configuration of a folder of export templates. Templates are only read once,
+   * and the values that are the same for every Person are shared by all of the templates.
+   * @param directory The folder of templates, on the class path.
+   * @return the template configuration
+   */
+  static Configuration templateConfiguration(String directory) {
+    Configuration configuration = new Configuration(Configuration.VERSION_2_3_26);
+    configuration.setDefaultEncoding("UTF-8");
+    configuration.setLogTemplateExceptions(false);
+    try {
+      configuration.setSetting("object_wrapper",
+          "DefaultObjectWrapper(2.3.26, forceLegacyNonListCollections=false, "
+              + "iterableSupport=true, exposeFields=true)");
+      configuration.setSharedVariable("UUID", UUID_GEN);
+      configuration.setSharedVariable("race_lookup", RaceAndEthnicity.LOOK_UP_CDC_RACE);
+      configuration.setSharedVariable("ethnicity_lookup",
+          RaceAndEthnicity.LOOK_UP_CDC_ETHNICITY_CODE);
+      configuration.setSharedVariable("ethnicity_display_lookup",
+          RaceAndEthnicity.LOOK_UP_CDC_ETHNICITY_DISPLAY);
+    } catch (TemplateException e) {
+      e.printStackTrace();
+    }
+    configuration.setAPIBuiltinEnabled(true);
+    // the templates are part of Synthea, so they never need to be checked for changes
+    configuration.setTemplateUpdateDelayMilliseconds(Long.MAX_VALUE);
+    configuration.setClassLoaderForTemplateLoading(ClassLoader.getSystemClassLoader(),
+        directory);
+    return configuration;
+  }
+
+  /**
+   * Read and parse a template.
+   * @param configuration The template configuration.
+   * @param name The name of the template.
+   * @return the template
+   * @throws IllegalStateException if the template is missing or invalid.
+   */
+  static Template template(Configuration configuration, String name) {
+    try {
+      return configuration.getTemplate(name);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to load template " + name, e);
+    }
+  }
+}
@@ -1,18 +1,23 @@
 package org.mitre.synthea.export;
 
-import static org.mitre.synthea.export.ExportHelper.dateFromTimestamp;
-
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.function.Function;
 
 import org.apache.commons.text.WordUtils;
 import org.mitre.synthea.world.agents.Clinician;
@@ -152,10 +157,26 @@ import org.mitre.synthea.world.concepts.HealthRecord.Report;
  *   
  * --------------------------------------------------------------------------------
  * </pre>
+ * The reports of all of a person's encounters are written to a single file, most recent first,
+ * with an index file (ENCOUNTER,DATE,OFFSET,LENGTH) that gives the byte offset and length of
+ * each encounter's report in the file.
  */
 
 public class TextExporter {
 
+  /**
+   * System-dependent string for a line break. (\n on Mac, *nix, \r\n on Windows)
+   */
+  private static final String NEWLINE = System.lineSeparator();
+
+  /**
+   * Date format of the record, YYYY-MM-DD in the local time zone like
+   * {@link ExportHelper#dateFromTimestamp(long)}. Unlike a SimpleDateFormat, it can be shared
+   * by every exporting thread without locking.
+   */
+  private static final DateTimeFormatter DATE_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneId.systemDefault());
+
   /**
    * Produce and export a person's record in the text format.
    *
@@ -165,213 +186,200 @@ public class TextExporter {
    * @throws IOException if any error occurs writing to the standard export location
    */
   public static void exportAll(Person person, String fileTag, long time) throws IOException {
+    // everything is displayed in reverse chrono order
+    List<Encounter> encounters = Lists.reverse(person.record.encounters);
 
-    List<Encounter> encounters = person.record.encounters;
-    List<Entry> conditions = new ArrayList<>();
-    List<Entry> allergies = new ArrayList<>();
-    List<Report> reports = new ArrayList<>();
-    List<Observation> observations = new ArrayList<>();
-    List<Procedure> procedures = new ArrayList<>();
-    List<Medication> medications = new ArrayList<>();
-    List<Entry> immunizations = new ArrayList<>();
-    List<CarePlan> careplans = new ArrayList<>();
-    List<ImagingStudy> imagingStudies = new ArrayList<>();
-
-    for (Encounter encounter : person.record.encounters) {
-      conditions.addAll(encounter.conditions);
-      allergies.addAll(encounter.allergies);
-      reports.addAll(encounter.reports);
-      observations.addAll(encounter.observations);
-      procedures.addAll(encounter.procedures);
-      medications.addAll(encounter.medications);
-      immunizations.addAll(encounter.immunizations);
-      careplans.addAll(encounter.careplans);
-      imagingStudies.addAll(encounter.imagingStudies);
-    }
-
-    // reverse these items so they are displayed in reverse chrono order
-    Collections.reverse(encounters);
-    Collections.reverse(conditions);
-    Collections.reverse(allergies);
-    Collections.reverse(reports);
-    Collections.reverse(observations);
-    Collections.reverse(procedures);
-    Collections.reverse(medications);
-    Collections.reverse(immunizations);
-    Collections.reverse(careplans);
-    Collections.reverse(imagingStudies);
-
-    // now we finally start writing things
-    List<String> textRecord = new LinkedList<>();
-
-    basicInfo(textRecord, person, time);
-    breakline(textRecord);
-
-    textRecord.add("ALLERGIES:");
-    if (allergies.isEmpty()) {
-      textRecord.add("No Known Allergies");
-    } else {
-      for (Entry allergy : allergies) {
-        condition(textRecord, allergy, true);
+    File outDirectory = Exporter.getOutputFolder("text", person);
+    Path outFilePath = outDirectory.toPath().resolve(Exporter.filename(person, fileTag, "txt"));
+    try (TextRecord textRecord = new TextRecord(Exporter.newFile(person, outFilePath))) {
+      basicInfo(textRecord, person, time);
+      breakline(textRecord);
+
+      textRecord.add("ALLERGIES:");
+      Iterable<Entry> allergies = entries(encounters, e -> e.allergies);
+      if (Iterables.isEmpty(allergies)) {
+        textRecord.add("No Known Allergies");
+      } else {
+        for (Entry allergy : allergies) {
+          condition(textRecord, allergy, true);
+        }
       }
-    }
-    breakline(textRecord);
+      breakline(textRecord);
 
-    textRecord.add("MEDICATIONS:");
-    for (Medication medication : medications) {
-      medication(textRecord, medication, true);
-    }
-    breakline(textRecord);
+      textRecord.add("MEDICATIONS:");
+      for (Medication medication : entries(encounters, e -> e.medications)) {
+        medication(textRecord, medication, true);
+      }
+      breakline(textRecord);
 
-    textRecord.add("CONDITIONS:");
-    for (Entry condition : conditions) {
-      condition(textRecord, condition, true);
-    }
-    breakline(textRecord);
+      textRecord.add("CONDITIONS:");
+      for (Entry condition : entries(encounters, e -> e.conditions)) {
+        condition(textRecord, condition, true);
+      }
+      breakline(textRecord);
 
-    textRecord.add("CARE PLANS:");
-    for (CarePlan careplan : careplans) {
-      careplan(textRecord, careplan, true);
-    }
-    breakline(textRecord);
+      textRecord.add("CARE PLANS:");
+      for (CarePlan careplan : entries(encounters, e -> e.careplans)) {
+        careplan(textRecord, careplan, true);
+      }
+      breakline(textRecord);
 
-    textRecord.add("REPORTS:");
-    for (Report report : reports) {
-      diagnosticReport(textRecord, report);
-    }
-    breakline(textRecord);
-    
-    textRecord.add("OBSERVATIONS:");
-    for (Observation observation : observations) {
-      observation(textRecord, observation);
-    }
-    breakline(textRecord);
+      textRecord.add("REPORTS:");
+      for (Report report : entries(encounters, e -> e.reports)) {
+        diagnosticReport(textRecord, report);
+      }
+      breakline(textRecord);
 
-    textRecord.add("PROCEDURES:");
-    for (Procedure procedure : procedures) {
-      procedure(textRecord, procedure);
-    }
-    breakline(textRecord);
+      textRecord.add("OBSERVATIONS:");
+      for (Observation observation : entries(encounters, e -> e.observations)) {
+        observation(textRecord, observation);
+      }
+      breakline(textRecord);
 
-    textRecord.add("IMMUNIZATIONS:");
-    for (Entry immunization : immunizations) {
-      immunization(textRecord, immunization);
-    }
-    breakline(textRecord);
+      textRecord.add("PROCEDURES:");
+      for (Procedure procedure : entries(encounters, e -> e.procedures)) {
+        procedure(textRecord, procedure);
+      }
+      breakline(textRecord);
 
-    textRecord.add("ENCOUNTERS:");
-    for (Encounter encounter : encounters) {
-      encounter(textRecord, encounter);
-    }
-    breakline(textRecord);
+      textRecord.add("IMMUNIZATIONS:");
+      for (Entry immunization : entries(encounters, e -> e.immunizations)) {
+        immunization(textRecord, immunization);
+      }
+      breakline(textRecord);
 
-    textRecord.add("IMAGING STUDIES:");
-    for (ImagingStudy imagingStudy : imagingStudies) {
-      imagingStudy(textRecord, imagingStudy);
-    }
-    breakline(textRecord);
+      textRecord.add("ENCOUNTERS:");
+      for (Encounter encounter : encounters) {
+        encounter(textRecord, encounter);
+      }
+      breakline(textRecord);
 
-    // finally write to the file
-    File outDirectory = Exporter.getOutputFolder("text", person);
-    Path outFilePath = outDirectory.toPath().resolve(Exporter.filename(person, fileTag, "txt"));
-    Files.write(outFilePath, textRecord, StandardOpenOption.CREATE_NEW);
+      textRecord.add("IMAGING STUDIES:");
+      for (ImagingStudy imagingStudy : entries(encounters, e -> e.imagingStudies)) {
+        imagingStudy(textRecord, imagingStudy);
+      }
+      breakline(textRecord);
+    }
   }
 
   /**
-   * Produce and export a person's record in text format.
-   * 
+   * Produce and export a person's record in text format, one report per encounter. The
+   * reports of all of the person's encounters are written to a single file, most recent
+   * first, with an index file that gives the byte offset and length of each report.
+   *
    * @param person Person
+   * @param fileTag Tag to add to the filename
    * @param time Time the simulation ended
    * @throws IOException if any error occurs writing to the standard export location
    */
-  public static void exportEncounter(Person person, long time) throws IOException {
-    List<Encounter> encounters = person.record.encounters;
-    List<Entry> conditions = new ArrayList<>();
-    List<Entry> allergies = new ArrayList<>();
-    List<Medication> medications = new ArrayList<>();
-    List<CarePlan> careplans = new ArrayList<>();
-
-    for (Encounter encounter : person.record.encounters) {
-      conditions.addAll(encounter.conditions);
-      allergies.addAll(encounter.allergies);
-      medications.addAll(encounter.medications);
-      careplans.addAll(encounter.careplans);
-    }
-
-    // reverse these items so they are displayed in reverse chrono order
-    Collections.reverse(encounters);
-    Collections.reverse(conditions);
-    Collections.reverse(allergies);
-    Collections.reverse(medications);
-    Collections.reverse(careplans);
-    
-    //set an integer that will be used as a counter for file naming purposes
-    int encounterNumber = 0;
-
-    for (Encounter encounter : encounters) {
-      //make a record for each encounter to write information
-      List<String> textRecord = new LinkedList<>();
-            
-      basicInfo(textRecord, person, time);
-      breakline(textRecord);
-
-      textRecord.add("ALLERGIES:");
-      if (allergies.isEmpty()) {
-        textRecord.add("No Known Allergies");
-      } else {
-        for (Entry allergy : allergies) {
-          condition(textRecord, allergy, false);
+  public static void exportEncounter(Person person, String fileTag, long time)
+      throws IOException {
+    // everything is displayed in reverse chrono order
+    List<Encounter> encounters = Lists.reverse(person.record.encounters);
+    Iterable<Entry> allergies = entries(encounters, e -> e.allergies);
+    Iterable<Entry> conditions = entries(encounters, e -> e.conditions);
+    Iterable<Medication> medications = entries(encounters, e -> e.medications);
+    Iterable<CarePlan> careplans = entries(encounters, e -> e.careplans);
+    boolean noAllergies = Iterables.isEmpty(allergies);
+
+    // the offset of each report, and of the end of the last report
+    long[] offsets = new long[encounters.size() + 1];
+
+    File outDirectory = Exporter.getOutputFolder("text_encounters", person);
+    Path outFilePath = outDirectory.toPath().resolve(Exporter.filename(person, fileTag, "txt"));
+    try (TextRecord textRecord = new TextRecord(Exporter.newFile(person, outFilePath))) {
+      int encounterNumber = 0;
+      for (Encounter encounter : encounters) {
+        offsets[encounterNumber] = textRecord.offset();
+
+        basicInfo(textRecord, person, time);
+        breakline(textRecord);
+
+        textRecord.add("ALLERGIES:");
+        if (noAllergies) {
+          textRecord.add("No Known Allergies");
+        } else {
+          for (Entry allergy : allergies) {
+            condition(textRecord, allergy, false);
+          }
         }
-      }
-      breakline(textRecord);
+        breakline(textRecord);
 
-      textRecord.add("ENCOUNTER");
-      encounterReport(textRecord, person, encounter);
-      breakline(textRecord);
+        textRecord.add("ENCOUNTER");
+        encounterReport(textRecord, person, encounter);
+        breakline(textRecord);
 
-      textRecord.add("CONTINUING");
-      textRecord.add("   ");
+        textRecord.add("CONTINUING");
+        textRecord.add("   ");
 
-      textRecord.add("   CONDITIONS:");
-      for (Entry condition : conditions) {
-        conditionpast(textRecord, condition, encounter);
-      }
-      textRecord.add("   ");
+        textRecord.add("   CONDITIONS:");
+        for (Entry condition : conditions) {
+          conditionpast(textRecord, condition, encounter);
+        }
+        textRecord.add("   ");
 
-      textRecord.add("   MEDICATIONS:");
-      for (Medication medication : medications) {
-        medicationpast(textRecord, medication, encounter);
-      }
-      textRecord.add("   ");
+        textRecord.add("   MEDICATIONS:");
+        for (Medication medication : medications) {
+          medicationpast(textRecord, medication, encounter);
+        }
+        textRecord.add("   ");
+
+        textRecord.add("   CAREPLANS:");
+        for (CarePlan careplan : careplans) {
+          careplanpast(textRecord, careplan, encounter);
+        }
+        textRecord.add("   ");
+        breakline(textRecord);
 
-      textRecord.add("   CAREPLANS:");
-      for (CarePlan careplan : careplans) {
-        careplanpast(textRecord, careplan, encounter);
+        encounterNumber++;
       }
-      textRecord.add("   ");
-      breakline(textRecord);
+      offsets[encounterNumber] = textRecord.offset();
+    }
+
+    // the index, one row per report, numbered from 1 like the encounters above
+    Path indexFilePath =
+        outDirectory.toPath().resolve(Exporter.filename(person, fileTag, "index.csv"));
+    try (TextRecord index = new TextRecord(Exporter.newFile(person, indexFilePath))) {
+      index.add("ENCOUNTER,DATE,OFFSET,LENGTH");
+      int encounterNumber = 0;
+      for (Encounter encounter : encounters) {
+        index.line().append(encounterNumber + 1).append(',');
+        index.date(encounter.start).append(',').append(offsets[encounterNumber])
+            .append(',').append(offsets[encounterNumber + 1] - offsets[encounterNumber]);
+        index.end();
+        encounterNumber++;
+      }
+    }
+  }
 
-      encounterNumber++;
+  /**
+   * Returns one kind of entry of each of the given encounters, one encounter after the
+   * other, in reverse order within each encounter, without copying them.
+   *
+   * @param encounters
+   *          The encounters, most recent first
+   * @param entries
+   *          The entries of an encounter, for example {@code e -> e.conditions}
+   * @return the entries, most recent first
+   */
+  private static <T> Iterable<T> entries(List<Encounter> encounters,
+      Function<Encounter, List<T>> entries) {
+    return Iterables.concat(Iterables.transform(encounters,
+        encounter -> Lists.reverse(entries.apply(encounter))));
+  }
 
-      //write to the file
-      File outDirectory2 = Exporter.getOutputFolder("text_encounters", person);
-      Path outFilePath2 = outDirectory2.toPath().resolve(Exporter.filename(person,
-          Integer.toString(encounterNumber), "txt"));
-      Files.write(outFilePath2, textRecord, StandardOpenOption.CREATE_NEW);
-    }      
-  }  
-  
   /**
    * Add the basic information to the record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param person
    *          The person to export
    * @param endTime
    *          Time the simulation ended (to calculate age/deceased status)
    */
-  private static void basicInfo(List<String> textRecord, Person person, long endTime) {
+  private static void basicInfo(TextRecord textRecord, Person person, long endTime)
+      throws IOException {
     String name = (String) person.attributes.get(Person.NAME);
 
     textRecord.add(name);
@@ -393,8 +401,8 @@ public class TextExporter {
     String age = person.alive(endTime) ? Integer.toString(person.ageInYears(endTime)) : "DECEASED";
     textRecord.add("Age:                 " + age);
 
-    String birthdate = dateFromTimestamp((long) person.attributes.get(Person.BIRTHDATE));
-    textRecord.add("Birth Date:          " + birthdate);
+    textRecord.line("Birth Date:          ", (long) person.attributes.get(Person.BIRTHDATE));
+    textRecord.end();
     textRecord.add("Marital Status:      "
         + person.attributes.getOrDefault(Person.MARITAL_STATUS, "S"));
 
@@ -404,133 +412,110 @@ public class TextExporter {
           + ", " + person.record.provider.city + ", " + person.record.provider.state);
     }
   }
-  
+
   /**
    * Write a line for a single Encounter to the exported record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param encounter
    *          The Encounter to add to the export
    */
-  private static void encounter(List<String> textRecord, Encounter encounter) {
-    String encounterTime = dateFromTimestamp(encounter.start);
-
-    String clinician = "";
+  private static void encounter(TextRecord textRecord, Encounter encounter) throws IOException {
+    StringBuilder line = textRecord.line("", encounter.start);
     if (encounter.clinician != null) {
-      clinician = " (" + encounter.clinician.attributes.get(Clinician.NAME_PREFIX) 
-          + " " + encounter.clinician.attributes.get(Clinician.NAME) + ")";
+      line.append(" (").append(encounter.clinician.attributes.get(Clinician.NAME_PREFIX))
+          .append(' ').append(encounter.clinician.attributes.get(Clinician.NAME)).append(')');
     }
+    encounterDescription(line, encounter);
+    textRecord.end();
+  }
+
+  /**
+   * Append the description of an encounter to a line of the record.
+   *
+   * @param line
+   *          The line, so far
+   * @param encounter
+   *          The Encounter to describe
+   */
+  private static void encounterDescription(StringBuilder line, Encounter encounter) {
     if (encounter.reason == null && encounter.provider == null) {
-      textRecord.add(encounterTime + clinician + " : " + encounter.codes.get(0).display);
-    } else if  (encounter.reason == null && encounter.provider != null) {
-      textRecord.add(encounterTime + clinician + " : Encounter at " + encounter.provider.name);
-    } else if  (encounter.reason != null && encounter.provider == null) {
-      textRecord.add(encounterTime + clinician + " : Encounter for " + encounter.reason.display);
+      line.append(" : ").append(encounter.codes.get(0).display);
+    } else if (encounter.reason == null && encounter.provider != null) {
+      line.append(" : Encounter at ").append(encounter.provider.name);
+    } else if (encounter.reason != null && encounter.provider == null) {
+      line.append(" : Encounter for ").append(encounter.reason.display);
     } else {
-      textRecord.add(encounterTime + clinician + " : Encounter at " 
-          + encounter.provider.name + " : Encounter for " + encounter.reason.display);
+      line.append(" : Encounter at ").append(encounter.provider.name)
+          .append(" : Encounter for ").append(encounter.reason.display);
     }
-  } 
+  }
 
   /**
    * Add all info from the encounter to the record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param person
    *          The person to export
    * @param encounter
    *          The encounter all of the information refers to
    */
-  private static void encounterReport(List<String> textRecord, Person person, Encounter encounter) {
-    String encounterTime = dateFromTimestamp(encounter.start);
-
-    if (encounter.reason == null && encounter.provider == null) {
-      textRecord.add(encounterTime + " : " + encounter.codes.get(0).display);
-    } else if (encounter.reason == null && encounter.provider != null) {
-      textRecord.add(encounterTime + " : Encounter at " + encounter.provider.name);
-    } else if (encounter.reason != null && encounter.provider == null) {
-      textRecord.add(encounterTime + " : Encounter for " + encounter.reason.display);
-    } else {
-      textRecord.add(encounterTime + " : Encounter at " + encounter.provider.name
-          + " : Encounter for " + encounter.reason.display);
-    }
+  private static void encounterReport(TextRecord textRecord, Person person, Encounter encounter)
+      throws IOException {
+    StringBuilder line = textRecord.line("", encounter.start);
+    encounterDescription(line, encounter);
+    textRecord.end();
 
     textRecord.add("Type: " + encounter.type);
     textRecord.add("   ");
 
-    //Create lists for only the items that occurred at the encounter
-    List<Entry> encounterConditions = new ArrayList<>();
-    List<Report> encounterReports = new ArrayList<>();
-    List<Observation> encounterObservations = new ArrayList<>();
-    List<Procedure> encounterProcedures = new ArrayList<>();
-    List<Medication> encounterMedications = new ArrayList<>();
-    List<Entry> encounterImmunizations = new ArrayList<>();
-    List<CarePlan> encounterCareplans = new ArrayList<>();
-    List<ImagingStudy> encounterImagingStudies = new ArrayList<>();
-
-    encounterConditions.addAll(encounter.conditions);
-    encounterReports.addAll(encounter.reports);
-    encounterObservations.addAll(encounter.observations);
-    encounterProcedures.addAll(encounter.procedures);
-    encounterMedications.addAll(encounter.medications);
-    encounterImmunizations.addAll(encounter.immunizations);
-    encounterCareplans.addAll(encounter.careplans);
-    encounterImagingStudies.addAll(encounter.imagingStudies);
-
-    Collections.reverse(encounterConditions);
-    Collections.reverse(encounterObservations);
-    Collections.reverse(encounterProcedures);
-    Collections.reverse(encounterMedications);
-    Collections.reverse(encounterImmunizations);
-    Collections.reverse(encounterCareplans);
-    Collections.reverse(encounterImagingStudies);
-
+    // only the items that occurred at the encounter, most recent first
     textRecord.add("   MEDICATIONS:");
-    for (Medication medication : encounterMedications) {
+    for (Medication medication : Lists.reverse(encounter.medications)) {
       medication(textRecord, medication, false);
     }
     textRecord.add("   ");
 
     textRecord.add("   CONDITIONS:");
-    for (Entry condition : encounterConditions) {
+    for (Entry condition : Lists.reverse(encounter.conditions)) {
       condition(textRecord, condition, false);
     }
     textRecord.add("   ");
 
     textRecord.add("   CARE PLANS:");
-    for (CarePlan careplan : encounterCareplans) {
+    for (CarePlan careplan : Lists.reverse(encounter.careplans)) {
       careplan(textRecord, careplan, false);
     }
     textRecord.add("   ");
 
     textRecord.add("   REPORTS:");
-    for (Report report : encounterReports) {
+    for (Report report : encounter.reports) {
       diagnosticReport(textRecord, report);
     }
     textRecord.add("   ");
 
     textRecord.add("   OBSERVATIONS:");
-    for (Observation observation : encounterObservations) {
+    for (Observation observation : Lists.reverse(encounter.observations)) {
       observation(textRecord, observation);
     }
     textRecord.add("   ");
 
     textRecord.add("   PROCEDURES:");
-    for (Procedure procedure : encounterProcedures) {
+    for (Procedure procedure : Lists.reverse(encounter.procedures)) {
       procedure(textRecord, procedure);
     }
     textRecord.add("   ");
 
     textRecord.add("   IMMUNIZATIONS:");
-    for (Entry immunization : encounterImmunizations) {
+    for (Entry immunization : Lists.reverse(encounter.immunizations)) {
       immunization(textRecord, immunization);
     }
     textRecord.add("   ");
 
     textRecord.add("   IMAGING STUDIES:");
-    for (ImagingStudy imagingStudy : encounterImagingStudies) {
+    for (ImagingStudy imagingStudy : Lists.reverse(encounter.imagingStudies)) {
       imagingStudy(textRecord, imagingStudy);
     }
     textRecord.add("   ");
@@ -540,47 +525,47 @@ public class TextExporter {
    * Write a line for a single Condition to the exported record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param condition
    *          The condition to add to the export
    * @param end
    *          Whether or not the condition end date will be displayed
    */
-  private static void condition(List<String> textRecord, Entry condition, Boolean end) {
-    String start = dateFromTimestamp(condition.start);
-    String stop;
-    String description = condition.codes.get(0).display;
+  private static void condition(TextRecord textRecord, Entry condition, Boolean end)
+      throws IOException {
+    StringBuilder line = textRecord.line("  ", condition.start);
     if (end) {
+      line.append(" - ");
       if (condition.stop == 0L) {
         //     "YYYY-MM-DD"
-        stop = "          ";
+        line.append("          ");
       } else {
-        stop = dateFromTimestamp(condition.stop);
+        textRecord.date(condition.stop);
       }
-      textRecord.add("  " + start + " - " + stop + " : " + description);
-    } else {
-      textRecord.add("  " + start + " : " + description);
     }
+    line.append(" : ").append(condition.codes.get(0).display);
+    textRecord.end();
   }
 
   /**
    * Write a line for a condition that has not ended at the time of the encounter.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param condition
    *          The condition to add to the export
    * @param encounter
    *          The encounter at which the continuing condition is reported
    */
-  private static void conditionpast(List<String> textRecord, Entry condition, Encounter encounter) {
-    String start = dateFromTimestamp(condition.start);
+  private static void conditionpast(TextRecord textRecord, Entry condition, Encounter encounter)
+      throws IOException {
     if ((condition.stop == 0L || condition.stop > encounter.stop)
         && (condition.start < encounter.start)) {
       //checks that the condition hasn't ended by the time of the encounter
       //and began prior to the encounter
-      String description = condition.codes.get(0).display;
-      textRecord.add("  " + start + " : " + description);
+      textRecord.line("  ", condition.start)
+          .append(" : ").append(condition.codes.get(0).display);
+      textRecord.end();
     }
   }
 
@@ -588,11 +573,12 @@ public class TextExporter {
    * Write a line for a single Observation to the exported record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param observation
    *          The Observation to add to the export
    */
-  private static void observation(List<String> textRecord, Observation observation) {
+  private static void observation(TextRecord textRecord, Observation observation)
+      throws IOException {
     String value = ExportHelper.getObservationValue(observation);
 
     if (value == null) {
@@ -605,65 +591,66 @@ public class TextExporter {
       return;
     }
 
-    String obsTime = dateFromTimestamp(observation.start);
     String obsDesc = observation.codes.get(0).display;
 
     String unit = observation.unit != null ? observation.unit : "";
 
-    textRecord.add("  " + obsTime + " : " + Strings.padEnd(obsDesc, 40, ' ') + " " 
-        + value + " " + unit);
+    StringBuilder line = textRecord.line("  ", observation.start).append(" : ");
+    padEnd(line, obsDesc, 40).append(' ').append(value).append(' ').append(unit);
+    textRecord.end();
   }
 
   /**
    * Write lines for a Diagnostic Report to the exported record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param observation
    *          The Report to add to the export
    */
-  private static void diagnosticReport(List<String> textRecord, Report report) {
+  private static void diagnosticReport(TextRecord textRecord, Report report)
+      throws IOException {
     // note that this is largely the same as the MultiObservation
-    String obsTime = dateFromTimestamp(report.start);
-    String obsDesc = report.codes.get(0).display;
+    textRecord.line("  ", report.start).append(" : ").append(report.codes.get(0).display);
+    textRecord.end();
 
-    textRecord.add("  " + obsTime + " : " + obsDesc);
-    
     observationGroup(textRecord, report.observations);
   }
-  
+
   /**
    * Write lines for an Observation with multiple parts to the exported record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param observation
    *          The Observation to add to the export
    */
-  private static void multiobservation(List<String> textRecord, Observation observation) {
-    String obsTime = dateFromTimestamp(observation.start);
-    String obsDesc = observation.codes.get(0).display;
-
-    textRecord.add("  " + obsTime + " : " + obsDesc);
+  private static void multiobservation(TextRecord textRecord, Observation observation)
+      throws IOException {
+    textRecord.line("  ", observation.start)
+        .append(" : ").append(observation.codes.get(0).display);
+    textRecord.end();
 
     observationGroup(textRecord, observation.observations);
   }
-  
+
   /**
    * Common logic for outputting a group of observations,
    * intended to be used by MultiObservations and DiagnosticReports.
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param observation
    *          The group of Observations to add to the export
    */
-  private static void observationGroup(List<String> textRecord, List<Observation> subObservations) {
+  private static void observationGroup(TextRecord textRecord, List<Observation> subObservations)
+      throws IOException {
     for (Observation subObs : subObservations) {
       String value = ExportHelper.getObservationValue(subObs);
       String unit = subObs.unit != null ? subObs.unit : "";
       String subObsDesc = subObs.codes.get(0).display;
-      textRecord.add("           - " + Strings.padEnd(subObsDesc, 40, ' ') + " " + value + " "
-          + unit);
+      StringBuilder line = textRecord.line().append("           - ");
+      padEnd(line, subObsDesc, 40).append(' ').append(value).append(' ').append(unit);
+      textRecord.end();
     }
   }
 
@@ -671,76 +658,67 @@ public class TextExporter {
    * Write a line for a single Procedure to the exported record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param procedure
    *          The Procedure to add to the export
    */
-  private static void procedure(List<String> textRecord, Procedure procedure) {
-    String procedureTime = dateFromTimestamp(procedure.start);
-    String procedureDesc = procedure.codes.get(0).display;
-    if (procedure.reasons == null || procedure.reasons.isEmpty()) {
-      textRecord.add("  " + procedureTime + " : " + procedureDesc);
-    } else {
-      String reason = procedure.reasons.get(0).display;
-      textRecord.add("  " + procedureTime + " : " + procedureDesc + " for " + reason);
+  private static void procedure(TextRecord textRecord, Procedure procedure) throws IOException {
+    StringBuilder line = textRecord.line("  ", procedure.start)
+        .append(" : ").append(procedure.codes.get(0).display);
+    if (procedure.reasons != null && !procedure.reasons.isEmpty()) {
+      line.append(" for ").append(procedure.reasons.get(0).display);
     }
+    textRecord.end();
   }
 
   /**
    * Write a line for a single Medication to the exported record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param medication
    *          The Medication to add to the export
    * @param stat
    *          Whether or not the medication status will be displayed
    */
-  private static void medication(List<String> textRecord, Medication medication, Boolean stat) {
-    String medTime = dateFromTimestamp(medication.start);
-    String medDesc = medication.codes.get(0).display;
-    String status = (medication.stop == 0L) ? "CURRENT" : "STOPPED";
+  private static void medication(TextRecord textRecord, Medication medication, Boolean stat)
+      throws IOException {
+    StringBuilder line = textRecord.line("  ", medication.start);
     if (stat) {
-      if (medication.reasons == null || medication.reasons.isEmpty()) {
-        textRecord.add("  " + medTime + "[" + status + "] : " + medDesc);
-      } else {
-        String reason = medication.reasons.get(0).display;
-        textRecord.add("  " + medTime + "[" + status + "] : " + medDesc + " for " + reason);
-      }
-    } else {
-      if (medication.reasons == null || medication.reasons.isEmpty()) {
-        textRecord.add("  " + medTime + " : " + medDesc);
-      } else {
-        String reason = medication.reasons.get(0).display;
-        textRecord.add("  " + medTime + " : " + medDesc + " for " + reason);
-      }
+      line.append((medication.stop == 0L) ? "[CURRENT]" : "[STOPPED]");
     }
+    line.append(" : ").append(medication.codes.get(0).display);
+    if (medication.reasons != null && !medication.reasons.isEmpty()) {
+      line.append(" for ").append(medication.reasons.get(0).display);
+    }
+    textRecord.end();
   }
 
   /**
    * Write a line for a medication that is still being taken at the time of the encounter.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param medication
    *          The medication to add to the export
    * @param encounter
    *          The encounter at which the continuing medication is reported
    */
-  private static void medicationpast(List<String> textRecord, Medication medication,
-      Encounter encounter) {
-    String medTime = dateFromTimestamp(medication.start);
-    String medDesc = medication.codes.get(0).display;
-    if ((medication.stop == 0L || medication.stop > encounter.stop) 
+  private static void medicationpast(TextRecord textRecord, Medication medication,
+      Encounter encounter) throws IOException {
+    if ((medication.stop == 0L || medication.stop > encounter.stop)
         && (medication.start < encounter.start)) {
       //checks that the medication is still being taken at the time of the encounter
       //and began prior to the encounter
+      StringBuilder line = textRecord.line("  ", medication.start);
+      String medDesc = medication.codes.get(0).display;
       if (medication.reasons == null || medication.reasons.isEmpty()) {
-        textRecord.add("  " + medTime + " : " + medDesc);
+        line.append(" : ").append(medDesc);
       } else {
-        String reason = medication.reasons.get(0).display;
-        textRecord.add("  " + medTime + " + " + medDesc  + " for " + reason);
+        line.append(" + ").append(medDesc)
+            .append(" for ").append(medication.reasons.get(0).display);
       }
+      textRecord.end();
     }
   }
 
@@ -748,78 +726,84 @@ public class TextExporter {
    * Write a line for a single Immunization to the exported record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param immunization
    *          The immunization to add to the export
    */
-  private static void immunization(List<String> textRecord, Entry immunization) {
-    String immTime = dateFromTimestamp(immunization.start);
-    String immDesc = immunization.codes.get(0).display;
-    textRecord.add("  " + immTime + " : " + immDesc);
+  private static void immunization(TextRecord textRecord, Entry immunization)
+      throws IOException {
+    textRecord.line("  ", immunization.start)
+        .append(" : ").append(immunization.codes.get(0).display);
+    textRecord.end();
   }
 
   /**
    * Write lines for a single CarePlan to the exported record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param careplan
    *          The CarePlan to add to the export
    * @param stat
    *          Whether or not the careplan status will be displayed
    */
-  private static void careplan(List<String> textRecord, CarePlan careplan, Boolean stat) {
-    String cpTime = dateFromTimestamp(careplan.start);
-    String cpDesc = careplan.codes.get(0).display;
-    String status = (careplan.stop == 0L) ? "CURRENT" : "STOPPED";
+  private static void careplan(TextRecord textRecord, CarePlan careplan, Boolean stat)
+      throws IOException {
+    StringBuilder line = textRecord.line("  ", careplan.start);
     if (stat) {
-      textRecord.add("  " + cpTime + "[" + status + "] : " + cpDesc);
-    } else {
-      textRecord.add("  " + cpTime + " : " + cpDesc);
+      line.append((careplan.stop == 0L) ? "[CURRENT]" : "[STOPPED]");
     }
-    
+    line.append(" : ").append(careplan.codes.get(0).display);
+    textRecord.end();
 
-    if (careplan.reasons != null && !careplan.reasons.isEmpty()) {
-      for (Code reason : careplan.reasons) {
-        textRecord.add("                         Reason: " + reason.display);
-      }
-    }
-
-    if (careplan.activities != null && !careplan.activities.isEmpty()) {
-      for (Code activity : careplan.activities) {
-        textRecord.add("                         Activity: " + activity.display);
-      }
-    }
+    careplanDetails(textRecord, careplan);
   }
 
   /**
    * Write a line for a careplan that is still being followed at the time of the encounter.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param careplan
    *          The careplan to add to the export
    * @param encounter
    *          The encounter at which the continuing careplan is reported
    */
-  private static void careplanpast(List<String> textRecord, CarePlan careplan,
-      Encounter encounter) {
-    String cpTime = dateFromTimestamp(careplan.start);
-    String cpDesc = careplan.codes.get(0).display;
+  private static void careplanpast(TextRecord textRecord, CarePlan careplan,
+      Encounter encounter) throws IOException {
     if ((careplan.stop == 0L || careplan.stop > encounter.stop)
         && (careplan.start < encounter.start)) {
       //checks that the careplan is still being followed at the time of the encounter
       //and began prior to the encounter
-      textRecord.add("  " + cpTime + " : " + cpDesc);
-      if (careplan.reasons != null && !careplan.reasons.isEmpty()) {
-        for (Code reason : careplan.reasons) {
-          textRecord.add("                         Reason: " + reason.display);
-        }
+      textRecord.line("  ", careplan.start).append(" : ").append(careplan.codes.get(0).display);
+      textRecord.end();
+
+      careplanDetails(textRecord, careplan);
+    }
+  }
+
+  /**
+   * Write lines for the reasons and activities of a CarePlan to the exported record.
+   *
+   * @param textRecord
+   *          Text format record, written line by line
+   * @param careplan
+   *          The CarePlan whose reasons and activities to add to the export
+   */
+  private static void careplanDetails(TextRecord textRecord, CarePlan careplan)
+      throws IOException {
+    if (careplan.reasons != null && !careplan.reasons.isEmpty()) {
+      for (Code reason : careplan.reasons) {
+        textRecord.line().append("                         Reason: ").append(reason.display);
+        textRecord.end();
       }
-      if (careplan.activities != null && !careplan.activities.isEmpty()) {
-        for (Code activity : careplan.activities) {
-          textRecord.add("                         Activity: " + activity.display);
-        }   
+    }
+
+    if (careplan.activities != null && !careplan.activities.isEmpty()) {
+      for (Code activity : careplan.activities) {
+        textRecord.line().append("                         Activity: ")
+            .append(activity.display);
+        textRecord.end();
       }
     }
   }
@@ -828,22 +812,42 @@ public class TextExporter {
    * Write lines for a single ImagingStudy to the exported record.
    *
    * @param textRecord
-   *          Text format record, as a list of lines
+   *          Text format record, written line by line
    * @param imagingstudy
    *          The ImagingStudy to add to the export
    */
-  private static void imagingStudy(List<String> textRecord, ImagingStudy imagingStudy) {
-    String studyTime = dateFromTimestamp(imagingStudy.start);
-    String modality = imagingStudy.series.get(0).modality.display;
-    String bodySite = imagingStudy.series.get(0).bodySite.display;
+  private static void imagingStudy(TextRecord textRecord, ImagingStudy imagingStudy)
+      throws IOException {
+    textRecord.line("  ", imagingStudy.start)
+        .append(" : ").append(imagingStudy.series.get(0).modality.display)
+        .append(", ").append(imagingStudy.series.get(0).bodySite.display);
+    textRecord.end();
+  }
 
-    textRecord.add("  " + studyTime + " : " + modality + ", " + bodySite);
+  /**
+   * Append a string to a line, padded with spaces to the given length, like
+   * {@link Strings#padEnd(String, int, char)}.
+   *
+   * @param line
+   *          The line, so far
+   * @param string
+   *          The string to append
+   * @param minLength
+   *          The minimum number of characters to append
+   * @return the line
+   */
+  private static StringBuilder padEnd(StringBuilder line, String string, int minLength) {
+    line.append(string);
+    for (int i = string.length(); i < minLength; i++) {
+      line.append(' ');
+    }
+    return line;
   }
 
   /**
    * Section separator (80 dashes).
    */
-  private static final String SECTION_SEPARATOR = String.join("", Collections.nCopies(80, "-"));
+  private static final String SECTION_SEPARATOR = Strings.repeat("-", 80);
 
   /**
    * Add a section separator line to the record.
@@ -851,7 +855,117 @@ public class TextExporter {
    * @param textRecord
    *          Record to add separator line to
    */
-  private static void breakline(List<String> textRecord) {
+  private static void breakline(TextRecord textRecord) throws IOException {
     textRecord.add(SECTION_SEPARATOR);
   }
+
+  /**
+   * A text format record, written straight to its file line by line. Each line is built in a
+   * StringBuilder that is reused for every line, and the number of bytes written so far is
+   * counted, so the start of each part of the record can be found in the file.
+   */
+  private static final class TextRecord implements Closeable {
+    private final Writer writer;
+    private final StringBuilder line = new StringBuilder(128);
+    private char[] chars = new char[128];
+    private long offset;
+
+    /**
+     * Create a record that is written to the given stream, encoded as UTF-8.
+     * @param out The stream.
+     */
+    private TextRecord(OutputStream out) {
+      this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Start a new line.
+     * @return the line, to append to
+     */
+    private StringBuilder line() {
+      line.setLength(0);
+      return line;
+    }
+
+    /**
+     * Start a new line that begins with a date, in the format YYYY-MM-DD.
+     * @param prefix The text before the date.
+     * @param time The date, as a time stamp.
+     * @return the line, to append to
+     */
+    private StringBuilder line(String prefix, long time) {
+      line().append(prefix);
+      return date(time);
+    }
+
+    /**
+     * Append a date to the line, in the format YYYY-MM-DD.
+     * @param time The date, as a time stamp.
+     * @return the line, to append to
+     */
+    private StringBuilder date(long time) {
+      DATE_FORMAT.formatTo(Instant.ofEpochMilli(time), line);
+      return line;
+    }
+
+    /**
+     * Write the line, followed by the line separator.
+     * @throws IOException if the line can not be written.
+     */
+    private void end() throws IOException {
+      line.append(NEWLINE);
+      int length = line.length();
+      if (chars.length < length) {
+        chars = new char[Math.max(length, chars.length * 2)];
+      }
+      line.getChars(0, length, chars, 0);
+      writer.write(chars, 0, length);
+      offset += utf8Length(chars, length);
+    }
+
+    /**
+     * Write a line of text, followed by the line separator.
+     * @param text The text.
+     * @throws IOException if the line can not be written.
+     */
+    private void add(String text) throws IOException {
+      line().append(text);
+      end();
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    private long offset() {
+      return offset;
+    }
+
+    /**
+     * Returns the number of bytes in the UTF-8 encoding of the given characters.
+     */
+    private static int utf8Length(char[] chars, int length) {
+      int bytes = length;
+      for (int i = 0; i < length; i++) {
+        char c = chars[i];
+        if (c >= 0x80) {
+          if (c < 0x800) {
+            bytes += 1;
+          } else if (Character.isHighSurrogate(c) && i + 1 < length
+              && Character.isLowSurrogate(chars[i + 1])) {
+            // a pair of surrogates is a single 4 byte character
+            bytes += 2;
+            i++;
+          } else {
+            bytes += 2;
+          }
+        }
+      }
+      return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+      writer.close();
+    }
+  }
 }
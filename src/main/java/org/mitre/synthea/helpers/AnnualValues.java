@@ -0,0 +1,226 @@
+package org.mitre.synthea.helpers;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A compact map of yearly values, keyed by an integer year (either a calendar year or an age).
+ * <p></p>
+ * Values are stored in a primitive array indexed by the offset from the first year, rather than
+ * boxing one entry per year. Iteration is in ascending year order, which matches the insertion
+ * order of values that are recorded year by year. The {@link Map} interface is provided for
+ * compatibility; the primitive accessors should be preferred.
+ */
+public class AnnualValues extends AbstractMap<Integer, Double> implements Serializable {
+  private static final long serialVersionUID = 4870123459261305187L;
+  private static final int INITIAL_CAPACITY = 8;
+
+  /** The year that corresponds to index 0 of the values. */
+  private int firstYear;
+  private double[] values;
+  private final BitSet present;
+  private int size;
+
+  /**
+   * Create a new empty set of annual values.
+   */
+  public AnnualValues() {
+    this.values = new double[0];
+    this.present = new BitSet();
+  }
+
+  /**
+   * Returns whether or not there is a value for the given year.
+   * @param year The year.
+   * @return true if a value has been recorded for the year.
+   */
+  public boolean has(int year) {
+    int index = year - firstYear;
+    return index >= 0 && index < values.length && present.get(index);
+  }
+
+  /**
+   * Get the value for the given year.
+   * @param year The year.
+   * @param defaultValue The value to return if no value has been recorded for the year.
+   * @return The value for the year, or the default value.
+   */
+  public double get(int year, double defaultValue) {
+    return has(year) ? values[year - firstYear] : defaultValue;
+  }
+
+  /**
+   * Set the value for the given year.
+   * @param year The year.
+   * @param value The value.
+   */
+  public void set(int year, double value) {
+    int index = indexFor(year);
+    if (!present.get(index)) {
+      present.set(index);
+      size++;
+    }
+    values[index] = value;
+  }
+
+  /**
+   * Add the given amount to the value for the given year. If there is no value for the year,
+   * the amount becomes the value.
+   * @param year The year.
+   * @param amount The amount to add.
+   */
+  public void add(int year, double amount) {
+    int index = indexFor(year);
+    if (present.get(index)) {
+      values[index] += amount;
+    } else {
+      present.set(index);
+      size++;
+      values[index] = amount;
+    }
+  }
+
+  /**
+   * Returns the sum of all of the values.
+   */
+  public double sum() {
+    double sum = 0.0;
+    for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+      sum += values[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the index of the given year in the values array, growing the array if necessary.
+   */
+  private int indexFor(int year) {
+    if (size == 0) {
+      firstYear = year;
+    }
+    int index = year - firstYear;
+    if (index < 0) {
+      // shift everything to make room for an earlier year
+      int shift = -index;
+      double[] shifted = new double[Math.max(values.length + shift, INITIAL_CAPACITY)];
+      System.arraycopy(values, 0, shifted, shift, values.length);
+      values = shifted;
+      for (int i = present.length() - 1; i >= 0; i--) {
+        present.set(i + shift, present.get(i));
+      }
+      present.clear(0, shift);
+      firstYear = year;
+      index = 0;
+    } else if (index >= values.length) {
+      int capacity = Math.max(INITIAL_CAPACITY, values.length * 2);
+      while (capacity <= index) {
+        capacity *= 2;
+      }
+      values = Arrays.copyOf(values, capacity);
+    }
+    return index;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key instanceof Integer && has((Integer) key);
+  }
+
+  @Override
+  public Double get(Object key) {
+    if (containsKey(key)) {
+      return values[(Integer) key - firstYear];
+    }
+    return null;
+  }
+
+  /**
+   * Set the value for the given year. Only numbers can be stored, so a null value removes the
+   * value for the year instead.
+   * @param key The year.
+   * @param value The value, or null to remove the value for the year.
+   * @return The previous value for the year, or null if there was none.
+   * @throws NullPointerException if the year is null.
+   */
+  @Override
+  public Double put(Integer key, Double value) {
+    Objects.requireNonNull(key, "year");
+    if (value == null) {
+      return remove(key);
+    }
+    Double previous = get(key);
+    set(key, value);
+    return previous;
+  }
+
+  @Override
+  public Double remove(Object key) {
+    Double previous = get(key);
+    if (previous != null) {
+      present.clear((Integer) key - firstYear);
+      size--;
+    }
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    present.clear();
+    size = 0;
+  }
+
+  @Override
+  public Set<Map.Entry<Integer, Double>> entrySet() {
+    return new AbstractSet<Map.Entry<Integer, Double>>() {
+      @Override
+      public Iterator<Map.Entry<Integer, Double>> iterator() {
+        return new Iterator<Map.Entry<Integer, Double>>() {
+          private int next = present.nextSetBit(0);
+          private int last = -1;
+
+          @Override
+          public boolean hasNext() {
+            return next >= 0;
+          }
+
+          @Override
+          public Map.Entry<Integer, Double> next() {
+            if (next < 0) {
+              throw new NoSuchElementException();
+            }
+            last = next;
+            next = present.nextSetBit(next + 1);
+            return new SimpleImmutableEntry<Integer, Double>(firstYear + last, values[last]);
+          }
+
+          @Override
+          public void remove() {
+            if (last < 0) {
+              throw new IllegalStateException();
+            }
+            AnnualValues.this.remove(firstYear + last);
+            last = -1;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+}
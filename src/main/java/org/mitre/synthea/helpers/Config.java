@@ -5,11 +5,19 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
 public abstract class Config {
   private static Properties properties = new Properties();
+  /**
+   * An immutable copy of the properties, replaced whenever they change, so that reading a
+   * property never has to lock the (synchronized) Properties.
+   */
+  private static volatile Snapshot snapshot = new Snapshot(properties);
 
   static {
     try {
@@ -23,15 +31,18 @@ public abstract class Config {
   /**
    * Load properties from a file.
    */
-  public static void load(File propsFile) throws FileNotFoundException, IOException {
+  public static synchronized void load(File propsFile)
+      throws FileNotFoundException, IOException {
     properties.load(new FileReader(propsFile));
+    snapshot = new Snapshot(properties);
   }
 
   /**
    * Load properties from an input stream. (ex, when running inside a JAR)
    */
-  public static void load(InputStream stream) throws IOException {
+  public static synchronized void load(InputStream stream) throws IOException {
     properties.load(stream);
+    snapshot = new Snapshot(properties);
   }
 
   /**
@@ -41,7 +52,7 @@ public abstract class Config {
    * @return value for the property, or null if not found
    */
   public static String get(String key) {
-    return properties.getProperty(key);
+    return snapshot.get(key);
   }
 
   /**
@@ -52,7 +63,71 @@ public abstract class Config {
    * @return value for the property, or defaultValue if not found
    */
   public static String get(String key, String defaultValue) {
-    return properties.getProperty(key, defaultValue);
+    return snapshot.get(key, defaultValue);
+  }
+
+  /**
+   * Get a named property as a boolean, or false if not found.
+   *
+   * @param key property name
+   * @return value for the property, or false if not found
+   */
+  public static boolean getAsBoolean(String key) {
+    return snapshot.getAsBoolean(key, false);
+  }
+
+  /**
+   * Get a named property as a boolean, or the default value if not found.
+   *
+   * @param key          property name
+   * @param defaultValue value to return if the property is not found in the list
+   * @return value for the property, or defaultValue if not found
+   */
+  public static boolean getAsBoolean(String key, boolean defaultValue) {
+    return snapshot.getAsBoolean(key, defaultValue);
+  }
+
+  /**
+   * Get a named property as an int, or the default value if not found.
+   *
+   * @param key          property name
+   * @param defaultValue value to return if the property is not found in the list
+   * @return value for the property, or defaultValue if not found
+   */
+  public static int getAsInteger(String key, int defaultValue) {
+    return snapshot.getAsInteger(key, defaultValue);
+  }
+
+  /**
+   * Get a named property as a long, or the default value if not found.
+   *
+   * @param key          property name
+   * @param defaultValue value to return if the property is not found in the list
+   * @return value for the property, or defaultValue if not found
+   */
+  public static long getAsLong(String key, long defaultValue) {
+    return snapshot.getAsLong(key, defaultValue);
+  }
+
+  /**
+   * Get a named property as a double, or the default value if not found.
+   *
+   * @param key          property name
+   * @param defaultValue value to return if the property is not found in the list
+   * @return value for the property, or defaultValue if not found
+   */
+  public static double getAsDouble(String key, double defaultValue) {
+    return snapshot.getAsDouble(key, defaultValue);
+  }
+
+  /**
+   * Returns the current properties, as an immutable snapshot. The snapshot does not change
+   * when properties are set or loaded later; call this method again to see the changes.
+   * Hot paths can keep the snapshot, and anything derived from it, for as long as the same
+   * snapshot is returned.
+   */
+  public static Snapshot snapshot() {
+    return snapshot;
   }
 
   /**
@@ -61,8 +136,9 @@ public abstract class Config {
    * @param key   property name
    * @param value property value
    */
-  public static void set(String key, String value) {
+  public static synchronized void set(String key, String value) {
     properties.setProperty(key, value);
+    snapshot = new Snapshot(properties);
   }
 
   /**
@@ -85,10 +161,84 @@ public abstract class Config {
    *
    * @param key property name
    */
-  public static void remove(String key) {
+  public static synchronized void remove(String key) {
     if (properties.stringPropertyNames().contains(key)) {
       properties.remove(key);
+      snapshot = new Snapshot(properties);
     }
   }
 
+  /**
+   * An immutable copy of the configuration at one point in time, with typed getters.
+   * A snapshot can be read by any number of threads without locking.
+   */
+  public static final class Snapshot {
+    private final Map<String, String> values;
+
+    private Snapshot(Properties properties) {
+      Map<String, String> values = new HashMap<String, String>();
+      for (String key : properties.stringPropertyNames()) {
+        values.put(key, properties.getProperty(key));
+      }
+      this.values = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Get a named property.
+     *
+     * @param key property name
+     * @return value for the property, or null if not found
+     */
+    public String get(String key) {
+      return values.get(key);
+    }
+
+    /**
+     * Get a named property, or the default value if not found.
+     *
+     * @param key          property name
+     * @param defaultValue value to return if the property is not found in the snapshot
+     * @return value for the property, or defaultValue if not found
+     */
+    public String get(String key, String defaultValue) {
+      String value = values.get(key);
+      return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Get a named property as a boolean, or the default value if not found.
+     * As with {@link Boolean#parseBoolean(String)}, any value other than "true" is false.
+     */
+    public boolean getAsBoolean(String key, boolean defaultValue) {
+      String value = values.get(key);
+      return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Get a named property as an int, or the default value if not found.
+     * @throws NumberFormatException if the value is not an int.
+     */
+    public int getAsInteger(String key, int defaultValue) {
+      String value = values.get(key);
+      return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Get a named property as a long, or the default value if not found.
+     * @throws NumberFormatException if the value is not a long.
+     */
+    public long getAsLong(String key, long defaultValue) {
+      String value = values.get(key);
+      return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    /**
+     * Get a named property as a double, or the default value if not found.
+     * @throws NumberFormatException if the value is not a number.
+     */
+    public double getAsDouble(String key, double defaultValue) {
+      String value = values.get(key);
+      return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+  }
 }
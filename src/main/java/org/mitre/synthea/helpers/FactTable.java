@@ -2,8 +2,11 @@ package org.mitre.synthea.helpers;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -11,6 +14,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Fact Tables. If you have a "table" where each row is a fact or
  * lookup table where a value should be referenced by an ID, you
  * can add these keys and facts to this table and get back the ID.
+ * <p></p>
+ * A FactTable can be used by many threads at once: looking up an existing key never
+ * blocks, and adding a new key only locks a small part of this table, so tables do not
+ * contend with each other. When facts are added by a single thread, each new key gets the
+ * next ID, in the order the keys are added. Keys must not be null.
  */
 public class FactTable {
   /**
@@ -18,15 +26,13 @@ public class FactTable {
    */
   private static final String NEWLINE = System.lineSeparator();
   /** Table column headers. Comma-separated. */
-  private String header;
+  private volatile String header;
   /** This is the ID sequence generator. */
-  private AtomicInteger id;
+  private final AtomicInteger id;
   /** Lookup the ID for a key. */
-  private Map<String,Integer> keys;
-  /** Lookup the fact by ID. */
-  private Map<Integer,String> facts;
-  /** Synchronization lock. */
-  private static final Object LOCK = new Object();
+  private final ConcurrentMap<String,Integer> keys;
+  /** Lookup the fact by ID, sorted by ID. */
+  private final ConcurrentNavigableMap<Integer,String> facts;
   
   /**
    * Create a FactTable with an ID that starts at 1
@@ -34,8 +40,8 @@ public class FactTable {
    */
   public FactTable() {
     id = new AtomicInteger(1);
-    keys = new HashMap<String,Integer>();
-    facts = new HashMap<Integer,String>();
+    keys = new ConcurrentHashMap<String,Integer>();
+    facts = new ConcurrentSkipListMap<Integer,String>();
   }
 
   /**
@@ -43,9 +49,7 @@ public class FactTable {
    * @param id The value of the next ID.
    */
   public void setNextId(int id) {
-    synchronized (LOCK) {
-      this.id = new AtomicInteger(id);
-    }
+    this.id.set(id);
   }
   
   /**
@@ -62,9 +66,7 @@ public class FactTable {
    * @return The ID for the fact. For example, 1 or 2.
    */
   public int getFactId(String key) {
-    synchronized (LOCK) {
-      return keys.get(key);
-    }
+    return keys.get(key);
   }
 
   /**
@@ -73,10 +75,8 @@ public class FactTable {
    * @return The fact. For example, 'Male' or 'Female'.
    */
   public String getFactByKey(String key) {
-    synchronized (LOCK) {
-      Integer id = keys.get(key);
-      return facts.get(id);
-    }
+    Integer id = keys.get(key);
+    return id == null ? null : facts.get(id);
   }
 
   /**
@@ -85,9 +85,7 @@ public class FactTable {
    * @return The fact. For example, 'Male' or 'Female'.
    */
   public String getFactById(Integer id) {
-    synchronized (LOCK) {
-      return facts.get(id);
-    }
+    return facts.get(id);
   }
 
   /**
@@ -97,41 +95,37 @@ public class FactTable {
    * the table.
    * 
    * @param key The key for a fact. For example, 'M' or 'F'.
-   * @param fact The fact. For example, 'Male' or 'Female'.
+   * @param fact The fact. For example, 'Male' or 'Female'. A null fact is stored as an
+   *     empty string.
    * @return The ID for the fact. For example, 1 or 2.
    */
   public int addFact(String key, String fact) {
-    synchronized (LOCK) {
-      if (keys.containsKey(key)) {
-        return keys.get(key);
-      }
-
+    // most keys are already in the table, and get() never locks
+    Integer existing = keys.get(key);
+    if (existing != null) {
+      return existing;
+    }
+    return keys.computeIfAbsent(key, k -> {
       int next = id.getAndIncrement();
-      keys.put(key, next);
-      facts.put(next, fact);
+      facts.put(next, fact == null ? "" : fact);
       return next;
-    }
+    });
   }
   
   /**
-   * Write the contents of the FactTable to a file.
+   * Write the contents of the FactTable to a file, in ID order.
    * @param writer The open Writer to use to record the FactTable.
    * @throws IOException On errors.
    */
   public void write(Writer writer) throws IOException {
-    synchronized (LOCK) {
-      writer.write(header);
+    writer.write(header);
+    writer.write(NEWLINE);
+    for (Map.Entry<Integer,String> fact : facts.entrySet()) {
+      writer.write(fact.getKey().toString());
+      writer.write(',');
+      writer.write(fact.getValue());
       writer.write(NEWLINE);
-      for (Integer key : facts.keySet()) {
-        writer.write(key.toString());
-        writer.write(',');
-        String fact = facts.get(key);
-        if (fact != null) {
-          writer.write(facts.get(key));
-        }
-        writer.write(NEWLINE);
-      }
-      writer.flush();
     }
+    writer.flush();
   }
 }
@@ -0,0 +1,97 @@
+package org.mitre.synthea.helpers;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Shared FHIR contexts and JSON parsers.
+ * <p></p>
+ * HAPI FHIR warns that the context creation is expensive, and should be performed
+ * per-application, not per-record, so there is one context per FHIR version, created the
+ * first time it is used. Parsers are cheaper, but are not thread safe, so each thread gets
+ * its own compact and pretty-printing JSON parser for each version, which it can reuse for
+ * every record it exports. Callers must not change the settings of the shared parsers.
+ */
+public final class FhirContexts {
+  private FhirContexts() {
+    // static helpers only
+  }
+
+  /**
+   * A FHIR context and the per-thread JSON parsers created from it.
+   */
+  private static class Parsers {
+    private final FhirContext context;
+    private final ThreadLocal<IParser> compact;
+    private final ThreadLocal<IParser> pretty;
+
+    private Parsers(FhirContext context) {
+      this.context = context;
+      this.compact =
+          ThreadLocal.withInitial(() -> context.newJsonParser().setPrettyPrint(false));
+      this.pretty =
+          ThreadLocal.withInitial(() -> context.newJsonParser().setPrettyPrint(true));
+    }
+
+    private IParser jsonParser(boolean prettyPrint) {
+      return prettyPrint ? pretty.get() : compact.get();
+    }
+  }
+
+  private static class R4 {
+    private static final Parsers INSTANCE = new Parsers(FhirContext.forR4());
+  }
+
+  private static class Stu3 {
+    private static final Parsers INSTANCE = new Parsers(FhirContext.forDstu3());
+  }
+
+  private static class Dstu2 {
+    private static final Parsers INSTANCE = new Parsers(FhirContext.forDstu2());
+  }
+
+  /**
+   * Returns the shared FHIR R4 context.
+   */
+  public static FhirContext r4() {
+    return R4.INSTANCE.context;
+  }
+
+  /**
+   * Returns the shared FHIR STU3 context.
+   */
+  public static FhirContext stu3() {
+    return Stu3.INSTANCE.context;
+  }
+
+  /**
+   * Returns the shared FHIR DSTU2 context.
+   */
+  public static FhirContext dstu2() {
+    return Dstu2.INSTANCE.context;
+  }
+
+  /**
+   * Returns the current thread's FHIR R4 JSON parser.
+   * @param prettyPrint Whether the parser pretty prints.
+   */
+  public static IParser r4JsonParser(boolean prettyPrint) {
+    return R4.INSTANCE.jsonParser(prettyPrint);
+  }
+
+  /**
+   * Returns the current thread's FHIR STU3 JSON parser.
+   * @param prettyPrint Whether the parser pretty prints.
+   */
+  public static IParser stu3JsonParser(boolean prettyPrint) {
+    return Stu3.INSTANCE.jsonParser(prettyPrint);
+  }
+
+  /**
+   * Returns the current thread's FHIR DSTU2 JSON parser.
+   * @param prettyPrint Whether the parser pretty prints.
+   */
+  public static IParser dstu2JsonParser(boolean prettyPrint) {
+    return Dstu2.INSTANCE.jsonParser(prettyPrint);
+  }
+}
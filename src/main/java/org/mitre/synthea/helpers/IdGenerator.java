@@ -0,0 +1,80 @@
+package org.mitre.synthea.helpers;
+
+import java.util.UUID;
+
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * Generates random-looking, but reproducible, UUIDs for the records of one person.
+ * <p></p>
+ * {@link UUID#randomUUID()} draws from a single shared SecureRandom, which all of the exporter
+ * threads contend for, and gives different ids every run. Instead, each id is derived from
+ * a seed (normally the person's seed) and a counter, using the SplitMix64 mixing function,
+ * so the same person exported by the same exporter always gets the same ids. The ids are
+ * formatted as RFC 4122 version 4 UUIDs.
+ * <p></p>
+ * Different exporters should use different namespaces, so that they do not produce the same
+ * ids for different records, and each record of a person with a separate record for each
+ * provider gets its own ids, see {@link #forRecord(Person, String)}. A generator is not
+ * thread safe, and is meant to be used by one thread while it exports one record.
+ */
+public class IdGenerator {
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  private final long seed;
+  private long counter;
+
+  /**
+   * Create a new id generator.
+   * @param seed The seed, for example the person's seed.
+   * @param namespace Distinguishes the ids of different exporters with the same seed.
+   */
+  public IdGenerator(long seed, String namespace) {
+    this.seed = mix(seed + mix(namespace.hashCode()));
+  }
+
+  /**
+   * Create a new id generator for the current record of the given person. If the person has
+   * a separate record for each provider (exporter.split_records), the provider of the record
+   * is added to the namespace, so the records do not have any ids in common when they are
+   * exported side by side.
+   * @param person The person, whose seed is used.
+   * @param namespace Distinguishes the ids of different exporters for the same record.
+   * @return the new id generator
+   */
+  public static IdGenerator forRecord(Person person, String namespace) {
+    if (person.hasMultipleRecords && person.record.provider != null) {
+      namespace = namespace + "/" + person.record.provider.uuid;
+    }
+    return new IdGenerator(person.seed, namespace);
+  }
+
+  /**
+   * Returns the next UUID.
+   */
+  public UUID nextUUID() {
+    long msb = mix(seed + (++counter * GOLDEN_GAMMA));
+    long lsb = mix(seed + (++counter * GOLDEN_GAMMA));
+    // version 4
+    msb = (msb & ~0xf000L) | 0x4000L;
+    // IETF variant
+    lsb = (lsb & 0x3fffffffffffffffL) | 0x8000000000000000L;
+    return new UUID(msb, lsb);
+  }
+
+  /**
+   * Returns the next UUID, as a String.
+   */
+  public String nextId() {
+    return nextUUID().toString();
+  }
+
+  /**
+   * The SplitMix64 finalizer.
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
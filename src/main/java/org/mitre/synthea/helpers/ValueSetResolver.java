@@ -1,6 +1,5 @@
 package org.mitre.synthea.helpers;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -38,9 +37,8 @@ public class ValueSetResolver {
    * Construct a new ValueSetResolver object.
    */
   public ValueSetResolver() {
-    FhirContext ctx = FhirContext.forR4();
     this.jsonParser = new JSONParser();
-    this.fhirParser = ctx.newJsonParser();
+    this.fhirParser = FhirContexts.r4().newJsonParser();
     this.vsetBundle = new Bundle();
     this.vsetBundle.setType(BundleType.TRANSACTION);
 
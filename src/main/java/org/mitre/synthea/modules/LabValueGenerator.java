@@ -0,0 +1,103 @@
+package org.mitre.synthea.modules;
+
+import java.util.Map;
+
+import org.mitre.synthea.helpers.ValueGenerator;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.VitalSign;
+
+/**
+ * Generate lab values for vital signs on demand.
+ * <p></p>
+ * Rather than recalculating every lab value for every person on every time step,
+ * the values are only calculated when they are read. Values that depend on each
+ * other (for example, LDL is derived from total cholesterol, HDL, and triglycerides)
+ * are grouped into a {@link Panel}, which calculates them together and keeps them
+ * consistent for a given point in time.
+ */
+public class LabValueGenerator extends ValueGenerator {
+  private final Panel panel;
+  private final int index;
+
+  /**
+   * Create a new LabValueGenerator for one of the values in a panel.
+   * @param person The person to generate values for.
+   * @param panel The panel which calculates the value.
+   * @param index The index of the value within the panel.
+   */
+  public LabValueGenerator(Person person, Panel panel, int index) {
+    super(person);
+    this.panel = panel;
+    this.index = index;
+  }
+
+  @Override
+  public double getValue(long time) {
+    return panel.getValues(person, time)[index];
+  }
+
+  /**
+   * A calculation of one or more related lab values.
+   */
+  @FunctionalInterface
+  public interface Calculation {
+    /**
+     * Calculate the values of the panel.
+     * @param person The person to calculate values for.
+     * @param time The time of the calculation.
+     * @param values The array to store the calculated values in, in panel order.
+     */
+    void calculate(Person person, long time, double[] values);
+  }
+
+  /**
+   * A group of lab values that are calculated together. The most recently calculated
+   * values are kept, so reading several values of the panel at the same time only
+   * performs the calculation once.
+   */
+  public static class Panel {
+    private final Calculation calculation;
+    private final VitalSign[] vitalSigns;
+    private final double[] values;
+    private boolean calculated;
+    private long time;
+
+    /**
+     * Create a new panel.
+     * @param calculation The calculation for the values in the panel.
+     * @param vitalSigns The vital signs that are calculated, in the order the calculation
+     *     stores them.
+     */
+    public Panel(Calculation calculation, VitalSign... vitalSigns) {
+      this.calculation = calculation;
+      this.vitalSigns = vitalSigns;
+      this.values = new double[vitalSigns.length];
+    }
+
+    /**
+     * Get the values of the panel at the given time, calculating them if necessary.
+     * @param person The person to calculate values for.
+     * @param time The time of interest.
+     * @return The values, in panel order.
+     */
+    private double[] getValues(Person person, long time) {
+      if (!calculated || this.time != time) {
+        calculation.calculate(person, time, values);
+        this.time = time;
+        calculated = true;
+      }
+      return values;
+    }
+
+    /**
+     * Create a generator for each of the vital signs in this panel.
+     * @param person The person to generate values for.
+     * @param generators The map to add the generators to.
+     */
+    public void addGenerators(Person person, Map<VitalSign, ValueGenerator> generators) {
+      for (int i = 0; i < vitalSigns.length; i++) {
+        generators.put(vitalSigns[i], new LabValueGenerator(person, this, i));
+      }
+    }
+  }
+}
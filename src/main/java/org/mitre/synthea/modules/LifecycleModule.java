@@ -3,31 +3,33 @@ package org.mitre.synthea.modules;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import org.mitre.synthea.engine.Module;
 import org.mitre.synthea.helpers.Attributes;
 import org.mitre.synthea.helpers.Attributes.Inventory;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.IdGenerator;
 import org.mitre.synthea.helpers.PhysiologyValueGenerator;
 import org.mitre.synthea.helpers.RandomCollection;
 import org.mitre.synthea.helpers.SimpleCSV;
 import org.mitre.synthea.helpers.SimpleYML;
 import org.mitre.synthea.helpers.TrendingValueGenerator;
 import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.helpers.ValueGenerator;
 import org.mitre.synthea.modules.BloodPressureValueGenerator.SysDias;
+import org.mitre.synthea.modules.LabValueGenerator.Panel;
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.concepts.BMI;
 import org.mitre.synthea.world.concepts.BiometricsConfig;
 import org.mitre.synthea.world.concepts.BirthStatistics;
 import org.mitre.synthea.world.concepts.GrowthChart;
-import org.mitre.synthea.world.concepts.GrowthChartEntry;
 import org.mitre.synthea.world.concepts.HealthRecord.Code;
 import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
 import org.mitre.synthea.world.concepts.HealthRecord.Procedure;
@@ -39,10 +41,18 @@ import org.mitre.synthea.world.geography.Location;
 public final class LifecycleModule extends Module {
   private static final Map<GrowthChart.ChartType, GrowthChart> growthChart =
       GrowthChart.loadCharts();
-  private static final List<LinkedHashMap<String, String>> weightForLengthChart =
-      loadWeightForLengthChart();
+  /** Weight for length chart lengths (cm), indexed by [sex][row] in ascending order. */
+  private static double[][] weightForLengthLengths;
+  /** Weight for length chart LMS values, indexed by [sex][row][L,M,S]. */
+  private static double[][][] weightForLengthLms;
+
+  static {
+    loadWeightForLengthChart();
+  }
+
   private static final String AGE = "AGE";
   private static final String AGE_MONTHS = "AGE_MONTHS";
+  public static final String LAB_VALUE_GENERATORS = "lab_value_generators";
   public static final String QUIT_SMOKING_PROBABILITY = "quit smoking probability";
   public static final String QUIT_SMOKING_AGE = "quit smoking age";
   public static final String QUIT_ALCOHOLISM_PROBABILITY = "quit alcoholism probability";
@@ -61,11 +71,36 @@ public final class LifecycleModule extends Module {
     this.name = "Lifecycle";
   }
 
-  private static List<LinkedHashMap<String, String>> loadWeightForLengthChart() {
+  /**
+   * Load the weight for length chart into primitive arrays, split by sex and sorted
+   * by length so that lookups can binary search instead of parsing each row.
+   */
+  private static void loadWeightForLengthChart() {
     String filename = "cdc_wtleninf.csv";
     try {
       String data = Utilities.readResource(filename);
-      return SimpleCSV.parse(data);
+      List<LinkedHashMap<String, String>> rows = SimpleCSV.parse(data);
+      weightForLengthLengths = new double[2][];
+      weightForLengthLms = new double[2][][];
+      String[] sexes = { "M", "F" };
+      for (String sex : sexes) {
+        int index = GrowthChart.sexIndex(sex);
+        double[][] table = rows.stream()
+            .filter(row -> row.get("Sex").equals(sex))
+            .map(row -> new double[] {
+                Double.parseDouble(row.get("Length")),
+                Double.parseDouble(row.get("L")),
+                Double.parseDouble(row.get("M")),
+                Double.parseDouble(row.get("S")) })
+            .sorted((a, b) -> Double.compare(a[0], b[0]))
+            .toArray(double[][]::new);
+        weightForLengthLengths[index] = new double[table.length];
+        weightForLengthLms[index] = new double[table.length][];
+        for (int i = 0; i < table.length; i++) {
+          weightForLengthLengths[index][i] = table[i][0];
+          weightForLengthLms[index][i] = Arrays.copyOfRange(table[i], 1, 4);
+        }
+      }
     } catch (Exception e) {
       System.err.println("ERROR: unable to load csv: " + filename);
       e.printStackTrace();
@@ -129,7 +164,7 @@ public final class LifecycleModule extends Module {
   public static void birth(Person person, long time) {
     Map<String, Object> attributes = person.attributes;
 
-    attributes.put(Person.ID, UUID.randomUUID().toString());
+    attributes.put(Person.ID, new IdGenerator(person.seed, "person").nextId());
     attributes.put(Person.BIRTHDATE, time);
     String gender = (String) attributes.get(Person.GENDER);
     String language = (String) attributes.get(Person.FIRST_LANGUAGE);
@@ -579,22 +614,25 @@ public final class LifecycleModule extends Module {
     if (person.ageInMonths(time) <= 36) {
       double height = person.getVitalSign(VitalSign.HEIGHT, time);
       double weight = person.getVitalSign(VitalSign.WEIGHT, time);
-      String gender = (String) person.attributes.get(Person.GENDER);
-      LinkedHashMap<String, String> entry = null;
-      for (LinkedHashMap<String, String> row : weightForLengthChart) {
-        if (row.get("Sex").equals(gender)
-            && height < Double.parseDouble(row.get("Length"))) {
-          entry = row;
-          break;
+      int sex = GrowthChart.sexIndex((String) person.attributes.get(Person.GENDER));
+      // find the first row with a length greater than the height
+      double[] lengths = weightForLengthLengths[sex];
+      int low = 0;
+      int high = lengths.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (height < lengths[mid]) {
+          high = mid;
+        } else {
+          low = mid + 1;
         }
       }
-      if (entry == null) {
+      if (low == lengths.length) {
         person.attributes.put(Person.CURRENT_WEIGHT_LENGTH_PERCENTILE, 99.0);
       } else {
-        double l = Double.parseDouble(entry.get("L"));
-        double m = Double.parseDouble(entry.get("M"));
-        double s = Double.parseDouble(entry.get("S"));
-        double z = new GrowthChartEntry(l, m, s).zscoreForValue(weight);
+        double[] lms = weightForLengthLms[sex][low];
+        double z = GrowthChart.zscoreForValue(lms[GrowthChart.L], lms[GrowthChart.M],
+            lms[GrowthChart.S], weight);
         double percentile = GrowthChart.zscoreToPercentile(z) * 100.0;
         person.attributes.put(Person.CURRENT_WEIGHT_LENGTH_PERCENTILE, percentile);
       }
@@ -692,33 +730,112 @@ public final class LifecycleModule extends Module {
   private static final double[] RESPIRATION_RATE_NORMAL =
       BiometricsConfig.doubles("respiratory.respiration_rate.normal");
 
+  private static final long TIMESTEP = Long.parseLong(Config.get("generate.timestep"));
+
   /**
-   * Calculate this person's vital signs, 
-   * based on their conditions, medications, body composition, etc.
+   * Make sure this person's lab value vital signs use the on-demand generators,
+   * which calculate values based on their conditions, medications, body composition, etc.
+   * when they are read. Generators replaced by other modules since the last time step
+   * are restored.
    * @param person The person
    * @param time Current simulation timestamp
    */
+  @SuppressWarnings("unchecked")
   private static void calculateVitalSigns(Person person, long time) {
+    Map<VitalSign, ValueGenerator> generators =
+        (Map<VitalSign, ValueGenerator>) person.attributes.get(LAB_VALUE_GENERATORS);
+    if (generators == null) {
+      generators = createLabValueGenerators(person);
+      person.attributes.put(LAB_VALUE_GENERATORS, generators);
+    }
+    for (Map.Entry<VitalSign, ValueGenerator> e : generators.entrySet()) {
+      if (person.vitalSigns.get(e.getKey()) != e.getValue()) {
+        person.setVitalSign(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  /**
+   * Create the on-demand generators for this person's lab value vital signs.
+   * @param person The person
+   * @return map of vital sign to the generator for it
+   */
+  private static Map<VitalSign, ValueGenerator> createLabValueGenerators(Person person) {
+    Map<VitalSign, ValueGenerator> generators = new EnumMap<>(VitalSign.class);
+    new Panel(LifecycleModule::calculateLipids, VitalSign.TOTAL_CHOLESTEROL,
+        VitalSign.TRIGLYCERIDES, VitalSign.HDL, VitalSign.LDL)
+        .addGenerators(person, generators);
+    new Panel(LifecycleModule::calculateHbA1c, VitalSign.BLOOD_GLUCOSE)
+        .addGenerators(person, generators);
+    new Panel(LifecycleModule::calculateOxygenSaturation, VitalSign.OXYGEN_SATURATION)
+        .addGenerators(person, generators);
+    new Panel(LifecycleModule::calculateKidneyFunction, VitalSign.EGFR,
+        VitalSign.MICROALBUMIN_CREATININE_RATIO, VitalSign.CREATININE)
+        .addGenerators(person, generators);
+    new Panel((p, t, v) -> v[0] = p.rand(UREA_NITROGEN_RANGE), VitalSign.UREA_NITROGEN)
+        .addGenerators(person, generators);
+    new Panel((p, t, v) -> v[0] = p.rand(CALCIUM_RANGE), VitalSign.CALCIUM)
+        .addGenerators(person, generators);
+    new Panel(LifecycleModule::calculateGlucose, VitalSign.GLUCOSE)
+        .addGenerators(person, generators);
+    new Panel((p, t, v) -> v[0] = p.rand(CHLORIDE_RANGE), VitalSign.CHLORIDE)
+        .addGenerators(person, generators);
+    new Panel((p, t, v) -> v[0] = p.rand(POTASSIUM_RANGE), VitalSign.POTASSIUM)
+        .addGenerators(person, generators);
+    new Panel((p, t, v) -> v[0] = p.rand(CO2_RANGE), VitalSign.CARBON_DIOXIDE)
+        .addGenerators(person, generators);
+    new Panel((p, t, v) -> v[0] = p.rand(SODIUM_RANGE), VitalSign.SODIUM)
+        .addGenerators(person, generators);
+    new Panel(new TrendCalculation(HEART_RATE_NORMAL), VitalSign.HEART_RATE)
+        .addGenerators(person, generators);
+    new Panel(new TrendCalculation(RESPIRATION_RATE_NORMAL), VitalSign.RESPIRATION_RATE)
+        .addGenerators(person, generators);
+    return generators;
+  }
+
+  /**
+   * Get the index into the lab value ranges based on diabetes severity.
+   * @param person The person
+   * @return index into the ranges
+   */
+  private static int diabetesSeverityIndex(Person person) {
     int index = 0;
     if (person.attributes.containsKey("diabetes_severity")) {
       index = (Integer) person.attributes.getOrDefault("diabetes_severity", 1);
     }
-    
+    return index;
+  }
+
+  /**
+   * Calculate the lipid panel: total cholesterol, triglycerides, HDL, and LDL.
+   * @param person The person
+   * @param time Current simulation timestamp
+   * @param values The values, in panel order
+   */
+  private static void calculateLipids(Person person, long time, double[] values) {
+    int index = diabetesSeverityIndex(person);
     double totalCholesterol = person.rand(CHOLESTEROL_RANGE[index], CHOLESTEROL_RANGE[index + 1]);
     double triglycerides = person.rand(TRIGLYCERIDES_RANGE[index], TRIGLYCERIDES_RANGE[index + 1]);
     double hdl = person.rand(HDL_RANGE[index], HDL_RANGE[index + 1]);
     double ldl = totalCholesterol - hdl - (0.2 * triglycerides);
-    
-    person.setVitalSign(VitalSign.TOTAL_CHOLESTEROL, totalCholesterol);
-    person.setVitalSign(VitalSign.TRIGLYCERIDES, triglycerides);
-    person.setVitalSign(VitalSign.HDL, hdl);
-    person.setVitalSign(VitalSign.LDL, ldl);
-    
+    values[0] = totalCholesterol;
+    values[1] = triglycerides;
+    values[2] = hdl;
+    values[3] = ldl;
+  }
+
+  /**
+   * Calculate HbA1c, which is stored as the "Blood Glucose" vital sign.
+   * @param person The person
+   * @param time Current simulation timestamp
+   * @param values The values, in panel order
+   */
+  private static void calculateHbA1c(Person person, long time, double[] values) {
     double bmi = person.getVitalSign(VitalSign.BMI, time);
     boolean prediabetes = (boolean)person.attributes.getOrDefault("prediabetes", false);
     boolean diabetes = (boolean)person.attributes.getOrDefault("diabetes", false);
     double hbA1c = estimateHbA1c(bmi, prediabetes, diabetes, person);
-    
+
     if (prediabetes || diabetes) {
       // drugs reduce hbA1c.
       // only do this for people that have pre/diabetes, 
@@ -732,16 +849,33 @@ public final class LifecycleModule extends Module {
         }
       }
     }
-    person.setVitalSign(VitalSign.BLOOD_GLUCOSE, hbA1c);
+    values[0] = hbA1c;
+  }
 
+  /**
+   * Calculate blood oxygen saturation.
+   * @param person The person
+   * @param time Current simulation timestamp
+   * @param values The values, in panel order
+   */
+  private static void calculateOxygenSaturation(Person person, long time, double[] values) {
     int oxygenSaturation;
     if (person.attributes.containsKey("chf")) {
       oxygenSaturation = (int) person.rand(BLOOD_OXYGEN_SATURATION_HYPOXEMIA);
     } else {
       oxygenSaturation = (int) person.rand(BLOOD_OXYGEN_SATURATION_NORMAL);
     }
-    person.setVitalSign(VitalSign.OXYGEN_SATURATION, oxygenSaturation);
+    values[0] = oxygenSaturation;
+  }
 
+  /**
+   * Calculate kidney function: creatinine clearance (EGFR), microalbumin creatinine ratio,
+   * and creatinine.
+   * @param person The person
+   * @param time Current simulation timestamp
+   * @param values The values, in panel order
+   */
+  private static void calculateKidneyFunction(Person person, long time, double[] values) {
     // CKD == stage of "Chronic Kidney Disease" or the level of diabetic kidney damage
     int kidneyDamage = (Integer) person.attributes.getOrDefault("ckd", 0);
     int[] ccRange;
@@ -772,39 +906,46 @@ public final class LifecycleModule extends Module {
         mcrRange = NORMAL_MCR_RANGE;
     }
     double creatinineClearance = person.rand(ccRange);
-    person.setVitalSign(VitalSign.EGFR, creatinineClearance);
-    
     double microalbuminCreatinineRatio = person.rand(mcrRange);
-    person.setVitalSign(VitalSign.MICROALBUMIN_CREATININE_RATIO, microalbuminCreatinineRatio);
-    
     double creatinine = reverseCalculateCreatinine(person, creatinineClearance, time);
-    person.setVitalSign(VitalSign.CREATININE, creatinine);
-    
-    person.setVitalSign(VitalSign.UREA_NITROGEN, person.rand(UREA_NITROGEN_RANGE));
-    person.setVitalSign(VitalSign.CALCIUM, person.rand(CALCIUM_RANGE));
-    
-    index = Math.min(index, 2); // note this continues from the index logic above
-    
-    double glucose = person.rand(GLUCOSE_RANGE[index], GLUCOSE_RANGE[index + 1]);
-    person.setVitalSign(VitalSign.GLUCOSE, glucose);
-
-    person.setVitalSign(VitalSign.CHLORIDE, person.rand(CHLORIDE_RANGE));
-    person.setVitalSign(VitalSign.POTASSIUM, person.rand(POTASSIUM_RANGE));
-    person.setVitalSign(VitalSign.CARBON_DIOXIDE, person.rand(CO2_RANGE));
-    person.setVitalSign(VitalSign.SODIUM, person.rand(SODIUM_RANGE));
-
-    long timestep = Long.parseLong(Config.get("generate.timestep"));
-    double heartStart = person.rand(HEART_RATE_NORMAL);
-    double heartEnd = person.rand(HEART_RATE_NORMAL);
-    person.setVitalSign(VitalSign.HEART_RATE,
-        new TrendingValueGenerator(person, 1.0, heartStart, heartEnd,
-            time, time + timestep, HEART_RATE_NORMAL[0], HEART_RATE_NORMAL[1]));
-
-    double respirationStart = person.rand(RESPIRATION_RATE_NORMAL);
-    double respirationEnd = person.rand(RESPIRATION_RATE_NORMAL);
-    person.setVitalSign(VitalSign.RESPIRATION_RATE,
-        new TrendingValueGenerator(person, 1.0, respirationStart, respirationEnd,
-            time, time + timestep, RESPIRATION_RATE_NORMAL[0], RESPIRATION_RATE_NORMAL[1]));
+    values[0] = creatinineClearance;
+    values[1] = microalbuminCreatinineRatio;
+    values[2] = creatinine;
+  }
+
+  /**
+   * Calculate blood glucose.
+   * @param person The person
+   * @param time Current simulation timestamp
+   * @param values The values, in panel order
+   */
+  private static void calculateGlucose(Person person, long time, double[] values) {
+    int index = Math.min(diabetesSeverityIndex(person), 2);
+    values[0] = person.rand(GLUCOSE_RANGE[index], GLUCOSE_RANGE[index + 1]);
+  }
+
+  /**
+   * Calculates values that trend between two random points within a normal range over
+   * the course of a time step, such as heart rate and respiration rate.
+   */
+  private static class TrendCalculation implements LabValueGenerator.Calculation {
+    private final double[] range;
+    private TrendingValueGenerator trend;
+
+    private TrendCalculation(double[] range) {
+      this.range = range;
+    }
+
+    @Override
+    public void calculate(Person person, long time, double[] values) {
+      if (trend == null || time < trend.getBeginTime() || time > trend.getEndTime()) {
+        double start = person.rand(range);
+        double end = person.rand(range);
+        trend = new TrendingValueGenerator(person, 1.0, start, end,
+            time, time + TIMESTEP, range[0], range[1]);
+      }
+      values[0] = trend.getValue(time);
+    }
   }
 
   /**
@@ -1167,6 +1308,8 @@ public final class LifecycleModule extends Module {
     Attributes.inventory(attributes, m, ADHERENCE_PROBABILITY, false, true, "1.0");
     Attributes.inventory(attributes, m, AGE, false, true, "Numeric");
     Attributes.inventory(attributes, m, AGE_MONTHS, false, true, "Numeric");
+    Attributes.inventory(attributes, m, LAB_VALUE_GENERATORS, true, true,
+        "Map<VitalSign, ValueGenerator>");
     Attributes.inventory(attributes, m, BirthStatistics.BIRTH_SEX, false, true, "M");
     Attributes.inventory(attributes, m,
         LifecycleModule.QUIT_SMOKING_PROBABILITY, false, true, "1.0");
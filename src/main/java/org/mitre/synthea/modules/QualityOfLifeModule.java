@@ -1,19 +1,22 @@
 package org.mitre.synthea.modules;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.mitre.synthea.engine.Module;
+import org.mitre.synthea.helpers.AnnualValues;
 import org.mitre.synthea.helpers.Attributes;
 import org.mitre.synthea.helpers.Attributes.Inventory;
 import org.mitre.synthea.helpers.SimpleCSV;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.HealthRecord;
 import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
 import org.mitre.synthea.world.concepts.HealthRecord.Entry;
 
@@ -31,6 +34,7 @@ public class QualityOfLifeModule extends Module {
   public static final String QALY = "QALY";
   public static final String DALY = "DALY";
   public static final String QOLS = "QOLS";
+  public static final String HALY_TRACKER = "quality_of_life_haly_tracker";
 
   public QualityOfLifeModule() {
     this.name = "Quality of Life";
@@ -40,10 +44,10 @@ public class QualityOfLifeModule extends Module {
   @Override
   public boolean process(Person person, long time) {
     if (!person.attributes.containsKey(QALY)) {
-      person.attributes.put(QALY, new LinkedHashMap<Integer, Double>());
-      person.attributes.put(DALY, new LinkedHashMap<Integer, Double>());
-      person.attributes.put(QOLS, new LinkedHashMap<Integer, Double>());
-      // linked hashmaps to preserve insertion order, and then we can iterate by year
+      person.attributes.put(QALY, new AnnualValues());
+      person.attributes.put(DALY, new AnnualValues());
+      person.attributes.put(QOLS, new AnnualValues());
+      // annual values iterate in year order, like the insertion order they are recorded in
     }
 
     Map<Integer, Double> qalys = (Map<Integer, Double>) person.attributes.get(QALY);
@@ -92,7 +96,14 @@ public class QualityOfLifeModule extends Module {
   /**
    * Calculate the HALYs for this person, at the given time. HALYs include QALY
    * and DALY.
-   * 
+   * <p/>
+   * The calculation is incremental: running totals are kept on the person (see
+   * {@link HalyTracker}) so each call only examines the health record entries added
+   * since the previous call and the disabling conditions active in the years that
+   * have not yet been accumulated. Calls are expected to be made with non-decreasing
+   * times; calling with an earlier time, or after the person has been deserialized,
+   * discards the running totals and starts over.
+   *
    * @param person Person to calculate
    * @param stop   current timestamp
    * @return array of [daly (cumulative), qaly (cumulative), current disability
@@ -106,10 +117,8 @@ public class QualityOfLifeModule extends Module {
     // of case)
     // from http://www.who.int/healthinfo/global_burden_disease/metrics_daly/en/
     double yll = 0.0;
-    double yld = 0.0;
 
     int age = person.ageInYears(stop);
-    long birthdate = (long) person.attributes.get(Person.BIRTHDATE);
 
     if (!person.alive(stop)) {
       // life expectancy equation derived from IHME GBD 2015 Reference Life Table
@@ -120,44 +129,20 @@ public class QualityOfLifeModule extends Module {
       yll = l;
     }
 
-    // Get counts of covered healthcare.
-    List<Entry> allConditions = new ArrayList<Entry>();
-    int coveredMedicationCount = 0;
-    int coveredProcedureCount = 0;
-    int coveredImmunizationCount = 0;
-    int coveredEncounterCount = 0;
-    for (Encounter encounter : person.defaultRecord.encounters) {
-      for (Entry condition : encounter.conditions) {
-        allConditions.add(condition);
-      }
-      coveredMedicationCount += encounter.medications.size();
-      coveredProcedureCount += encounter.procedures.size();
-      coveredImmunizationCount += encounter.immunizations.size();
-      coveredEncounterCount++;
+    HalyTracker tracker = (HalyTracker) person.attributes.get(HALY_TRACKER);
+    if (tracker == null || tracker.conditions == null || stop < tracker.lastTime) {
+      tracker = new HalyTracker();
+      person.attributes.put(HALY_TRACKER, tracker);
     }
-    int coveredEntries = coveredEncounterCount + coveredMedicationCount
-        + coveredProcedureCount + coveredImmunizationCount;
+    tracker.lastTime = stop;
+
+    // Get counts of covered healthcare.
+    int coveredEntries = tracker.covered.update(person.defaultRecord, tracker.conditions);
 
     // Get counts of uncovered healthcare.
     int uncoveredEntries;
     if (person.lossOfCareEnabled) {
-      List<Entry> allLossOfCareConditions = new ArrayList<Entry>();
-      int uncoveredMedicationCount = 0;
-      int uncoveredProcedureCount = 0;
-      int uncoveredImmunizationCount = 0;
-      int uncoveredEncounterCount = 0;
-      for (Encounter encounter : person.lossOfCareRecord.encounters) {
-        for (Entry condition : encounter.conditions) {
-          allLossOfCareConditions.add(condition);
-        }
-        uncoveredMedicationCount += encounter.medications.size();
-        uncoveredProcedureCount += encounter.procedures.size();
-        uncoveredImmunizationCount += encounter.immunizations.size();
-        uncoveredEncounterCount++;
-      }
-      uncoveredEntries = uncoveredEncounterCount + uncoveredMedicationCount
-          + uncoveredProcedureCount + uncoveredImmunizationCount;
-      allConditions.addAll(allLossOfCareConditions);
+      uncoveredEntries = tracker.uncovered.update(person.lossOfCareRecord, tracker.conditions);
     } else {
       uncoveredEntries = 0;
     }
@@ -169,24 +154,18 @@ public class QualityOfLifeModule extends Module {
     }
     double percentageOfCoveredCare = coveredEntries / (coveredEntries + uncoveredEntries);
 
-    double disabilityWeight = 0.0;
-    // calculate yld with yearly timestep
-    for (int i = 0; i < age + 1; i++) {
-      long yearStart = birthdate + TimeUnit.DAYS.toMillis((long) (365.25 * i));
-      long yearEnd = birthdate + (TimeUnit.DAYS.toMillis((long) (365.25 * (i + 1) - 1)));
-      List<Entry> conditionsInYear = conditionsInYear(allConditions, yearStart, yearEnd);
-
-      disabilityWeight = 0.0;
-
-      for (Entry condition : conditionsInYear) {
-        // Get the disability weight for this condition based on the percentageOfCoveredCare.
-        disabilityWeight +=
-            (double) disabilityWeights.get(condition.codes.get(0).code)
-            .getWeight(percentageOfCoveredCare);
-      }
+    // calculate yld with yearly timestep, only for the years not yet accumulated
+    long birthdate = (long) person.attributes.get(Person.BIRTHDATE);
+    tracker.accumulate(birthdate, age);
 
-      disabilityWeight = Math.min(1.0, weight(disabilityWeight, i + 1));
-      yld += disabilityWeight;
+    double disabilityWeight;
+    double yld;
+    if (percentageOfCoveredCare >= 1.0) {
+      disabilityWeight = tracker.coveredWeight;
+      yld = tracker.coveredYld;
+    } else {
+      disabilityWeight = tracker.uncoveredWeight;
+      yld = tracker.uncoveredYld;
     }
 
     double daly = yll + yld;
@@ -240,23 +219,136 @@ public class QualityOfLifeModule extends Module {
    */
   public static void inventoryAttributes(Map<String, Inventory> attributes) {
     String m = QualityOfLifeModule.class.getSimpleName();
-    Attributes.inventory(attributes, m, QALY, true, true, "LinkedHashMap<Integer, Double>");
-    Attributes.inventory(attributes, m, DALY, true, true, "LinkedHashMap<Integer, Double>");
-    Attributes.inventory(attributes, m, QOLS, true, true, "LinkedHashMap<Integer, Double>");
+    Attributes.inventory(attributes, m, QALY, true, true, "AnnualValues");
+    Attributes.inventory(attributes, m, DALY, true, true, "AnnualValues");
+    Attributes.inventory(attributes, m, QOLS, true, true, "AnnualValues");
     Attributes.inventory(attributes, m, Person.BIRTHDATE, true, false, null);
+    Attributes.inventory(attributes, m, HALY_TRACKER, true, true, "HalyTracker");
     Attributes.inventory(attributes, m, "most-recent-daly", false, true, "Numeric");
     Attributes.inventory(attributes, m, "most-recent-qaly", false, true, "Numeric");
   }
 
+  /**
+   * Running totals for the HALY calculation of a single person.
+   * <br/>
+   * The disability weight of a condition depends on the percentage of covered care
+   * over the person's entire life, which can change at any time and is applied
+   * retroactively to every year. Since that percentage is currently either 0 or 1,
+   * YLD is accumulated for both cases and the appropriate one is chosen at the end.
+   * <br/>
+   * The tracker is kept in the person's attributes, so it must be serializable with them.
+   * The disabling conditions belong to the person's health records and are not serialized;
+   * a deserialized tracker is discarded and the totals are calculated again.
+   */
+  private static class HalyTracker implements Serializable {
+    private static final long serialVersionUID = 2926185864987287010L;
+    /** Timestamp of the most recent calculation. */
+    private long lastTime = Long.MIN_VALUE;
+    /** Number of years of life already accumulated into the YLD totals. */
+    private int years = 0;
+    /**
+     * Disabling conditions that may still be active in a year not yet accumulated, or null if
+     * the tracker has been deserialized.
+     */
+    private transient List<Entry> conditions = new LinkedList<Entry>();
+    private RecordTally covered = new RecordTally();
+    private RecordTally uncovered = new RecordTally();
+    private double coveredYld = 0.0;
+    private double uncoveredYld = 0.0;
+    private double coveredWeight = 0.0;
+    private double uncoveredWeight = 0.0;
+
+    /**
+     * Accumulate YLD for each year of life from the last accumulated year up to and
+     * including the given age. Conditions that ended before the start of a year can
+     * never be active again, so they are dropped as the years advance.
+     * @param birthdate The birthdate of the person.
+     * @param age The current age of the person in years.
+     */
+    private void accumulate(long birthdate, int age) {
+      for (; years < age + 1; years++) {
+        long yearStart = birthdate + TimeUnit.DAYS.toMillis((long) (365.25 * years));
+        double coveredSum = 0.0;
+        double uncoveredSum = 0.0;
+        Iterator<Entry> iter = conditions.iterator();
+        while (iter.hasNext()) {
+          Entry condition = iter.next();
+          if (condition.stop != 0 && condition.stop <= yearStart) {
+            iter.remove();
+          } else if (yearStart >= condition.start) {
+            DisabilityWeight dw = disabilityWeights.get(condition.codes.get(0).code);
+            coveredSum += dw.coveredWeight;
+            uncoveredSum += dw.uncoveredWeight;
+          }
+        }
+        coveredWeight = Math.min(1.0, weight(coveredSum, years + 1));
+        uncoveredWeight = Math.min(1.0, weight(uncoveredSum, years + 1));
+        coveredYld += coveredWeight;
+        uncoveredYld += uncoveredWeight;
+      }
+    }
+  }
+
+  /**
+   * Tracks how far into a health record the HALY calculation has already looked.
+   * Entries are only ever added to the most recent encounter, so every encounter
+   * before it is counted exactly once and only the most recent one is re-counted.
+   */
+  private static class RecordTally implements Serializable {
+    private static final long serialVersionUID = 4206030667689041689L;
+    /** Encounters before this index have been counted into entries. */
+    private int encounterIndex = 0;
+    /** Conditions before this index in the current encounter have been registered. */
+    private int conditionIndex = 0;
+    /** Number of entries in all encounters before encounterIndex. */
+    private int entries = 0;
+
+    /**
+     * Register any new disabling conditions and count the entries in the record.
+     * @param record The health record to examine.
+     * @param disablingConditions The list to add newly found disabling conditions to.
+     * @return The total number of encounters, medications, procedures, and immunizations.
+     */
+    private int update(HealthRecord record, List<Entry> disablingConditions) {
+      List<Encounter> encounters = record.encounters;
+      while (encounterIndex < encounters.size()) {
+        Encounter encounter = encounters.get(encounterIndex);
+        for (; conditionIndex < encounter.conditions.size(); conditionIndex++) {
+          Entry condition = encounter.conditions.get(conditionIndex);
+          if (!condition.codes.isEmpty()
+              && disabilityWeights.containsKey(condition.codes.get(0).code)) {
+            disablingConditions.add(condition);
+          }
+        }
+        int count = 1 + encounter.medications.size() + encounter.procedures.size()
+            + encounter.immunizations.size();
+        if (encounterIndex == encounters.size() - 1) {
+          // the most recent encounter may still receive new entries
+          return entries + count;
+        }
+        entries += count;
+        encounterIndex++;
+        conditionIndex = 0;
+      }
+      return entries;
+    }
+  }
+
   private static class DisabilityWeight {
     public double low;
     public double medium;
     public double high;
+    /** Weight when all care was covered. */
+    public double coveredWeight;
+    /** Weight when care was not covered. */
+    public double uncoveredWeight;
 
     public DisabilityWeight(Map<String, String> values) {
       this.low = parseDouble(values.getOrDefault("LOW", "0.0"));
       this.medium = parseDouble(values.getOrDefault("MED", "0.0"));
       this.high = parseDouble(values.getOrDefault("HIGH", "0.0"));
+      this.coveredWeight = getWeight(1.0);
+      this.uncoveredWeight = getWeight(0.0);
     }
 
     /**
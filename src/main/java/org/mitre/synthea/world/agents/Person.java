@@ -20,10 +20,12 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.math3.random.JDKRandomGenerator;
 import org.mitre.synthea.engine.Module;
 import org.mitre.synthea.engine.State;
+import org.mitre.synthea.helpers.AnnualValues;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.ConstantValueGenerator;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.helpers.ValueGenerator;
+import org.mitre.synthea.modules.LifecycleModule;
 import org.mitre.synthea.modules.QualityOfLifeModule;
 import org.mitre.synthea.world.concepts.HealthRecord;
 import org.mitre.synthea.world.concepts.HealthRecord.Code;
@@ -32,7 +34,7 @@ import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
 import org.mitre.synthea.world.concepts.VitalSign;
 import org.mitre.synthea.world.geography.quadtree.QuadTreeElement;
 
-public class Person implements Serializable, QuadTreeElement {
+public class Person implements Serializable, Cloneable, QuadTreeElement {
   private static final long serialVersionUID = 4322116644425686379L;
   private static final ZoneId timeZone = ZoneId.systemDefault();
 
@@ -86,11 +88,15 @@ public class Person implements Serializable, QuadTreeElement {
   private static final String DEDUCTIBLE = "deductible";
   private static final String LAST_MONTH_PAID = "last_month_paid";
 
-  public final JDKRandomGenerator random;
+  public JDKRandomGenerator random;
   public final long seed;
   public long populationSeed;
   public Map<String, Object> attributes;
   public Map<VitalSign, ValueGenerator> vitalSigns;
+  /** The generator, time, and value of the most recent read of each vital sign. */
+  private ValueGenerator[] vitalSignCacheGenerators;
+  private long[] vitalSignCacheTimes;
+  private double[] vitalSignCacheValues;
   private Map<String, Map<String, Integer>> symptoms;
   private Map<String, Map<String, Boolean>> symptomStatuses;
   public Map<String, HealthRecord.Medication> chronicMedications;
@@ -118,10 +124,10 @@ public class Person implements Serializable, QuadTreeElement {
   public Payer[] payerHistory;
   // Each element in payerOwnerHistory array corresponds to the owner of the insurance at that age.
   private String[] payerOwnerHistory;
-  /* Annual Health Expenses. */
-  private Map<Integer, Double> annualHealthExpenses;
-  /* Annual Health Coverage. */
-  private Map<Integer, Double> annualHealthCoverage;
+  /* Annual Health Expenses, by age. */
+  private AnnualValues annualHealthExpenses;
+  /* Annual Health Coverage, by age. */
+  private AnnualValues annualHealthCoverage;
 
   /**
    * Person constructor.
@@ -131,6 +137,9 @@ public class Person implements Serializable, QuadTreeElement {
     random = new JDKRandomGenerator((int) seed);
     attributes = new ConcurrentHashMap<String, Object>();
     vitalSigns = new ConcurrentHashMap<VitalSign, ValueGenerator>();
+    vitalSignCacheGenerators = new ValueGenerator[VitalSign.values().length];
+    vitalSignCacheTimes = new long[VitalSign.values().length];
+    vitalSignCacheValues = new double[VitalSign.values().length];
     symptoms = new ConcurrentHashMap<String, Map<String, Integer>>();
     symptomStatuses = new ConcurrentHashMap<String, Map<String, Boolean>>();
     /* Chronic Medications which will be renewed at each Wellness Encounter */
@@ -150,8 +159,8 @@ public class Person implements Serializable, QuadTreeElement {
     // 128 because it's a nice power of 2, and nobody will reach that age
     payerHistory = new Payer[128];
     payerOwnerHistory = new String[128];
-    annualHealthExpenses = new HashMap<Integer, Double>();
-    annualHealthCoverage = new HashMap<Integer, Double>();
+    annualHealthExpenses = new AnnualValues();
+    annualHealthCoverage = new AnnualValues();
   }
 
   /**
@@ -377,12 +386,26 @@ public class Person implements Serializable, QuadTreeElement {
     symptomStatuses.get(highestType).put(highestCause, true);
   }
 
+  /**
+   * Get the value of a vital sign at the given time, rounded to a precision appropriate
+   * for the vital sign. The most recent value of each vital sign is remembered, so reading
+   * the same vital sign more than once at the same time returns the same value without
+   * asking the generator again, until the generator is replaced.
+   *
+   * @param vitalSign The vital sign.
+   * @param time The time of interest.
+   * @return The value of the vital sign.
+   */
   public Double getVitalSign(VitalSign vitalSign, long time) {
     ValueGenerator valueGenerator = vitalSigns.get(vitalSign);
     if (valueGenerator == null) {
       throw new NullPointerException(
           "Vital sign '" + vitalSign + "' not set. Valid vital signs: " + vitalSigns.keySet());
     }
+    int index = vitalSign.ordinal();
+    if (vitalSignCacheGenerators[index] == valueGenerator && vitalSignCacheTimes[index] == time) {
+      return vitalSignCacheValues[index];
+    }
     double value = valueGenerator.getValue(time);
     int decimalPlaces;
     switch (vitalSign) {
@@ -399,7 +422,29 @@ public class Person implements Serializable, QuadTreeElement {
       default:
         decimalPlaces = 2;
     }
-    return BigDecimal.valueOf(value).setScale(decimalPlaces, RoundingMode.HALF_UP).doubleValue();
+    value = roundHalfUp(value, decimalPlaces);
+    vitalSignCacheGenerators[index] = valueGenerator;
+    vitalSignCacheTimes[index] = time;
+    vitalSignCacheValues[index] = value;
+    return value;
+  }
+
+  private static final double[] POWERS_OF_TEN = { 1.0, 10.0, 100.0 };
+
+  /**
+   * Round a value to the given number of decimal places, with ties rounded away from zero.
+   * @param value The value to round.
+   * @param decimalPlaces The number of decimal places, 0 through 2.
+   * @return The rounded value.
+   */
+  private static double roundHalfUp(double value, int decimalPlaces) {
+    double scale = POWERS_OF_TEN[decimalPlaces];
+    double scaled = Math.abs(value) * scale;
+    // nudge by a couple of ulps so decimal ties such as 1.005 that are stored slightly
+    // below the tie still round up, as they would with BigDecimal.valueOf
+    double rounded = Math.floor(scaled + 0.5 + 2 * Math.ulp(scaled)) / scale;
+    // adding 0.0 turns a negative zero into a positive zero
+    return Math.copySign(rounded, value) + 0.0;
   }
 
   public void setVitalSign(VitalSign vitalSign, ValueGenerator valueGenerator) {
@@ -449,6 +494,87 @@ public class Person implements Serializable, QuadTreeElement {
     symptoms.clear();
   }
 
+  /**
+   * Returns a copy of this person, whose current record is the given record. This lets the
+   * records of a person be exported on other threads while this person is still in use. The
+   * copy has its own attributes, its own random number generator, seeded the same way as this
+   * person's was, and its own memo of vital sign values, so exporting the copy neither sees
+   * nor makes changes to this person. The health records, and everything else, are shared and
+   * must not be changed while the copy is exported.
+   * @param record The record to export.
+   * @return The copy.
+   */
+  public Person withRecord(HealthRecord record) {
+    try {
+      Person copy = (Person) super.clone();
+      copy.record = record;
+      copy.attributes = new ConcurrentHashMap<String, Object>(attributes);
+      copy.random = new JDKRandomGenerator((int) seed);
+      copy.vitalSignCacheGenerators = vitalSignCacheGenerators.clone();
+      copy.vitalSignCacheTimes = vitalSignCacheTimes.clone();
+      copy.vitalSignCacheValues = vitalSignCacheValues.clone();
+      return copy;
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Release the state that is only needed while this person is being simulated, once the
+   * simulation of this person has ended. The health records, attributes read by the exporters,
+   * payer history, and module histories (used by TransitionMetrics) are kept. Vital sign
+   * generators, chronic medications, and simulation-only attributes are dropped, and symptoms
+   * are reduced to the current severity of each symptom type.
+   * <p></p>
+   * After this is called, vital signs can no longer be read and the person can not continue
+   * to be simulated.
+   */
+  public void compactForExport() {
+    vitalSigns.clear();
+    Arrays.fill(vitalSignCacheGenerators, null);
+    chronicMedications.clear();
+
+    Map<String, Map<String, Integer>> compactSymptoms =
+        new ConcurrentHashMap<String, Map<String, Integer>>();
+    Map<String, Map<String, Boolean>> compactStatuses =
+        new ConcurrentHashMap<String, Map<String, Boolean>>();
+    for (String type : symptoms.keySet()) {
+      Map<String, Integer> severity = new ConcurrentHashMap<String, Integer>();
+      Map<String, Boolean> addressed = new ConcurrentHashMap<String, Boolean>();
+      severity.put(type, getSymptom(type));
+      addressed.put(type, false);
+      compactSymptoms.put(type, severity);
+      compactStatuses.put(type, addressed);
+    }
+    symptoms = compactSymptoms;
+    symptomStatuses = compactStatuses;
+
+    attributes.remove(CURRENT_ENCOUNTERS);
+    attributes.remove(GROWTH_TRAJECTORY);
+    attributes.remove(LifecycleModule.LAB_VALUE_GENERATORS);
+    attributes.remove(QualityOfLifeModule.HALY_TRACKER);
+  }
+
+  /**
+   * Remove the entries of each of this person's health records that ended before the given
+   * time and are no longer in use. See {@link HealthRecord#elideHistory(long)}.
+   *
+   * @param cutoff Entries that started and stopped before or at this time may be removed.
+   */
+  public void elideHistory(long cutoff) {
+    defaultRecord.elideHistory(cutoff);
+    if (lossOfCareRecord != null) {
+      lossOfCareRecord.elideHistory(cutoff);
+    }
+    if (records != null) {
+      for (HealthRecord providerRecord : records.values()) {
+        if (providerRecord != defaultRecord) {
+          providerRecord.elideHistory(cutoff);
+        }
+      }
+    }
+  }
+
   public boolean hadPriorState(String name) {
     return hadPriorState(name, null, null);
   }
@@ -700,28 +826,28 @@ public class Person implements Serializable, QuadTreeElement {
   * Returns the sum of QALYS of this person's life.
   */
   public double getQalys() {
-
-    Map<Integer, Double> qalys
-        = (Map<Integer, Double>) this.attributes.get(QualityOfLifeModule.QALY);
-
-    double sum = 0.0;
-    for (double currQaly : qalys.values()) {
-      sum += currQaly;
-    }
-    return sum;
+    return sumOfAnnualAttribute(QualityOfLifeModule.QALY);
   }
 
   /**
    * Returns the sum of DALYS of this person's life.
    */
   public double getDalys() {
+    return sumOfAnnualAttribute(QualityOfLifeModule.DALY);
+  }
 
-    Map<Integer, Double> dalys
-        = (Map<Integer, Double>) this.attributes.get(QualityOfLifeModule.DALY);
-
+  /**
+   * Returns the sum of a yearly attribute, such as QALY or DALY, over this person's life.
+   */
+  @SuppressWarnings("unchecked")
+  private double sumOfAnnualAttribute(String attribute) {
+    Object values = this.attributes.get(attribute);
+    if (values instanceof AnnualValues) {
+      return ((AnnualValues) values).sum();
+    }
     double sum = 0.0;
-    for (double currDaly : dalys.values()) {
-      sum += currDaly;
+    for (double value : ((Map<Integer, Double>) values).values()) {
+      sum += value;
     }
     return sum;
   }
@@ -749,12 +875,7 @@ public class Person implements Serializable, QuadTreeElement {
    */
   private boolean stillHasIncome(long time) {
 
-    double currentYearlyExpenses;
-    if (this.annualHealthExpenses.containsKey(this.ageInYears(time))) {
-      currentYearlyExpenses = this.annualHealthExpenses.get(this.ageInYears(time));
-    } else {
-      currentYearlyExpenses = 0.0;
-    }
+    double currentYearlyExpenses = this.annualHealthExpenses.get(this.ageInYears(time), 0.0);
 
     if ((int) this.attributes.get(Person.INCOME) - currentYearlyExpenses > 0) {
       // Person has remaining income for the year.
@@ -812,7 +933,7 @@ public class Person implements Serializable, QuadTreeElement {
    */
   public void addExpense(double costToPatient, long time) {
     int age = this.ageInYears(time);
-    annualHealthExpenses.merge(age, costToPatient, Double::sum);
+    annualHealthExpenses.add(age, costToPatient);
   }
 
   /**
@@ -823,21 +944,21 @@ public class Person implements Serializable, QuadTreeElement {
    */
   public void addCoverage(double payerCoverage, long time) {
     int age = this.ageInYears(time);
-    annualHealthCoverage.merge(age, payerCoverage, Double::sum);
+    annualHealthCoverage.add(age, payerCoverage);
   }
 
   /**
    * Returns the total healthcare expenses for this person.
    */
   public double getHealthcareExpenses() {
-    return annualHealthExpenses.values().stream().mapToDouble(Double::doubleValue).sum();
+    return annualHealthExpenses.sum();
   }
 
   /**
    * Returns the total healthcare coverage for this person.
    */
   public double getHealthcareCoverage() {
-    return annualHealthCoverage.values().stream().mapToDouble(Double::doubleValue).sum();
+    return annualHealthCoverage.sum();
   }
 
   @SuppressWarnings("unchecked")
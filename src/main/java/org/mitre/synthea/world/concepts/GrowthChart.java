@@ -2,10 +2,10 @@ package org.mitre.synthea.world.concepts;
 
 import com.google.gson.Gson;
 
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.special.Erf;
 import org.mitre.synthea.helpers.Utilities;
 
@@ -17,9 +17,22 @@ public class GrowthChart {
     HEIGHT, WEIGHT, BMI, HEAD
   }
 
+  /** Index of male values in the sex dimension of the LMS table. */
+  public static final int MALE = 0;
+  /** Index of female values in the sex dimension of the LMS table. */
+  public static final int FEMALE = 1;
+  /** Index of the Box-Cox power in an LMS triple. */
+  public static final int L = 0;
+  /** Index of the median in an LMS triple. */
+  public static final int M = 1;
+  /** Index of the coefficient of variation in an LMS triple. */
+  public static final int S = 2;
+
+  private static final double SQRT2 = Math.sqrt(2);
+
   private ChartType chartType;
-  private HashMap<Integer, GrowthChartEntry> maleEntries;
-  private HashMap<Integer, GrowthChartEntry> femaleEntries;
+  /** LMS values indexed by [sex][ageInMonths][L,M,S]. Months without data are null. */
+  private double[][][] lms;
 
   /**
    * Construct a new GrowthChart.
@@ -28,25 +41,52 @@ public class GrowthChart {
    */
   public GrowthChart(ChartType chartType, Map<String, Map<String, Map<String, String>>> rawChart) {
     this.chartType = chartType;
-    this.maleEntries = new HashMap<Integer, GrowthChartEntry>();
-    this.femaleEntries = new HashMap<Integer, GrowthChartEntry>();
-    Map<String, Map<String, String>> maleValues = rawChart.get("M");
-    maleValues.keySet().forEach(ageMonth -> {
-      Map<String, String> percentileInfo = maleValues.get(ageMonth);
-      GrowthChartEntry entry = new GrowthChartEntry(Double.parseDouble(percentileInfo.get("l")),
-          Double.parseDouble(percentileInfo.get("m")),
-          Double.parseDouble(percentileInfo.get("s")));
-      maleEntries.put(Integer.parseInt(ageMonth), entry);
-    });
-    this.chartType = chartType;
-    Map<String, Map<String, String>> femaleValues = rawChart.get("F");
-    femaleValues.keySet().forEach(ageMonth -> {
-      Map<String, String> percentileInfo = femaleValues.get(ageMonth);
-      GrowthChartEntry entry = new GrowthChartEntry(Double.parseDouble(percentileInfo.get("l")),
+    this.lms = new double[2][][];
+    this.lms[MALE] = loadEntries(rawChart.get("M"));
+    this.lms[FEMALE] = loadEntries(rawChart.get("F"));
+  }
+
+  /**
+   * Convert the raw values for one sex into a dense array indexed by age in months.
+   * @param values Map of age in months to the "l", "m", and "s" values.
+   * @return LMS values indexed by [ageInMonths][L,M,S].
+   */
+  private static double[][] loadEntries(Map<String, Map<String, String>> values) {
+    int maxMonth = 0;
+    for (String ageMonth : values.keySet()) {
+      maxMonth = Math.max(maxMonth, Integer.parseInt(ageMonth));
+    }
+    double[][] entries = new double[maxMonth + 1][];
+    values.forEach((ageMonth, percentileInfo) -> {
+      entries[Integer.parseInt(ageMonth)] = new double[] {
+          Double.parseDouble(percentileInfo.get("l")),
           Double.parseDouble(percentileInfo.get("m")),
-          Double.parseDouble(percentileInfo.get("s")));
-      femaleEntries.put(Integer.parseInt(ageMonth), entry);
+          Double.parseDouble(percentileInfo.get("s")) };
     });
+    return entries;
+  }
+
+  /**
+   * Convert a gender string into an index in the sex dimension of the LMS table.
+   * @param gender "M" | "F"
+   * @return MALE or FEMALE
+   */
+  public static int sexIndex(String gender) {
+    return "M".equals(gender) ? MALE : FEMALE;
+  }
+
+  /**
+   * Get the LMS values for a particular sex and age.
+   * @param sex MALE or FEMALE
+   * @param ageInMonths 0 - 240
+   * @return the L, M, and S values, or null if the chart has no data for that age
+   */
+  private double[] entry(int sex, int ageInMonths) {
+    double[][] entries = lms[sex];
+    if (ageInMonths < 0 || ageInMonths >= entries.length) {
+      return null;
+    }
+    return entries[ageInMonths];
   }
 
   /**
@@ -60,18 +100,26 @@ public class GrowthChart {
    * @return The height (cm) or weight (kg) or BMI
    */
   public double lookUp(int ageInMonths, String gender, double percentile) {
-    GrowthChartEntry entry;
-    if (gender.equals("M")) {
-      entry = maleEntries.get(ageInMonths);
-    } else {
-      entry = femaleEntries.get(ageInMonths);
-    }
+    return lookUp(ageInMonths, sexIndex(gender), percentile);
+  }
+
+  /**
+   * Lookup and calculate values from the CDC growth charts, using the LMS
+   * values to calculate the intermediate values.
+   *
+   * @param ageInMonths 0 - 240
+   * @param sex MALE or FEMALE
+   * @param percentile 0.0 - 1.0
+   * @return The height (cm) or weight (kg) or BMI
+   */
+  public double lookUp(int ageInMonths, int sex, double percentile) {
+    double[] entry = entry(sex, ageInMonths);
     if (entry == null) {
       throw new RuntimeException(
           "GrowthChart \"" + chartType + "\" does not have data for ageInMonths=" + ageInMonths
-          + ", gender=" + gender + ", percentile=" + percentile);
+          + ", gender=" + (sex == MALE ? "M" : "F") + ", percentile=" + percentile);
     }
-    return entry.lookUp(percentile);
+    return valueForZScore(entry[L], entry[M], entry[S], calculateZScore(percentile));
   }
 
   /**
@@ -83,13 +131,52 @@ public class GrowthChart {
    * @return 0 - 1.0
    */
   public double percentileFor(int ageInMonths, String gender, double value) {
-    GrowthChartEntry entry;
-    if (gender.equals("M")) {
-      entry = maleEntries.get(ageInMonths);
+    return percentileFor(ageInMonths, sexIndex(gender), value);
+  }
+
+  /**
+   * Given a value, find the percentile of the individual based on sex and age in months.
+   *
+   * @param ageInMonths 0 - 240
+   * @param sex MALE or FEMALE
+   * @param value the weight, height or BMI
+   * @return 0 - 1.0
+   */
+  public double percentileFor(int ageInMonths, int sex, double value) {
+    double[] entry = entry(sex, ageInMonths);
+    return zscoreToPercentile(zscoreForValue(entry[L], entry[M], entry[S], value));
+  }
+
+  /**
+   * Compute the z-score given a value and the LMS parameters.
+   * @param l the power in the Box-Cox transformation
+   * @param m median
+   * @param s the generalized coefficient of variation
+   * @param value the actual value, for example a weight, height or BMI
+   * @return z-score
+   */
+  public static double zscoreForValue(double l, double m, double s, double value) {
+    if (l == 0) {
+      return Math.log(value / m) / s;
     } else {
-      entry = femaleEntries.get(ageInMonths);
+      return (Math.pow((value / m), l) - 1) / (l * s);
+    }
+  }
+
+  /**
+   * Compute the value for a z-score given the LMS parameters.
+   * @param l the power in the Box-Cox transformation
+   * @param m median
+   * @param s the generalized coefficient of variation
+   * @param z the z-score
+   * @return The value, for example a weight, height or BMI
+   */
+  public static double valueForZScore(double l, double m, double s, double z) {
+    if (l == 0) {
+      return m * Math.exp((s * z));
+    } else {
+      return m * Math.pow((1 + (l * s * z)), (1.0 / l));
     }
-    return entry.percentileForValue(value);
   }
 
   /**
@@ -126,11 +213,12 @@ public class GrowthChart {
    * @return percentile - 0.0 - 1.0
    */
   public static double zscoreToPercentile(double zscore) {
-    double percentile = 0;
-
-    NormalDistribution dist = new NormalDistribution();
-    percentile = dist.cumulativeProbability(zscore);
-    return percentile;
+    // Standard normal cumulative probability, computed directly rather than
+    // allocating a NormalDistribution (and its random generator) on every call.
+    if (Math.abs(zscore) > 40) {
+      return zscore < 0 ? 0.0d : 1.0d;
+    }
+    return 0.5 * Erf.erfc(-zscore / SQRT2);
   }
 
   /**
@@ -143,7 +231,8 @@ public class GrowthChart {
       String json = Utilities.readResource(filename);
       Gson g = new Gson();
       HashMap allCharts = g.fromJson(json, HashMap.class);
-      HashMap<ChartType, GrowthChart> returnMap = new HashMap<ChartType, GrowthChart>();
+      EnumMap<ChartType, GrowthChart> returnMap = new EnumMap<ChartType, GrowthChart>(
+          ChartType.class);
       returnMap.put(ChartType.HEIGHT,
           new GrowthChart(ChartType.HEIGHT, (Map) allCharts.get("height")));
       returnMap.put(ChartType.WEIGHT,
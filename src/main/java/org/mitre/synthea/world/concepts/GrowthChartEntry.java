@@ -26,12 +26,7 @@ public class GrowthChartEntry {
    * @return z-score
    */
   public double zscoreForValue(double value) {
-    if (this.lboxCox == 0) {
-      return Math.log(value / this.median) / this.scov;
-    } else {
-      return (Math.pow((value / this.median), this.lboxCox) - 1)
-          / (this.lboxCox * this.scov);
-    }
+    return GrowthChart.zscoreForValue(this.lboxCox, this.median, this.scov, value);
   }
 
   /**
@@ -50,10 +45,6 @@ public class GrowthChartEntry {
    */
   public double lookUp(double percentile) {
     double z = GrowthChart.calculateZScore(percentile);
-    if (this.lboxCox == 0) {
-      return this.median * Math.exp((this.scov * z));
-    } else {
-      return this.median * Math.pow((1 + (this.lboxCox * this.scov * z)), (1.0 / this.lboxCox));
-    }
+    return GrowthChart.valueForZScore(this.lboxCox, this.median, this.scov, z);
   }
 }
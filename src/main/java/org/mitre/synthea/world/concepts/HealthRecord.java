@@ -16,6 +16,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Clinician;
@@ -155,7 +156,6 @@ public class HealthRecord {
   public class Entry {
     /** reference to the HealthRecord this entry belongs to. */
     HealthRecord record = HealthRecord.this;
-    public String fullUrl;
     public String name;
     public long start;
     public long stop;
@@ -972,6 +972,64 @@ public class HealthRecord {
     return study;
   }
 
+  /**
+   * Remove the entries that ended before the given time and are no longer in use, so the
+   * record does not keep growing with the age of the person while they are simulated. These
+   * are the entries that would be filtered out on export when only the last years of history
+   * are exported (see exporter.years_of_history), with a cutoff no earlier than this one.
+   * <p></p>
+   * Conditions, allergies, medications and care plans are never removed: on export they are
+   * kept regardless of date if their type is active at the end of the simulation, and an
+   * entry that has ended may still recur and be active then. The latest observation of each
+   * type is kept, as it can still be queried. The current encounter, devices and imaging
+   * studies are never removed, and encounters are emptied but not removed, so the position
+   * of each encounter in the record does not change.
+   *
+   * @param cutoff Entries that started and stopped before or at this time may be removed.
+   */
+  public void elideHistory(long cutoff) {
+    // the latest observation of each type, as returned by getLatestObservation
+    Map<String, Observation> latest = new HashMap<String, Observation>();
+    for (int i = encounters.size() - 1; i >= 0; i--) {
+      Encounter encounter = encounters.get(i);
+      for (Observation observation : encounter.observations) {
+        latest.putIfAbsent(observation.type, observation);
+      }
+      if (i == encounters.size() - 1) {
+        // the current encounter may still be changed
+        continue;
+      }
+      List<Entry> claimItems = encounter.claim.items;
+      elideEntries(encounter.observations, claimItems, cutoff, o -> latest.get(o.type) == o);
+      elideEntries(encounter.reports, claimItems, cutoff, null);
+      elideEntries(encounter.procedures, claimItems, cutoff, null);
+      elideEntries(encounter.immunizations, claimItems, cutoff, null);
+    }
+  }
+
+  /**
+   * Remove the entries that started and stopped before or at the cutoff, unless
+   * `keepFunction` is provided and returns `true` for the entry.
+   *
+   * @param entries      List of `Entry`s to remove entries from
+   * @param claimItems   List of ClaimItems, from which any removed items are also removed
+   * @param cutoff       Entries that started and stopped before or at this time may be removed
+   * @param keepFunction Keep function, if this function returns `true` for an entry then it
+   *                     will be kept
+   */
+  private static <E extends Entry> void elideEntries(List<E> entries, List<Entry> claimItems,
+      long cutoff, Predicate<E> keepFunction) {
+    Iterator<E> iterator = entries.iterator();
+    while (iterator.hasNext()) {
+      E entry = iterator.next();
+      if (entry.start <= cutoff && (entry.stop == 0L || entry.stop <= cutoff)
+          && (keepFunction == null || !keepFunction.test(entry))) {
+        iterator.remove();
+        claimItems.removeIf(ci -> ci == entry);
+      }
+    }
+  }
+
   /**
    * Assigns random DICOM UIDs to each Series and Instance in an imaging study
    * after creation.
@@ -4,7 +4,7 @@ import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import java.lang.reflect.Type;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -105,7 +105,7 @@ public class PediatricGrowthTrajectory {
     // TODO: Make the selection sex specific
     nhanesSamples.reseedRandomGenerator(personSeed);
     this.initialSample = nhanesSamples.sample();
-    this.trajectory = new LinkedList();
+    this.trajectory = new ArrayList<Point>();
     Point p = new Point();
     p.ageInMonths = this.initialSample.agem;
     p.bmi = this.initialSample.bmi;
@@ -175,15 +175,11 @@ public class PediatricGrowthTrajectory {
    * @return Point just before it or null if it doesn't exist
    */
   public Point justBefore(long time) {
-    Point p = null;
-    for (int i = 0; i < this.trajectory.size(); i++) {
-      if (this.trajectory.get(i).timeInSimulation < time) {
-        p = this.trajectory.get(i);
-      } else {
-        return p;
-      }
+    int index = firstIndexAtOrAfter(time, false);
+    if (index == 0) {
+      return null;
     }
-    return p;
+    return this.trajectory.get(index - 1);
   }
 
   /**
@@ -192,12 +188,33 @@ public class PediatricGrowthTrajectory {
    * @return Point just after it or null if it doesn't exist
    */
   public Point justAfter(long time) {
-    for (int i = 0; i < this.trajectory.size(); i++) {
-      if (this.trajectory.get(i).timeInSimulation > time) {
-        return this.trajectory.get(i);
+    int index = firstIndexAtOrAfter(time, true);
+    if (index == this.trajectory.size()) {
+      return null;
+    }
+    return this.trajectory.get(index);
+  }
+
+  /**
+   * Binary search for the first point in the trajectory at or after the given time.
+   * Points are always added in time order, so the trajectory is sorted.
+   * @param time time of interest
+   * @param strictlyAfter whether points at exactly the given time should be skipped
+   * @return index of the first matching point, or the size of the trajectory if there is none
+   */
+  private int firstIndexAtOrAfter(long time, boolean strictlyAfter) {
+    int low = 0;
+    int high = this.trajectory.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      long pointTime = this.trajectory.get(mid).timeInSimulation;
+      if (pointTime > time || (!strictlyAfter && pointTime == time)) {
+        high = mid;
+      } else {
+        low = mid + 1;
       }
     }
-    return null;
+    return low;
   }
 
   /**
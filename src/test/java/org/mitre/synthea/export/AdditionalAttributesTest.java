@@ -13,9 +13,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Reference;
 import org.junit.Test;
 
 /**
@@ -51,6 +54,34 @@ public class AdditionalAttributesTest {
     assertTrue(encounter2.equals(encounter));
   }
 
+  @Test
+  public void testContainedResourcesAndPlaceholders() {
+    JsonObject additionalAttributes = new JsonParser().parse("{"
+        + "\"contained\": [{\"resourceType\": \"Location\", \"id\": \"REPLACE-UUID-0\","
+        + " \"name\": \"Emergency department\"}],"
+        + "\"location\": [{\"location\": {\"reference\": \"Location/REPLACE-UUID-0\"}}]"
+        + "}").getAsJsonObject();
+    Bundle bundle = new Bundle();
+    Encounter encounter = new Encounter();
+    encounter.addLocation().setLocation(new Reference("Location/existing"));
+
+    for (int i = 1; i <= 2; i++) {
+      encounter = (Encounter) FhirR4.setAdditionalAttributes(
+          encounter, additionalAttributes, bundle);
+      assertEquals(i, bundle.getEntry().size());
+      Location location = (Location) bundle.getEntry().get(i - 1).getResource();
+      assertEquals("Emergency department", location.getName());
+      String id = location.getIdElement().getIdPart();
+      assertTrue(!id.contains("REPLACE-UUID"));
+      // the existing location is replaced
+      assertEquals(1, encounter.getLocation().size());
+      assertEquals("Location/" + id, encounter.getLocationFirstRep().getLocation().getReference());
+    }
+    // each application gets a new id
+    assertTrue(!bundle.getEntry().get(0).getResource().getIdElement().getIdPart().equals(
+        bundle.getEntry().get(1).getResource().getIdElement().getIdPart()));
+  }
+
   private JsonObject parseJsonFixture(String filePath) {
     Path fixturePath = Paths.get(filePath);
     String fixtureJson = "";
@@ -0,0 +1,88 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArchiveWriterTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static final String[] NAMES = {
+      "fhir/Alice_1.json", "ccda/Alice_1.xml", "text/Bob_2.txt", "notes/Bob_2.txt"};
+
+  private Path archive(ArchiveWriter.Format format, long segmentSize) throws IOException {
+    Path base = tempFolder.newFolder().toPath();
+    Path directory = Files.createDirectory(base.resolve("archive"));
+    try (ArchiveWriter archive = new ArchiveWriter(directory, base, format, segmentSize)) {
+      for (String name : NAMES) {
+        String patientId = name.contains("Alice") ? "1" : "2";
+        try (OutputStream out = archive.newFile(patientId, base.resolve(name))) {
+          out.write(("contents of " + name).getBytes(StandardCharsets.UTF_8));
+        }
+      }
+    }
+    return directory;
+  }
+
+  /**
+   * Check that the index lists every file, and that each file can be read from its segment
+   * at the offset in the index.
+   */
+  private List<String> checkIndex(Path directory) throws IOException {
+    List<String> lines = Files.readAllLines(directory.resolve("index.csv"));
+    assertEquals("PATIENT,NAME,SEGMENT,OFFSET,LENGTH", lines.get(0));
+    assertEquals(NAMES.length + 1, lines.size());
+    List<String> segments = new ArrayList<String>();
+    for (int i = 0; i < NAMES.length; i++) {
+      String[] fields = lines.get(i + 1).split(",");
+      assertEquals(NAMES[i].contains("Alice") ? "1" : "2", fields[0]);
+      assertEquals(NAMES[i], fields[1]);
+      byte[] segment = Files.readAllBytes(directory.resolve(fields[2]));
+      String contents = new String(segment, Integer.parseInt(fields[3]),
+          Integer.parseInt(fields[4]), StandardCharsets.UTF_8);
+      assertEquals("contents of " + NAMES[i], contents);
+      if (!segments.contains(fields[2])) {
+        segments.add(fields[2]);
+      }
+    }
+    return segments;
+  }
+
+  @Test
+  public void testTarSegments() throws IOException {
+    // every file is bigger than the segment size, so each one gets a segment of its own
+    Path directory = archive(ArchiveWriter.Format.TAR, 1);
+    List<String> segments = checkIndex(directory);
+    assertEquals(NAMES.length, segments.size());
+    assertEquals("segment-00000.tar", segments.get(0));
+    for (String segment : segments) {
+      // a tar file is a whole number of 512 byte blocks
+      assertEquals(0, Files.size(directory.resolve(segment)) % 512);
+    }
+  }
+
+  @Test
+  public void testZipSegment() throws IOException {
+    Path directory = archive(ArchiveWriter.Format.ZIP, 1L << 30);
+    List<String> segments = checkIndex(directory);
+    assertEquals(1, segments.size());
+    try (ZipFile zip = new ZipFile(directory.resolve(segments.get(0)).toFile())) {
+      for (String name : NAMES) {
+        assertTrue(zip.getEntry(name) != null);
+      }
+    }
+  }
+}
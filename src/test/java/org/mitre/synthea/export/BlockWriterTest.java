@@ -0,0 +1,106 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlockWriterTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+  @Test
+  public void testNothingWrittenUntilCommit() throws Exception {
+    File file = tempFolder.newFile();
+    try (BlockWriter writer = BlockWriter.shared(file, false, null, UTF8, 16, 0L)) {
+      writer.write("uncommitted\n");
+      writer.flush();
+      assertEquals(0, file.length());
+      writer.discard();
+      writer.write("committed\n");
+      writer.commit();
+      writer.flush();
+    }
+    assertEquals("committed\n", new String(Files.readAllBytes(file.toPath()), UTF8));
+  }
+
+  @Test
+  public void testBlocksAreNotInterleaved() throws Exception {
+    File file = tempFolder.newFile();
+    int threads = 8;
+    int blocksPerThread = 200;
+    int linesPerBlock = 10;
+    try (BlockWriter writer = BlockWriter.shared(file, false, null, UTF8, 1024, 10L)) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        executor.submit(() -> {
+          for (int b = 0; b < blocksPerThread; b++) {
+            for (int l = 0; l < linesPerBlock; l++) {
+              writer.write(thread + "-" + b + "\n");
+            }
+            writer.commit();
+          }
+          return null;
+        });
+      }
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+      writer.flush();
+    }
+    List<String> lines = Files.readAllLines(file.toPath(), UTF8);
+    assertEquals(threads * blocksPerThread * linesPerBlock, lines.size());
+    for (int i = 0; i < lines.size(); i += linesPerBlock) {
+      for (int l = 1; l < linesPerBlock; l++) {
+        assertEquals(lines.get(i), lines.get(i + l));
+      }
+    }
+  }
+
+  @Test
+  public void testPartitionedWritesOnePartPerThread() throws Exception {
+    File folder = tempFolder.newFolder();
+    AtomicInteger nextPartition = new AtomicInteger();
+    ThreadLocal<Integer> partition = ThreadLocal.withInitial(nextPartition::getAndIncrement);
+    int threads = 4;
+    try (BlockWriter writer = BlockWriter.partitioned(
+        part -> new File(folder, "test.part-" + part + ".csv"), () -> partition.get(),
+        false, "HEADER\n", UTF8, 1024)) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      for (int t = 0; t < threads; t++) {
+        executor.submit(() -> {
+          for (int b = 0; b < 100; b++) {
+            writer.write("row\n");
+            writer.commit();
+          }
+          return null;
+        });
+      }
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+      writer.flush();
+    }
+    int rows = 0;
+    for (int part = 0; part < nextPartition.get(); part++) {
+      List<String> lines =
+          Files.readAllLines(new File(folder, "test.part-" + part + ".csv").toPath(), UTF8);
+      assertEquals("HEADER", lines.get(0));
+      rows += lines.size() - 1;
+    }
+    assertEquals(threads * 100, rows);
+  }
+}
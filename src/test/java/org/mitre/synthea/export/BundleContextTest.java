@@ -0,0 +1,27 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class BundleContextTest {
+  @Test
+  public void testIndexIsPerBundle() {
+    Object bundle = new Object();
+    Object other = new Object();
+    BundleContext.of(bundle).put("Organization", "1234", "Organization/a");
+    assertEquals("Organization/a", BundleContext.of(bundle).get("Organization", "1234"));
+    assertNull(BundleContext.of(bundle).get("Practitioner", "1234"));
+    assertNull(BundleContext.of(other).get("Organization", "1234"));
+  }
+
+  @Test
+  public void testFirstEntryIsKept() {
+    Object bundle = new Object();
+    BundleContext.of(bundle).put("Practitioner", "42", "Practitioner/first");
+    BundleContext.of(bundle).put("Practitioner", "42", "Practitioner/second");
+    BundleContext.of(bundle).put("Practitioner", null, "Practitioner/none");
+    assertEquals("Practitioner/first", BundleContext.of(bundle).get("Practitioner", "42"));
+  }
+}
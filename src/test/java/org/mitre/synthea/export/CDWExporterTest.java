@@ -1,10 +1,18 @@
 package org.mitre.synthea.export;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
-import java.io.OutputStreamWriter;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -13,6 +21,7 @@ import org.mitre.synthea.TestHelper;
 import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.SimpleCSV;
+import org.mitre.synthea.world.agents.Person;
 import org.powermock.reflect.Whitebox;
 
 public class CDWExporterTest {
@@ -47,9 +56,9 @@ public class CDWExporterTest {
         "ordereditem", "labchem", "labpanel", "patientlabchem", "vprocedure",
         "surgeryProcedureDiagnosisCode", "surgeryPRE", "vitalSign" };
     for (String variable : variables) {
-      OutputStreamWriter ow =
-          Whitebox.<OutputStreamWriter>getInternalState(CDWExporter.getInstance(), variable);
-      ow.close();
+      BlockWriter writer =
+          Whitebox.<BlockWriter>getInternalState(CDWExporter.getInstance(), variable);
+      writer.close();
     }
 
     // if we get here we at least had no exceptions
@@ -69,4 +78,67 @@ public class CDWExporterTest {
       assertTrue(SimpleCSV.parse(cdwData).size() >= 0);
     }
   }
+
+  @Test
+  public void testPatientRowsAreContiguous() throws Exception {
+    TestHelper.exportOff();
+    TestHelper.loadTestProperties();
+    Generator.DEFAULT_STATE = Config.get("test_state.default", "Massachusetts");
+    File tempOutputFolder = tempFolder.newFolder();
+    Config.set("exporter.baseDirectory", tempOutputFolder.toString());
+
+    int numberOfPeople = 4;
+    Generator generator = new Generator(numberOfPeople);
+    generator.options.overflow = false;
+    List<Person> people = new ArrayList<Person>();
+    int encounters = 0;
+    int patientsWithEncounters = 0;
+    for (int i = 0; i < numberOfPeople; i++) {
+      Person person = generator.generatePerson(i);
+      // only veterans are exported
+      person.attributes.put("veteran", "WW2");
+      people.add(person);
+      encounters += person.record.encounters.size();
+      if (!person.record.encounters.isEmpty()) {
+        patientsWithEncounters++;
+      }
+    }
+
+    // a new exporter rather than the singleton, so the files are in this test's folder
+    CDWExporter exporter = Whitebox.invokeConstructor(CDWExporter.class);
+    long time = System.currentTimeMillis();
+    ExecutorService pool = Executors.newFixedThreadPool(numberOfPeople);
+    try {
+      List<Future<Void>> exports = new ArrayList<Future<Void>>();
+      for (Person person : people) {
+        exports.add(pool.submit(() -> {
+          exporter.export(person, time);
+          return null;
+        }));
+      }
+      for (Future<Void> export : exports) {
+        export.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    exporter.writeFactTables();
+
+    File visitFile = tempOutputFolder.toPath().resolve("cdw").resolve("visit.csv").toFile();
+    List<LinkedHashMap<String, String>> visits =
+        SimpleCSV.parse(new String(Files.readAllBytes(visitFile.toPath())));
+    assertEquals(encounters, visits.size());
+
+    // each patient's visits are in a single run of rows
+    Set<String> finished = new HashSet<String>();
+    String current = null;
+    for (LinkedHashMap<String, String> visit : visits) {
+      String patient = visit.get("PatientSID");
+      if (!patient.equals(current)) {
+        assertTrue("Visits of patient " + patient + " are split up", finished.add(patient));
+        current = patient;
+      }
+    }
+    assertEquals(patientsWithEncounters, finished.size());
+  }
 }
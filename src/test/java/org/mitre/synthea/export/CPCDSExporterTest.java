@@ -5,6 +5,14 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -14,7 +22,9 @@ import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.SimpleCSV;
 import org.mitre.synthea.world.agents.Payer;
+import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.geography.Location;
+import org.powermock.reflect.Whitebox;
 
 public class CPCDSExporterTest {
   /**
@@ -70,4 +80,72 @@ public class CPCDSExporterTest {
 
     assertEquals("Expected 3 CSV files in the output directory, found " + count, 3, count);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testPatientRowsAreContiguous() throws Exception {
+    TestHelper.exportOff();
+    TestHelper.loadTestProperties();
+    Generator.DEFAULT_STATE = Config.get("test_state.default", "Massachusetts");
+    Config.set("exporter.cpcds.folder_per_run", "false");
+    File tempOutputFolder = tempFolder.newFolder();
+    Config.set("exporter.baseDirectory", tempOutputFolder.toString());
+
+    Payer.clear();
+    Config.set("generate.payers.insurance_companies.default_file",
+        "generic/payers/test_payers.csv");
+    Payer.loadPayers(new Location(Generator.DEFAULT_STATE, null));
+
+    int numberOfPeople = 4;
+    Generator generator = new Generator(numberOfPeople);
+    generator.options.overflow = false;
+    List<Person> people = new ArrayList<Person>();
+    for (int i = 0; i < numberOfPeople; i++) {
+      people.add(generator.generatePerson(i));
+    }
+
+    // a new exporter rather than the singleton, so the files are in this test's folder
+    CPCDSExporter exporter = Whitebox.invokeConstructor(CPCDSExporter.class);
+    long time = System.currentTimeMillis();
+    ExecutorService pool = Executors.newFixedThreadPool(numberOfPeople);
+    try {
+      List<Future<Void>> exports = new ArrayList<Future<Void>>();
+      for (Person person : people) {
+        exports.add(pool.submit(() -> {
+          exporter.export(person, time);
+          return null;
+        }));
+      }
+      for (Future<Void> export : exports) {
+        export.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    exporter.flush();
+
+    File claimsFile = tempOutputFolder.toPath().resolve("cpcds").resolve("CPCDS_Claims.csv")
+        .toFile();
+    List<LinkedHashMap<String, String>> claims =
+        SimpleCSV.parse(new String(Files.readAllBytes(claimsFile.toPath())));
+
+    // each patient's claims are all there, in a single run of rows
+    Set<String> finished = new HashSet<String>();
+    String current = null;
+    for (LinkedHashMap<String, String> claim : claims) {
+      String patient = claim.get("Patient account number");
+      if (!patient.equals(current)) {
+        assertTrue("Claims of " + patient + " are split up", finished.add(patient));
+        current = patient;
+      }
+    }
+    // with a claim for every encounter
+    for (Person person : people) {
+      String patient = (String) person.attributes.get(Person.ID);
+      long count = claims.stream()
+          .filter(claim -> patient.equals(claim.get("Patient account number")))
+          .map(claim -> claim.get("Claim unique identifier"))
+          .distinct().count();
+      assertEquals(person.record.encounters.size(), count);
+    }
+  }
+}
@@ -4,7 +4,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.io.ByteStreams;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -14,6 +21,7 @@ import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.SimpleCSV;
 import org.mitre.synthea.world.agents.Payer;
+import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.geography.Location;
 
 public class CSVExporterTest {
@@ -70,4 +78,47 @@ public class CSVExporterTest {
 
     assertEquals("Expected 14 CSV files in the output directory, found " + count, 14, count);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testCompressedExportIsComplete() throws Exception {
+    TestHelper.exportOff();
+    TestHelper.loadTestProperties();
+    Generator.DEFAULT_STATE = Config.get("test_state.default", "Massachusetts");
+    Config.set("exporter.csv.folder_per_run", "false");
+    Config.set("exporter.csv.append_mode", "false");
+    File tempOutputFolder = tempFolder.newFolder();
+    Config.set("exporter.baseDirectory", tempOutputFolder.toString());
+
+    Payer.clear();
+    Config.set("generate.payers.insurance_companies.default_file",
+        "generic/payers/test_payers.csv");
+    Payer.loadPayers(new Location(Generator.DEFAULT_STATE, null));
+
+    Config.set("exporter.compression", "gzip");
+    try {
+      // the singleton is created once, with whatever compression was set at the time, so
+      // this drives a new exporter through the same end of run calls as the Exporter
+      CSVExporter exporter = new CSVExporter(false);
+      Generator generator = new Generator(1);
+      generator.options.overflow = false;
+      Person person = generator.generatePerson(0);
+      exporter.export(person, System.currentTimeMillis());
+      exporter.exportOrganizationsAndProviders();
+      exporter.exportPayers();
+      exporter.close();
+
+      // reading the whole file fails with an EOFException if the gzip trailer is missing
+      File patients = tempOutputFolder.toPath().resolve("csv").resolve("patients.csv.gz")
+          .toFile();
+      String csvData;
+      try (InputStream in = new GZIPInputStream(Files.newInputStream(patients.toPath()))) {
+        csvData = new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+      }
+      List<LinkedHashMap<String, String>> rows = SimpleCSV.parse(csvData);
+      assertEquals(1, rows.size());
+      assertEquals(person.attributes.get(Person.ID), rows.get(0).get("Id"));
+    } finally {
+      Config.set("exporter.compression", "none");
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompressionTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private void write(Compression compression, Path file, String contents,
+      OpenOption... options) throws IOException {
+    try (OutputStream out = compression.open(file, options)) {
+      out.write(contents.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private String read(Compression compression, Path file) throws IOException {
+    try (InputStream in = compression.read(file)) {
+      return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void testNoCompression() throws IOException {
+    Compression compression = Compression.of("none", -1, 1024);
+    Path file = tempFolder.getRoot().toPath().resolve("record.json");
+    assertEquals(file, compression.file(file));
+    write(compression, file, "{}", StandardOpenOption.CREATE_NEW);
+    assertTrue(file.toFile().exists());
+    assertEquals("{}", read(compression, file));
+  }
+
+  @Test
+  public void testGzipAppendsMembers() throws IOException {
+    Compression compression = Compression.of("gzip", 9, 1024);
+    Path file = tempFolder.getRoot().toPath().resolve("Patient.ndjson");
+    File compressed = compression.file(file.toFile());
+    assertEquals("Patient.ndjson.gz", compressed.getName());
+
+    write(compression, file, "a\nb\n", StandardOpenOption.CREATE_NEW);
+    write(compression, file, "c\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    assertFalse(file.toFile().exists());
+    assertTrue(compressed.exists());
+    assertEquals("a\nb\nc\n", read(compression, file));
+
+    // a standard gzip reader sees the same contents
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(compressed.toPath()))) {
+      assertEquals("a\nb\nc\n", new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void testZstd() throws IOException {
+    Compression compression = Compression.of("ZSTD", -1, 1024);
+    Path file = tempFolder.getRoot().toPath().resolve("patients.csv");
+    assertEquals("patients.csv.zst", compression.file(file).getFileName().toString());
+    write(compression, file, "Id\n1\n", StandardOpenOption.CREATE_NEW);
+    assertEquals("Id\n1\n", read(compression, file));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedFormat() {
+    Compression.of("lz4", -1, 1024);
+  }
+}
@@ -0,0 +1,165 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.mitre.synthea.engine.Generator;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.HealthRecord;
+
+public class ExporterPluginsTest {
+  /**
+   * A plugin that records the calls made to it.
+   */
+  private static class RecordingPlugin implements ExporterPlugin {
+    private final String name;
+    private final boolean enabled;
+    private final boolean failInit;
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+    private RecordingPlugin(String name, boolean enabled, boolean failInit) {
+      this.name = name;
+      this.enabled = enabled;
+      this.failInit = failInit;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    @Override
+    public void init(Context context) throws IOException {
+      calls.add("init");
+      if (failInit) {
+        throw new IOException("can not initialize " + name);
+      }
+    }
+
+    @Override
+    public void exportPerson(Person person, String fileTag, long stopTime) {
+      calls.add(person.attributes.get(Person.ID) + fileTag);
+    }
+
+    @Override
+    public void postCompletion(Generator generator) {
+      calls.add("postCompletion");
+    }
+
+    @Override
+    public void close() {
+      calls.add("close");
+    }
+  }
+
+  private static Person person(int id) {
+    Person person = new Person(id);
+    person.attributes.put(Person.ID, "person-" + id);
+    return person;
+  }
+
+  @Test
+  public void testLifecycle() {
+    RecordingPlugin serial = new RecordingPlugin("serial", true, false);
+    RecordingPlugin disabled = new RecordingPlugin("disabled", false, false);
+    RecordingPlugin broken = new RecordingPlugin("broken", true, true);
+    // a queue of one person makes the exporting thread wait for the plugin
+    ExporterPlugins plugins =
+        new ExporterPlugins(Arrays.asList(serial, disabled, broken), 4, 1);
+    for (int i = 0; i < 100; i++) {
+      plugins.export(person(i), "", 0L);
+    }
+    plugins.close(null);
+
+    assertEquals(103, serial.calls.size());
+    assertEquals("init", serial.calls.get(0));
+    for (int i = 0; i < 100; i++) {
+      // a serial plugin exports people in order
+      assertEquals("person-" + i, serial.calls.get(i + 1));
+    }
+    assertEquals(Arrays.asList("postCompletion", "close"), serial.calls.subList(101, 103));
+    assertTrue(disabled.calls.isEmpty());
+    assertEquals(Arrays.asList("init", "close"), broken.calls);
+  }
+
+  @Test
+  public void testConcurrentPlugin() {
+    RecordingPlugin concurrent = new RecordingPlugin("concurrent", true, false) {
+      @Override
+      public ThreadSafety getThreadSafety() {
+        return ThreadSafety.CONCURRENT;
+      }
+    };
+    ExporterPlugins plugins = new ExporterPlugins(Collections.singletonList(concurrent), 4, 8);
+    for (int i = 0; i < 100; i++) {
+      plugins.export(person(i), "1", 0L);
+    }
+    plugins.close(null);
+    // every person is exported once, before the post-completion export
+    assertEquals(103, concurrent.calls.size());
+    for (int i = 0; i < 100; i++) {
+      assertTrue(concurrent.calls.subList(1, 101).contains("person-" + i + "1"));
+    }
+    assertEquals("postCompletion", concurrent.calls.get(101));
+  }
+
+  @Test
+  public void testPluginExportsCopyOfPerson() throws Exception {
+    CountDownLatch queued = new CountDownLatch(1);
+    List<Object> seen = Collections.synchronizedList(new ArrayList<Object>());
+    RecordingPlugin plugin = new RecordingPlugin("copy", true, false) {
+      @Override
+      public void exportPerson(Person person, String fileTag, long stopTime) {
+        try {
+          queued.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        seen.add(person.attributes.get("marker"));
+        seen.add(person.record);
+      }
+    };
+    ExporterPlugins plugins = new ExporterPlugins(Collections.singletonList(plugin), 1, 1);
+    Person person = person(0);
+    person.attributes.put("marker", "queued");
+    HealthRecord record = person.record;
+    plugins.export(person, "", 0L);
+
+    // the exporting thread goes on with the person while the plugin waits
+    person.attributes.put("marker", "changed");
+    person.record = new HealthRecord(person);
+    queued.countDown();
+    plugins.close(null);
+
+    assertEquals(Arrays.asList("queued", record), seen);
+  }
+
+  @Test
+  public void testMetricsCountBytes() throws IOException {
+    ExporterMetrics.report();
+    ExporterMetrics metrics = ExporterMetrics.get("counted");
+    try (OutputStream out = metrics.count(new ByteArrayOutputStream())) {
+      out.write(new byte[10]);
+      out.write(1);
+    }
+    metrics.record(System.nanoTime());
+    String report = ExporterMetrics.report();
+    assertTrue(report, report.contains("counted"));
+    assertTrue(report, report.matches("(?s).*\\s1 records.*\\s11 bytes.*"));
+  }
+}
@@ -3,8 +3,25 @@ package org.mitre.synthea.export;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mitre.synthea.TestHelper;
 import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.helpers.Config;
@@ -21,6 +38,8 @@ import org.mitre.synthea.world.concepts.HealthRecord.Medication;
 import org.mitre.synthea.world.geography.Location;
 
 public class ExporterTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
 
   private long time;
   private long endTime;
@@ -255,6 +274,289 @@ public class ExporterTest {
     assertEquals("something_permanent", record.encounters.get(0).claim.items.get(0).type);
   }
   
+  @Test
+  public void testParallelExportMatchesSerialExport() throws Exception {
+    TestHelper.exportOff();
+    Generator generator = new Generator(1);
+    generator.options.overflow = false;
+    Person person = generator.generatePerson(0);
+
+    assertParallelExportMatchesSerialExport(person, 1);
+  }
+
+  @Test
+  public void testParallelExportOfSplitRecordsMatchesSerialExport() throws Exception {
+    TestHelper.exportOff();
+    Generator generator = new Generator(1);
+    generator.options.overflow = false;
+    Person person = generator.generatePerson(0);
+    splitRecord(person);
+
+    assertParallelExportMatchesSerialExport(person, 2);
+  }
+
+  /**
+   * Export the person without and then with the export pool, and check the files are the same.
+   */
+  private void assertParallelExportMatchesSerialExport(Person person, int records)
+      throws Exception {
+    String yearsOfHistory = Config.get("exporter.years_of_history");
+    long stopTime = System.currentTimeMillis();
+
+    File serial = tempFolder.newFolder();
+    File parallel = tempFolder.newFolder();
+    try {
+      Config.set("exporter.fhir.export", "true");
+      Config.set("exporter.fhir_stu3.export", "true");
+      Config.set("exporter.years_of_history", "0");
+      Config.set("exporter.baseDirectory", serial.toString());
+      Config.set("exporter.parallel.threads", "0");
+      Exporter.export(person, stopTime);
+      Config.set("exporter.baseDirectory", parallel.toString());
+      Config.set("exporter.parallel.threads", "2");
+      Exporter.export(person, stopTime);
+    } finally {
+      Config.set("exporter.parallel.threads", "0");
+      Config.set("exporter.years_of_history", yearsOfHistory);
+      TestHelper.exportOff();
+    }
+
+    for (String folder : new String[] {"fhir", "fhir_stu3"}) {
+      File[] files = new File(serial, folder).listFiles();
+      assertEquals(records, files.length);
+      for (File file : files) {
+        File other = new File(new File(parallel, folder), file.getName());
+        assertTrue(other.exists());
+        assertTrue(Arrays.equals(Files.readAllBytes(file.toPath()),
+            Files.readAllBytes(other.toPath())));
+      }
+    }
+  }
+
+  @Test
+  public void testParallelExportReferencesResolveWithinBundle() throws Exception {
+    TestHelper.exportOff();
+    String yearsOfHistory = Config.get("exporter.years_of_history");
+    Generator generator = new Generator(1);
+    generator.options.overflow = false;
+    Person person = generator.generatePerson(0);
+    splitRecord(person);
+
+    File folder = tempFolder.newFolder();
+    try {
+      Config.set("exporter.fhir.export", "true");
+      Config.set("exporter.fhir_stu3.export", "true");
+      Config.set("exporter.fhir_dstu2.export", "true");
+      Config.set("exporter.years_of_history", "0");
+      Config.set("exporter.baseDirectory", folder.toString());
+      Config.set("exporter.parallel.threads", "3");
+      Exporter.export(person, System.currentTimeMillis());
+    } finally {
+      Config.set("exporter.parallel.threads", "0");
+      Config.set("exporter.years_of_history", yearsOfHistory);
+      TestHelper.exportOff();
+    }
+
+    // the formats convert the same records at the same time, and each must only refer to the
+    // entries of its own bundle
+    for (String format : new String[] {"fhir", "fhir_stu3", "fhir_dstu2"}) {
+      File[] files = new File(folder, format).listFiles();
+      assertEquals(2, files.length);
+      for (File file : files) {
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        JsonObject bundle = new JsonParser().parse(json).getAsJsonObject();
+        Set<String> fullUrls = new HashSet<String>();
+        for (JsonElement entry : bundle.getAsJsonArray("entry")) {
+          fullUrls.add(entry.getAsJsonObject().get("fullUrl").getAsString());
+        }
+        Set<String> references = new HashSet<String>();
+        collectReferences(bundle, references);
+        assertTrue(references.size() > 0);
+        for (String reference : references) {
+          assertTrue("Dangling reference " + reference + " in " + format,
+              fullUrls.contains(reference));
+        }
+      }
+    }
+  }
+
+  /**
+   * Collect the references to other entries of the bundle, that is, every "reference" value
+   * that is a "urn:uuid:" URI, found anywhere in the given JSON.
+   */
+  private static void collectReferences(JsonElement json, Set<String> references) {
+    if (json.isJsonObject()) {
+      for (Map.Entry<String, JsonElement> member : json.getAsJsonObject().entrySet()) {
+        JsonElement value = member.getValue();
+        if (member.getKey().equals("reference") && value.isJsonPrimitive()
+            && value.getAsString().startsWith("urn:uuid:")) {
+          references.add(value.getAsString());
+        } else {
+          collectReferences(value, references);
+        }
+      }
+    } else if (json.isJsonArray()) {
+      for (JsonElement element : json.getAsJsonArray()) {
+        collectReferences(element, references);
+      }
+    }
+  }
+
+  @Test
+  public void testBulkDataKeepsEveryPatient() throws Exception {
+    TestHelper.exportOff();
+    String yearsOfHistory = Config.get("exporter.years_of_history");
+    Generator generator = new Generator(3);
+    generator.options.overflow = false;
+    Person[] people = new Person[3];
+    for (int i = 0; i < people.length; i++) {
+      people[i] = generator.generatePerson(i);
+    }
+    long stopTime = System.currentTimeMillis();
+
+    File folder = tempFolder.newFolder();
+    File fhir = new File(folder, "fhir");
+    try {
+      Config.set("exporter.fhir.export", "true");
+      Config.set("exporter.fhir.bulk_data", "true");
+      Config.set("exporter.years_of_history", "0");
+      Config.set("exporter.baseDirectory", folder.toString());
+      Exporter.export(people[0], stopTime);
+      Exporter.export(people[1], stopTime);
+      Exporter.runPostCompletionExports(generator);
+      assertBulkData(fhir, 2);
+
+      // the files are opened again, for appending, after they have been closed
+      Exporter.export(people[2], stopTime);
+      Exporter.runPostCompletionExports(generator);
+      assertBulkData(fhir, 3);
+    } finally {
+      Config.set("exporter.fhir.bulk_data", "false");
+      Config.set("exporter.years_of_history", yearsOfHistory);
+      TestHelper.exportOff();
+    }
+  }
+
+  /**
+   * Check that Patient.ndjson has one line for each patient, and that every NDJSON file in
+   * the folder is made of whole lines of JSON.
+   */
+  private static void assertBulkData(File folder, int patients) throws IOException {
+    String newline = System.lineSeparator();
+    File[] files = folder.listFiles((dir, name) -> name.endsWith(".ndjson"));
+    assertTrue(files.length > 1);
+    for (File file : files) {
+      String ndjson = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+      assertTrue(file.getName() + " should end with a newline", ndjson.endsWith(newline));
+      String[] lines = ndjson.split(newline);
+      for (String line : lines) {
+        assertTrue(new JsonParser().parse(line).isJsonObject());
+      }
+      if (file.getName().equals("Patient.ndjson")) {
+        assertEquals(patients, lines.length);
+      }
+    }
+  }
+
+  @Test
+  public void testSplitRecordsHaveUniqueIds() throws Exception {
+    TestHelper.exportOff();
+    String yearsOfHistory = Config.get("exporter.years_of_history");
+    Config.set("exporter.years_of_history", "0");
+    Generator generator = new Generator(1);
+    generator.options.overflow = false;
+    Person person = generator.generatePerson(0);
+    splitRecord(person);
+
+    File folder = tempFolder.newFolder();
+    try {
+      Config.set("exporter.fhir.export", "true");
+      Config.set("exporter.fhir_stu3.export", "true");
+      Config.set("exporter.fhir_dstu2.export", "true");
+      Config.set("exporter.baseDirectory", folder.toString());
+      Exporter.export(person, System.currentTimeMillis());
+    } finally {
+      Config.set("exporter.years_of_history", yearsOfHistory);
+      TestHelper.exportOff();
+    }
+
+    for (String format : new String[] {"fhir", "fhir_stu3", "fhir_dstu2"}) {
+      assertUniqueIds(new File(folder, format), 2);
+    }
+  }
+
+  @Test
+  public void testArchiveCreatesNoPatientFolders() throws Exception {
+    TestHelper.exportOff();
+    Generator generator = new Generator(1);
+    generator.options.overflow = false;
+    Person person = generator.generatePerson(0);
+
+    File folder = tempFolder.newFolder();
+    try {
+      Config.set("exporter.fhir.export", "true");
+      Config.set("exporter.subfolders_by_id_substring", "true");
+      Config.set("exporter.archive", "zip");
+      Config.set("exporter.baseDirectory", folder.toString());
+      Exporter.export(person, System.currentTimeMillis());
+      Exporter.runPostCompletionExports(generator);
+    } finally {
+      Config.set("exporter.archive", "none");
+      TestHelper.exportOff();
+    }
+
+    // the patient's file is only in the archive, and none of its folders were created
+    File fhir = new File(folder, "fhir");
+    assertTrue(!fhir.exists() || fhir.listFiles(File::isDirectory).length == 0);
+    List<String> index = Files.readAllLines(folder.toPath().resolve("archive/index.csv"));
+    assertEquals(2, index.size());
+    assertTrue(index.get(1).startsWith(person.attributes.get(Person.ID) + ",fhir/"));
+  }
+
+  /**
+   * Split the person's record in two, the way exporter.split_records keeps them, as if the
+   * later half of their encounters had been with another provider.
+   */
+  private static void splitRecord(Person person) {
+    List<Encounter> encounters = person.record.encounters;
+    assertTrue(encounters.size() > 1);
+    HealthRecord first = person.record;
+    HealthRecord second = new HealthRecord(person);
+    List<Encounter> later = encounters.subList(encounters.size() / 2, encounters.size());
+    second.encounters.addAll(later);
+    later.clear();
+    first.provider = Provider.getProviderList().get(0);
+    second.provider = Provider.getProviderList().get(1);
+    person.hasMultipleRecords = true;
+    person.records = new ConcurrentHashMap<String, HealthRecord>();
+    person.records.put(first.provider.uuid, first);
+    person.records.put(second.provider.uuid, second);
+  }
+
+  /**
+   * Check that the FHIR bundles in the folder have no resource ids in common, apart from the
+   * resources that every record of a person refers to: the patient, organizations and
+   * practitioners.
+   */
+  private static void assertUniqueIds(File folder, int bundles) throws IOException {
+    File[] files = folder.listFiles();
+    assertEquals(bundles, files.length);
+    Set<String> shared = new HashSet<String>(
+        Arrays.asList("Patient", "Organization", "Practitioner"));
+    Set<String> ids = new HashSet<String>();
+    for (File file : files) {
+      String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+      JsonObject bundle = new JsonParser().parse(json).getAsJsonObject();
+      for (JsonElement entry : bundle.getAsJsonArray("entry")) {
+        JsonObject resource = entry.getAsJsonObject().getAsJsonObject("resource");
+        if (!shared.contains(resource.get("resourceType").getAsString())) {
+          String id = resource.get("id").getAsString();
+          assertTrue("Duplicate id " + id + " in " + folder.getName(), ids.add(id));
+        }
+      }
+    }
+  }
+
   private static long years(long numYears) {
     return Utilities.convertTime("years", numYears);
   }
@@ -1,11 +1,13 @@
 package org.mitre.synthea.export;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.validation.SingleValidationMessage;
 import ca.uhn.fhir.validation.ValidationResult;
+import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
@@ -145,4 +147,37 @@ public class FHIRR4ExporterTest {
     assertTrue("Validation of exported FHIR bundle failed: "
         + String.join("|", validationErrors), validationErrors.size() == 0);
   }
+
+  @Test
+  public void testStreamingMatchesEncodedBundle() throws Exception {
+    TestHelper.loadTestProperties();
+    Generator.DEFAULT_STATE = Config.get("test_state.default", "Massachusetts");
+    Config.set("exporter.baseDirectory", tempFolder.newFolder().toString());
+
+    IParser parser = FhirContext.forR4().newJsonParser().setPrettyPrint(true);
+    int numberOfPeople = 3;
+    Generator generator = new Generator(numberOfPeople);
+    generator.options.overflow = false;
+
+    for (int i = 0; i < numberOfPeople; i++) {
+      TestHelper.exportOff();
+      Person person = generator.generatePerson(i);
+      FhirR4.TRANSACTION_BUNDLE = (i % 2 == 0);
+      FhirR4.USE_US_CORE_IG = true;
+      FhirR4.USE_SHR_EXTENSIONS = false;
+      long stopTime = System.currentTimeMillis();
+      Bundle bundle = FhirR4.convertToFHIR(person, stopTime);
+      String expected = parser.encodeResourceToString(bundle);
+
+      StringWriter out = new StringWriter();
+      FhirR4.writeBundleJson(bundle, out);
+      assertEquals(expected, out.toString());
+      assertTrue(bundle.getEntry().isEmpty());
+
+      // converted one encounter at a time, with the entries written as they are complete
+      out = new StringWriter();
+      FhirR4.writeFHIRJson(person, stopTime, out);
+      assertEquals(expected, out.toString());
+    }
+  }
 }
@@ -1,10 +1,15 @@
 package org.mitre.synthea.export;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Bundle.Entry;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
 import ca.uhn.fhir.validation.FhirValidator;
 import ca.uhn.fhir.validation.SingleValidationMessage;
 import ca.uhn.fhir.validation.ValidationResult;
@@ -12,6 +17,9 @@ import ca.uhn.fhir.validation.ValidationResult;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.junit.Rule;
 import org.junit.Test;
@@ -75,4 +83,34 @@ public class HospitalExporterTestDstu2 {
     }
     assertTrue(result.isSuccessful());
   }
+
+  @Test
+  public void testExportMatchesEncodedBundle() throws Exception {
+    File tempOutputFolder = tempFolder.newFolder();
+    Config.set("exporter.baseDirectory", tempOutputFolder.toString());
+    Config.set("exporter.hospital.fhir_dstu2.export", "true");
+    Config.set("exporter.fhir.transaction_bundle", "true");
+    FhirDstu2.TRANSACTION_BUNDLE = true; // set this manually, in case it has already been loaded.
+    TestHelper.loadTestProperties();
+    Generator.DEFAULT_STATE = Config.get("test_state.default", "Massachusetts");
+    Location location = new Location(Generator.DEFAULT_STATE, null);
+    Provider.clear();
+    Provider.loadProviders(location, 1L);
+    Provider.getProviderList().get(0).incrementEncounters(EncounterType.WELLNESS, 0);
+    Provider.getProviderList().get(1).incrementEncounters(EncounterType.WELLNESS, 0);
+    HospitalExporterDstu2.export(0L);
+
+    Bundle bundle = new Bundle();
+    bundle.setType(BundleTypeEnum.TRANSACTION);
+    for (Provider h : Provider.getProviderList().subList(0, 2)) {
+      Entry entry = FhirDstu2.provider(bundle, h);
+      HospitalExporterDstu2.addHospitalExtensions(h, (Organization) entry.getResource());
+    }
+    String expected = FhirContext.forDstu2().newJsonParser().setPrettyPrint(true)
+        .encodeResourceToString(bundle) + System.lineSeparator();
+
+    Path exportFile = tempOutputFolder.toPath().resolve("fhir_dstu2")
+        .resolve("hospitalInformation0.json");
+    assertEquals(expected, new String(Files.readAllBytes(exportFile), StandardCharsets.UTF_8));
+  }
 }
@@ -1,5 +1,6 @@
 package org.mitre.synthea.export;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -12,7 +13,14 @@ import ca.uhn.fhir.validation.ValidationResult;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Organization;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -75,4 +83,41 @@ public class HospitalExporterTestR4 {
     }
     assertTrue(result.isSuccessful());
   }
+
+  @Test
+  public void testExportMatchesEncodedBundle() throws Exception {
+    File tempOutputFolder = tempFolder.newFolder();
+    Config.set("exporter.baseDirectory", tempOutputFolder.toString());
+    Config.set("exporter.hospital.fhir.export", "true");
+    Config.set("exporter.fhir.transaction_bundle", "true");
+    FhirR4.TRANSACTION_BUNDLE = true; // set this manually, in case it has already been loaded.
+    // the Location of each provider would get a random id
+    boolean useUsCoreIg = FhirR4.USE_US_CORE_IG;
+    FhirR4.USE_US_CORE_IG = false;
+    try {
+      TestHelper.loadTestProperties();
+      Generator.DEFAULT_STATE = Config.get("test_state.default", "Massachusetts");
+      Location location = new Location(Generator.DEFAULT_STATE, null);
+      Provider.clear();
+      Provider.loadProviders(location, 1L);
+      Provider.getProviderList().get(0).incrementEncounters(EncounterType.WELLNESS, 0);
+      Provider.getProviderList().get(1).incrementEncounters(EncounterType.WELLNESS, 0);
+      HospitalExporterR4.export(0L);
+
+      Bundle bundle = new Bundle();
+      bundle.setType(BundleType.TRANSACTION);
+      for (Provider h : Provider.getProviderList().subList(0, 2)) {
+        BundleEntryComponent entry = FhirR4.provider(bundle, h);
+        HospitalExporterR4.addHospitalExtensions(h, (Organization) entry.getResource());
+      }
+      String expected = FhirContext.forR4().newJsonParser().setPrettyPrint(true)
+          .encodeResourceToString(bundle) + System.lineSeparator();
+
+      Path exportFile = tempOutputFolder.toPath().resolve("fhir")
+          .resolve("hospitalInformation0.json");
+      assertEquals(expected, new String(Files.readAllBytes(exportFile), StandardCharsets.UTF_8));
+    } finally {
+      FhirR4.USE_US_CORE_IG = useUsCoreIg;
+    }
+  }
 }
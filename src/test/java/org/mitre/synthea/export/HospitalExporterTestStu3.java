@@ -1,5 +1,6 @@
 package org.mitre.synthea.export;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -12,6 +13,13 @@ import ca.uhn.fhir.validation.ValidationResult;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Organization;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.junit.Rule;
 import org.junit.Test;
@@ -75,4 +83,34 @@ public class HospitalExporterTestStu3 {
     }
     assertTrue(result.isSuccessful());
   }
+
+  @Test
+  public void testExportMatchesEncodedBundle() throws Exception {
+    File tempOutputFolder = tempFolder.newFolder();
+    Config.set("exporter.baseDirectory", tempOutputFolder.toString());
+    Config.set("exporter.hospital.fhir_stu3.export", "true");
+    Config.set("exporter.fhir.transaction_bundle", "true");
+    FhirStu3.TRANSACTION_BUNDLE = true; // set this manually, in case it has already been loaded.
+    TestHelper.loadTestProperties();
+    Generator.DEFAULT_STATE = Config.get("test_state.default", "Massachusetts");
+    Location location = new Location(Generator.DEFAULT_STATE, null);
+    Provider.clear();
+    Provider.loadProviders(location, 1L);
+    Provider.getProviderList().get(0).incrementEncounters(EncounterType.WELLNESS, 0);
+    Provider.getProviderList().get(1).incrementEncounters(EncounterType.WELLNESS, 0);
+    HospitalExporterStu3.export(0L);
+
+    Bundle bundle = new Bundle();
+    bundle.setType(BundleType.TRANSACTION);
+    for (Provider h : Provider.getProviderList().subList(0, 2)) {
+      BundleEntryComponent entry = FhirStu3.provider(bundle, h);
+      HospitalExporterStu3.addHospitalExtensions(h, (Organization) entry.getResource());
+    }
+    String expected = FhirContext.forDstu3().newJsonParser().setPrettyPrint(true)
+        .encodeResourceToString(bundle) + System.lineSeparator();
+
+    Path exportFile = tempOutputFolder.toPath().resolve("fhir_stu3")
+        .resolve("hospitalInformation0.json");
+    assertEquals(expected, new String(Files.readAllBytes(exportFile), StandardCharsets.UTF_8));
+  }
 }
@@ -0,0 +1,367 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParquetWriterTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+
+  private static boolean contains(byte[] bytes, String text) {
+    byte[] target = text.getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i + target.length <= bytes.length; i++) {
+      if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + target.length), target)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testFileLayout() throws IOException {
+    File file = tempFolder.newFile("conditions.parquet");
+    try (ParquetWriter writer = new ParquetWriter(file,
+        "START,STOP,PATIENT,CODE,DESCRIPTION\n", 10, Compression.NONE)) {
+      for (int i = 0; i < 25; i++) {
+        writer.write("2020-01-01,," + i + ",44054006,Diabetes\n");
+        writer.commit();
+      }
+    }
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    assertArrayEquals(MAGIC, Arrays.copyOfRange(bytes, 0, 4));
+    assertArrayEquals(MAGIC, Arrays.copyOfRange(bytes, bytes.length - 4, bytes.length));
+    int footerLength = ByteBuffer.wrap(bytes, bytes.length - 8, 4)
+        .order(ByteOrder.LITTLE_ENDIAN).getInt();
+    assertTrue(footerLength > 0 && footerLength < bytes.length - 12);
+    byte[] footer = Arrays.copyOfRange(bytes, bytes.length - 8 - footerLength, bytes.length - 8);
+    for (String column : new String[] { "START", "STOP", "PATIENT", "CODE", "DESCRIPTION" }) {
+      assertTrue(column, contains(footer, column));
+    }
+
+    // the repeated description is written once per row group, in its dictionary
+    byte[] data = Arrays.copyOfRange(bytes, 4, bytes.length - 8 - footerLength);
+    int descriptions = 0;
+    for (int i = 0; i + 8 <= data.length; i++) {
+      if (new String(data, i, 8, StandardCharsets.UTF_8).equals("Diabetes")) {
+        descriptions++;
+      }
+    }
+    assertEquals(3, descriptions);
+  }
+
+  @Test
+  public void testReadBackUncompressed() throws IOException {
+    readBack(Compression.NONE);
+  }
+
+  @Test
+  public void testReadBackGzip() throws IOException {
+    readBack(Compression.of("gzip", -1, 8192));
+  }
+
+  /**
+   * Write a table, then read the file back the way a Parquet reader does: the footer, then
+   * the pages of every column chunk in every row group, and check every value of every row.
+   */
+  private void readBack(Compression compression) throws IOException {
+    String[] names = { "START", "STOP", "PATIENT", "CODE", "DESCRIPTION" };
+    String[][] rows = new String[25][];
+    File file = tempFolder.newFile("conditions.parquet");
+    try (ParquetWriter writer = new ParquetWriter(file,
+        String.join(",", names) + "\n", 10, compression)) {
+      for (int i = 0; i < rows.length; i++) {
+        rows[i] = new String[] { "2020-01-" + (10 + i), i % 3 == 0 ? "2020-02-01" : null,
+            "patient-" + i, "44054006", i < 20 ? "Diabetes" : "Diabetes mellitus type 2" };
+        writer.write(rows[i][0] + "," + (rows[i][1] == null ? "" : rows[i][1]) + ","
+            + rows[i][2] + "," + rows[i][3] + "," + rows[i][4] + "\n");
+        writer.commit();
+      }
+    }
+
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    int footerLength = ByteBuffer.wrap(bytes, bytes.length - 8, 4)
+        .order(ByteOrder.LITTLE_ENDIAN).getInt();
+    Map<Integer, Object> metadata =
+        new ThriftReader(bytes, bytes.length - 8 - footerLength).struct();
+    assertEquals(25L, metadata.get(3));
+
+    // the root of the schema, then one optional UTF-8 string per column
+    List<Object> schema = list(metadata.get(2));
+    assertEquals(names.length + 1, schema.size());
+    assertEquals(names.length, struct(schema.get(0)).get(5));
+    for (int c = 0; c < names.length; c++) {
+      Map<Integer, Object> element = struct(schema.get(c + 1));
+      assertEquals(names[c], element.get(4));
+      assertEquals(6, element.get(1));
+      assertEquals(1, element.get(3));
+      assertEquals(0, element.get(6));
+    }
+
+    List<Object> rowGroups = list(metadata.get(4));
+    assertEquals(3, rowGroups.size());
+    int row = 0;
+    for (Object group : rowGroups) {
+      Map<Integer, Object> rowGroup = struct(group);
+      int numRows = (int) (long) (Long) rowGroup.get(3);
+      assertEquals(row < 20 ? 10 : 5, numRows);
+      List<Object> chunks = list(rowGroup.get(1));
+      assertEquals(names.length, chunks.size());
+      for (int c = 0; c < names.length; c++) {
+        Map<Integer, Object> chunk = struct(struct(chunks.get(c)).get(3));
+        assertEquals(names[c], list(chunk.get(3)).get(0));
+        assertEquals((long) numRows, chunk.get(5));
+        List<String> values = readColumnChunk(bytes, chunk);
+        assertEquals(numRows, values.size());
+        for (int r = 0; r < numRows; r++) {
+          assertEquals(rows[row + r][c], values.get(r));
+        }
+      }
+      // repeated codes are dictionary encoded, and the patient of each row is not
+      assertNotNull(struct(struct(chunks.get(3)).get(3)).get(11));
+      assertNull(struct(struct(chunks.get(2)).get(3)).get(11));
+      row += numRows;
+    }
+    assertEquals(rows.length, row);
+  }
+
+  /**
+   * Read the values of a column chunk, with null for each row that has no value.
+   */
+  private static List<String> readColumnChunk(byte[] file, Map<Integer, Object> chunk)
+      throws IOException {
+    int codec = (Integer) chunk.get(4);
+    int numValues = (int) (long) (Long) chunk.get(5);
+    List<String> dictionary = null;
+    if (chunk.containsKey(11)) {
+      ThriftReader reader = new ThriftReader(file, (int) (long) (Long) chunk.get(11));
+      Map<Integer, Object> header = reader.struct();
+      assertEquals(2, header.get(1));
+      int size = (Integer) struct(header.get(7)).get(1);
+      ByteBuffer page = readPage(file, reader.position(), header, codec);
+      dictionary = readPlain(page, size);
+      assertEquals(0, page.remaining());
+    }
+
+    ThriftReader reader = new ThriftReader(file, (int) (long) (Long) chunk.get(9));
+    Map<Integer, Object> header = reader.struct();
+    assertEquals(0, header.get(1));
+    Map<Integer, Object> dataPage = struct(header.get(5));
+    assertEquals(numValues, dataPage.get(1));
+    assertEquals(dictionary == null ? 0 : 2, dataPage.get(2));
+    ByteBuffer page = readPage(file, reader.position(), header, codec);
+
+    // definition levels: 1 for a value, 0 for a null
+    int levelsLength = page.getInt();
+    int levelsEnd = page.position() + levelsLength;
+    int[] levels = decodeRleHybrid(page, numValues, 1);
+    assertEquals(levelsEnd, page.position());
+    int nonNull = 0;
+    for (int level : levels) {
+      nonNull += level;
+    }
+
+    List<String> present;
+    if (dictionary == null) {
+      present = readPlain(page, nonNull);
+    } else {
+      int bitWidth = page.get();
+      present = new ArrayList<String>();
+      for (int index : decodeRleHybrid(page, nonNull, bitWidth)) {
+        present.add(dictionary.get(index));
+      }
+    }
+    assertEquals(0, page.remaining());
+
+    List<String> values = new ArrayList<String>();
+    int next = 0;
+    for (int level : levels) {
+      values.add(level == 1 ? present.get(next++) : null);
+    }
+    return values;
+  }
+
+  /**
+   * Read and decompress the page that follows a page header.
+   */
+  private static ByteBuffer readPage(byte[] file, int offset, Map<Integer, Object> header,
+      int codec) throws IOException {
+    int uncompressedSize = (Integer) header.get(2);
+    int compressedSize = (Integer) header.get(3);
+    byte[] page = Arrays.copyOfRange(file, offset, offset + compressedSize);
+    if (codec == 2) {
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(page))) {
+        page = ByteStreams.toByteArray(in);
+      }
+    } else {
+      assertEquals(0, codec);
+    }
+    assertEquals(uncompressedSize, page.length);
+    return ByteBuffer.wrap(page).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static List<String> readPlain(ByteBuffer page, int count) {
+    List<String> values = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      byte[] value = new byte[page.getInt()];
+      page.get(value);
+      values.add(new String(value, StandardCharsets.UTF_8));
+    }
+    return values;
+  }
+
+  /**
+   * Decode values in the RLE / bit-packing hybrid encoding.
+   */
+  private static int[] decodeRleHybrid(ByteBuffer in, int count, int bitWidth) {
+    int[] values = new int[count];
+    int n = 0;
+    while (n < count) {
+      long header = readUnsignedVarInt(in);
+      if ((header & 1) == 0) {
+        int value = 0;
+        for (int b = 0; b < (bitWidth + 7) / 8; b++) {
+          value |= (in.get() & 0xff) << (8 * b);
+        }
+        for (long i = 0; i < header >>> 1; i++) {
+          values[n++] = value;
+        }
+      } else {
+        int groups = (int) (header >>> 1);
+        byte[] packed = new byte[groups * bitWidth];
+        in.get(packed);
+        // the last group is padded, past the number of values
+        for (int v = 0; v < groups * 8 && n < count; v++) {
+          int value = 0;
+          for (int bit = 0; bit < bitWidth; bit++) {
+            int position = v * bitWidth + bit;
+            value |= ((packed[position / 8] >>> (position % 8)) & 1) << bit;
+          }
+          values[n++] = value;
+        }
+      }
+    }
+    return values;
+  }
+
+  private static long readUnsignedVarInt(ByteBuffer in) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.get() & 0xff;
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<Integer, Object> struct(Object value) {
+    return (Map<Integer, Object>) value;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Object> list(Object value) {
+    return (List<Object>) value;
+  }
+
+  /**
+   * A minimal reader for the Thrift compact protocol, independent of the writer's. Structs are
+   * read as maps from field id to value, lists as lists, i32 fields as Integer, i64 fields as
+   * Long and binary fields as UTF-8 strings.
+   */
+  private static class ThriftReader {
+    private final ByteBuffer in;
+
+    private ThriftReader(byte[] bytes, int offset) {
+      in = ByteBuffer.wrap(bytes);
+      in.position(offset);
+    }
+
+    private int position() {
+      return in.position();
+    }
+
+    private Map<Integer, Object> struct() {
+      Map<Integer, Object> fields = new HashMap<Integer, Object>();
+      int lastFieldId = 0;
+      while (true) {
+        int header = in.get() & 0xff;
+        if (header == 0) {
+          return fields;
+        }
+        int delta = header >>> 4;
+        int id = delta == 0 ? (int) zigzag(readUnsignedVarInt(in)) : lastFieldId + delta;
+        fields.put(id, value(header & 0x0f));
+        lastFieldId = id;
+      }
+    }
+
+    private Object value(int type) {
+      switch (type) {
+        case 5:
+          return (int) zigzag(readUnsignedVarInt(in));
+        case 6:
+          return zigzag(readUnsignedVarInt(in));
+        case 8:
+          byte[] value = new byte[(int) readUnsignedVarInt(in)];
+          in.get(value);
+          return new String(value, StandardCharsets.UTF_8);
+        case 9:
+          int header = in.get() & 0xff;
+          int size = header >>> 4 == 15 ? (int) readUnsignedVarInt(in) : header >>> 4;
+          List<Object> elements = new ArrayList<Object>();
+          for (int i = 0; i < size; i++) {
+            elements.add(value(header & 0x0f));
+          }
+          return elements;
+        case 12:
+          return struct();
+        default:
+          throw new IllegalStateException("Unexpected Thrift type " + type);
+      }
+    }
+
+    private static long zigzag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+    }
+  }
+
+  @Test
+  public void testRleHybridEncoding() {
+    // a run of 10 ones is run length encoded: header 10 << 1, then the value
+    int[] run = new int[10];
+    Arrays.fill(run, 1);
+    assertArrayEquals(new byte[] { 20, 1 }, ParquetWriter.encodeRleHybrid(run, 10, 1));
+
+    // 0..3 with a bit width of 2 is bit-packed in one group of 8: header (1 << 1) | 1
+    int[] values = { 0, 1, 2, 3 };
+    assertArrayEquals(new byte[] { 3, (byte) 0xe4, 0 },
+        ParquetWriter.encodeRleHybrid(values, 4, 2));
+  }
+}
@@ -0,0 +1,65 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import freemarker.template.Configuration;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.HealthRecord;
+import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
+import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
+import org.mitre.synthea.world.concepts.HealthRecord.Observation;
+
+public class PersonTemplateModelTest {
+
+  @Test
+  public void testEntriesOfEncounters() {
+    HealthRecord record = new HealthRecord(new Person(1));
+    Encounter first = record.encounterStart(1000, EncounterType.OUTPATIENT);
+    first.addObservation(1000, "29463-7", 50d, "Body Weight");
+    first.addObservation(1000, "8302-2", 150d, "Body Height");
+    record.encounterStart(2000, EncounterType.OUTPATIENT);
+    Encounter third = record.encounterStart(3000, EncounterType.OUTPATIENT);
+    third.addObservation(3000, "29463-7", 51d, "Body Weight");
+
+    List<Observation> observations =
+        PersonTemplateModel.entries(record.encounters, e -> e.observations);
+    assertEquals(3, observations.size());
+    assertEquals(first.observations.get(0), observations.get(0));
+    assertEquals(first.observations.get(1), observations.get(1));
+    assertEquals(third.observations.get(0), observations.get(2));
+    try {
+      observations.get(3);
+      fail("Expected an IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+    assertEquals(0,
+        PersonTemplateModel.entries(record.encounters.subList(1, 2), e -> e.observations).size());
+  }
+
+  @Test
+  public void testValuesHideAttributes() throws Exception {
+    Person person = new Person(1);
+    person.attributes.put(Person.NAME, "Jane Doe");
+    person.attributes.put("pregnant", true);
+    Configuration configuration = PersonTemplateModel.templateConfiguration("templates/notes");
+
+    PersonTemplateModel model = new PersonTemplateModel(configuration, person)
+        .put("pregnant", null)
+        .put("time", 1000L);
+    assertNotNull(model.get(Person.NAME));
+    assertNotNull(model.get("time"));
+    assertNull(model.get("pregnant"));
+    assertNull(model.get("time_of_death"));
+    // the person is not changed
+    assertEquals(true, person.attributes.get("pregnant"));
+    assertNull(person.attributes.get("time"));
+  }
+}
@@ -4,6 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -56,5 +59,31 @@ public class TextExporterTest {
     
     assertEquals("Expected " + numberOfPeople + " files in the output directory, found " + count, 
         numberOfPeople, count);
+
+    // each person's encounters are in a single file, indexed by byte offset
+    File encountersFolder = tempOutputFolder.toPath().resolve("text_encounters").toFile();
+    count = 0;
+    for (File indexFile : encountersFolder.listFiles()) {
+      if (!indexFile.getName().endsWith(".index.csv")) {
+        continue;
+      }
+      count++;
+      String name = indexFile.getName().replace(".index.csv", ".txt");
+      byte[] text = Files.readAllBytes(encountersFolder.toPath().resolve(name));
+      List<String> index = Files.readAllLines(indexFile.toPath());
+      assertEquals("ENCOUNTER,DATE,OFFSET,LENGTH", index.get(0));
+      long end = 0;
+      for (int i = 1; i < index.size(); i++) {
+        String[] row = index.get(i).split(",");
+        assertEquals(Integer.toString(i), row[0]);
+        assertEquals(end, Long.parseLong(row[2]));
+        end += Long.parseLong(row[3]);
+        String report = new String(text, (int) Long.parseLong(row[2]),
+            (int) Long.parseLong(row[3]), StandardCharsets.UTF_8);
+        assertTrue(report.contains("ENCOUNTER" + System.lineSeparator() + row[1] + " : "));
+      }
+      assertEquals(text.length, end);
+    }
+    assertEquals(numberOfPeople, count);
   }
 }
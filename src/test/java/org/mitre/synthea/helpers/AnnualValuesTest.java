@@ -0,0 +1,94 @@
+package org.mitre.synthea.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AnnualValuesTest {
+
+  @Test
+  public void testPrimitiveAccessors() {
+    AnnualValues values = new AnnualValues();
+    Assert.assertTrue(values.isEmpty());
+    Assert.assertFalse(values.has(2000));
+    Assert.assertEquals(-1.0, values.get(2000, -1.0), 0.0);
+
+    values.set(2000, 0.5);
+    values.add(2001, 0.25);
+    values.add(2001, 0.25);
+    Assert.assertEquals(2, values.size());
+    Assert.assertTrue(values.has(2001));
+    Assert.assertEquals(0.5, values.get(2001, 0.0), 0.0);
+    Assert.assertEquals(1.0, values.sum(), 0.0);
+  }
+
+  @Test
+  public void testBehavesLikeLinkedHashMap() {
+    AnnualValues values = new AnnualValues();
+    Map<Integer, Double> expected = new LinkedHashMap<Integer, Double>();
+    for (int year = 1950; year < 2020; year++) {
+      values.put(year, year / 100.0);
+      expected.put(year, year / 100.0);
+    }
+    Assert.assertEquals(expected, values);
+    Assert.assertEquals(new ArrayList<Integer>(expected.keySet()),
+        new ArrayList<Integer>(values.keySet()));
+    Assert.assertTrue(values.containsKey(1975));
+    Assert.assertFalse(values.containsKey(2020));
+    Assert.assertFalse(values.containsKey("1975"));
+    Assert.assertNull(values.get(1949));
+    Assert.assertEquals(expected.get(1999), values.get(1999));
+    Assert.assertEquals(expected.put(1999, 1.0), values.put(1999, 1.0));
+    Assert.assertEquals(expected.remove(2000), values.remove(2000));
+    Assert.assertEquals(expected, values);
+  }
+
+  @Test
+  public void testPutNullValueRemovesYear() {
+    AnnualValues values = new AnnualValues();
+    values.put(2000, 1.0);
+    Assert.assertNull(values.put(2001, null));
+    Assert.assertEquals(Double.valueOf(1.0), values.put(2000, null));
+    Assert.assertTrue(values.isEmpty());
+    try {
+      values.put(null, 1.0);
+      Assert.fail("Expected a NullPointerException");
+    } catch (NullPointerException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testEarlierYear() {
+    AnnualValues values = new AnnualValues();
+    values.put(2010, 1.0);
+    values.put(2012, 3.0);
+    values.put(2000, 0.5);
+    Assert.assertEquals(Arrays.asList(2000, 2010, 2012),
+        new ArrayList<Integer>(values.keySet()));
+    Assert.assertEquals(4.5, values.sum(), 0.0);
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    AnnualValues values = new AnnualValues();
+    for (int age = 0; age < 10; age++) {
+      values.set(age, age);
+    }
+    Iterator<Integer> iter = values.keySet().iterator();
+    while (iter.hasNext()) {
+      if (iter.next() % 2 == 1) {
+        iter.remove();
+      }
+    }
+    List<Integer> remaining = new ArrayList<Integer>(values.keySet());
+    Assert.assertEquals(Arrays.asList(0, 2, 4, 6, 8), remaining);
+    Assert.assertEquals(20.0, values.sum(), 0.0);
+  }
+}
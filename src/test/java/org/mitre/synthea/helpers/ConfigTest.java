@@ -2,6 +2,9 @@ package org.mitre.synthea.helpers;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -70,4 +73,28 @@ public class ConfigTest {
     assertFalse(propertyNames.contains("bing.bong.do"));
 
   }
+
+  @Test
+  public void testSnapshot() {
+    Config.Snapshot before = Config.snapshot();
+    assertSame(before, Config.snapshot());
+    assertNull(before.get("bing.bong.typed"));
+    assertEquals(7, before.getAsInteger("bing.bong.typed", 7));
+
+    Config.set("bing.bong.typed", " 42 ");
+    try {
+      Config.Snapshot after = Config.snapshot();
+      assertNotSame(before, after);
+      // the old snapshot does not change
+      assertNull(before.get("bing.bong.typed"));
+      assertEquals(42, after.getAsInteger("bing.bong.typed", 7));
+      assertEquals(42L, Config.getAsLong("bing.bong.typed", 7L));
+      assertEquals(42.0, Config.getAsDouble("bing.bong.typed", 7.0), 0.0);
+      assertFalse(Config.getAsBoolean("bing.bong.typed"));
+      assertTrue(Config.getAsBoolean("bing.bong.missing", true));
+    } finally {
+      Config.remove("bing.bong.typed");
+    }
+    assertNull(Config.snapshot().get("bing.bong.typed"));
+  }
 }
@@ -2,6 +2,12 @@ package org.mitre.synthea.helpers;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -37,4 +43,52 @@ public class FactTableTest {
     Assert.assertTrue(output.contains(he + ",He"));    
   }
 
+  @Test
+  public void testFactTableWritesInIdOrder() throws IOException {
+    FactTable table = new FactTable();
+    table.setHeader("ID,NAME");
+    // ids 30 to 49 are not in order in the buckets of a hash map with 32 buckets
+    table.setNextId(30);
+    for (int i = 0; i < 20; i++) {
+      Assert.assertEquals(30 + i, table.addFact("key" + i, "fact" + i));
+    }
+    StringWriter writer = new StringWriter();
+    table.write(writer);
+    String[] lines = writer.toString().split(System.lineSeparator());
+    Assert.assertEquals("ID,NAME", lines[0]);
+    for (int i = 0; i < 20; i++) {
+      Assert.assertEquals((30 + i) + ",fact" + i, lines[i + 1]);
+    }
+  }
+
+  @Test
+  public void testFactTableConcurrentAdds() throws Exception {
+    FactTable table = new FactTable();
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      Future<?>[] futures = new Future<?>[8];
+      for (int t = 0; t < futures.length; t++) {
+        futures[t] = pool.submit(() -> {
+          for (int i = 0; i < 1000; i++) {
+            int id = table.addFact("key" + i, "fact" + i);
+            Assert.assertEquals(id, table.getFactId("key" + i));
+          }
+        });
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    // every key got exactly one id, and no ids were skipped
+    Set<Integer> ids = new HashSet<Integer>();
+    for (int i = 0; i < 1000; i++) {
+      ids.add(table.getFactId("key" + i));
+      Assert.assertEquals("fact" + i, table.getFactByKey("key" + i));
+    }
+    Assert.assertEquals(1000, ids.size());
+    Assert.assertEquals(Integer.valueOf(1), Collections.min(ids));
+    Assert.assertEquals(Integer.valueOf(1000), Collections.max(ids));
+  }
 }
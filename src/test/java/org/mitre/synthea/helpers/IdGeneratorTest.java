@@ -0,0 +1,63 @@
+package org.mitre.synthea.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.mitre.synthea.TestHelper;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.agents.Provider;
+import org.mitre.synthea.world.concepts.HealthRecord;
+
+public class IdGeneratorTest {
+  @Test
+  public void testIdsAreVersion4UUIDs() {
+    IdGenerator ids = new IdGenerator(12345L, "test");
+    Set<String> seen = new HashSet<String>();
+    for (int i = 0; i < 10000; i++) {
+      UUID uuid = ids.nextUUID();
+      assertEquals(4, uuid.version());
+      assertEquals(2, uuid.variant());
+      assertTrue(seen.add(uuid.toString()));
+    }
+  }
+
+  @Test
+  public void testIdsAreReproducible() {
+    IdGenerator first = new IdGenerator(12345L, "test");
+    IdGenerator second = new IdGenerator(12345L, "test");
+    IdGenerator otherSeed = new IdGenerator(12346L, "test");
+    IdGenerator otherNamespace = new IdGenerator(12345L, "other");
+    for (int i = 0; i < 100; i++) {
+      String id = first.nextId();
+      assertEquals(id, second.nextId());
+      assertNotEquals(id, otherSeed.nextId());
+      assertNotEquals(id, otherNamespace.nextId());
+    }
+  }
+
+  @Test
+  public void testEachRecordHasItsOwnIds() throws Exception {
+    TestHelper.loadTestProperties();
+    Person person = new Person(12345L);
+    assertEquals(new IdGenerator(12345L, "test").nextId(),
+        IdGenerator.forRecord(person, "test").nextId());
+
+    person.hasMultipleRecords = true;
+    HealthRecord first = person.record;
+    first.provider = new Provider();
+    HealthRecord second = new HealthRecord(person);
+    second.provider = new Provider();
+    String id = IdGenerator.forRecord(person, "test").nextId();
+    assertEquals(id, IdGenerator.forRecord(person, "test").nextId());
+    person.record = second;
+    assertNotEquals(id, IdGenerator.forRecord(person, "test").nextId());
+    person.record = first;
+    assertEquals(id, IdGenerator.forRecord(person, "test").nextId());
+  }
+}
@@ -67,4 +67,24 @@ public class GrowthChartTest {
     double maleHead = LifecycleModule.lookupGrowthChart("head", "M", 18, 0.8);
     assertNotEquals(femaleHead, maleHead);
   }
+
+  @Test
+  public void testZScoreToPercentile() throws Exception {
+    double[] zscores = {-1.881, -1.645, -1.282, -0.674,  0.0, 0.674, 1.036, 1.282, 1.645, 1.881};
+    double[] percent = { 0.03, 0.05, 0.10, 0.25, 0.50, 0.75, 0.85, 0.90, 0.95, 0.97};
+    for (int i = 0; i < zscores.length; i++) {
+      assertEquals(percent[i], GrowthChart.zscoreToPercentile(zscores[i]), 0.001);
+    }
+    assertEquals(0.0, GrowthChart.zscoreToPercentile(-50), 0.0);
+    assertEquals(1.0, GrowthChart.zscoreToPercentile(50), 0.0);
+  }
+
+  @Test
+  public void testGrowthChartPercentileRoundTrip() throws Exception {
+    GrowthChart chart = GrowthChart.loadCharts().get(GrowthChart.ChartType.WEIGHT);
+    double weight = chart.lookUp(20, "F", 0.3);
+    assertEquals(weight, chart.lookUp(20, GrowthChart.FEMALE, 0.3), 0.0);
+    assertEquals(0.3, chart.percentileFor(20, "F", weight), 0.0001);
+    assertEquals(0.3, chart.percentileFor(20, GrowthChart.FEMALE, weight), 0.0001);
+  }
 }
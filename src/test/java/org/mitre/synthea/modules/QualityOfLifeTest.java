@@ -2,6 +2,10 @@ package org.mitre.synthea.modules;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -105,6 +109,51 @@ public class QualityOfLifeTest {
     assertEquals(true, (qalyDeceased > 33 && qalyDeceased < 34));
   }
 
+  @Test
+  public void testCalculateIncremental() {
+    // calculate once per year, as the module does during simulation
+    double[] incremental = null;
+    for (int year = 0; year <= 35; year++) {
+      incremental = QualityOfLifeModule.calculate(person,
+          TimeUnit.DAYS.toMillis((long) (365.25 * year)) + 1);
+    }
+    incremental = QualityOfLifeModule.calculate(person, TimeUnit.DAYS.toMillis(stopTime));
+
+    // discard the running totals and calculate the entire life at once
+    person.attributes.remove(QualityOfLifeModule.HALY_TRACKER);
+    double[] full = QualityOfLifeModule.calculate(person, TimeUnit.DAYS.toMillis(stopTime));
+
+    assertEquals(full[0], incremental[0], 0.0001);
+    assertEquals(full[1], incremental[1], 0.0001);
+    assertEquals(full[2], incremental[2], 0.0001);
+  }
+
+  @Test
+  public void testCalculateAfterSerializingTracker() throws Exception {
+    for (int year = 0; year <= 20; year++) {
+      QualityOfLifeModule.calculate(person, TimeUnit.DAYS.toMillis((long) (365.25 * year)) + 1);
+    }
+
+    // the running totals are kept in the attributes, which are serialized with the person
+    Object tracker = person.attributes.get(QualityOfLifeModule.HALY_TRACKER);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(tracker);
+    }
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      person.attributes.put(QualityOfLifeModule.HALY_TRACKER, in.readObject());
+    }
+    double[] resumed = QualityOfLifeModule.calculate(person, TimeUnit.DAYS.toMillis(stopTime));
+
+    person.attributes.remove(QualityOfLifeModule.HALY_TRACKER);
+    double[] full = QualityOfLifeModule.calculate(person, TimeUnit.DAYS.toMillis(stopTime));
+
+    assertEquals(full[0], resumed[0], 0.0001);
+    assertEquals(full[1], resumed[1], 0.0001);
+    assertEquals(full[2], resumed[2], 0.0001);
+  }
+
   @Test
   public void testConditionsInYear() {
     List<Entry> allConditions = new ArrayList<Entry>();
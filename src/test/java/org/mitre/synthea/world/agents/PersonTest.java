@@ -1,12 +1,18 @@
 package org.mitre.synthea.world.agents;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mitre.synthea.TestHelper.timestamp;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mitre.synthea.helpers.RandomValueGenerator;
+import org.mitre.synthea.world.concepts.VitalSign;
 
 public class PersonTest {
   private Person person;
@@ -51,6 +57,64 @@ public class PersonTest {
     testAgeMonths(birthdate, now, 11);
   }
 
+  @Test
+  public void testVitalSignRounding() {
+    person.setVitalSign(VitalSign.SYSTOLIC_BLOOD_PRESSURE, 120.5);
+    assertEquals(121.0, person.getVitalSign(VitalSign.SYSTOLIC_BLOOD_PRESSURE, 0L), 0.0);
+    person.setVitalSign(VitalSign.WEIGHT, 70.25);
+    assertEquals(70.3, person.getVitalSign(VitalSign.WEIGHT, 0L), 0.0);
+    person.setVitalSign(VitalSign.LDL, -1.005);
+    assertEquals(-1.01, person.getVitalSign(VitalSign.LDL, 0L), 0.0);
+    person.setVitalSign(VitalSign.HDL, 52.444);
+    assertEquals(52.44, person.getVitalSign(VitalSign.HDL, 0L), 0.0);
+  }
+
+  @Test
+  public void testVitalSignMemoization() {
+    person.setVitalSign(VitalSign.GLUCOSE, new RandomValueGenerator(person, 0, 1000));
+    double first = person.getVitalSign(VitalSign.GLUCOSE, 100L);
+    // same time, same generator: same value
+    assertEquals(first, person.getVitalSign(VitalSign.GLUCOSE, 100L), 0.0);
+    // replacing the generator replaces the value
+    person.setVitalSign(VitalSign.GLUCOSE, 5.0);
+    assertEquals(5.0, person.getVitalSign(VitalSign.GLUCOSE, 100L), 0.0);
+  }
+
+  @Test
+  public void testCompactForExport() {
+    person.setSymptom("Cause A", "Fatigue", 30, false);
+    person.setSymptom("Cause B", "Fatigue", 50, true);
+    person.setSymptom("Cause C", "Fatigue", 25, false);
+    person.setSymptom("Cause A", "Cough", 10, false);
+    person.setVitalSign(VitalSign.WEIGHT, 70.0);
+    person.attributes.put(Person.CURRENT_ENCOUNTERS, new HashMap<String, Object>());
+    person.attributes.put(Person.NAME, "Test Person");
+
+    Set<String> symptoms = person.getSymptoms();
+    int symptomTotal = person.symptomTotal();
+    person.compactForExport();
+
+    assertEquals(symptoms, person.getSymptoms());
+    assertEquals(symptomTotal, person.symptomTotal());
+    assertEquals(30, person.getSymptom("Fatigue"));
+    assertTrue(person.vitalSigns.isEmpty());
+    assertTrue(person.chronicMedications.isEmpty());
+    assertFalse(person.attributes.containsKey(Person.CURRENT_ENCOUNTERS));
+    assertEquals("Test Person", person.attributes.get(Person.NAME));
+  }
+
+  @Test
+  public void testHealthcareExpensesAtAnyAge() {
+    person.attributes.put(Person.BIRTHDATE, timestamp(2000, 1, 1, 0, 0, 0));
+    // before birth, and at an age past the end of the payer history
+    person.addExpense(10.0, timestamp(1999, 6, 1, 0, 0, 0));
+    person.addExpense(20.0, timestamp(2140, 6, 1, 0, 0, 0));
+    person.addCoverage(5.0, timestamp(2140, 6, 1, 0, 0, 0));
+    person.addExpense(30.0, timestamp(2010, 6, 1, 0, 0, 0));
+    assertEquals(60.0, person.getHealthcareExpenses(), 0.0);
+    assertEquals(5.0, person.getHealthcareCoverage(), 0.0);
+  }
+
   private void testAgeYears(long birthdate, long now, long expectedAge) {
     person.attributes.put(Person.BIRTHDATE, birthdate);
     assertEquals(expectedAge, person.ageInYears(now));
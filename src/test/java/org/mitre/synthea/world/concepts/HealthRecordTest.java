@@ -1,12 +1,18 @@
 package org.mitre.synthea.world.concepts;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mitre.synthea.export.Exporter;
+import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Payer;
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
 import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
+import org.mitre.synthea.world.concepts.HealthRecord.Entry;
 import org.mitre.synthea.world.concepts.HealthRecord.Report;
 
 public class HealthRecordTest {
@@ -75,5 +81,71 @@ public class HealthRecordTest {
     Assert.assertEquals("A", report.observations.get(0).value);
     Assert.assertEquals("B", report.observations.get(1).value);
     Assert.assertEquals("C", report.observations.get(2).value);
-  } 
+  }
+
+  @Test
+  public void testElideHistory() {
+    Person person = new Person(0L);
+    person.setPayerAtTime(time, noInsurance);
+    HealthRecord record = new HealthRecord(person);
+    long year = Utilities.convertTime("years", 1);
+    Encounter old = record.encounterStart(time, EncounterType.WELLNESS);
+    record.observation(time, "A", "old A");
+    record.observation(time, "B", "old B");
+    record.report(time, "R", 2);
+    Entry ended = record.conditionStart(time, "ended");
+    Entry present = record.conditionStart(time, "present");
+    record.procedure(time, "P");
+    record.conditionEnd(time + 1, "ended");
+    record.encounterStart(time + 5 * year, EncounterType.WELLNESS);
+    record.observation(time + 5 * year, "A", "new A");
+    Encounter current = record.encounterStart(time + 6 * year, EncounterType.WELLNESS);
+    record.observation(time + 6 * year, "C", "C");
+
+    record.elideHistory(time + 2 * year);
+
+    Assert.assertEquals(3, record.encounters.size());
+    Assert.assertEquals(1, old.observations.size());
+    Assert.assertEquals("old B", record.getLatestObservation("B").value);
+    Assert.assertEquals("new A", record.getLatestObservation("A").value);
+    Assert.assertTrue(old.reports.isEmpty());
+    // conditions are kept, as their type may still be active on export
+    Assert.assertEquals(Arrays.asList(ended, present), old.conditions);
+    Assert.assertTrue(old.procedures.isEmpty());
+    Assert.assertTrue(old.claim.items.contains(ended));
+    Assert.assertTrue(old.claim.items.contains(present));
+    Assert.assertEquals(1, current.observations.size());
+
+    // the current encounter is never changed
+    record.elideHistory(time + 10 * year);
+    Assert.assertEquals(1, current.observations.size());
+  }
+
+  @Test
+  public void testElideHistoryKeepsRecurringCondition() {
+    Person person = new Person(0L);
+    person.setPayerAtTime(time, noInsurance);
+    HealthRecord record = new HealthRecord(person);
+    person.record = record;
+    long year = Utilities.convertTime("years", 1);
+    Encounter old = record.encounterStart(time, EncounterType.WELLNESS);
+    Entry ended = record.conditionStart(time, "recurring");
+    record.conditionEnd(time + 1, "recurring");
+    record.encounterStart(time + 3 * year, EncounterType.WELLNESS);
+
+    // the condition has ended and is not active while the history is elided
+    record.elideHistory(time + 2 * year);
+    Assert.assertEquals(Collections.singletonList(ended), old.conditions);
+
+    record.encounterStart(time + 5 * year, EncounterType.WELLNESS);
+    Entry recurrence = record.conditionStart(time + 5 * year, "recurring");
+    record.encounterStart(time + 6 * year, EncounterType.WELLNESS);
+
+    // but it recurs and is active on export, so the export keeps the first occurrence too
+    Exporter.filterForExport(person, 3, time + 6 * year);
+    Assert.assertEquals(Collections.singletonList(ended), old.conditions);
+    Assert.assertTrue(old.claim.items.contains(ended));
+    Assert.assertTrue(record.conditionActive("recurring"));
+    Assert.assertTrue(record.encounters.stream().anyMatch(e -> e.conditions.contains(recurrence)));
+  }
 }
@@ -1,6 +1,7 @@
 package org.mitre.synthea.world.concepts;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.util.Map;
 import org.apache.commons.math3.random.JDKRandomGenerator;
@@ -87,4 +88,23 @@ public class PediatricGrowthTrajectoryTest {
     pgt.addPointFromPercentile(threeYearsInMonths, timeInSim, ninetySeventh, sex);
     assertEquals(19.2084002, pgt.tail().bmi, 0.01);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void justBeforeAndAfter() {
+    long birthDay = TestHelper.timestamp(2017, 1, 1, 0, 0, 0);
+    PediatricGrowthTrajectory pgt = new PediatricGrowthTrajectory(0L, birthDay);
+    long first = pgt.tail().timeInSimulation;
+    int firstAge = pgt.tail().ageInMonths;
+    long oneYear = Utilities.convertTime("years", 1);
+    pgt.addPoint(firstAge + 12, first + oneYear, 17);
+    pgt.addPoint(firstAge + 24, first + 2 * oneYear, 18);
+
+    assertNull(pgt.justBefore(first));
+    assertEquals(first, pgt.justAfter(first - 1).timeInSimulation);
+    assertEquals(first, pgt.justBefore(first + 1).timeInSimulation);
+    assertEquals(first + oneYear, pgt.justAfter(first).timeInSimulation);
+    assertEquals(first + oneYear, pgt.justBefore(first + oneYear + 1).timeInSimulation);
+    assertEquals(first + 2 * oneYear, pgt.justAfter(first + oneYear).timeInSimulation);
+    assertNull(pgt.justAfter(first + 2 * oneYear));
+  }
+}